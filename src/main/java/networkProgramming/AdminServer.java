@@ -0,0 +1,161 @@
+package networkProgramming;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.QueryStringDecoder;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 管理用の HTTP サーバー。次のパスで状態を text/plain で返します。
+ *
+ * <ul>
+ *     <li>{@code GET /connections} {@link ConnectionRegistry} の接続の一覧</li>
+ *     <li>{@code GET /eventloops} {@link EventLoopWatchdog} のループごとの遅れのヒストグラムと未実行のタスク数</li>
+ * </ul>
+ *
+ * <p>
+ * 一覧にはクライアントのアドレスが含まれるため、既定ではループバックアドレスだけで待ち受けます。
+ * 単体で起動したサーバーでは、システムプロパティ {@code admin.port} を指定すると {@link #bindFromSystemProperties}
+ * で待ち受けます。待ち受けるアドレスは {@code admin.host} (既定値 127.0.0.1) で変更できます。
+ * </p>
+ */
+final class AdminServer {
+    private static final Logger logger = Logger.getLogger(AdminServer.class.getName());
+
+    private final ConnectionRegistry registry;
+    private final EventLoopWatchdog  watchdog;
+    private       ChannelGroup       tracked;
+
+    /**
+     * @param registry 一覧を返す接続の登録先
+     * @param watchdog 状態を返すイベントループの見張り
+     */
+    AdminServer(ConnectionRegistry registry, EventLoopWatchdog watchdog) {
+        this.registry = registry;
+        this.watchdog = watchdog;
+    }
+
+    /**
+     * 受け付けた接続を追加するグループを設定します。バインドより前に呼び出します。
+     *
+     * @param group 接続を追加するグループ。閉じた接続はグループから自動的に取り除かれます
+     * @return このサーバー
+     */
+    AdminServer trackConnections(ChannelGroup group) {
+        this.tracked = group;
+        return this;
+    }
+
+    /**
+     * 待ち受けます。
+     *
+     * @param bossGroup   接続を受け付けるイベントループグループ
+     * @param workerGroup 接続を処理するイベントループグループ
+     * @param host        待ち受けるアドレス
+     * @param port        待ち受けるポート番号
+     * @return 待ち受けているサーバーチャネル
+     * @throws InterruptedException バインド待ちの間に割り込まれた場合
+     */
+    Channel bind(EventLoopGroup bossGroup, EventLoopGroup workerGroup, String host, int port)
+            throws InterruptedException {
+        Channel channel = new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(NettyTransport.of(workerGroup).serverChannelClass())
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        if (tracked != null) {
+                            tracked.add(ch);
+                        }
+                        ch.pipeline().addLast(new HttpServerCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(4096));
+                        ch.pipeline().addLast(new AdminHandler());
+                    }
+                })
+                .bind(host, port)
+                .sync()
+                .channel();
+        logger.info("Admin server listening on " + channel.localAddress());
+        return channel;
+    }
+
+    /**
+     * システムプロパティ {@code admin.port} を指定した場合に、共有の {@link ConnectionRegistry} と
+     * {@link EventLoopWatchdog} の管理用サーバーで待ち受けます。
+     *
+     * @param bossGroup   接続を受け付けるイベントループグループ
+     * @param workerGroup 接続を処理するイベントループグループ
+     * @return 待ち受けているサーバーチャネル。指定していない場合は null
+     * @throws InterruptedException バインド待ちの間に割り込まれた場合
+     */
+    static Channel bindFromSystemProperties(EventLoopGroup bossGroup, EventLoopGroup workerGroup)
+            throws InterruptedException {
+        Integer port = Integer.getInteger("admin.port");
+        if (port == null) {
+            return null;
+        }
+        return new AdminServer(ConnectionRegistry.shared(), EventLoopWatchdog.shared())
+                .bind(bossGroup, workerGroup, System.getProperty("admin.host", "127.0.0.1"), port);
+    }
+
+    private final class AdminHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+            String path = new QueryStringDecoder(request.uri()).path();
+            FullHttpResponse response;
+            if (! request.method().equals(HttpMethod.GET)) {
+                response = text(HttpResponseStatus.METHOD_NOT_ALLOWED, "method not allowed\n", ctx);
+            } else if (path.equals("/connections")) {
+                response = text(HttpResponseStatus.OK, registry.status(), ctx);
+            } else if (path.equals("/eventloops")) {
+                response = text(HttpResponseStatus.OK, watchdog.status(), ctx);
+            } else {
+                response = text(HttpResponseStatus.NOT_FOUND, "not found\n", ctx);
+            }
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            HttpUtil.setKeepAlive(response, keepAlive);
+            ChannelFuture f = ctx.writeAndFlush(response);
+            if (! keepAlive) {
+                f.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        private FullHttpResponse text(HttpResponseStatus status, String body, ChannelHandlerContext ctx) {
+            ByteBuf content = ByteBufUtil.writeUtf8(ctx.alloc(), body);
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, content);
+            response.headers()
+                    .set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8")
+                    .set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes())
+                    .set(HttpHeaderNames.CACHE_CONTROL, HttpHeaderValues.NO_STORE);
+            return response;
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.log(Level.WARNING, "Admin handler error", cause);
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package networkProgramming;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 子チャネルのパイプラインの先頭に置き、{@link AdmissionController} の判定で接続を受け付けるハンドラー。
+ *
+ * <p>
+ * 上限を超えた接続は、後続のハンドラー (TLSハンドシェイクやHTTPデコーダー) が動く前に閉じます。
+ * 平文のHTTPサーバーでは {@link #forHttp} で作成すると、閉じる前に固定の 503 レスポンスを返します。
+ * {@code limitReads} を指定した場合は、読み取りごとにレート制限を行い、超過した接続を閉じます。
+ * </p>
+ */
+@ChannelHandler.Sharable
+final class AdmissionControlHandler extends ChannelInboundHandlerAdapter {
+    private static final AttributeKey<InetAddress> ADMITTED = AttributeKey.valueOf("admission.address");
+
+    private final AdmissionController controller;
+    private final ByteBuf             rejection;
+    private final boolean             limitReads;
+
+    /**
+     * ハンドラーを作成します。
+     *
+     * @param controller 受付制御
+     * @param rejection  拒否時に送信する固定のレスポンス。送信しない場合は null
+     * @param limitReads 読み取りごとにレート制限を行う場合は true
+     */
+    AdmissionControlHandler(AdmissionController controller, ByteBuf rejection, boolean limitReads) {
+        this.controller = controller;
+        this.rejection = rejection == null ? null : Unpooled.unreleasableBuffer(rejection.asReadOnly());
+        this.limitReads = limitReads;
+    }
+
+    /**
+     * 拒否時に 503 レスポンスを返す平文HTTPサーバー用のハンドラーを作成します。
+     *
+     * @param controller 受付制御
+     * @return ハンドラー
+     */
+    static AdmissionControlHandler forHttp(AdmissionController controller) {
+        byte[] response = ("HTTP/1.1 503 Service Unavailable\r\n"
+                + "Content-Length: 0\r\n"
+                + "Connection: close\r\n"
+                + "Retry-After: 1\r\n"
+                + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        return new AdmissionControlHandler(controller, Unpooled.directBuffer(response.length).writeBytes(response), false);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        InetAddress address = addressOf(ctx.channel().remoteAddress());
+        if (address == null) {
+            // ドメインソケットなどIPを持たない接続は制限の対象外
+            super.channelActive(ctx);
+            return;
+        }
+        if (! controller.tryAcquireConnection(address)) {
+            if (rejection != null) {
+                ctx.writeAndFlush(rejection.duplicate())
+                   .addListener(ChannelFutureListener.CLOSE);
+            } else {
+                ctx.close();
+            }
+            return;
+        }
+        ctx.channel().attr(ADMITTED).set(address);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        InetAddress address = ctx.channel().attr(ADMITTED).get();
+        if (address == null && addressOf(ctx.channel().remoteAddress()) != null) {
+            // 拒否した接続に届いたデータは処理しない
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        if (limitReads && address != null && ! controller.tryAcquireRequest(address)) {
+            ReferenceCountUtil.release(msg);
+            ctx.close();
+            return;
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        InetAddress address = ctx.channel().attr(ADMITTED).getAndSet(null);
+        if (address != null) {
+            controller.release(address);
+        }
+        super.channelInactive(ctx);
+    }
+
+    static InetAddress addressOf(SocketAddress remote) {
+        return remote instanceof InetSocketAddress inet ? inet.getAddress() : null;
+    }
+}
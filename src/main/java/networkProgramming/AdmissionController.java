@@ -0,0 +1,194 @@
+package networkProgramming;
+
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * サーバー全体の接続数、クライアントIPごとの同時接続数、およびリクエストレートを制限する受付制御。
+ *
+ * <p>
+ * 状態はクライアントIPをキーにした {@link ConcurrentHashMap} に保持し、カウンターはすべて
+ * アトミック変数で更新するためロックを取りません。レート制限は GCRA (Generic Cell Rate Algorithm)
+ * によるトークンバケットで、1つの {@link AtomicLong} を CAS で更新するだけで判定できます。
+ * 接続がなく一定時間アクセスのないエントリは定期的に削除されます。
+ * </p>
+ *
+ * <p>
+ * 設定はシステムプロパティから読み込みます。
+ * </p>
+ * <ul>
+ *     <li>{@code admission.maxConnections} サーバー全体の最大同時接続数 (既定値 10000)</li>
+ *     <li>{@code admission.maxConnectionsPerIp} IPごとの最大同時接続数 (既定値 100)</li>
+ *     <li>{@code admission.requestsPerSecond} IPごとの秒間リクエスト数 (既定値 0 = 無制限)</li>
+ *     <li>{@code admission.burst} レート制限で許容するバースト (既定値 100)</li>
+ *     <li>{@code admission.idleExpirySeconds} アイドルなエントリを削除するまでの秒数 (既定値 60)</li>
+ * </ul>
+ */
+final class AdmissionController {
+    private static final Logger logger = Logger.getLogger(AdmissionController.class.getName());
+
+    private final int                                         maxConnections;
+    private final int                                         maxConnectionsPerIp;
+    private final long                                        emissionIntervalNanos;
+    private final long                                        burstToleranceNanos;
+    private final long                                        idleExpiryNanos;
+    private final AtomicInteger                               connections         = new AtomicInteger();
+    private final ConcurrentHashMap<InetAddress, ClientState> clients             = new ConcurrentHashMap<>();
+    private final LongAdder                                   rejectedConnections = new LongAdder();
+    private final LongAdder                                   rejectedRequests    = new LongAdder();
+
+    /**
+     * 受付制御を作成します。
+     *
+     * @param maxConnections      サーバー全体の最大同時接続数
+     * @param maxConnectionsPerIp IPごとの最大同時接続数
+     * @param requestsPerSecond   IPごとの秒間リクエスト数。0以下の場合はレート制限を行いません
+     * @param burst               レート制限で許容するバースト
+     * @param idleExpirySeconds   アイドルなエントリを削除するまでの秒数
+     */
+    AdmissionController(int maxConnections, int maxConnectionsPerIp, int requestsPerSecond, int burst, int idleExpirySeconds) {
+        this.maxConnections = maxConnections;
+        this.maxConnectionsPerIp = maxConnectionsPerIp;
+        this.emissionIntervalNanos = requestsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / requestsPerSecond : 0;
+        this.burstToleranceNanos = emissionIntervalNanos * Math.max(burst, 1);
+        this.idleExpiryNanos = TimeUnit.SECONDS.toNanos(idleExpirySeconds);
+    }
+
+    /**
+     * システムプロパティの設定から受付制御を作成します。
+     *
+     * @return 受付制御
+     */
+    static AdmissionController fromSystemProperties() {
+        return new AdmissionController(
+                Integer.getInteger("admission.maxConnections", 10_000),
+                Integer.getInteger("admission.maxConnectionsPerIp", 100),
+                Integer.getInteger("admission.requestsPerSecond", 0),
+                Integer.getInteger("admission.burst", 100),
+                Integer.getInteger("admission.idleExpirySeconds", 60));
+    }
+
+    /**
+     * アイドルなエントリを削除する定期タスクを開始します。
+     *
+     * @param group タスクを実行するイベントループグループ
+     * @return スケジュールされたタスク
+     */
+    ScheduledFuture<?> startExpiry(EventExecutorGroup group) {
+        long period = Math.max(idleExpiryNanos / 2, TimeUnit.SECONDS.toNanos(1));
+        return group.next().scheduleAtFixedRate(this::expireIdle, period, period, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * 新しい接続を受け付けるかを判定します。受け付けた場合は接続数に計上されるため、
+     * 切断時に必ず {@link #release(InetAddress)} を呼び出してください。
+     *
+     * @param address クライアントのアドレス
+     * @return 受け付ける場合は true
+     */
+    boolean tryAcquireConnection(InetAddress address) {
+        if (connections.incrementAndGet() > maxConnections) {
+            connections.decrementAndGet();
+            rejectedConnections.increment();
+            return false;
+        }
+        // compute の中で増やすことで、削除処理と同時に実行されてもカウントが失われない
+        boolean[] admitted = new boolean[1];
+        clients.compute(address, (k, state) -> {
+            ClientState s = state != null ? state : new ClientState();
+            admitted[0] = s.connections.incrementAndGet() <= maxConnectionsPerIp;
+            if (! admitted[0]) {
+                s.connections.decrementAndGet();
+            }
+            s.lastSeen = System.nanoTime();
+            return s;
+        });
+        if (! admitted[0]) {
+            connections.decrementAndGet();
+            rejectedConnections.increment();
+        }
+        return admitted[0];
+    }
+
+    /**
+     * 受け付けた接続が閉じられたことを通知します。
+     *
+     * @param address クライアントのアドレス
+     */
+    void release(InetAddress address) {
+        connections.decrementAndGet();
+        ClientState state = clients.get(address);
+        if (state != null) {
+            state.connections.decrementAndGet();
+            state.lastSeen = System.nanoTime();
+        }
+    }
+
+    /**
+     * リクエストのレート制限を判定します。
+     *
+     * @param address クライアントのアドレス
+     * @return 処理してよい場合は true
+     */
+    boolean tryAcquireRequest(InetAddress address) {
+        if (emissionIntervalNanos == 0) {
+            return true;
+        }
+        ClientState state = clients.get(address);
+        if (state == null) {
+            return true;
+        }
+        long now = System.nanoTime();
+        state.lastSeen = now;
+        while (true) {
+            long tat = state.theoreticalArrival.get();
+            long next = Math.max(tat, now) + emissionIntervalNanos;
+            if (next - now > burstToleranceNanos) {
+                rejectedRequests.increment();
+                return false;
+            }
+            if (state.theoreticalArrival.compareAndSet(tat, next)) {
+                return true;
+            }
+        }
+    }
+
+    int activeConnections() {
+        return connections.get();
+    }
+
+    long rejectedConnections() {
+        return rejectedConnections.sum();
+    }
+
+    long rejectedRequests() {
+        return rejectedRequests.sum();
+    }
+
+    private void expireIdle() {
+        long now = System.nanoTime();
+        int before = clients.size();
+        clients.forEach((address, state) -> clients.computeIfPresent(
+                address,
+                (k, s) -> s.connections.get() == 0 && now - s.lastSeen > idleExpiryNanos ? null : s));
+        logger.fine(() -> "Admission entries: " + before + " -> " + clients.size()
+                + ", rejected connections: " + rejectedConnections() + ", rejected requests: " + rejectedRequests());
+    }
+
+    /**
+     * クライアントIPごとの状態。
+     */
+    private static final class ClientState {
+        final    AtomicInteger connections        = new AtomicInteger();
+        final    AtomicLong    theoreticalArrival = new AtomicLong(System.nanoTime());
+        volatile long          lastSeen;
+    }
+}
@@ -0,0 +1,201 @@
+package networkProgramming;
+
+import networkProgramming.HttpClientConnection.HttpResponseHead;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * URLの一覧を並列に取得し、レスポンスボディをファイルへ書き出すバッチフェッチャー。
+ *
+ * <p>
+ * 接続は {@link HttpConnectionPool} によってホストごとにプールされるため、
+ * 同じホストへの多数のURLは少数のキープアライブ接続で処理されます。
+ * {@link HttpDiskCache} を指定すると条件付きGETで再検証し、304 の場合はキャッシュから出力します。
+ * </p>
+ */
+final class BatchFetcher {
+    private static final Map<String, String> REQUEST_HEADERS = Map.of(
+            "User-Agent", "WrnNet",
+            "Accept-Encoding", "identity");
+
+    private final HttpConnectionPool pool;
+    private final Path               outputDir;
+    private final int                concurrency;
+    private final HttpDiskCache      cache;
+    private final AtomicInteger      succeeded = new AtomicInteger();
+    private final AtomicInteger      failed    = new AtomicInteger();
+    private final AtomicLong         bytes     = new AtomicLong();
+
+    /**
+     * バッチフェッチャーを作成します。
+     *
+     * @param pool        使用する接続プール
+     * @param outputDir   レスポンスボディの出力先ディレクトリ
+     * @param concurrency 同時に処理するURLの数
+     * @param cache       条件付きGETに使うキャッシュ。使用しない場合は null
+     */
+    BatchFetcher(HttpConnectionPool pool, Path outputDir, int concurrency, HttpDiskCache cache) {
+        this.pool = pool;
+        this.outputDir = outputDir;
+        this.concurrency = concurrency;
+        this.cache = cache;
+    }
+
+    /**
+     * すべてのURLを取得し、完了後に集計を標準エラー出力に表示します。
+     *
+     * @param urls 取得するURLの一覧
+     * @throws IOException          出力ディレクトリの作成に失敗した場合
+     * @throws InterruptedException 完了待ちの間に割り込まれた場合
+     */
+    void fetchAll(List<String> urls) throws IOException, InterruptedException {
+        Files.createDirectories(outputDir);
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        try {
+            for (int i = 0; i < urls.size(); i++) {
+                int index = i;
+                String url = urls.get(i);
+                executor.execute(() -> fetchOne(index, url));
+            }
+        } finally {
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf(
+                "成功: %d  失敗: %d  受信: %,d バイト  接続: %d (再利用 %d)  %.2f 秒%n",
+                succeeded.get(),
+                failed.get(),
+                bytes.get(),
+                pool.connectionsOpened(),
+                pool.connectionsReused(),
+                seconds);
+        if (cache != null) {
+            cache.printStats();
+        }
+    }
+
+    private void fetchOne(int index, String url) {
+        try {
+            URI uri = new URI(url.trim());
+            Path target = outputDir.resolve(fileNameFor(index, uri));
+            int status = fetch(uri, target, cache != null);
+            if (status / 100 == 2 || status == 304) {
+                succeeded.incrementAndGet();
+            } else {
+                failed.incrementAndGet();
+                System.err.println(status + " " + url);
+            }
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            failed.incrementAndGet();
+            System.err.println("無効なURL: " + url);
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            System.err.println("ネットワークエラー: " + url + " " + e.getMessage());
+        } catch (InterruptedException e) {
+            failed.incrementAndGet();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 1つのURLを取得してファイルへ書き出します。再利用した接続が既に閉じられていた場合は
+     * 新しい接続で一度だけ再試行します。
+     *
+     * @param uri         取得するURL
+     * @param target      出力ファイル
+     * @param conditional キャッシュのエントリがあれば条件付きリクエストにする場合は true
+     * @return レスポンスのステータスコード
+     * @throws IOException          通信または書き込みに失敗した場合
+     * @throws InterruptedException 接続の取得待ちの間に割り込まれた場合
+     */
+    private int fetch(URI uri, Path target, boolean conditional) throws IOException, InterruptedException {
+        String scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase();
+        String host = uri.getHost();
+        if (host == null || ! (scheme.equals("http") || scheme.equals("https"))) {
+            throw new IllegalArgumentException(uri.toString());
+        }
+        int port = uri.getPort() != - 1 ? uri.getPort() : scheme.equals("https") ? 443 : 80;
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+        if (uri.getRawQuery() != null) {
+            path += "?" + uri.getRawQuery();
+        }
+
+        Map<String, String> headers = REQUEST_HEADERS;
+        HttpDiskCache.CacheEntry cached = conditional ? cache.lookup(uri.toString()) : null;
+        if (cached != null) {
+            headers = new LinkedHashMap<>(REQUEST_HEADERS);
+            HttpDiskCache.addValidators(cached, headers);
+        }
+
+        for (int attempt = 0; ; attempt++) {
+            HttpClientConnection connection = pool.acquire(scheme, host, port);
+            boolean reused = connection.isReused();
+            HttpResponseHead head;
+            try {
+                head = connection.exchange("GET", path, headers);
+            } catch (IOException e) {
+                pool.discard(connection);
+                if (attempt == 0 && reused) {
+                    continue;
+                }
+                throw e;
+            }
+            if (cached != null && head.status() == 304) {
+                connection.body(head).close();
+                pool.release(connection);
+                if (cache.serve(cached, target)) {
+                    return head.status();
+                }
+                // 再検証中にエントリが追い出されていたため、条件なしで取得し直す
+                return fetch(uri, target, false);
+            }
+            try (InputStream body = connection.body(head);
+                    OutputStream file = Files.newOutputStream(target)
+            ) {
+                bytes.addAndGet(body.transferTo(file));
+            } catch (IOException e) {
+                pool.discard(connection);
+                throw e;
+            }
+            pool.release(connection);
+            if (cache != null) {
+                cache.store(uri.toString(), head, target);
+            }
+            return head.status();
+        }
+    }
+
+    /**
+     * URLから出力ファイル名を作成します。一覧内の順番を先頭に付け、衝突を避けます。
+     *
+     * @param index 一覧内の順番
+     * @param uri   URL
+     * @return ファイル名
+     */
+    private static String fileNameFor(int index, URI uri) {
+        String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() || uri.getRawPath().equals("/")
+                ? "/index"
+                : uri.getRawPath();
+        String name = (uri.getHost() + path).replaceAll("[^A-Za-z0-9._-]", "_");
+        if (name.length() > 120) {
+            name = name.substring(name.length() - 120);
+        }
+        return String.format("%05d_%s", index, name);
+    }
+}
@@ -0,0 +1,153 @@
+package networkProgramming;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * イベントループの外でファイルI/Oなどのブロッキング処理を実行するための、上限付きのスレッドプール。
+ *
+ * <p>
+ * 処理の結果は呼び出し元チャネルのイベントループに結び付いた {@link Promise} で返すため、
+ * リスナーはイベントループ上で実行され、そのままチャネルへ書き込むことができます。
+ * キューの長さ、待ち時間、実行時間を計測し、{@link #stats()} で参照できます。
+ * </p>
+ *
+ * <p>
+ * スレッド数は {@code io.threads} (既定値はCPU数と4の大きい方)、キューの長さは {@code io.queueSize}
+ * (既定値 1024) のシステムプロパティで設定します。キューが一杯の場合、Promise は
+ * {@link RejectedExecutionException} で失敗します。
+ * </p>
+ */
+final class BlockingIoExecutor {
+    private static final Logger logger = Logger.getLogger(BlockingIoExecutor.class.getName());
+
+    private final ThreadPoolExecutor executor;
+    private final LongAdder          completed      = new LongAdder();
+    private final LongAdder          rejected       = new LongAdder();
+    private final LongAdder          totalWaitNanos = new LongAdder();
+    private final LongAdder          totalRunNanos  = new LongAdder();
+    private final AtomicLong         maxWaitNanos   = new AtomicLong();
+
+    /**
+     * 実行器を作成します。
+     *
+     * @param name      スレッド名の接頭辞
+     * @param threads   スレッド数
+     * @param queueSize キューの最大長
+     */
+    BlockingIoExecutor(String name, int threads, int queueSize) {
+        this.executor = new ThreadPoolExecutor(
+                threads,
+                threads,
+                60,
+                TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                new DefaultThreadFactory(name, true));
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * システムプロパティの設定から実行器を作成します。
+     *
+     * @param name スレッド名の接頭辞
+     * @return 実行器
+     */
+    static BlockingIoExecutor fromSystemProperties(String name) {
+        return new BlockingIoExecutor(
+                name,
+                Integer.getInteger("io.threads", Math.max(4, Runtime.getRuntime().availableProcessors())),
+                Integer.getInteger("io.queueSize", 1024));
+    }
+
+    /**
+     * 処理を実行し、結果を指定されたイベントループ上で通知します。
+     *
+     * @param task     実行する処理
+     * @param executor 結果を通知するイベントループ (通常は {@code ctx.executor()})
+     * @param <T>      処理結果の型
+     * @return 処理結果の Future
+     */
+    <T> Future<T> submit(Callable<T> task, EventExecutor executor) {
+        Promise<T> promise = executor.newPromise();
+        long enqueued = System.nanoTime();
+        try {
+            this.executor.execute(() -> {
+                long started = System.nanoTime();
+                recordWait(started - enqueued);
+                try {
+                    promise.trySuccess(task.call());
+                } catch (Throwable t) {
+                    promise.tryFailure(t);
+                } finally {
+                    totalRunNanos.add(System.nanoTime() - started);
+                    completed.increment();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            promise.tryFailure(e);
+        }
+        return promise;
+    }
+
+    /**
+     * 現在のキューの長さを返します。
+     *
+     * @return キューで待機しているタスク数
+     */
+    int queueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * 計測値をまとめた文字列を返します。
+     *
+     * @return 計測値
+     */
+    String stats() {
+        long count = completed.sum();
+        return String.format(
+                "queue=%d active=%d completed=%d rejected=%d avgWait=%.3fms maxWait=%.3fms avgRun=%.3fms",
+                queueDepth(),
+                executor.getActiveCount(),
+                count,
+                rejected.sum(),
+                count == 0 ? 0.0 : totalWaitNanos.sum() / 1e6 / count,
+                maxWaitNanos.get() / 1e6,
+                count == 0 ? 0.0 : totalRunNanos.sum() / 1e6 / count);
+    }
+
+    /**
+     * 計測値を定期的にログへ出力します。
+     *
+     * @param scheduler 出力タスクを実行するイベントループ
+     * @param period    出力間隔
+     * @param unit      出力間隔の単位
+     */
+    void logStatsPeriodically(EventExecutor scheduler, long period, TimeUnit unit) {
+        scheduler.scheduleAtFixedRate(() -> logger.fine(() -> "Blocking I/O: " + stats()), period, period, unit);
+    }
+
+    /**
+     * 実行器を停止します。実行中と待機中のタスクは完了まで実行されます。
+     */
+    void shutdown() {
+        executor.shutdown();
+    }
+
+    private void recordWait(long waitNanos) {
+        totalWaitNanos.add(waitNanos);
+        maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+    }
+}
@@ -0,0 +1,328 @@
+package networkProgramming;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.stream.ChunkedInput;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Range ヘッダー (RFC 9110 14.2) の解析と、206 レスポンスのボディ。
+ *
+ * <p>
+ * ボディはメモリ上の内容を切り出さず、ファイルの範囲から直接送ります。TLS を通らない HTTP/1.1 の接続には
+ * {@link DefaultFileRegion} を書き込み、カーネルの sendfile でページキャッシュから送ります。TLS や HTTP/2 のように
+ * バイト列が必要な接続には {@link #newChunkedInput()} を {@code ChunkedWriteHandler} で書き込み、範囲を
+ * 位置指定の読み込みでプールされたバッファへ直接読み込みます。
+ * </p>
+ *
+ * <p>
+ * 範囲が1つの場合はその範囲だけを、複数の場合は {@code multipart/byteranges} で返します。重なるか隣り合う範囲は
+ * まとめます。{@value #MAX_RANGES} 個を超える範囲の指定は、小さな範囲を大量に要求する攻撃を避けるため無視し、
+ * 全体を返します (RFC 9110 で許されています)。
+ * </p>
+ */
+final class ByteRanges {
+    static final         int MAX_RANGES = 16;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private ByteRanges() {
+    }
+
+    /**
+     * ファイルの1つの範囲。両端を含みます。
+     *
+     * @param first 最初のバイトの位置
+     * @param last  最後のバイトの位置
+     */
+    record Range(long first, long last) {
+        long length() {
+            return last - first + 1;
+        }
+
+        String contentRange(long total) {
+            return "bytes " + first + '-' + last + '/' + total;
+        }
+    }
+
+    /**
+     * Range ヘッダーを解析します。
+     *
+     * @param header Range ヘッダーの値
+     * @param total  ファイルのバイト数
+     * @return 返す範囲 (開始位置の順)。満たせる範囲が1つもない場合は空のリスト。
+     *         単位が bytes でない、書式が誤っている、範囲が多すぎる場合は、ヘッダーを無視して全体を返すため null
+     */
+    static List<Range> parse(CharSequence header, long total) {
+        String value = header.toString().trim();
+        if (! value.regionMatches(true, 0, "bytes=", 0, 6)) {
+            return null;
+        }
+        String[] specs = value.substring(6).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<Range> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            if (dash == 0) {
+                // 末尾から数えた長さ (bytes=-500)
+                long suffix = digits(spec.substring(1));
+                if (suffix < 0) {
+                    return null;
+                }
+                if (suffix > 0 && total > 0) {
+                    ranges.add(new Range(Math.max(0, total - suffix), total - 1));
+                }
+                continue;
+            }
+            long first = digits(spec.substring(0, dash));
+            String lastText = spec.substring(dash + 1);
+            long last = lastText.isEmpty() ? Long.MAX_VALUE : digits(lastText);
+            if (first < 0 || last < first) {
+                return null;
+            }
+            if (first < total) {
+                ranges.add(new Range(first, Math.min(last, total - 1)));
+            }
+        }
+        return coalesce(ranges);
+    }
+
+    /**
+     * @return 416 レスポンスの Content-Range の値
+     */
+    static String unsatisfiedRange(long total) {
+        return "bytes */" + total;
+    }
+
+    /**
+     * @return 10進数の値。数字以外を含む、空、または long を超える場合は -1
+     */
+    private static long digits(String text) {
+        if (text.isEmpty() || text.length() > 18) {
+            return - 1;
+        }
+        long value = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return - 1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static List<Range> coalesce(List<Range> ranges) {
+        if (ranges.size() <= 1) {
+            return ranges;
+        }
+        ranges.sort(Comparator.comparingLong(Range::first));
+        List<Range> merged = new ArrayList<>(ranges.size());
+        Range current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            Range next = ranges.get(i);
+            if (next.first() <= current.last() + 1) {
+                current = new Range(current.first(), Math.max(current.last(), next.last()));
+            } else {
+                merged.add(current);
+                current = next;
+            }
+        }
+        merged.add(current);
+        return merged;
+    }
+
+    /**
+     * 206 レスポンスのボディ。範囲が1つの場合はファイルの範囲そのもの、複数の場合は各範囲の前に区切りとパートの
+     * ヘッダーを置いた {@code multipart/byteranges} です。
+     */
+    static final class Body {
+        private final Path        file;
+        private final List<Range> ranges;
+        private final String      contentType;
+        private final String      contentRange;
+        // 複数の範囲の場合だけ使う。partHeaders[i] は ranges[i] の前に送る
+        private final byte[][]    partHeaders;
+        private final byte[]      trailer;
+        private final long        contentLength;
+
+        /**
+         * @param file        配信するファイル
+         * @param contentType ファイルの Content-Type
+         * @param total       ファイルのバイト数
+         * @param ranges      返す範囲。1つ以上
+         */
+        Body(Path file, String contentType, long total, List<Range> ranges) {
+            this.file = file;
+            this.ranges = List.copyOf(ranges);
+            long length = 0;
+            for (Range range : ranges) {
+                length += range.length();
+            }
+            if (ranges.size() == 1) {
+                this.contentType = contentType;
+                this.contentRange = ranges.get(0).contentRange(total);
+                this.partHeaders = null;
+                this.trailer = null;
+            } else {
+                String boundary = Long.toHexString(ThreadLocalRandom.current().nextLong() | Long.MIN_VALUE);
+                this.contentType = "multipart/byteranges; boundary=" + boundary;
+                this.contentRange = null;
+                this.partHeaders = new byte[ranges.size()][];
+                for (int i = 0; i < ranges.size(); i++) {
+                    partHeaders[i] = ((i == 0 ? "" : "\r\n") + "--" + boundary + "\r\n"
+                            + "Content-Type: " + contentType + "\r\n"
+                            + "Content-Range: " + ranges.get(i).contentRange(total) + "\r\n"
+                            + "\r\n").getBytes(StandardCharsets.US_ASCII);
+                    length += partHeaders[i].length;
+                }
+                this.trailer = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+                length += trailer.length;
+            }
+            this.contentLength = length;
+        }
+
+        /**
+         * @return レスポンスの Content-Type。複数の範囲の場合は境界を含む multipart/byteranges
+         */
+        String contentType() {
+            return contentType;
+        }
+
+        /**
+         * @return レスポンスの Content-Range。複数の範囲の場合は null (各パートのヘッダーに含めます)
+         */
+        String contentRange() {
+            return contentRange;
+        }
+
+        long contentLength() {
+            return contentLength;
+        }
+
+        /**
+         * ボディを {@link DefaultFileRegion} と区切りのバッファとして書き込みます。フラッシュはしません。
+         * パイプラインに TLS がない HTTP/1.1 の接続で、レスポンスのヘッダーの後に呼び出してください。
+         *
+         * @param ctx 書き込むコンテキスト
+         */
+        void writeRegions(ChannelHandlerContext ctx) {
+            for (int i = 0; i < ranges.size(); i++) {
+                if (partHeaders != null) {
+                    ctx.write(Unpooled.wrappedBuffer(partHeaders[i]), ctx.voidPromise());
+                }
+                Range range = ranges.get(i);
+                ctx.write(new DefaultFileRegion(file.toFile(), range.first(), range.length()), ctx.voidPromise());
+            }
+            if (trailer != null) {
+                ctx.write(Unpooled.wrappedBuffer(trailer), ctx.voidPromise());
+            }
+        }
+
+        /**
+         * @return ボディを順に読み出す入力。ファイルは最初の読み込みで開き、{@code close()} で閉じます
+         */
+        ChunkedInput<ByteBuf> newChunkedInput() {
+            return new RegionInput();
+        }
+
+        /**
+         * 区切りとファイルの範囲を順に読み出す入力。範囲は {@link FileChannel} の位置指定の読み込みで、
+         * 送信用のバッファへ直接読み込みます。
+         */
+        private final class RegionInput implements ChunkedInput<ByteBuf> {
+            private FileChannel channel;
+            // 複数の範囲の場合は、パートのヘッダー、範囲、... 、終端の順に数える
+            private int         piece;
+            private long        position;
+            private long        progress;
+
+            @Override
+            public boolean isEndOfInput() {
+                return piece == pieces();
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+
+            @Deprecated
+            @Override
+            public ByteBuf readChunk(ChannelHandlerContext ctx) throws Exception {
+                return readChunk(ctx.alloc());
+            }
+
+            @Override
+            public ByteBuf readChunk(ByteBufAllocator allocator) throws Exception {
+                if (isEndOfInput()) {
+                    return null;
+                }
+                if (partHeaders != null && piece % 2 == 0) {
+                    byte[] bytes = piece / 2 < partHeaders.length ? partHeaders[piece / 2] : trailer;
+                    piece++;
+                    progress += bytes.length;
+                    return Unpooled.wrappedBuffer(bytes);
+                }
+                Range range = ranges.get(partHeaders != null ? piece / 2 : 0);
+                if (channel == null) {
+                    channel = FileChannel.open(file, StandardOpenOption.READ);
+                }
+                int size = (int) Math.min(CHUNK_SIZE, range.last() + 1 - (range.first() + position));
+                ByteBuf buffer = allocator.directBuffer(size);
+                try {
+                    while (buffer.writableBytes() > 0) {
+                        long offset = range.first() + position + buffer.readableBytes();
+                        if (buffer.writeBytes(channel, offset, buffer.writableBytes()) < 0) {
+                            throw new EOFException(file + " is shorter than " + (range.last() + 1) + " bytes");
+                        }
+                    }
+                } catch (IOException e) {
+                    buffer.release();
+                    throw e;
+                }
+                position += size;
+                progress += size;
+                if (position == range.length()) {
+                    piece++;
+                    position = 0;
+                }
+                return buffer;
+            }
+
+            private int pieces() {
+                return partHeaders != null ? ranges.size() * 2 + 1 : 1;
+            }
+
+            @Override
+            public long length() {
+                return contentLength;
+            }
+
+            @Override
+            public long progress() {
+                return progress;
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package networkProgramming;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.Date;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * クライアント接続を処理するためのクラス。
+ */
+class ClientHandler implements Runnable {
+    private static final Logger           logger            = Logger.getLogger(
+            ClientHandler.class.getName());
+    private static final String           RESPONSE_TEMPLATE = "\nHello, this is NetClock Server.\n%s\nThank you.\n";
+    private final        Socket           clientSocket;
+    private final        SocketChannel    clientChannel;
+    private final        ConnectionReaper reaper;
+
+    /**
+     * クライアントハンドラを初期化します。
+     *
+     * @param clientSocket クライアントソケット
+     * @param reaper       応答を受け取らないクライアントを切断する reaper
+     */
+    public ClientHandler(Socket clientSocket, ConnectionReaper reaper) {
+        this.clientSocket = clientSocket;
+        this.clientChannel = null;
+        this.reaper = reaper;
+    }
+
+    /**
+     * Unix ドメインソケットで受け付けた接続のクライアントハンドラを初期化します。
+     *
+     * @param clientChannel ブロッキングモードのクライアントチャネル
+     * @param reaper        応答を受け取らないクライアントを切断する reaper
+     */
+    ClientHandler(SocketChannel clientChannel, ConnectionReaper reaper) {
+        this.clientSocket = null;
+        this.clientChannel = clientChannel;
+        this.reaper = reaper;
+    }
+
+    @Override
+    public void run() {
+        Closeable connection = clientSocket != null ? clientSocket : clientChannel;
+        SocketAddress remote = remoteAddress();
+        NetEvents.ConnectionEvent event = NetEvents.beginConnection(remote, "NetClock");
+        ConnectionReaper.Tracker tracker = null;
+        try {
+            tracker = clientSocket != null ? reaper.track(clientSocket) : reaper.track(clientChannel);
+            OutputStream outputStream = tracker.output();
+
+            String response = String.format(RESPONSE_TEMPLATE, new Date());
+            outputStream.write(response.getBytes());
+            outputStream.write('\n');
+            outputStream.flush();
+
+            // リクエストとレスポンスをログに記録
+            logger.info("Received a connection from " + (clientSocket != null ? remote : "unix:" + remote));
+            logger.info("Sent response: " + response);
+
+        } catch (IOException e) {
+            if (tracker != null && tracker.isReaped()) {
+                logger.log(Level.FINE, "クライアント接続を切断しました", e);
+            } else {
+                logger.log(
+                        Level.SEVERE,
+                        "クライアント接続の処理中にエラーが発生しました",
+                        e);
+            }
+        } finally {
+            if (tracker != null) {
+                tracker.close();
+            }
+            try {
+                connection.close();
+            } catch (IOException e) {
+                logger.log(
+                        Level.SEVERE,
+                        "クライアントソケットのクローズ中にエラーが発生しました",
+                        e);
+            }
+            NetEvents.endConnection(event);
+        }
+    }
+
+    private SocketAddress remoteAddress() {
+        if (clientSocket != null) {
+            return clientSocket.getRemoteSocketAddress();
+        }
+        try {
+            return clientChannel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package networkProgramming;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.AttributeKey;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.Timeout;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * 接続を開いたままのクライアントへ、一定間隔で現在時刻を送り続ける NetClock の購読サーバー。
+ *
+ * <p>
+ * 1つの {@link HashedWheelTimer} で刻みを作り、刻みごとに時刻を1度だけエンコードした共有バッファを
+ * すべての購読者へ書き込みます。購読者はイベントループごとに分けて保持し、書き込みはイベントループごとに
+ * 1つのタスクでまとめて行うため、スレッド間の受け渡しは購読者数ではなくイベントループ数に比例します。
+ * </p>
+ *
+ * <p>
+ * 書き込めない (送信バッファが高水位を超えた) 購読者への刻みはバッファに積まずに読み飛ばし、
+ * 連続して読み飛ばした回数が上限に達した購読者は切断します。
+ * </p>
+ *
+ * <p>
+ * 購読者は何も送らないため、{@link ConnectionReaper} の受信タイムアウトは使いません (間隔が受信タイムアウトより
+ * 長いと全員が切断され、購読者ごとに確認のタスクも要ります)。送信が進まない購読者は上の読み飛ばしの回数で、
+ * 相手がいなくなった接続は TCP キープアライブと刻みの送信の失敗で、共有の刻みのタイマーだけを使って切断します。
+ * </p>
+ *
+ * <p>
+ * 設定はシステムプロパティから読み込みます。
+ * </p>
+ * <ul>
+ *     <li>{@code netclock.maxSkippedTicks} 切断するまでに読み飛ばす連続した刻みの数 (既定値 50)</li>
+ *     <li>{@code netclock.statsSeconds} 計測値をログに出力する間隔の秒数 (既定値 60)</li>
+ * </ul>
+ */
+final class ClockSubscriptionServer {
+    private static final Logger              logger  = Logger.getLogger(ClockSubscriptionServer.class.getName());
+    private static final AttributeKey<int[]> SKIPPED = AttributeKey.valueOf("netclock.skipped");
+
+    private final int                                        port;
+    private final long                                       periodMillis;
+    private final int                                        maxSkippedTicks;
+    private final ConcurrentHashMap<EventLoop, Set<Channel>> subscribers     = new ConcurrentHashMap<>();
+    private final AtomicInteger                              subscriberCount = new AtomicInteger();
+    private final LongAdder                                  ticks           = new LongAdder();
+    private final LongAdder                                  skippedTicks    = new LongAdder();
+    private final LongAdder                                  dropped         = new LongAdder();
+    private final SubscriptionHandler                        handler         = new SubscriptionHandler();
+    private       ChannelGroup                               tracked;
+
+    /**
+     * 購読サーバーを作成します。
+     *
+     * @param port         待ち受けるポート番号
+     * @param periodMillis 時刻を送信する間隔 (ミリ秒)
+     */
+    ClockSubscriptionServer(int port, long periodMillis) {
+        this.port = port;
+        this.periodMillis = periodMillis;
+        this.maxSkippedTicks = Integer.getInteger("netclock.maxSkippedTicks", 50);
+    }
+
+    /**
+     * サーバーを起動し、サーバーチャネルが閉じられるまで待機します。
+     *
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    void run() throws InterruptedException {
+        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
+        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        EventLoopWatchdog.shared().watch(bossGroup);
+        EventLoopWatchdog.shared().watch(workerGroup);
+        try {
+            bind(bossGroup, workerGroup).closeFuture().sync();
+        } finally {
+            workerGroup.shutdownGracefully();
+            bossGroup.shutdownGracefully();
+        }
+    }
+
+    /**
+     * 受け付けた接続を追加するグループを設定します。バインドより前に呼び出します。
+     *
+     * @param group 接続を追加するグループ。閉じた接続はグループから自動的に取り除かれます
+     * @return このサーバー
+     */
+    ClockSubscriptionServer trackConnections(ChannelGroup group) {
+        this.tracked = group;
+        return this;
+    }
+
+    /**
+     * 指定したイベントループグループで待ち受け、刻みを開始します。刻みのタイマーと計測値の出力は、
+     * サーバーチャネルが閉じられたときに止めます。
+     *
+     * @param bossGroup   接続を受け付けるイベントループグループ
+     * @param workerGroup 購読者の接続を処理するイベントループグループ
+     * @return 待ち受けているサーバーチャネル
+     * @throws InterruptedException バインド待ちの間に割り込まれた場合
+     */
+    Channel bind(EventLoopGroup bossGroup, EventLoopGroup workerGroup) throws InterruptedException {
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup)
+         .channel(NioServerSocketChannel.class)
+         .option(ChannelOption.SO_BACKLOG, 4096)
+         // 購読者ごとの送信待ちは数刻み分に抑え、それを超えたら書き込めないものとして扱う
+         .childOption(ChannelOption.WRITE_BUFFER_WATER_MARK, new WriteBufferWaterMark(1024, 4096))
+         .childOption(ChannelOption.SO_KEEPALIVE, true)
+         .childHandler(new ChannelInitializer<SocketChannel>() {
+             @Override
+             protected void initChannel(SocketChannel ch) {
+                 if (tracked != null) {
+                     tracked.add(ch);
+                 }
+                 NetEvents.traceConnection(ch, "NetClock");
+                 ch.pipeline().addLast(handler);
+             }
+         });
+        Channel channel = b.bind(port).sync().channel();
+        logger.info("Subscription server started on " + channel.localAddress() + ", period: " + periodMillis + "ms");
+
+        // 刻みの間隔より十分細かい目盛りにして、刻みの遅れを抑える
+        HashedWheelTimer timer = new HashedWheelTimer(
+                new DefaultThreadFactory("netclock-ticker", true),
+                Math.max(1, Math.min(10, periodMillis / 4)),
+                TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        timer.newTimeout(t -> tick(t, start, 1), periodMillis, TimeUnit.MILLISECONDS);
+        long statsSeconds = Integer.getInteger("netclock.statsSeconds", 60);
+        ScheduledFuture<?> statsTask = workerGroup.next().scheduleAtFixedRate(
+                () -> logger.fine(this::stats), statsSeconds, statsSeconds, TimeUnit.SECONDS);
+        channel.closeFuture().addListener(f -> {
+            timer.stop();
+            statsTask.cancel(false);
+        });
+        return channel;
+    }
+
+    /**
+     * 計測値をまとめた文字列を返します。
+     *
+     * @return 計測値
+     */
+    String stats() {
+        return String.format(
+                "subscribers=%d ticks=%d skipped=%d dropped=%d",
+                subscriberCount.get(),
+                ticks.sum(),
+                skippedTicks.sum(),
+                dropped.sum());
+    }
+
+    private void tick(Timeout timeout, long start, long sequence) {
+        // 開始時刻からの刻み数で次の実行時刻を決め、遅れが積み重ならないようにする
+        long next = start + TimeUnit.MILLISECONDS.toNanos(periodMillis * (sequence + 1));
+        timeout.timer().newTimeout(t -> tick(t, start, sequence + 1), next - System.nanoTime(), TimeUnit.NANOSECONDS);
+        ticks.increment();
+
+        byte[] bytes = (Instant.now() + "\n").getBytes(StandardCharsets.US_ASCII);
+        ByteBuf shared = Unpooled.directBuffer(bytes.length).writeBytes(bytes);
+        // イベントループごとに参照を1つ渡し、書き込み後に解放する
+        subscribers.forEach((loop, channels) -> {
+            shared.retain();
+            loop.execute(() -> {
+                try {
+                    fanOut(channels, shared);
+                } finally {
+                    shared.release();
+                }
+            });
+        });
+        shared.release();
+    }
+
+    private void fanOut(Set<Channel> channels, ByteBuf shared) {
+        for (Iterator<Channel> it = channels.iterator(); it.hasNext(); ) {
+            Channel ch = it.next();
+            int[] skipped = ch.attr(SKIPPED).get();
+            if (ch.isWritable()) {
+                skipped[0] = 0;
+                ch.writeAndFlush(shared.retainedDuplicate(), ch.voidPromise());
+            } else if (++ skipped[0] >= maxSkippedTicks) {
+                it.remove();
+                subscriberCount.decrementAndGet();
+                dropped.increment();
+                ch.close();
+            } else {
+                skippedTicks.increment();
+            }
+        }
+    }
+
+    /**
+     * 接続した購読者を、そのチャネルのイベントループの購読者集合へ登録するハンドラー。
+     * 集合はそのイベントループからしか触らないため、同期は不要です。
+     */
+    @ChannelHandler.Sharable
+    private final class SubscriptionHandler extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            Channel ch = ctx.channel();
+            ch.attr(SKIPPED).set(new int[1]);
+            subscribers.computeIfAbsent(ch.eventLoop(), loop -> new HashSet<>()).add(ch);
+            subscriberCount.incrementAndGet();
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            Set<Channel> channels = subscribers.get(ctx.channel().eventLoop());
+            if (channels != null && channels.remove(ctx.channel())) {
+                subscriberCount.decrementAndGet();
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            // 購読者からの入力は使わない
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            ctx.close();
+        }
+    }
+}
@@ -0,0 +1,672 @@
+package networkProgramming;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 無通信のまま居座る接続や、極端に遅い接続 (slowloris など) を切断して、ファイルディスクリプタとバッファを解放します。
+ *
+ * <p>
+ * 次のいずれかに当てはまった接続を切断し、理由ごとに数えます。
+ * </p>
+ * <ul>
+ *     <li>受信タイムアウト: 送信待ちのデータがなく、受信も送信もないまま {@code readSeconds} 秒が過ぎた</li>
+ *     <li>送信タイムアウト: 送信待ちのデータがあるのに、{@code writeSeconds} 秒のあいだ少しも送信が進まない</li>
+ *     <li>セッションタイムアウト: 接続から {@code sessionSeconds} 秒が過ぎた</li>
+ *     <li>遅いアップロード: 応答を返していない受信が {@code rateGraceSeconds} 秒以上続き、その間の受信が
+ *     {@code minBytesPerSecond} を下回る (ヘッダーを少しずつ送り続ける slowloris など)</li>
+ *     <li>遅いダウンロード: 送信待ちのデータが {@code rateGraceSeconds} 秒以上残り続け、その間の送信が
+ *     {@code minBytesPerSecond} を下回る</li>
+ * </ul>
+ *
+ * <p>
+ * 接続ごとのスレッドは使いません。Netty のサーバーでは {@link #newHandler()} のハンドラーが、チャネルの
+ * イベントループに {@code checkMillis} ごとの確認をスケジュールします。ブロッキング I/O のサーバーでは
+ * {@link #track(Socket)} で登録したソケットを、JVM で1つの {@link HashedWheelTimer} が確認し、
+ * 切断はソケットを閉じることで、ブロックしている読み書きを {@link java.net.SocketException} で終わらせます。
+ * </p>
+ *
+ * <p>
+ * 設定はシステムプロパティ {@code timeout.<サーバー名>.<項目>} から読み込み、なければ {@code timeout.<項目>}、
+ * それもなければ既定値を使います。0 を指定した項目は無効です。
+ * </p>
+ * <ul>
+ *     <li>{@code readSeconds} 受信タイムアウト (既定値 60)</li>
+ *     <li>{@code writeSeconds} 送信タイムアウト (既定値 30)</li>
+ *     <li>{@code sessionSeconds} セッションタイムアウト (既定値 0)</li>
+ *     <li>{@code minBytesPerSecond} 遅いアップロードとダウンロードの下限 (既定値 64)</li>
+ *     <li>{@code rateGraceSeconds} 転送速度を判定するまでの猶予 (既定値 10)</li>
+ *     <li>{@code checkMillis} 確認の間隔 (既定値 1000)</li>
+ * </ul>
+ */
+final class ConnectionReaper {
+    private static final Logger logger = Logger.getLogger(ConnectionReaper.class.getName());
+
+    /**
+     * 切断の理由。
+     */
+    enum Reason {
+        READ_TIMEOUT,
+        WRITE_TIMEOUT,
+        SESSION_TIMEOUT,
+        SLOW_UPLOAD,
+        SLOW_DOWNLOAD
+    }
+
+    private final String      name;
+    private final long        readTimeoutNanos;
+    private final long        writeTimeoutNanos;
+    private final long        sessionTimeoutNanos;
+    private final long        minBytesPerSecond;
+    private final long        rateGraceNanos;
+    private final long        checkMillis;
+    private final LongAdder[] reaped  = new LongAdder[Reason.values().length];
+    private final LongAdder   tracked = new LongAdder();
+    private final LongAdder   active  = new LongAdder();
+
+    /**
+     * 切断の条件を指定して作成します。
+     *
+     * @param name              サーバー名 (ログと統計に使います)
+     * @param readSeconds       受信タイムアウト (秒、0 で無効)
+     * @param writeSeconds      送信タイムアウト (秒、0 で無効)
+     * @param sessionSeconds    セッションタイムアウト (秒、0 で無効)
+     * @param minBytesPerSecond 遅い転送の下限 (バイト/秒、0 で無効)
+     * @param rateGraceSeconds  転送速度を判定するまでの猶予 (秒)
+     * @param checkMillis       確認の間隔 (ミリ秒)
+     */
+    ConnectionReaper(
+            String name,
+            long readSeconds,
+            long writeSeconds,
+            long sessionSeconds,
+            long minBytesPerSecond,
+            long rateGraceSeconds,
+            long checkMillis) {
+        this.name = name;
+        this.readTimeoutNanos = TimeUnit.SECONDS.toNanos(readSeconds);
+        this.writeTimeoutNanos = TimeUnit.SECONDS.toNanos(writeSeconds);
+        this.sessionTimeoutNanos = TimeUnit.SECONDS.toNanos(sessionSeconds);
+        this.minBytesPerSecond = minBytesPerSecond;
+        this.rateGraceNanos = TimeUnit.SECONDS.toNanos(Math.max(rateGraceSeconds, 1));
+        this.checkMillis = Math.max(checkMillis, 10);
+        for (int i = 0; i < reaped.length; i++) {
+            reaped[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * システムプロパティの設定から作成します。
+     *
+     * @param name サーバー名。{@code timeout.<name>.<項目>} の設定を優先します
+     * @return 作成したインスタンス
+     */
+    static ConnectionReaper fromSystemProperties(String name) {
+        return new ConnectionReaper(
+                name,
+                property(name, "readSeconds", 60),
+                property(name, "writeSeconds", 30),
+                property(name, "sessionSeconds", 0),
+                property(name, "minBytesPerSecond", 64),
+                property(name, "rateGraceSeconds", 10),
+                property(name, "checkMillis", 1000));
+    }
+
+    private static long property(String name, String key, long defaultValue) {
+        return Long.getLong("timeout." + name + "." + key, Long.getLong("timeout." + key, defaultValue));
+    }
+
+    /**
+     * セッションタイムアウトだけを適用するインスタンスを返します。送受信がパイプラインを通らない
+     * (splice で転送する) 接続では、受信と送信の状況を観測できないため、これを使います。
+     *
+     * @return セッションタイムアウトだけを適用するインスタンス
+     */
+    ConnectionReaper sessionOnly() {
+        return new ConnectionReaper(
+                name,
+                0,
+                0,
+                TimeUnit.NANOSECONDS.toSeconds(sessionTimeoutNanos),
+                0,
+                TimeUnit.NANOSECONDS.toSeconds(rateGraceNanos),
+                checkMillis);
+    }
+
+    /**
+     * チャネルごとのハンドラーを作成します。パイプラインの先頭近く (受付制御の直後、TLS やコーデックより前) に
+     * 追加してください。
+     *
+     * @return ハンドラー
+     */
+    ChannelDuplexHandler newHandler() {
+        return new ReaperHandler();
+    }
+
+    /**
+     * ブロッキング I/O のソケットを登録します。読み書きは {@link Tracker#input()} と {@link Tracker#output()}
+     * のストリームで行い、処理を終えたら {@link Tracker#close()} を呼び出してください。
+     *
+     * @param socket 受け付けたソケット
+     * @return 登録したソケットの状態
+     * @throws IOException ストリームを取得できない場合
+     */
+    Tracker track(Socket socket) throws IOException {
+        Tracker tracker = new Tracker(
+                socket, socket.getRemoteSocketAddress(), socket.getInputStream(), socket.getOutputStream());
+        tracker.schedule();
+        return tracker;
+    }
+
+    /**
+     * ブロッキングモードのソケットチャネルを登録します。{@link Socket} を取得できない Unix ドメインソケットの
+     * 接続や、{@link Tracker#transferFrom} でファイルを直接送る接続に使います。使い方は {@link #track(Socket)} と
+     * 同じです。
+     *
+     * @param channel 受け付けたソケットチャネル
+     * @return 登録したチャネルの状態
+     * @throws IOException 相手のアドレスを取得できない場合
+     */
+    Tracker track(SocketChannel channel) throws IOException {
+        Tracker tracker = new Tracker(
+                channel, channel.getRemoteAddress(), Channels.newInputStream(channel), Channels.newOutputStream(channel));
+        tracker.schedule();
+        return tracker;
+    }
+
+    /**
+     * @return 切断した接続の合計数
+     */
+    long reaped() {
+        long sum = 0;
+        for (LongAdder adder : reaped) {
+            sum += adder.sum();
+        }
+        return sum;
+    }
+
+    /**
+     * @param reason 切断の理由
+     * @return その理由で切断した接続の数
+     */
+    long reaped(Reason reason) {
+        return reaped[reason.ordinal()].sum();
+    }
+
+    /**
+     * @return 統計の文字列
+     */
+    String stats() {
+        return String.format(
+                "%s: active=%d tracked=%d reaped=%d (read=%d write=%d session=%d slowUpload=%d slowDownload=%d)",
+                name,
+                active.sum(),
+                tracked.sum(),
+                reaped(),
+                reaped(Reason.READ_TIMEOUT),
+                reaped(Reason.WRITE_TIMEOUT),
+                reaped(Reason.SESSION_TIMEOUT),
+                reaped(Reason.SLOW_UPLOAD),
+                reaped(Reason.SLOW_DOWNLOAD));
+    }
+
+    /**
+     * 統計を定期的に FINE でログに出力します。共有のタイマーで実行するため、スレッドは増えません。
+     *
+     * @param period 出力の間隔
+     * @param unit   間隔の単位
+     */
+    void logStatsPeriodically(long period, TimeUnit unit) {
+        SharedTimer.INSTANCE.newTimeout(new TimerTask() {
+            @Override
+            public void run(Timeout timeout) {
+                logger.fine(() -> "Connection reaper " + stats());
+                timeout.timer().newTimeout(this, period, unit);
+            }
+        }, period, unit);
+    }
+
+    private boolean enabled() {
+        return readTimeoutNanos > 0 || writeTimeoutNanos > 0 || sessionTimeoutNanos > 0 || minBytesPerSecond > 0;
+    }
+
+    /**
+     * 接続の状態を確かめ、切断すべき理由を返します。
+     *
+     * @param now                 現在時刻
+     * @param startNanos          接続した時刻
+     * @param lastActivityNanos   最後に受信したか、送信が進んだ時刻
+     * @param writing             送信待ちのデータがある場合は true
+     * @param lastProgressNanos   最後に送信が進んだ時刻 (送信待ちのデータがない間は現在時刻とみなします)
+     * @param downloadSinceNanos  送信待ちのデータが残り始めた時刻 (残っていない場合は 0)
+     * @param downloadBytes       その時刻以降に送信したバイト数
+     * @param uploadSinceNanos    応答を返していない受信が始まった時刻 (ない場合は 0)
+     * @param uploadBytes         その時刻以降に受信したバイト数
+     * @return 切断すべき理由。切断しない場合は null
+     */
+    private Reason check(
+            long now,
+            long startNanos,
+            long lastActivityNanos,
+            boolean writing,
+            long lastProgressNanos,
+            long downloadSinceNanos,
+            long downloadBytes,
+            long uploadSinceNanos,
+            long uploadBytes) {
+        if (sessionTimeoutNanos > 0 && now - startNanos > sessionTimeoutNanos) {
+            return Reason.SESSION_TIMEOUT;
+        }
+        if (writing) {
+            if (writeTimeoutNanos > 0 && now - lastProgressNanos > writeTimeoutNanos) {
+                return Reason.WRITE_TIMEOUT;
+            }
+        } else if (readTimeoutNanos > 0 && now - lastActivityNanos > readTimeoutNanos) {
+            return Reason.READ_TIMEOUT;
+        }
+        if (minBytesPerSecond > 0) {
+            if (tooSlow(now, downloadSinceNanos, downloadBytes)) {
+                return Reason.SLOW_DOWNLOAD;
+            }
+            if (tooSlow(now, uploadSinceNanos, uploadBytes)) {
+                return Reason.SLOW_UPLOAD;
+            }
+        }
+        return null;
+    }
+
+    private boolean tooSlow(long now, long sinceNanos, long bytes) {
+        if (sinceNanos == 0) {
+            return false;
+        }
+        long elapsed = now - sinceNanos;
+        return elapsed > rateGraceNanos && bytes * 1_000_000_000L < minBytesPerSecond * elapsed;
+    }
+
+    private void reap(Reason reason, Object connection) {
+        reaped[reason.ordinal()].increment();
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(name + ": reaping " + connection + " (" + reason + ")");
+        }
+    }
+
+    /**
+     * Netty のチャネルの送受信を観測し、イベントループで定期的に確認するハンドラー。
+     * 状態はすべてチャネルのイベントループからしか触りません。
+     */
+    private final class ReaperHandler extends ChannelDuplexHandler {
+        private ScheduledFuture<?> checkTask;
+        private long               startNanos;
+        private long               lastActivityNanos;
+        private long               lastProgressNanos;
+        private long               queuedBytes;
+        private long               flushedBytes;
+        private long               downloadSinceNanos;
+        private long               downloadStartFlushed;
+        private long               uploadSinceNanos;
+        private long               uploadBytes;
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            if (ctx.channel().isActive()) {
+                start(ctx);
+            }
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            start(ctx);
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            stop();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void handlerRemoved(ChannelHandlerContext ctx) {
+            stop();
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            long now = System.nanoTime();
+            lastActivityNanos = now;
+            if (uploadSinceNanos == 0) {
+                uploadSinceNanos = now;
+                uploadBytes = 0;
+            }
+            uploadBytes += size(msg);
+            super.channelRead(ctx, msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            // 応答を書き込んだら、それまでの受信は遅いアップロードとして扱わない
+            uploadSinceNanos = 0;
+            queuedBytes += size(msg);
+            super.write(ctx, msg, promise);
+        }
+
+        private void start(ChannelHandlerContext ctx) {
+            if (checkTask != null || ! enabled()) {
+                return;
+            }
+            long now = System.nanoTime();
+            startNanos = now;
+            lastActivityNanos = now;
+            lastProgressNanos = now;
+            tracked.increment();
+            active.increment();
+            checkTask = ctx.executor().scheduleAtFixedRate(
+                    () -> check(ctx),
+                    checkMillis,
+                    checkMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        private void stop() {
+            if (checkTask != null) {
+                checkTask.cancel(false);
+                checkTask = null;
+                active.decrement();
+            }
+        }
+
+        private void check(ChannelHandlerContext ctx) {
+            ChannelOutboundBuffer buffer = ctx.channel().unsafe().outboundBuffer();
+            long pending = buffer != null ? buffer.totalPendingWriteBytes() : 0;
+            long now = System.nanoTime();
+            // このハンドラーより先頭側で書き込まれたバイトは数えていないため、送信済みのバイト数は増えた分だけを見る
+            long flushed = Math.max(queuedBytes - pending, flushedBytes);
+            boolean writing = pending > 0;
+            boolean progressed = flushed != flushedBytes;
+            flushedBytes = flushed;
+            if (progressed) {
+                lastActivityNanos = now;
+            }
+            if (progressed || ! writing) {
+                lastProgressNanos = now;
+            }
+            if (writing && downloadSinceNanos == 0) {
+                downloadSinceNanos = now;
+                downloadStartFlushed = flushed;
+            } else if (! writing) {
+                downloadSinceNanos = 0;
+            }
+            Reason reason = ConnectionReaper.this.check(
+                    now,
+                    startNanos,
+                    lastActivityNanos,
+                    writing,
+                    lastProgressNanos,
+                    downloadSinceNanos,
+                    flushed - downloadStartFlushed,
+                    uploadSinceNanos,
+                    uploadBytes);
+            if (reason != null) {
+                reap(reason, ctx.channel());
+                stop();
+                ctx.close();
+            }
+        }
+    }
+
+    private static long size(Object msg) {
+        if (msg instanceof ByteBuf buf) {
+            return buf.readableBytes();
+        }
+        if (msg instanceof ByteBufHolder holder) {
+            return holder.content().readableBytes();
+        }
+        if (msg instanceof FileRegion region) {
+            return region.count();
+        }
+        return 0;
+    }
+
+    /**
+     * ブロッキング I/O のソケット1つの状態。読み書きするスレッドが更新し、共有のタイマーが確認します。
+     */
+    final class Tracker implements TimerTask, AutoCloseable {
+        private final    Closeable     connection;
+        private final    SocketAddress remote;
+        private final    InputStream   input;
+        private final    OutputStream  output;
+        private final    long          startNanos        = System.nanoTime();
+        private volatile long          lastActivityNanos = startNanos;
+        private volatile long          writeStartedNanos;
+        private volatile long          writeBytes;
+        private volatile long          uploadSinceNanos;
+        private volatile long          uploadBytes;
+        private volatile Timeout       timeout;
+        private volatile boolean       closed;
+        private volatile Reason        reapedReason;
+
+        private Tracker(Closeable connection, SocketAddress remote, InputStream input, OutputStream output) {
+            this.connection = connection;
+            this.remote = remote;
+            this.input = new TrackingInputStream(input);
+            this.output = new TrackingOutputStream(output);
+        }
+
+        /**
+         * @return 受信を記録する入力ストリーム
+         */
+        InputStream input() {
+            return input;
+        }
+
+        /**
+         * @return 送信を記録する出力ストリーム
+         */
+        OutputStream output() {
+            return output;
+        }
+
+        /**
+         * ファイルの範囲をソケットへ直接 ({@link FileChannel#transferTo} で) 送ります。送信は {@link #output()} と
+         * 同じように記録します。{@link #track(SocketChannel)} で登録した接続でだけ使えます。
+         *
+         * @param file     送るファイル
+         * @param position ファイル上の開始位置
+         * @param count    送る最大のバイト数
+         * @return 送ったバイト数
+         * @throws IOException 送信に失敗した場合
+         */
+        long transferFrom(FileChannel file, long position, long count) throws IOException {
+            if (! (connection instanceof SocketChannel channel)) {
+                throw new IllegalStateException("Not a socket channel: " + remote);
+            }
+            beginWrite(count);
+            try {
+                return file.transferTo(position, count, channel);
+            } finally {
+                endWrite();
+            }
+        }
+
+        /**
+         * @return 切断した場合は true。読み書きの例外がこの切断によるものかを見分けるのに使います
+         */
+        boolean isReaped() {
+            return reapedReason != null;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+            if (enabled()) {
+                active.decrement();
+            }
+        }
+
+        private void schedule() {
+            if (! enabled()) {
+                return;
+            }
+            tracked.increment();
+            active.increment();
+            timeout = SharedTimer.INSTANCE.newTimeout(this, checkMillis, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run(Timeout t) {
+            if (closed) {
+                return;
+            }
+            long now = System.nanoTime();
+            long writeStarted = writeStartedNanos;
+            boolean writing = writeStarted != 0;
+            Reason reason = check(
+                    now,
+                    startNanos,
+                    lastActivityNanos,
+                    writing,
+                    writing ? writeStarted : now,
+                    // 1回の書き込みの途中経過は分からないため、書き込みの開始からのバイト数を 0 とみなし、
+                    // 書き込むバイト数を下限の速度で送れる時間を猶予に加える
+                    writing ? writeStarted + writeBytes * 1_000_000_000L / Math.max(minBytesPerSecond, 1) : 0,
+                    0,
+                    uploadSinceNanos,
+                    uploadBytes);
+            if (reason == null) {
+                timeout = t.timer().newTimeout(this, checkMillis, TimeUnit.MILLISECONDS);
+                return;
+            }
+            reapedReason = reason;
+            reap(reason, remote);
+            close();
+            try {
+                connection.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, "Socket close failed", e);
+            }
+        }
+
+        private void read(int n) {
+            long now = System.nanoTime();
+            lastActivityNanos = now;
+            if (n > 0) {
+                if (uploadSinceNanos == 0) {
+                    uploadBytes = 0;
+                    uploadSinceNanos = now;
+                }
+                uploadBytes += n;
+            }
+        }
+
+        private void beginWrite(long n) {
+            writeBytes = n;
+            writeStartedNanos = System.nanoTime();
+        }
+
+        private void endWrite() {
+            writeStartedNanos = 0;
+            uploadSinceNanos = 0;
+            lastActivityNanos = System.nanoTime();
+        }
+
+        private final class TrackingInputStream extends FilterInputStream {
+            TrackingInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                Tracker.this.read(b >= 0 ? 1 : 0);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = in.read(b, off, len);
+                Tracker.this.read(Math.max(n, 0));
+                return n;
+            }
+        }
+
+        private final class TrackingOutputStream extends FilterOutputStream {
+            TrackingOutputStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                beginWrite(1);
+                try {
+                    out.write(b);
+                } finally {
+                    endWrite();
+                }
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                beginWrite(len);
+                try {
+                    out.write(b, off, len);
+                } finally {
+                    endWrite();
+                }
+            }
+
+            @Override
+            public void flush() throws IOException {
+                beginWrite(0);
+                try {
+                    out.flush();
+                } finally {
+                    endWrite();
+                }
+            }
+        }
+    }
+
+    /**
+     * ブロッキング I/O のソケットの確認と統計の出力に使う、JVM で1つのタイマー。
+     */
+    private static final class SharedTimer {
+        static final Timer INSTANCE = new HashedWheelTimer(
+                new DefaultThreadFactory("connection-reaper", true),
+                100,
+                TimeUnit.MILLISECONDS);
+    }
+}
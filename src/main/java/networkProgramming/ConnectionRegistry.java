@@ -0,0 +1,265 @@
+package networkProgramming;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.FileRegion;
+import io.netty.util.AttributeKey;
+
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 接続中のクライアントの一覧。管理用の {@link AdminServer} が、誰が回線を使っているかを表示するために使います。
+ *
+ * <p>
+ * 接続は {@link ConcurrentSkipListMap} に接続順の番号をキーにして登録するため、登録、削除、一覧のどれもロックを
+ * 取りません。送受信のバイト数と転送速度は、接続のイベントループだけが書き込む volatile のフィールドに持ち、
+ * 一覧を作るスレッドはそれを読むだけです。転送速度は直近の1秒間の区間で測り、2秒以上転送のない接続は 0 とします。
+ * </p>
+ *
+ * <p>
+ * {@link #newHandler} のハンドラーは、パイプラインの先頭近く (TLS やトラフィックシェーピングより前) に置きます。
+ * 受信は届いた時点で、送信はシェーピングで待たされた後にソケットへ渡す時点で数えます。
+ * </p>
+ */
+final class ConnectionRegistry {
+    private static final AttributeKey<Connection> CONNECTION   = AttributeKey.valueOf("registry.connection");
+    private static final long                     WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final ConcurrentSkipListMap<Long, Connection> connections = new ConcurrentSkipListMap<>();
+    private final AtomicLong                              sequence    = new AtomicLong();
+
+    /**
+     * @return JVM で共有する一覧。同じ JVM で動くすべてのサーバーの接続を登録します
+     */
+    static ConnectionRegistry shared() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * 接続を登録し、送受信を数えるハンドラーを作成します。ハンドラーはサーバーのすべての接続で共有できます。
+     *
+     * @param server   サーバー名
+     * @param protocol 最初のプロトコル名。ALPN などで決まったら {@link #protocol} で更新します
+     * @return ハンドラー
+     */
+    ChannelHandler newHandler(String server, String protocol) {
+        return new RegistryHandler(server, protocol);
+    }
+
+    /**
+     * 登録した接続のプロトコル名を更新します。登録していないチャネルでは何もしません。
+     *
+     * @param channel  接続のチャネル
+     * @param protocol プロトコル名
+     */
+    static void protocol(Channel channel, String protocol) {
+        Connection connection = channel.attr(CONNECTION).get();
+        if (connection != null) {
+            connection.protocol = protocol;
+        }
+    }
+
+    /**
+     * @return 接続中のクライアントの、この時点の状態 (接続の古い順)
+     */
+    List<Snapshot> snapshot() {
+        long now = System.nanoTime();
+        List<Snapshot> list = new ArrayList<>(connections.size());
+        for (Connection connection : connections.values()) {
+            list.add(connection.snapshot(now));
+        }
+        return list;
+    }
+
+    /**
+     * 接続中のクライアントを、送信速度の速い順に表にします。
+     *
+     * @return 表の文字列
+     */
+    String status() {
+        List<Snapshot> list = snapshot();
+        list.sort(Comparator.comparingLong(Snapshot::writeBytesPerSecond).reversed());
+        long read = 0;
+        long written = 0;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-8s %-10s %-9s %-40s %10s %14s %14s %12s %12s%n",
+                                "id", "server", "protocol", "remote", "age(s)", "bytes in", "bytes out", "in B/s",
+                                "out B/s"));
+        for (Snapshot s : list) {
+            read += s.readBytesPerSecond();
+            written += s.writeBytesPerSecond();
+            sb.append(String.format("%-8d %-10s %-9s %-40s %10.1f %,14d %,14d %,12d %,12d%n",
+                                    s.id(), s.server(), s.protocol(), s.remote(), s.ageNanos() / 1e9, s.bytesRead(),
+                                    s.bytesWritten(), s.readBytesPerSecond(), s.writeBytesPerSecond()));
+        }
+        sb.append(String.format("connections=%d in=%,d B/s out=%,d B/s%n", list.size(), read, written));
+        return sb.toString();
+    }
+
+    /**
+     * 1つの接続の、ある時点の状態。
+     *
+     * @param id                  接続順の番号
+     * @param server              サーバー名
+     * @param protocol            プロトコル名
+     * @param remote              クライアントのアドレス
+     * @param ageNanos            接続してからの時間 (ナノ秒)
+     * @param bytesRead           受信したバイト数
+     * @param bytesWritten        送信したバイト数
+     * @param readBytesPerSecond  直近の受信速度 (バイト/秒)
+     * @param writeBytesPerSecond 直近の送信速度 (バイト/秒)
+     */
+    record Snapshot(
+            long id,
+            String server,
+            String protocol,
+            SocketAddress remote,
+            long ageNanos,
+            long bytesRead,
+            long bytesWritten,
+            long readBytesPerSecond,
+            long writeBytesPerSecond) {
+    }
+
+    /**
+     * 1つの接続の状態。書き込むのは接続のイベントループだけです。
+     */
+    private static final class Connection {
+        private final long          id;
+        private final String        server;
+        private final SocketAddress remote;
+        private final long          startNanos = System.nanoTime();
+        private final Counter       read       = new Counter();
+        private final Counter       written    = new Counter();
+        private volatile String     protocol;
+
+        Connection(long id, String server, String protocol, SocketAddress remote) {
+            this.id = id;
+            this.server = server;
+            this.protocol = protocol;
+            this.remote = remote;
+        }
+
+        Snapshot snapshot(long now) {
+            return new Snapshot(
+                    id,
+                    server,
+                    protocol,
+                    remote,
+                    now - startNanos,
+                    read.total,
+                    written.total,
+                    read.bytesPerSecond(now),
+                    written.bytesPerSecond(now));
+        }
+    }
+
+    /**
+     * 1方向のバイト数と、直近の1秒間の区間の転送速度。
+     */
+    private static final class Counter {
+        private volatile long total;
+        private volatile long windowStartNanos = System.nanoTime();
+        private volatile long windowBytes;
+        private volatile long lastBytesPerSecond;
+
+        void add(long bytes) {
+            long now = System.nanoTime();
+            long elapsed = now - windowStartNanos;
+            if (elapsed >= WINDOW_NANOS) {
+                lastBytesPerSecond = windowBytes * 1_000_000_000L / elapsed;
+                windowStartNanos = now;
+                windowBytes = 0;
+            }
+            windowBytes += bytes;
+            total += bytes;
+        }
+
+        long bytesPerSecond(long now) {
+            // 区間が閉じないまま2秒を過ぎた場合は、転送が止まっている
+            long elapsed = now - windowStartNanos;
+            if (elapsed >= 2 * WINDOW_NANOS) {
+                return 0;
+            }
+            return elapsed >= WINDOW_NANOS ? windowBytes * 1_000_000_000L / elapsed : lastBytesPerSecond;
+        }
+    }
+
+    @ChannelHandler.Sharable
+    private final class RegistryHandler extends ChannelDuplexHandler {
+        private final String server;
+        private final String protocol;
+
+        RegistryHandler(String server, String protocol) {
+            this.server = server;
+            this.protocol = protocol;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) throws Exception {
+            Connection connection = new Connection(
+                    sequence.incrementAndGet(), server, protocol, ctx.channel().remoteAddress());
+            ctx.channel().attr(CONNECTION).set(connection);
+            connections.put(connection.id, connection);
+            super.channelActive(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            Connection connection = ctx.channel().attr(CONNECTION).getAndSet(null);
+            if (connection != null) {
+                connections.remove(connection.id);
+            }
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            Connection connection = ctx.channel().attr(CONNECTION).get();
+            if (connection != null && msg instanceof ByteBuf buf) {
+                connection.read.add(buf.readableBytes());
+            }
+            super.channelRead(ctx, msg);
+        }
+
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            Connection connection = ctx.channel().attr(CONNECTION).get();
+            if (connection != null) {
+                long bytes = sizeOf(msg);
+                if (bytes > 0) {
+                    connection.written.add(bytes);
+                }
+            }
+            super.write(ctx, msg, promise);
+        }
+
+        private static long sizeOf(Object msg) {
+            if (msg instanceof ByteBuf buf) {
+                return buf.readableBytes();
+            }
+            if (msg instanceof ByteBufHolder holder) {
+                return holder.content().readableBytes();
+            }
+            if (msg instanceof FileRegion region) {
+                return region.count() - region.transferred();
+            }
+            return 0;
+        }
+    }
+
+    private static final class Shared {
+        static final ConnectionRegistry INSTANCE = new ConnectionRegistry();
+    }
+}
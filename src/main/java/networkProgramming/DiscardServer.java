@@ -1,17 +1,22 @@
 package networkProgramming;
 
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
 
 public class DiscardServer {
 
-    private final int port;
+    private final int          port;
+    private       ChannelGroup tracked;
 
     public DiscardServer(int port) {
         this.port = port;
@@ -25,30 +30,74 @@ public class DiscardServer {
         new DiscardServer(port).run();
     }
 
-    public void run() throws InterruptedException {
+    public void run() throws InterruptedException, IOException {
         EventLoopGroup bossGroup = new NioEventLoopGroup();
         EventLoopGroup workerGroup = new NioEventLoopGroup();
+        EventLoopWatchdog.shared().watch(bossGroup);
+        EventLoopWatchdog.shared().watch(workerGroup);
 
         try {
-            ServerBootstrap b = new ServerBootstrap();
-            b.group(bossGroup, workerGroup)
-             .channel(NioServerSocketChannel.class)
-             .childHandler(
-                     new ChannelInitializer<SocketChannel>() {
-                         @Override
-                         public void initChannel(SocketChannel ch)
-                                 throws Exception {
-                             ch.pipeline().addLast(new DiscardServerHandler());
-                         }
-                     })
-             .option(ChannelOption.SO_BACKLOG, 128)
-             .childOption(ChannelOption.SO_KEEPALIVE, true);
-            ChannelFuture f = b.bind(port).sync();
-            f.channel().closeFuture().sync();
+            Channel channel = bind(bossGroup, workerGroup);
+            channel.closeFuture().sync();
         } finally {
 
             workerGroup.shutdownGracefully();
             bossGroup.shutdownGracefully();
         }
     }
+
+    /**
+     * 受け付けた接続を追加するグループを設定します。バインドより前に呼び出します。
+     *
+     * @param group 接続を追加するグループ。閉じた接続はグループから自動的に取り除かれます
+     * @return このサーバー
+     */
+    DiscardServer trackConnections(ChannelGroup group) {
+        this.tracked = group;
+        return this;
+    }
+
+    /**
+     * サーバーを起動します。
+     * システムプロパティ {@code uds.discard} を指定した場合は、{@link DomainSockets} でドメインソケットでも待ち受けます。
+     *
+     * @param bossGroup   接続を受け付けるイベントループグループ
+     * @param workerGroup 接続を処理するイベントループグループ
+     * @return 待ち受けているサーバーチャネル。ポート番号に 0 を指定した場合は、実際のポートをここから取得します
+     * @throws InterruptedException バインド待ちの間に割り込まれた場合
+     * @throws IOException          ドメインソケットのパスにソケット以外のファイルがある場合
+     */
+    Channel bind(EventLoopGroup bossGroup, EventLoopGroup workerGroup) throws InterruptedException, IOException {
+        AdmissionController admission = AdmissionController.fromSystemProperties();
+        AdmissionControlHandler admissionHandler = new AdmissionControlHandler(admission, null, true);
+        ConnectionReaper reaper = ConnectionReaper.fromSystemProperties("discard");
+        reaper.logStatsPeriodically(60, TimeUnit.SECONDS);
+
+        admission.startExpiry(workerGroup);
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup)
+         .channel(NettyTransport.of(workerGroup).serverChannelClass())
+         .childHandler(
+                 new ChannelInitializer<Channel>() {
+                     @Override
+                     public void initChannel(Channel ch)
+                             throws Exception {
+                         if (tracked != null) {
+                             tracked.add(ch);
+                         }
+                         NetEvents.traceConnection(ch, "DiscardServer");
+                         ch.pipeline().addLast(admissionHandler);
+                         ch.pipeline().addLast(reaper.newHandler());
+                         ch.pipeline().addLast(new DiscardServerHandler());
+                     }
+                 })
+         .option(ChannelOption.SO_BACKLOG, 128)
+         .childOption(ChannelOption.SO_KEEPALIVE, true);
+        ChannelFuture f = b.bind(port).sync();
+        Path domainSocket = DomainSockets.pathFromSystemProperties("discard");
+        if (domainSocket != null) {
+            DomainSockets.bind(b, f.channel(), domainSocket);
+        }
+        return f.channel();
+    }
 }
@@ -0,0 +1,314 @@
+package networkProgramming;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 同じホストのクライアントから、ループバックの TCP と Unix ドメインソケットでサーバーに接続した場合の
+ * レイテンシとスループットを比べるベンチマーク。
+ *
+ * <p>
+ * {@link PseudHttpDaemon}、{@link DiscardServer}、{@link NetClock} を同じプロセス内で、ループバックの空いている
+ * ポートと一時ディレクトリのソケットファイル ({@link DomainSockets}) の両方で待ち受けさせ、JDK のブロッキングの
+ * {@link SocketChannel} から次の計測を行います。Netty のサーバーは TCP もドメインソケットも epoll で動かします。
+ * </p>
+ * <ul>
+ *     <li>http: 1つのキープアライブ接続で静的ファイル ({@code bench.fileBytes}、既定値 1024) を GET する往復時間</li>
+ *     <li>echo: {@link DiscardServer} に {@code bench.messageBytes} (既定値 64) を送り、エコーを受け取る往復時間</li>
+ *     <li>stream: {@link DiscardServer} へ {@code bench.streamMiB} (既定値 512) を送りながらエコーを読むスループット</li>
+ *     <li>connect: {@link NetClock} に接続し、時刻を受け取って切断されるまでの時間</li>
+ * </ul>
+ *
+ * <p>
+ * 往復の計測はそれぞれ {@code bench.iterations} 回 (既定値 20000、connect は 1/10) で、同じ回数のウォームアップの
+ * 後に計測します。epoll が使えない環境では実行できません。
+ * </p>
+ *
+ * <p>
+ * 使用方法: {@code java DomainSocketBenchmark}
+ * </p>
+ */
+public class DomainSocketBenchmark {
+    private static final int      STREAM_CHUNK = 256 * 1024;
+    private static final Logger   logger       = Logger.getLogger(DomainSocketBenchmark.class.getName());
+    // ロガーは弱参照で保持されるため、レベルを変えたロガーを GC で失わないよう参照を持っておく
+    private static final Logger[] QUIET        = {
+            Logger.getLogger(ClientHandler.class.getName()),
+            Logger.getLogger(PseudHttpDaemon.class.getName()),
+    };
+
+    public static void main(String[] args) throws Exception {
+        if (! Epoll.isAvailable()) {
+            System.err.println("epoll is not available: " + Epoll.unavailabilityCause());
+            System.exit(1);
+        }
+        int fileBytes = Integer.getInteger("bench.fileBytes", 1024);
+        int messageBytes = Integer.getInteger("bench.messageBytes", 64);
+        long streamBytes = Long.getLong("bench.streamMiB", 512) * 1024 * 1024;
+        int iterations = Integer.getInteger("bench.iterations", 20000);
+        // 接続ごと、リクエストごとのログで計測が歪まないようにする
+        for (Logger logger : QUIET) {
+            logger.setLevel(Level.WARNING);
+        }
+
+        Path dir = Files.createTempDirectory("uds-bench");
+        Path file = Files.write(dir.resolve("index.html"), new byte[fileBytes]);
+        Path httpSocket = dir.resolve("http.sock");
+        Path discardSocket = dir.resolve("discard.sock");
+        Path clockSocket = dir.resolve("netclock.sock");
+        System.setProperty("uds.http", httpSocket.toString());
+        System.setProperty("uds.discard", discardSocket.toString());
+        System.setProperty("uds.netclock", clockSocket.toString());
+
+        EventLoopGroup group = NettyTransport.EPOLL.newEventLoopGroup(1);
+        BlockingIoExecutor ioExecutor = BlockingIoExecutor.fromSystemProperties("bench-file-io");
+        ExecutorService clockExecutor = Executors.newFixedThreadPool(4);
+        ExecutorService streamReader = Executors.newSingleThreadExecutor();
+        ServerSocket clockServer = new ServerSocket(0, 300, InetAddress.getLoopbackAddress());
+        try {
+            Channel http = new PseudHttpDaemon().bind(group, group, 0, file, ioExecutor);
+            Channel discard = new DiscardServer(0).bind(group, group);
+            Thread clock = new Thread(() -> {
+                try {
+                    NetClock.serve(clockServer, clockExecutor);
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "NetClock server failed", e);
+                }
+            }, "bench-netclock");
+            clock.setDaemon(true);
+            clock.start();
+            awaitSocketFile(clockSocket);
+
+            SocketAddress httpTcp = loopback(http);
+            SocketAddress discardTcp = loopback(discard);
+            SocketAddress clockTcp = new InetSocketAddress(InetAddress.getLoopbackAddress(), clockServer.getLocalPort());
+
+            System.out.printf("iterations=%d fileBytes=%d messageBytes=%d streamMiB=%d%n",
+                              iterations, fileBytes, messageBytes, streamBytes >> 20);
+            for (String transport : new String[] {"tcp", "uds"}) {
+                boolean uds = transport.equals("uds");
+                report(transport, "http", httpRoundTrips(uds ? UnixDomainSocketAddress.of(httpSocket) : httpTcp, iterations));
+                report(transport, "echo", echoRoundTrips(
+                        uds ? UnixDomainSocketAddress.of(discardSocket) : discardTcp, messageBytes, iterations));
+                report(transport, "connect", connects(
+                        uds ? UnixDomainSocketAddress.of(clockSocket) : clockTcp, iterations / 10));
+                double mbps = stream(uds ? UnixDomainSocketAddress.of(discardSocket) : discardTcp, streamBytes, streamReader);
+                System.out.printf("%-4s %-8s %,10.1f MB/s%n", transport, "stream", mbps);
+            }
+        } finally {
+            clockServer.close();
+            streamReader.shutdownNow();
+            clockExecutor.shutdown();
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+            ioExecutor.shutdown();
+            Files.deleteIfExists(file);
+            DomainSockets.delete(clockSocket);
+            Files.deleteIfExists(dir);
+        }
+    }
+
+    private static SocketAddress loopback(Channel serverChannel) {
+        int port = ((InetSocketAddress) serverChannel.localAddress()).getPort();
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+    }
+
+    private static void awaitSocketFile(Path path) throws InterruptedException {
+        for (int i = 0; i < 100 && ! Files.exists(path); i++) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static SocketChannel connect(SocketAddress address) throws IOException {
+        SocketChannel ch = address instanceof UnixDomainSocketAddress
+                           ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                           : SocketChannel.open();
+        if (! (address instanceof UnixDomainSocketAddress)) {
+            ch.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+        ch.connect(address);
+        return ch;
+    }
+
+    /**
+     * キープアライブ接続で GET を繰り返し、1回ごとの往復時間を返します。
+     */
+    private static long[] httpRoundTrips(SocketAddress address, int iterations) throws IOException {
+        ByteBuffer request = StandardCharsets.US_ASCII.encode("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        ByteBuffer response = ByteBuffer.allocate(64 * 1024);
+        long[] nanos = new long[iterations];
+        try (SocketChannel ch = connect(address)) {
+            for (int i = - iterations; i < iterations; i++) {
+                long start = System.nanoTime();
+                request.rewind();
+                writeFully(ch, request);
+                readResponse(ch, response);
+                if (i >= 0) {
+                    nanos[i] = System.nanoTime() - start;
+                }
+            }
+        }
+        return nanos;
+    }
+
+    /**
+     * レスポンスを1つ読みます。ヘッダーの Content-Length まで本文を読み捨てます。
+     */
+    private static void readResponse(SocketChannel ch, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        int headerEnd;
+        while ((headerEnd = indexOfHeaderEnd(buffer)) < 0) {
+            if (ch.read(buffer) < 0) {
+                throw new EOFException("connection closed in headers");
+            }
+        }
+        String headers = new String(buffer.array(), 0, headerEnd, StandardCharsets.US_ASCII);
+        long remaining = contentLength(headers) - (buffer.position() - headerEnd);
+        while (remaining > 0) {
+            buffer.clear();
+            int n = ch.read(buffer);
+            if (n < 0) {
+                throw new EOFException("connection closed in body");
+            }
+            remaining -= n;
+        }
+    }
+
+    private static int indexOfHeaderEnd(ByteBuffer buffer) {
+        byte[] a = buffer.array();
+        for (int i = 3; i < buffer.position(); i++) {
+            if (a[i] == '\n' && a[i - 1] == '\r' && a[i - 2] == '\n' && a[i - 3] == '\r') {
+                return i + 1;
+            }
+        }
+        return - 1;
+    }
+
+    private static long contentLength(String headers) {
+        for (String line : headers.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("content-length")) {
+                return Long.parseLong(line.substring(colon + 1).trim());
+            }
+        }
+        throw new IllegalStateException("no Content-Length in response: " + headers);
+    }
+
+    /**
+     * 1つの接続でメッセージを送ってエコーを受け取るのを繰り返し、1回ごとの往復時間を返します。
+     */
+    private static long[] echoRoundTrips(SocketAddress address, int size, int iterations) throws IOException {
+        ByteBuffer message = ByteBuffer.allocateDirect(size);
+        ByteBuffer echo = ByteBuffer.allocateDirect(size);
+        long[] nanos = new long[iterations];
+        try (SocketChannel ch = connect(address)) {
+            for (int i = - iterations; i < iterations; i++) {
+                long start = System.nanoTime();
+                message.clear();
+                writeFully(ch, message);
+                echo.clear();
+                while (echo.hasRemaining()) {
+                    if (ch.read(echo) < 0) {
+                        throw new EOFException("connection closed");
+                    }
+                }
+                if (i >= 0) {
+                    nanos[i] = System.nanoTime() - start;
+                }
+            }
+        }
+        return nanos;
+    }
+
+    /**
+     * 接続して、サーバーが切断するまで応答を読むのを繰り返し、1回ごとの時間を返します。
+     */
+    private static long[] connects(SocketAddress address, int iterations) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        long[] nanos = new long[iterations];
+        for (int i = - iterations; i < iterations; i++) {
+            long start = System.nanoTime();
+            try (SocketChannel ch = connect(address)) {
+                buffer.clear();
+                while (ch.read(buffer) >= 0) {
+                    buffer.clear();
+                }
+            }
+            if (i >= 0) {
+                nanos[i] = System.nanoTime() - start;
+            }
+        }
+        return nanos;
+    }
+
+    /**
+     * 1つの接続で送りながら別スレッドでエコーを読み、すべて読み終えるまでのスループット (MB/s) を返します。
+     */
+    private static double stream(SocketAddress address, long total, ExecutorService reader) throws Exception {
+        try (SocketChannel ch = connect(address)) {
+            Future<?> echoed = reader.submit(() -> {
+                ByteBuffer in = ByteBuffer.allocateDirect(STREAM_CHUNK);
+                long received = 0;
+                while (received < total) {
+                    in.clear();
+                    int n = ch.read(in);
+                    if (n < 0) {
+                        throw new EOFException("connection closed after " + received + " bytes");
+                    }
+                    received += n;
+                }
+                return null;
+            });
+            ByteBuffer out = ByteBuffer.allocateDirect(STREAM_CHUNK);
+            long start = System.nanoTime();
+            for (long sent = 0; sent < total; sent += out.limit()) {
+                out.clear().limit((int) Math.min(STREAM_CHUNK, total - sent));
+                writeFully(ch, out);
+            }
+            echoed.get(60, TimeUnit.SECONDS);
+            return total / 1e6 / ((System.nanoTime() - start) / 1e9);
+        }
+    }
+
+    private static void writeFully(SocketChannel ch, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            ch.write(buffer);
+        }
+    }
+
+    private static void report(String transport, String name, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        double mean = Arrays.stream(sorted).average().orElse(0);
+        System.out.printf(
+                "%-4s %-8s %,10.0f ops/s  p50 %7.1f us  p99 %7.1f us  mean %7.1f us%n",
+                transport,
+                name,
+                mean == 0 ? 0 : 1e9 / mean,
+                sorted[sorted.length / 2] / 1e3,
+                sorted[(int) (sorted.length * 0.99)] / 1e3,
+                mean / 1e3);
+    }
+}
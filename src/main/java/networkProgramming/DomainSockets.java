@@ -0,0 +1,176 @@
+package networkProgramming;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.bootstrap.ServerBootstrapConfig;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Logger;
+
+/**
+ * TCP のポートに加えて Unix ドメインソケットでも待ち受けるための補助。
+ *
+ * <p>
+ * 同じホストのクライアント (サイドカーなど) は、ドメインソケットで接続すると TCP/IP のスタック
+ * (チェックサム、輻輳制御、ループバックデバイス) を通らずに済みます。待ち受けるパスはサーバーごとに
+ * システムプロパティ {@code uds.<サーバー名>} で指定します ({@code uds.netclock}、{@code uds.discard}、
+ * {@code uds.http}、{@code uds.proxy})。指定しない場合は TCP だけで待ち受けます。
+ * </p>
+ *
+ * <p>
+ * Netty のサーバーは epoll のドメインソケット ({@link EpollServerDomainSocketChannel}) で待ち受けるため、
+ * epoll が使える Linux が必要です。ブロッキング I/O のサーバーは JDK の {@link UnixDomainSocketAddress} を使います。
+ * パスに前回の実行で残ったソケットファイルがあれば削除してから待ち受けます。ソケット以外のファイルがある場合は
+ * 削除せずに失敗します。
+ * </p>
+ */
+final class DomainSockets {
+    private static final Logger logger = Logger.getLogger(DomainSockets.class.getName());
+
+    private DomainSockets() {
+    }
+
+    /**
+     * @param name サーバー名
+     * @return システムプロパティ {@code uds.<name>} に指定したパス。指定しない場合は null
+     */
+    static Path pathFromSystemProperties(String name) {
+        String path = System.getProperty("uds." + name);
+        return path == null || path.isBlank() ? null : Paths.get(path.trim());
+    }
+
+    /**
+     * TCP で待ち受けているサーバーと同じパイプラインで、ドメインソケットでも待ち受けます。
+     *
+     * <p>
+     * {@code bootstrap} と同じハンドラーとオプションで、チャネルを {@link EpollServerDomainSocketChannel} にします。
+     * {@code bootstrap} のグループが epoll であればそのまま使い、NIO であれば共有の epoll のグループを使います。
+     * TCP にしか意味のない子チャネルのオプション ({@code SO_KEEPALIVE}、{@code TCP_NODELAY}) は外します。
+     * 待ち受けは {@code tcpChannel} が閉じられると一緒に閉じ、ソケットファイルは Netty が削除します。
+     * </p>
+     *
+     * @param bootstrap  TCP の待ち受けに使ったブートストラップ。変更しません
+     * @param tcpChannel TCP で待ち受けているサーバーチャネル
+     * @param path       ソケットファイルのパス
+     * @return ドメインソケットで待ち受けているサーバーチャネル
+     * @throws IllegalStateException epoll が使えない場合
+     * @throws IOException           パスにソケット以外のファイルがある場合
+     * @throws InterruptedException  バインド待ちの間に割り込まれた場合
+     */
+    static Channel bind(ServerBootstrap bootstrap, Channel tcpChannel, Path path)
+            throws IOException, InterruptedException {
+        if (! Epoll.isAvailable()) {
+            throw new IllegalStateException(
+                    "Unix domain sockets require the epoll transport", Epoll.unavailabilityCause());
+        }
+        removeStale(path);
+        Channel channel = copy(bootstrap).bind(new DomainSocketAddress(path.toFile())).sync().channel();
+        tcpChannel.closeFuture().addListener(f -> channel.close());
+        logger.info("Listening on unix:" + path);
+        return channel;
+    }
+
+    /**
+     * ブートストラップのハンドラー、オプション、属性を、ドメインソケットのブートストラップへ写します。
+     * {@link ServerBootstrap#clone()} ではグループとチャネルを置き換えられないため、新しく作成します。
+     */
+    @SuppressWarnings("unchecked")
+    private static ServerBootstrap copy(ServerBootstrap bootstrap) {
+        ServerBootstrapConfig config = bootstrap.config();
+        boolean epoll = config.childGroup() instanceof EpollEventLoopGroup;
+        ServerBootstrap b = new ServerBootstrap()
+                .group(epoll ? config.group() : SharedGroup.INSTANCE, epoll ? config.childGroup() : SharedGroup.INSTANCE)
+                .channel(EpollServerDomainSocketChannel.class)
+                .childHandler(config.childHandler());
+        if (config.handler() != null) {
+            b.handler(config.handler());
+        }
+        config.options().forEach((option, value) -> b.option((ChannelOption<Object>) option, value));
+        config.attrs().forEach((key, value) -> b.attr((AttributeKey<Object>) key, value));
+        config.childOptions().forEach((option, value) -> {
+            if (option != ChannelOption.SO_KEEPALIVE && option != ChannelOption.TCP_NODELAY) {
+                b.childOption((ChannelOption<Object>) option, value);
+            }
+        });
+        config.childAttrs().forEach((key, value) -> b.childAttr((AttributeKey<Object>) key, value));
+        return b;
+    }
+
+    /**
+     * ブロッキング I/O のサーバー用に、ドメインソケットで待ち受けるサーバーチャネルを開きます。
+     * JDK のチャネルは閉じてもソケットファイルを削除しないため、閉じた後に {@link #delete} を呼び出してください。
+     *
+     * @param path    ソケットファイルのパス
+     * @param backlog 受け付け待ちの接続の最大数
+     * @return 待ち受けているサーバーチャネル (ブロッキングモード)
+     * @throws IOException 待ち受けに失敗した場合
+     */
+    static ServerSocketChannel open(Path path, int backlog) throws IOException {
+        removeStale(path);
+        ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        try {
+            channel.bind(UnixDomainSocketAddress.of(path), backlog);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        logger.info("Listening on unix:" + path);
+        return channel;
+    }
+
+    /**
+     * ソケットファイルを削除します。ソケット以外のファイルは削除しません。
+     *
+     * @param path ソケットファイルのパス
+     */
+    static void delete(Path path) {
+        try {
+            removeStale(path);
+        } catch (IOException e) {
+            logger.warning("Cannot remove " + path + ": " + e.getMessage());
+        }
+    }
+
+    private static void removeStale(Path path) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        // ソケットファイルは通常のファイル、ディレクトリ、シンボリックリンクのいずれでもない
+        if (! attributes.isOther()) {
+            throw new IOException(path + " exists and is not a socket");
+        }
+        Files.deleteIfExists(path);
+    }
+
+    /**
+     * NIO のグループで動くサーバーがドメインソケットの接続を処理する、共有の epoll のグループ。
+     * 最初に使うときに作成し、スレッドはデーモンスレッドなので JVM の終了を妨げません。
+     */
+    private static final class SharedGroup {
+        static final EventLoopGroup INSTANCE = new EpollEventLoopGroup(0, new DefaultThreadFactory("uds", true));
+
+        static {
+            EventLoopWatchdog.shared().watch(INSTANCE);
+        }
+    }
+}
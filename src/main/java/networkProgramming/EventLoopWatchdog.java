@@ -0,0 +1,339 @@
+package networkProgramming;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * イベントループの停止を見張ります。
+ *
+ * <p>
+ * イベントループでブロッキング処理を1つ実行すると、そのループの全チャネルが待たされますが、外からは応答時間の
+ * 裾野が少し伸びたようにしか見えません。このクラスは専用のスレッドから一定間隔で各イベントループへ空のタスク
+ * (ハートビート) を投入し、投入から実行までの遅れを測ります。遅れがしきい値を超えたら、まだ止まっているループの
+ * スレッドのスタックトレースを取得して WARNING でログに出力します。スタックトレースの出力は JVM 全体で
+ * {@code stackIntervalMillis} に1回までで、それ以外の停止は1行だけ出力します。
+ * </p>
+ *
+ * <p>
+ * ループごとに遅れのヒストグラム、最大値、停止の回数と、その時点の未実行のタスク数を {@link #stats()} と
+ * {@link #status()} で参照できます。{@link AdminServer} は {@code GET /eventloops} で {@link #status()} を返します。
+ * </p>
+ *
+ * <p>
+ * 設定はシステムプロパティで行います。
+ * </p>
+ * <ul>
+ *     <li>{@code watchdog.periodMillis} ハートビートの間隔 (既定値 100、0 で無効)</li>
+ *     <li>{@code watchdog.thresholdMillis} 停止とみなす遅れ (既定値 200)</li>
+ *     <li>{@code watchdog.stackIntervalMillis} スタックトレースを出力する最短の間隔 (既定値 10000)</li>
+ * </ul>
+ */
+final class EventLoopWatchdog {
+    private static final Logger logger = Logger.getLogger(EventLoopWatchdog.class.getName());
+    // ヒストグラムの各区間の上限 (マイクロ秒)。最後の区間は上限なし
+    private static final long[] BUCKET_MICROS = {
+            50, 100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000, 250_000, 500_000, 1_000_000};
+    private static final int    MAX_FRAMES    = 64;
+
+    private final long                                      periodNanos;
+    private final long                                      thresholdNanos;
+    private final long                                      stackIntervalNanos;
+    private final ScheduledExecutorService                  scheduler;
+    private final ConcurrentHashMap<EventExecutor, Monitor> monitors = new ConcurrentHashMap<>();
+    private final LongAdder                                 stalls   = new LongAdder();
+    // 最後にスタックトレースを出力した時刻。見張りのスレッドだけが使う
+    private       long                                      lastStackNanos;
+    private       boolean                                   stackLogged;
+
+    /**
+     * 見張りを作成します。間隔が 0 の場合は何も見張りません。
+     *
+     * @param periodMillis        ハートビートの間隔 (ミリ秒)
+     * @param thresholdMillis     停止とみなす遅れ (ミリ秒)
+     * @param stackIntervalMillis スタックトレースを出力する最短の間隔 (ミリ秒)
+     */
+    EventLoopWatchdog(long periodMillis, long thresholdMillis, long stackIntervalMillis) {
+        this.periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+        this.thresholdNanos = TimeUnit.MILLISECONDS.toNanos(thresholdMillis);
+        this.stackIntervalNanos = TimeUnit.MILLISECONDS.toNanos(stackIntervalMillis);
+        if (periodNanos <= 0) {
+            this.scheduler = null;
+            return;
+        }
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new DefaultThreadFactory("event-loop-watchdog", true));
+        scheduler.scheduleAtFixedRate(this::tick, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return システムプロパティの設定で作成した、JVM で共有する見張り
+     */
+    static EventLoopWatchdog shared() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * イベントループグループのすべてのループを見張ります。同じループを何度登録しても1つとして扱い、
+     * 終了したループは見張りから外します。
+     *
+     * @param group イベントループグループ
+     */
+    void watch(EventLoopGroup group) {
+        if (scheduler == null) {
+            return;
+        }
+        for (EventExecutor loop : group) {
+            if (monitors.putIfAbsent(loop, new Monitor(loop)) == null) {
+                loop.terminationFuture().addListener(f -> monitors.remove(loop));
+            }
+        }
+    }
+
+    /**
+     * 見張りのスレッドで、間隔ごとに実行します。
+     */
+    private void tick() {
+        long now = System.nanoTime();
+        for (Monitor monitor : monitors.values()) {
+            try {
+                monitor.tick(now);
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Watchdog check failed", e);
+            }
+        }
+    }
+
+    /**
+     * 停止を記録し、間隔を空けてスタックトレースを出力します。見張りのスレッドだけが呼び出します。
+     */
+    private void reportStall(Monitor monitor, long lagNanos, long now) {
+        stalls.increment();
+        monitor.stalls.increment();
+        Thread thread = monitor.thread;
+        if (thread == null || (stackLogged && now - lastStackNanos < stackIntervalNanos)) {
+            logger.warning(String.format(
+                    "Event loop %s blocked for %.0f ms (pending tasks %d)",
+                    monitor.name(), lagNanos / 1e6, monitor.pendingTasks()));
+            return;
+        }
+        stackLogged = true;
+        lastStackNanos = now;
+        StackTraceElement[] frames = thread.getStackTrace();
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(
+                "Event loop %s blocked for %.0f ms (pending tasks %d), state %s:",
+                monitor.name(), lagNanos / 1e6, monitor.pendingTasks(), thread.getState()));
+        for (int i = 0; i < Math.min(frames.length, MAX_FRAMES); i++) {
+            sb.append("\n\tat ").append(frames[i]);
+        }
+        if (frames.length > MAX_FRAMES) {
+            sb.append("\n\t... ").append(frames.length - MAX_FRAMES).append(" more");
+        }
+        logger.warning(sb.toString());
+    }
+
+    /**
+     * @return 停止の合計と、ループごとの遅れの要約
+     */
+    String stats() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("stalls=").append(stalls.sum());
+        for (Monitor monitor : snapshot()) {
+            sb.append(String.format(
+                    " %s[p99=%s max=%.1fms pending=%d]",
+                    monitor.name(), label(monitor.percentileMicros(0.99)), monitor.maxLagNanos.get() / 1e6,
+                    monitor.pendingTasks()));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * ループごとの遅れのヒストグラムを表にします。
+     *
+     * @return 表の文字列
+     */
+    String status() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-28s %8s %8s %10s %10s %10s", "loop", "pending", "stalls", "p50", "p99", "max"));
+        for (long bound : BUCKET_MICROS) {
+            sb.append(String.format(" %9s", "<=" + label(bound)));
+        }
+        sb.append(String.format(" %9s%n", ">" + label(BUCKET_MICROS[BUCKET_MICROS.length - 1])));
+        for (Monitor monitor : snapshot()) {
+            sb.append(String.format(
+                    "%-28s %8d %8d %10s %10s %8.1fms",
+                    monitor.name(), monitor.pendingTasks(), monitor.stalls.sum(), label(monitor.percentileMicros(0.5)),
+                    label(monitor.percentileMicros(0.99)), monitor.maxLagNanos.get() / 1e6));
+            for (int i = 0; i < monitor.histogram.length(); i++) {
+                sb.append(String.format(" %9d", monitor.histogram.get(i)));
+            }
+            sb.append(System.lineSeparator());
+        }
+        sb.append(String.format("loops=%d stalls=%d threshold=%dms%n",
+                                monitors.size(), stalls.sum(), TimeUnit.NANOSECONDS.toMillis(thresholdNanos)));
+        return sb.toString();
+    }
+
+    /**
+     * 統計を一定間隔でログに出力します (FINE レベル)。
+     *
+     * @param period 間隔
+     * @param unit   間隔の単位
+     */
+    void logStatsPeriodically(long period, TimeUnit unit) {
+        if (scheduler != null) {
+            scheduler.scheduleAtFixedRate(() -> logger.fine(() -> "Event loops: " + stats()), period, period, unit);
+        }
+    }
+
+    private List<Monitor> snapshot() {
+        List<Monitor> list = new ArrayList<>(monitors.values());
+        list.sort((a, b) -> a.name().compareTo(b.name()));
+        return list;
+    }
+
+    private static String label(long micros) {
+        if (micros < 0) {
+            return "-";
+        }
+        if (micros < 1_000) {
+            return micros + "us";
+        }
+        if (micros < 1_000_000) {
+            return micros % 1_000 == 0 ? micros / 1_000 + "ms" : String.format("%.1fms", micros / 1e3);
+        }
+        return micros % 1_000_000 == 0 ? micros / 1_000_000 + "s" : String.format("%.1fs", micros / 1e6);
+    }
+
+    /**
+     * 1つのイベントループの見張り。
+     */
+    private final class Monitor {
+        private final EventExecutor   loop;
+        private final AtomicLongArray histogram   = new AtomicLongArray(BUCKET_MICROS.length + 1);
+        private final AtomicLong      maxLagNanos = new AtomicLong();
+        private final LongAdder       stalls      = new LongAdder();
+        private final Runnable        heartbeat   = this::heartbeat;
+        // 実行を待っているハートビートを投入した時刻。待っていなければ 0
+        private volatile long         submittedNanos;
+        // ループのスレッド。最初のハートビートで分かる
+        private volatile Thread       thread;
+        // 停止を報告済みの場合は true。見張りのスレッドだけが使う
+        private          boolean      stalled;
+
+        Monitor(EventExecutor loop) {
+            this.loop = loop;
+        }
+
+        String name() {
+            Thread t = thread;
+            return t != null ? t.getName() : loop.toString();
+        }
+
+        int pendingTasks() {
+            return loop instanceof SingleThreadEventExecutor executor ? executor.pendingTasks() : -1;
+        }
+
+        /**
+         * 見張りのスレッドで、間隔ごとに呼び出します。
+         */
+        void tick(long now) {
+            long submitted = submittedNanos;
+            if (submitted != 0) {
+                long lag = now - submitted;
+                if (! stalled && lag >= thresholdNanos) {
+                    stalled = true;
+                    reportStall(this, lag, now);
+                }
+                return;
+            }
+            if (stalled) {
+                stalled = false;
+                logger.info(String.format("Event loop %s resumed", name()));
+            }
+            if (loop.isShuttingDown()) {
+                return;
+            }
+            // 0 はハートビートを待っていないことを表すため、使わない
+            submittedNanos = now != 0 ? now : 1;
+            try {
+                loop.execute(heartbeat);
+            } catch (RejectedExecutionException e) {
+                submittedNanos = 0;
+            }
+        }
+
+        /**
+         * ループのスレッドで実行します。
+         */
+        private void heartbeat() {
+            if (thread == null) {
+                thread = Thread.currentThread();
+            }
+            long lag = System.nanoTime() - submittedNanos;
+            histogram.incrementAndGet(bucket(lag / 1_000));
+            if (lag > maxLagNanos.get()) {
+                maxLagNanos.set(lag);
+            }
+            submittedNanos = 0;
+        }
+
+        private int bucket(long micros) {
+            for (int i = 0; i < BUCKET_MICROS.length; i++) {
+                if (micros <= BUCKET_MICROS[i]) {
+                    return i;
+                }
+            }
+            return BUCKET_MICROS.length;
+        }
+
+        /**
+         * @return ヒストグラムから求めた百分位の区間の上限 (マイクロ秒)。記録がなければ -1、最後の区間なら最大値
+         */
+        long percentileMicros(double p) {
+            long total = 0;
+            for (int i = 0; i < histogram.length(); i++) {
+                total += histogram.get(i);
+            }
+            if (total == 0) {
+                return -1;
+            }
+            long rank = (long) Math.ceil(total * p);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_MICROS.length; i++) {
+                seen += histogram.get(i);
+                if (seen >= rank) {
+                    return BUCKET_MICROS[i];
+                }
+            }
+            return maxLagNanos.get() / 1_000;
+        }
+    }
+
+    private static final class Shared {
+        static final EventLoopWatchdog INSTANCE;
+
+        static {
+            INSTANCE = new EventLoopWatchdog(
+                    Long.getLong("watchdog.periodMillis", 100),
+                    Long.getLong("watchdog.thresholdMillis", 200),
+                    Long.getLong("watchdog.stackIntervalMillis", 10_000));
+            INSTANCE.logStatsPeriodically(60, TimeUnit.SECONDS);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package networkProgramming;
+
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2Settings;
+
+/**
+ * HTTP/2 接続の SETTINGS とフロー制御ウィンドウの設定。
+ *
+ * <p>
+ * 設定はシステムプロパティから読み込みます。
+ * </p>
+ * <ul>
+ *     <li>{@code http2.initialWindowSize} ストリームの初期ウィンドウサイズ (既定値 1MB)</li>
+ *     <li>{@code http2.connectionWindowSize} 接続全体の初期ウィンドウサイズ (既定値 4MB)</li>
+ *     <li>{@code http2.maxConcurrentStreams} 最大同時ストリーム数 (既定値 256)</li>
+ *     <li>{@code http2.headerTableSize} HPACK の動的テーブルサイズ (既定値 4096)</li>
+ *     <li>{@code http2.maxFrameSize} 受信する最大フレームサイズ (既定値 16384)</li>
+ *     <li>{@code http2.autoTune} BDP推定によるウィンドウの自動調整を行うか (既定値 true)</li>
+ *     <li>{@code http2.maxWindowSize} 自動調整で広げるウィンドウの上限 (既定値 16MB)</li>
+ * </ul>
+ *
+ * @param initialWindowSize    ストリームの初期ウィンドウサイズ
+ * @param connectionWindowSize 接続全体の初期ウィンドウサイズ
+ * @param maxConcurrentStreams 最大同時ストリーム数
+ * @param headerTableSize      HPACK の動的テーブルサイズ
+ * @param maxFrameSize         受信する最大フレームサイズ
+ * @param autoTune             ウィンドウの自動調整を行うか
+ * @param maxWindowSize        自動調整で広げるウィンドウの上限
+ */
+record Http2Tuning(int initialWindowSize,
+                   int connectionWindowSize,
+                   long maxConcurrentStreams,
+                   long headerTableSize,
+                   int maxFrameSize,
+                   boolean autoTune,
+                   int maxWindowSize) {
+
+    /**
+     * Netty の既定値 (RFC 9113 の初期値) と同じ設定。比較用に使います。
+     */
+    static final Http2Tuning DEFAULTS = new Http2Tuning(
+            Http2CodecUtil.DEFAULT_WINDOW_SIZE,
+            Http2CodecUtil.DEFAULT_WINDOW_SIZE,
+            Http2CodecUtil.MAX_CONCURRENT_STREAMS,
+            Http2CodecUtil.DEFAULT_HEADER_TABLE_SIZE,
+            Http2CodecUtil.DEFAULT_MAX_FRAME_SIZE,
+            false,
+            Http2CodecUtil.DEFAULT_WINDOW_SIZE);
+
+    /**
+     * システムプロパティの設定を読み込みます。
+     *
+     * @return 設定
+     */
+    static Http2Tuning fromSystemProperties() {
+        return new Http2Tuning(
+                Integer.getInteger("http2.initialWindowSize", 1024 * 1024),
+                Integer.getInteger("http2.connectionWindowSize", 4 * 1024 * 1024),
+                Long.getLong("http2.maxConcurrentStreams", 256),
+                Long.getLong("http2.headerTableSize", Http2CodecUtil.DEFAULT_HEADER_TABLE_SIZE),
+                Integer.getInteger("http2.maxFrameSize", Http2CodecUtil.DEFAULT_MAX_FRAME_SIZE),
+                Boolean.parseBoolean(System.getProperty("http2.autoTune", "true")),
+                Integer.getInteger("http2.maxWindowSize", 16 * 1024 * 1024));
+    }
+
+    /**
+     * 自身が送信する SETTINGS を返します。
+     *
+     * @return SETTINGS
+     */
+    Http2Settings settings() {
+        return Http2Settings.defaultSettings()
+                            .initialWindowSize(initialWindowSize)
+                            .maxConcurrentStreams(maxConcurrentStreams)
+                            .headerTableSize(headerTableSize)
+                            .maxFrameSize(maxFrameSize);
+    }
+
+    /**
+     * この設定を適用したサーバー用のフレームコーデックを作成します。
+     *
+     * @return フレームコーデック
+     */
+    Http2FrameCodec newServerCodec() {
+        return Http2FrameCodecBuilder.forServer()
+                                     .initialSettings(settings())
+                                     .build();
+    }
+
+    /**
+     * この設定を適用したクライアント用のフレームコーデックを作成します。
+     *
+     * @return フレームコーデック
+     */
+    Http2FrameCodec newClientCodec() {
+        return Http2FrameCodecBuilder.forClient()
+                                     .initialSettings(settings())
+                                     .build();
+    }
+
+    /**
+     * 接続ウィンドウを既定値から設定値まで広げるためのウィンドウ更新量を返します。
+     *
+     * @return ウィンドウ更新量。広げる必要がなければ 0
+     */
+    int connectionWindowIncrement() {
+        return Math.max(0, connectionWindowSize - Http2CodecUtil.DEFAULT_WINDOW_SIZE);
+    }
+}
@@ -0,0 +1,212 @@
+package networkProgramming;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.codec.http2.Http2StreamFrame;
+import io.netty.util.concurrent.Promise;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP/2 のウィンドウ設定によるダウンロードのスループットの違いを、遅延を加えたループバック上で計測するベンチマーク。
+ *
+ * <p>
+ * サーバーは {@link PseudHttp2Daemon} と同じストリームハンドラーを h2c (事前知識) で動かし、
+ * クライアント側の受信データを指定された時間だけ遅らせて往復遅延を模擬します。
+ * 既定の SETTINGS、固定で広げたウィンドウ、BDP による自動調整の3通りでファイルを取得し、スループットを表示します。
+ * </p>
+ *
+ * <p>
+ * ダウンロードの速さを決めるのは受信側 (クライアント) のウィンドウなので、3通りの設定と {@link Http2WindowTuner} は
+ * クライアントだけに適用します。サーバーのウィンドウはアップロードにしか効かないため、サーバーは調整しません。
+ * </p>
+ *
+ * <p>
+ * 使用方法: {@code java Http2WindowBenchmark [ファイルサイズ(MB)] [遅延(ms)]}
+ * </p>
+ */
+public class Http2WindowBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int delayMs = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        Path file = Files.createTempFile("h2bench", ".bin");
+        byte[] content = new byte[sizeMb * 1024 * 1024];
+        new Random(1).nextBytes(content);
+        Files.write(file, content);
+
+        EventLoopGroup group = new NioEventLoopGroup(2);
+        BlockingIoExecutor ioExecutor = new BlockingIoExecutor("h2bench-io", 2, 64);
+        try {
+            Channel server = startServer(group, file, ioExecutor);
+            int port = ((InetSocketAddress) server.localAddress()).getPort();
+
+            Http2Tuning fixed = new Http2Tuning(
+                    8 * 1024 * 1024,
+                    16 * 1024 * 1024,
+                    256,
+                    Http2Tuning.DEFAULTS.headerTableSize(),
+                    Http2Tuning.DEFAULTS.maxFrameSize(),
+                    false,
+                    8 * 1024 * 1024);
+            Http2Tuning auto = new Http2Tuning(
+                    Http2Tuning.DEFAULTS.initialWindowSize(),
+                    Http2Tuning.DEFAULTS.connectionWindowSize(),
+                    256,
+                    Http2Tuning.DEFAULTS.headerTableSize(),
+                    Http2Tuning.DEFAULTS.maxFrameSize(),
+                    true,
+                    16 * 1024 * 1024);
+
+            System.out.printf("file=%dMB rtt=%dms%n", sizeMb, delayMs);
+            run("default", group, port, Http2Tuning.DEFAULTS, delayMs, content.length);
+            run("fixed-8MB", group, port, fixed, delayMs, content.length);
+            run("auto-tune", group, port, auto, delayMs, content.length);
+
+            server.close().sync();
+        } finally {
+            group.shutdownGracefully();
+            ioExecutor.shutdown();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static Channel startServer(EventLoopGroup group, Path file, BlockingIoExecutor ioExecutor)
+            throws InterruptedException {
+        Http2Tuning serverTuning = Http2Tuning.fromSystemProperties();
+        StaticFileCache cache = StaticFileCache.fromSystemProperties(file, ioExecutor, null);
+        return new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(serverTuning.newServerCodec());
+                        ch.pipeline().addLast(new Http2MultiplexHandler(new ChannelInitializer<>() {
+                            @Override
+                            protected void initChannel(Channel stream) {
+                                stream.pipeline().addLast(new PseudHttp2Daemon.Http2ServerHandler(cache, null, null));
+                            }
+                        }));
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+    }
+
+    private static void run(String name, EventLoopGroup group, int port, Http2Tuning tuning, int delayMs, long expected)
+            throws Exception {
+        Http2WindowTuner tuner = new Http2WindowTuner(tuning);
+        Channel channel = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new DelayHandler(delayMs));
+                        ch.pipeline().addLast(tuning.newClientCodec());
+                        ch.pipeline().addLast(tuner);
+                        ch.pipeline().addLast(new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+                    }
+                })
+                .connect("127.0.0.1", port)
+                .sync()
+                .channel();
+
+        Promise<Long> done = channel.eventLoop().newPromise();
+        Http2StreamChannel stream = new Http2StreamChannelBootstrap(channel)
+                .handler(new DownloadHandler(done))
+                .open()
+                .sync()
+                .getNow();
+        long start = System.nanoTime();
+        stream.writeAndFlush(new DefaultHttp2HeadersFrame(
+                new DefaultHttp2Headers().method("GET").path("/").scheme("http").authority("localhost"),
+                true));
+        long received = done.get(5, TimeUnit.MINUTES);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        channel.close().sync();
+
+        System.out.printf(
+                "%-10s %8.1f MB/s  %6.2f s  final window=%,d%s%n",
+                name,
+                received / 1e6 / seconds,
+                seconds,
+                tuner.streamWindow(),
+                received == expected ? "" : "  (incomplete: " + received + ")");
+    }
+
+    /**
+     * 受信したメッセージを一定時間遅らせて後続へ渡し、往復遅延を模擬するハンドラー。
+     */
+    private static final class DelayHandler extends ChannelInboundHandlerAdapter {
+        private final long delayMs;
+
+        DelayHandler(long delayMs) {
+            this.delayMs = delayMs;
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            // 同じ遅延でスケジュールしたタスクは登録順に実行されるため、順序は保たれる
+            ctx.executor().schedule(() -> ctx.fireChannelRead(msg), delayMs, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.executor().schedule(() -> ctx.fireChannelReadComplete(), delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * ストリームで受信したボディのバイト数を数え、終端で Promise を完了させるハンドラー。
+     */
+    static final class DownloadHandler extends SimpleChannelInboundHandler<Http2StreamFrame> {
+        private final Promise<Long> done;
+        private       long          received;
+
+        DownloadHandler(Promise<Long> done) {
+            this.done = done;
+        }
+
+        @Override
+        protected void channelRead0(ChannelHandlerContext ctx, Http2StreamFrame frame) {
+            if (frame instanceof Http2DataFrame data) {
+                received += data.content().readableBytes();
+                if (data.isEndStream()) {
+                    done.trySuccess(received);
+                }
+            } else if (frame instanceof Http2HeadersFrame headers && headers.isEndStream()) {
+                done.trySuccess(received);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            done.tryFailure(cause);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package networkProgramming;
+
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http2.DefaultHttp2PingFrame;
+import io.netty.handler.codec.http2.DefaultHttp2SettingsFrame;
+import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2PingFrame;
+import io.netty.handler.codec.http2.Http2Settings;
+
+import java.util.logging.Logger;
+
+/**
+ * HTTP/2 接続の受信ウィンドウを、PING の往復時間から推定した帯域幅遅延積 (BDP) に合わせて広げるハンドラー。
+ *
+ * <p>
+ * {@link io.netty.handler.codec.http2.Http2FrameCodec} と
+ * {@link io.netty.handler.codec.http2.Http2MultiplexHandler} の間に置きます。
+ * 追加されると接続ウィンドウを {@link Http2Tuning#connectionWindowSize()} まで広げ、
+ * 自動調整が有効な場合はデータ受信中に PING を送信します。PING の ACK が返るまでに受信したバイト数が
+ * 現在のウィンドウの 1/2 以上で、かつ推定帯域幅が増えている場合は、ウィンドウが通信を制限しているとみなして
+ * ストリームと接続のウィンドウを受信バイト数の2倍 (上限 {@link Http2Tuning#maxWindowSize()}) に広げます。
+ * </p>
+ *
+ * <p>
+ * フロー制御のウィンドウは受信側が送信側に与えるものなので、広がるのはこのハンドラーを置いた側が受信する方向だけです。
+ * ダウンロードを速くするにはクライアントに置きます。サーバーに置いて速くなるのはアップロードだけです。
+ * </p>
+ */
+final class Http2WindowTuner extends ChannelDuplexHandler {
+    private static final Logger logger       = Logger.getLogger(Http2WindowTuner.class.getName());
+    private static final long   PING_PAYLOAD = 0x4244505f50494e47L; // "BDP_PING"
+
+    private final Http2Tuning tuning;
+    private       int         streamWindow;
+    private       long        connectionWindow;
+    private       boolean     initialized;
+    private       boolean     pingOutstanding;
+    private       long        pingSentNanos;
+    private       long        sampleBytes;
+    private       double      maxBandwidth;
+
+    Http2WindowTuner(Http2Tuning tuning) {
+        this.tuning = tuning;
+    }
+
+    /**
+     * 現在のストリームウィンドウサイズを返します。
+     *
+     * @return ストリームウィンドウサイズ
+     */
+    int streamWindow() {
+        return streamWindow;
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        if (ctx.channel().isActive()) {
+            initialize(ctx);
+        }
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        initialize(ctx);
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof Http2PingFrame ping && ping.ack() && ping.content() == PING_PAYLOAD) {
+            // 自分が送った PING の ACK は後続へ渡さない
+            onPingAck(ctx);
+            return;
+        }
+        if (tuning.autoTune() && msg instanceof Http2DataFrame data) {
+            if (! pingOutstanding) {
+                pingOutstanding = true;
+                pingSentNanos = System.nanoTime();
+                sampleBytes = 0;
+                ctx.writeAndFlush(new DefaultHttp2PingFrame(PING_PAYLOAD));
+            }
+            sampleBytes += data.initialFlowControlledBytes();
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    private void initialize(ChannelHandlerContext ctx) {
+        if (initialized) {
+            return;
+        }
+        initialized = true;
+        streamWindow = tuning.initialWindowSize();
+        connectionWindow = Math.max(tuning.connectionWindowSize(), Http2CodecUtil.DEFAULT_WINDOW_SIZE);
+        int increment = tuning.connectionWindowIncrement();
+        if (increment > 0) {
+            ctx.writeAndFlush(new DefaultHttp2WindowUpdateFrame(increment));
+        }
+    }
+
+    private void onPingAck(ChannelHandlerContext ctx) {
+        if (! pingOutstanding) {
+            return;
+        }
+        pingOutstanding = false;
+        long rttNanos = Math.max(System.nanoTime() - pingSentNanos, 1);
+        double bandwidth = sampleBytes / (double) rttNanos;
+        if (bandwidth <= maxBandwidth) {
+            return;
+        }
+        maxBandwidth = bandwidth;
+        if (sampleBytes * 2 < streamWindow || streamWindow >= tuning.maxWindowSize()) {
+            return;
+        }
+
+        // Netty はウィンドウの半分を消費するまで WINDOW_UPDATE を送らないため、
+        // ウィンドウが律速していても1往復で受信できるのはウィンドウの 1/2 から 1 倍になる
+        int newWindow = (int) Math.min(tuning.maxWindowSize(), Math.max(sampleBytes, streamWindow) * 2);
+        logger.fine(() -> String.format(
+                "HTTP/2 window %d -> %d (rtt=%.2fms, bdp=%d bytes)",
+                streamWindow,
+                newWindow,
+                rttNanos / 1e6,
+                sampleBytes));
+        streamWindow = newWindow;
+        ctx.write(new DefaultHttp2SettingsFrame(new Http2Settings().initialWindowSize(newWindow)));
+        // 接続ウィンドウは複数のストリームが同時に使えるよう、ストリームウィンドウの2倍を目安にする
+        long connectionTarget = Math.min(Integer.MAX_VALUE, newWindow * 2L);
+        if (connectionTarget > connectionWindow) {
+            ctx.write(new DefaultHttp2WindowUpdateFrame((int) (connectionTarget - connectionWindow)));
+            connectionWindow = connectionTarget;
+        }
+        ctx.flush();
+    }
+}
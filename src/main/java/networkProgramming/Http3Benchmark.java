@@ -0,0 +1,542 @@
+package networkProgramming;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.incubator.codec.http3.DefaultHttp3Headers;
+import io.netty.incubator.codec.http3.DefaultHttp3HeadersFrame;
+import io.netty.incubator.codec.http3.Http3;
+import io.netty.incubator.codec.http3.Http3ClientConnectionHandler;
+import io.netty.incubator.codec.http3.Http3DataFrame;
+import io.netty.incubator.codec.http3.Http3HeadersFrame;
+import io.netty.incubator.codec.http3.Http3RequestStreamInboundHandler;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicSslContext;
+import io.netty.incubator.codec.quic.QuicSslContextBuilder;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Promise;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP/3 (QUIC) と HTTP/2 (TLS over TCP) のハンドシェイク時間とダウンロードのスループットを、
+ * パケットロスを模擬したループバック上で比較するベンチマーク。
+ *
+ * <p>
+ * どちらのプロトコルも中継器を通し、中継器は片道ごとに {@code bench.rttMs} の半分だけ転送を遅らせます
+ * (TCP は接続の確立にも1往復分の時間をかけます)。
+ * QUIC は UDP の中継器で指定した割合のデータグラムを両方向とも捨て、QUIC 自身の再送に任せます。
+ * TCP のロスはユーザー空間から注入できないため、HTTP/2 側は中継器で同じ割合のセグメントが失われたとみなし、
+ * そのセグメント以降の全データの転送を1往復分遅らせることで、高速再送 (fast retransmit) と SACK で回復する間の
+ * ヘッドオブラインブロッキングを模擬します。送信中のデータは Reno の輻輳ウィンドウで制限し、ロスのたびに半分にします
+ * (詳しくは {@code LossyForwarder})。再送タイムアウトは模擬しないため、ロスが多い場合の HTTP/2 は実際より速く出ます。
+ * </p>
+ *
+ * <p>
+ * 模擬ではなく実際のロスで比べるには、Linux でループバックに netem を設定し (root 権限が必要です)、
+ * {@code -Dbench.rttMs=0} でロス率 0 を指定して実行します。中継器を通るため、netem の遅延とロスは片道ごとに
+ * 2回かかります。
+ * </p>
+ * <pre>
+ * tc qdisc add dev lo root netem delay 5ms loss 0.5%
+ * java -Dbench.rttMs=0 Http3Benchmark 16 0
+ * tc qdisc del dev lo root
+ * </pre>
+ *
+ * <p>
+ * 設定はシステムプロパティから読み込みます。
+ * </p>
+ * <ul>
+ *     <li>{@code bench.rttMs} 中継器で模擬する往復遅延 (ミリ秒、既定値 20)</li>
+ * </ul>
+ *
+ * <p>
+ * 使用方法: {@code java Http3Benchmark [ファイルサイズ(MB)] [ロス率(%)...]}
+ * </p>
+ */
+public class Http3Benchmark {
+    private static final int HANDSHAKES    = 10;
+    private static final int SEGMENT_SIZE  = 1460;
+    private static final long RTT_NANOS    = TimeUnit.MILLISECONDS.toNanos(Long.getLong("bench.rttMs", 20));
+    private static final long ONE_WAY_NANOS = RTT_NANOS / 2;
+
+    public static void main(String[] args) throws Exception {
+        int sizeMb = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        double[] lossRates = args.length > 1 ? new double[args.length - 1] : new double[] {0, 1, 5};
+        for (int i = 1; i < args.length; i++) {
+            lossRates[i - 1] = Double.parseDouble(args[i]);
+        }
+
+        Path file = Files.createTempFile("h3bench", ".bin");
+        byte[] content = new byte[sizeMb * 1024 * 1024];
+        new Random(1).nextBytes(content);
+        Files.write(file, content);
+
+        EventLoopGroup group = new NioEventLoopGroup(4);
+        BlockingIoExecutor ioExecutor = new BlockingIoExecutor("h3bench-io", 2, 64);
+        try {
+            ServerCertificate certificate = ServerCertificate.fromSystemProperties();
+            Channel tcpServer = new PseudHttp2Daemon(file).bind(group, group, 0, certificate);
+            Channel udpServer = Http3Listener.bind(group, 0, certificate, file, ioExecutor);
+            InetSocketAddress tcpAddress = new InetSocketAddress(
+                    "127.0.0.1",
+                    ((InetSocketAddress) tcpServer.localAddress()).getPort());
+            InetSocketAddress udpAddress = new InetSocketAddress(
+                    "127.0.0.1",
+                    ((InetSocketAddress) udpServer.localAddress()).getPort());
+
+            System.out.printf(
+                    "file=%dMB handshakes=%d rtt=%dms%n",
+                    sizeMb,
+                    HANDSHAKES,
+                    TimeUnit.NANOSECONDS.toMillis(RTT_NANOS));
+            System.out.printf("%-6s %6s %14s %12s%n", "proto", "loss%", "handshake(ms)", "MB/s");
+            for (double loss : lossRates) {
+                double probability = loss / 100;
+
+                Channel udpRelay = startUdpRelay(group, udpAddress, probability);
+                H3Client h3 = new H3Client(group, (InetSocketAddress) udpRelay.localAddress());
+                report("h3", loss, h3.handshakes(), h3.download(content.length));
+                h3.close();
+                udpRelay.close().sync();
+
+                Channel tcpRelay = startTcpRelay(group, tcpAddress, probability);
+                H2Client h2 = new H2Client(group, (InetSocketAddress) tcpRelay.localAddress());
+                report("h2", loss, h2.handshakes(), h2.download(content.length));
+                tcpRelay.close().sync();
+            }
+
+            tcpServer.close().sync();
+            udpServer.close().sync();
+        } finally {
+            group.shutdownGracefully();
+            ioExecutor.shutdown();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private static void report(String protocol, double loss, double handshakeMs, double mbPerSecond) {
+        System.out.printf("%-6s %6.1f %14.2f %12.1f%n", protocol, loss, handshakeMs, mbPerSecond);
+    }
+
+    /**
+     * 一定の割合のデータグラムを捨てながら、クライアントとサーバーの間でデータグラムを片道の遅延をかけて中継します。
+     * クライアントは1つだけを想定し、最後に受信したクライアントのアドレスへサーバーからの応答を返します。
+     */
+    private static Channel startUdpRelay(EventLoopGroup group, InetSocketAddress server, double lossProbability)
+            throws InterruptedException {
+        return new Bootstrap()
+                .group(group)
+                .channel(NioDatagramChannel.class)
+                .handler(new SimpleChannelInboundHandler<DatagramPacket>() {
+                    private InetSocketAddress client;
+
+                    @Override
+                    protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) {
+                        boolean fromServer = packet.sender().equals(server);
+                        if (! fromServer) {
+                            client = packet.sender();
+                        }
+                        if (ThreadLocalRandom.current().nextDouble() < lossProbability || client == null) {
+                            return;
+                        }
+                        DatagramPacket forward = new DatagramPacket(packet.content().retain(), fromServer ? client : server);
+                        later(ctx.executor(), () -> ctx.writeAndFlush(forward), ONE_WAY_NANOS);
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+    }
+
+    /**
+     * TCP 接続を片道の遅延をかけて中継し、サーバーからのデータに対してセグメント単位のロスを模擬します。
+     * ロスが起きたセグメント以降のデータは、再送で回復するまでの1往復分だけ余計に遅らせます。
+     */
+    private static Channel startTcpRelay(EventLoopGroup group, InetSocketAddress server, double lossProbability)
+            throws InterruptedException {
+        return new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childOption(ChannelOption.AUTO_READ, false)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel inbound) {
+                        inbound.pipeline().addLast(new ChannelInboundHandlerAdapter() {
+                            private Channel outbound;
+
+                            @Override
+                            public void channelActive(ChannelHandlerContext ctx) {
+                                // 3ウェイハンドシェイクの1往復の間は、クライアントのデータを読まない
+                                later(ctx.executor(), () -> outbound = new Bootstrap()
+                                        .group(inbound.eventLoop())
+                                        .channel(NioSocketChannel.class)
+                                        .option(ChannelOption.AUTO_READ, false)
+                                        .handler(new LossyForwarder(inbound, lossProbability))
+                                        .connect(server)
+                                        .addListener((ChannelFutureListener) f -> {
+                                            if (f.isSuccess()) {
+                                                inbound.read();
+                                            } else {
+                                                inbound.close();
+                                            }
+                                        })
+                                        .channel(), RTT_NANOS);
+                            }
+
+                            @Override
+                            public void channelRead(ChannelHandlerContext ctx, Object msg) {
+                                // 遅延の間も読み続け、届いた順に片道の遅延の後で送る
+                                later(ctx.executor(), () -> outbound.writeAndFlush(msg).addListener(
+                                        (ChannelFutureListener) f -> {
+                                            if (! f.isSuccess()) {
+                                                f.channel().close();
+                                            }
+                                        }), ONE_WAY_NANOS);
+                                inbound.read();
+                            }
+
+                            @Override
+                            public void channelInactive(ChannelHandlerContext ctx) {
+                                if (outbound != null) {
+                                    outbound.close();
+                                }
+                            }
+                        });
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+    }
+
+    private static void later(EventExecutor executor, Runnable task, long delayNanos) {
+        if (delayNanos > 0) {
+            executor.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * サーバーからのデータを片道の遅延の後でクライアントへ転送し、TCP の輻輳制御とロスからの回復を簡単に模擬する
+     * ハンドラー。
+     *
+     * <p>
+     * 中継器の TCP はループバックで完結するため、そのままでは往復遅延もロスもサーバーの送信速度に影響しません。
+     * そこで、転送してからその ACK が戻るまで (片道の遅延の2倍) のデータを送信中として数え、輻輳ウィンドウを
+     * 超える間はサーバーから読まないことで、スループットを往復遅延に縛ります。輻輳ウィンドウは 10 セグメントから
+     * 始め、スロースタートと輻輳回避 (Reno) で広げます。
+     * </p>
+     *
+     * <p>
+     * 受信したバイト数をセグメント数に換算してロスを判定し、ロスした場合はそれ以降に届いたデータも含めて
+     * 回復までの1往復分だけ転送を遅らせ、輻輳ウィンドウを半分にします。回復中に重なったロスは、まとめて1回と数えます。
+     * </p>
+     */
+    private static final class LossyForwarder extends ChannelInboundHandlerAdapter {
+        private static final long INITIAL_WINDOW = 10L * SEGMENT_SIZE;
+        private static final long MIN_WINDOW     = 2L * SEGMENT_SIZE;
+        private static final long MAX_WINDOW     = 16L * 1024 * 1024;
+
+        private final Channel             client;
+        private final double              lossProbability;
+        private final ArrayDeque<Delayed> pending            = new ArrayDeque<>();
+        private       long                holdUntil;
+        private       long                congestionWindow   = INITIAL_WINDOW;
+        private       long                slowStartThreshold = MAX_WINDOW;
+        private       long                inFlight;
+        private       boolean             reading;
+        private       boolean             drainScheduled;
+        private       boolean             serverClosed;
+
+        LossyForwarder(Channel client, double lossProbability) {
+            this.client = client;
+            this.lossProbability = lossProbability;
+        }
+
+        @Override
+        public void channelActive(ChannelHandlerContext ctx) {
+            readIfOpen(ctx);
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            long now = System.nanoTime();
+            long releaseAt = now + ONE_WAY_NANOS;
+            int bytes = ((ByteBuf) msg).readableBytes();
+            int segments = (bytes + SEGMENT_SIZE - 1) / SEGMENT_SIZE;
+            double chunkLoss = 1 - Math.pow(1 - lossProbability, segments);
+            if (ThreadLocalRandom.current().nextDouble() < chunkLoss) {
+                if (holdUntil <= now) {
+                    // 回復中でなければ、高速再送に入って輻輳ウィンドウを半分にする
+                    slowStartThreshold = Math.max(congestionWindow / 2, MIN_WINDOW);
+                    congestionWindow = slowStartThreshold;
+                }
+                // 重複 ACK が送信側に届いて再送が受信側に着くまで、およそ1往復かかる。
+                // 回復中に重なったロスは SACK でまとめて再送されるため、保留の期限は延ばさない
+                holdUntil = Math.max(holdUntil, releaseAt + RTT_NANOS);
+            }
+            inFlight += bytes;
+            // 順番を保つため、保留中に届いたデータは期限まで待たせる
+            pending.add(new Delayed(msg, bytes, Math.max(releaseAt, holdUntil)));
+            drain(ctx);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            reading = false;
+            readIfOpen(ctx);
+        }
+
+        private void readIfOpen(ChannelHandlerContext ctx) {
+            if (! reading && inFlight < congestionWindow) {
+                reading = true;
+                ctx.read();
+            }
+        }
+
+        private void drain(ChannelHandlerContext ctx) {
+            long now = System.nanoTime();
+            boolean written = false;
+            Delayed next;
+            while ((next = pending.peek()) != null && next.releaseAt() <= now) {
+                Delayed delivered = pending.poll();
+                client.write(delivered.msg());
+                written = true;
+                // ACK が送信側に戻るまで、送信中として数える
+                later(ctx.executor(), () -> acknowledge(ctx, delivered.bytes()), ONE_WAY_NANOS);
+            }
+            if (written) {
+                client.flush();
+            }
+            if (next == null && serverClosed) {
+                client.close();
+            } else if (next != null && ! drainScheduled) {
+                drainScheduled = true;
+                ctx.executor().schedule(() -> {
+                    drainScheduled = false;
+                    drain(ctx);
+                }, next.releaseAt() - now, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        private void acknowledge(ChannelHandlerContext ctx, int bytes) {
+            inFlight -= bytes;
+            if (congestionWindow < slowStartThreshold) {
+                congestionWindow += bytes;
+            } else {
+                congestionWindow += (long) SEGMENT_SIZE * bytes / congestionWindow;
+            }
+            congestionWindow = Math.min(congestionWindow, MAX_WINDOW);
+            readIfOpen(ctx);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            // 遅らせているデータを送り終えてからクライアントとの接続を閉じる
+            serverClosed = true;
+            drain(ctx);
+        }
+
+        private record Delayed(Object msg, int bytes, long releaseAt) {
+        }
+    }
+
+    /**
+     * HTTP/3 のクライアント。
+     */
+    private static final class H3Client {
+        private final Channel           datagramChannel;
+        private final InetSocketAddress server;
+
+        H3Client(EventLoopGroup group, InetSocketAddress server) throws Exception {
+            QuicSslContext sslContext = QuicSslContextBuilder.forClient()
+                                                             .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                                                             .applicationProtocols(Http3.supportedApplicationProtocols())
+                                                             .build();
+            ChannelHandler codec = Http3.newQuicClientCodecBuilder()
+                                        .sslContext(sslContext)
+                                        .maxIdleTimeout(30, TimeUnit.SECONDS)
+                                        .initialMaxData(16 * 1024 * 1024)
+                                        .initialMaxStreamDataBidirectionalLocal(4 * 1024 * 1024)
+                                        .build();
+            this.datagramChannel = new Bootstrap().group(group)
+                                                  .channel(NioDatagramChannel.class)
+                                                  .handler(codec)
+                                                  .bind("127.0.0.1", 0)
+                                                  .sync()
+                                                  .channel();
+            this.server = server;
+        }
+
+        QuicChannel connect() throws Exception {
+            return QuicChannel.newBootstrap(datagramChannel)
+                              .handler(new Http3ClientConnectionHandler())
+                              .remoteAddress(server)
+                              .connect()
+                              .get(30, TimeUnit.SECONDS);
+        }
+
+        double handshakes() throws Exception {
+            long total = 0;
+            for (int i = 0; i < HANDSHAKES; i++) {
+                long start = System.nanoTime();
+                QuicChannel quic = connect();
+                total += System.nanoTime() - start;
+                quic.close().sync();
+            }
+            return total / 1e6 / HANDSHAKES;
+        }
+
+        double download(long expected) throws Exception {
+            QuicChannel quic = connect();
+            Promise<Long> done = quic.eventLoop().newPromise();
+            long start = System.nanoTime();
+            QuicStreamChannel stream = Http3.newRequestStream(quic, new Http3RequestStreamInboundHandler() {
+                private long received;
+
+                @Override
+                protected void channelRead(ChannelHandlerContext ctx, Http3HeadersFrame frame) {
+                    ReferenceCountUtil.release(frame);
+                }
+
+                @Override
+                protected void channelRead(ChannelHandlerContext ctx, Http3DataFrame frame) {
+                    received += frame.content().readableBytes();
+                    ReferenceCountUtil.release(frame);
+                }
+
+                @Override
+                protected void channelInputClosed(ChannelHandlerContext ctx) {
+                    done.trySuccess(received);
+                }
+            }).sync().getNow();
+            stream.writeAndFlush(new DefaultHttp3HeadersFrame(
+                          new DefaultHttp3Headers().method("GET").path("/").scheme("https").authority("localhost")))
+                  .addListener(QuicStreamChannel.SHUTDOWN_OUTPUT);
+            long received = done.get(5, TimeUnit.MINUTES);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            quic.close().sync();
+            checkComplete("h3", received, expected);
+            return received / 1e6 / seconds;
+        }
+
+        void close() throws InterruptedException {
+            datagramChannel.close().sync();
+        }
+    }
+
+    /**
+     * HTTP/2 (TLS + ALPN) のクライアント。
+     */
+    private static final class H2Client {
+        private final EventLoopGroup    group;
+        private final InetSocketAddress server;
+        private final SslContext        sslContext;
+
+        H2Client(EventLoopGroup group, InetSocketAddress server) throws Exception {
+            this.group = group;
+            this.server = server;
+            this.sslContext = SslContextBuilder.forClient()
+                                               .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                                               .applicationProtocolConfig(new ApplicationProtocolConfig(
+                                                       ApplicationProtocolConfig.Protocol.ALPN,
+                                                       ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                                                       ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                                                       ApplicationProtocolNames.HTTP_2))
+                                               .build();
+        }
+
+        Channel connect() throws Exception {
+            Http2Tuning tuning = Http2Tuning.fromSystemProperties();
+            Channel channel = new Bootstrap()
+                    .group(group)
+                    .channel(NioSocketChannel.class)
+                    .handler(new ChannelInitializer<SocketChannel>() {
+                        @Override
+                        protected void initChannel(SocketChannel ch) {
+                            ch.pipeline().addLast(sslContext.newHandler(ch.alloc(), server.getHostString(), server.getPort()));
+                            ch.pipeline().addLast(tuning.newClientCodec());
+                            ch.pipeline().addLast(new Http2WindowTuner(tuning));
+                            ch.pipeline().addLast(new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+                        }
+                    })
+                    .connect(server)
+                    .sync()
+                    .channel();
+            channel.pipeline().get(SslHandler.class).handshakeFuture().get(30, TimeUnit.SECONDS);
+            return channel;
+        }
+
+        double handshakes() throws Exception {
+            long total = 0;
+            for (int i = 0; i < HANDSHAKES; i++) {
+                long start = System.nanoTime();
+                Channel channel = connect();
+                total += System.nanoTime() - start;
+                channel.close().sync();
+            }
+            return total / 1e6 / HANDSHAKES;
+        }
+
+        double download(long expected) throws Exception {
+            Channel channel = connect();
+            Promise<Long> done = channel.eventLoop().newPromise();
+            long start = System.nanoTime();
+            Http2StreamChannel stream = new Http2StreamChannelBootstrap(channel)
+                    .handler(new Http2WindowBenchmark.DownloadHandler(done))
+                    .open()
+                    .sync()
+                    .getNow();
+            stream.writeAndFlush(new DefaultHttp2HeadersFrame(
+                    new DefaultHttp2Headers().method("GET").path("/").scheme("https").authority("localhost"),
+                    true));
+            long received = done.get(5, TimeUnit.MINUTES);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            channel.close().sync();
+            checkComplete("h2", received, expected);
+            return received / 1e6 / seconds;
+        }
+    }
+
+    private static void checkComplete(String protocol, long received, long expected) {
+        if (received != expected) {
+            System.out.printf("%s: incomplete download (%,d of %,d bytes)%n", protocol, received, expected);
+        }
+    }
+}
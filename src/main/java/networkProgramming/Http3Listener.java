@@ -0,0 +1,200 @@
+package networkProgramming;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.incubator.codec.http3.DefaultHttp3DataFrame;
+import io.netty.incubator.codec.http3.DefaultHttp3HeadersFrame;
+import io.netty.incubator.codec.http3.Http3;
+import io.netty.incubator.codec.http3.Http3DataFrame;
+import io.netty.incubator.codec.http3.Http3Headers;
+import io.netty.incubator.codec.http3.Http3HeadersFrame;
+import io.netty.incubator.codec.http3.Http3RequestStreamInboundHandler;
+import io.netty.incubator.codec.http3.Http3ServerConnectionHandler;
+import io.netty.incubator.codec.quic.InsecureQuicTokenHandler;
+import io.netty.incubator.codec.quic.QuicChannel;
+import io.netty.incubator.codec.quic.QuicSslContext;
+import io.netty.incubator.codec.quic.QuicSslContextBuilder;
+import io.netty.incubator.codec.quic.QuicStreamChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link PseudHttp2Daemon} と同じファイルを HTTP/3 (QUIC) で配信する UDP リスナー。
+ *
+ * <p>
+ * TCP のリスナーと同じポート番号の UDP で待ち受け、同じ証明書を使います。
+ * TCP 側のレスポンスには {@link #altSvc(int)} の値を Alt-Svc ヘッダーとして付け、
+ * クライアントが HTTP/3 に切り替えられることを通知します。
+ * </p>
+ */
+final class Http3Listener {
+    private static final Logger logger = Logger.getLogger(Http3Listener.class.getName());
+
+    private Http3Listener() {
+    }
+
+    /**
+     * Alt-Svc ヘッダーの値を返します。
+     *
+     * @param port HTTP/3 で待ち受けている UDP ポート番号
+     * @return Alt-Svc ヘッダーの値
+     */
+    static String altSvc(int port) {
+        return "h3=\":" + port + "\"; ma=86400";
+    }
+
+    /**
+     * HTTP/3 のリスナーを起動します。
+     *
+     * @param group       UDP チャネルを処理するイベントループグループ
+     * @param port        待ち受ける UDP ポート番号
+     * @param certificate サーバー証明書
+     * @param file        配信するファイル
+     * @param ioExecutor  ファイルを読み込む実行器
+     * @return 待ち受けている UDP チャネル
+     * @throws InterruptedException バインド待ちの間に割り込まれた場合
+     */
+    static Channel bind(EventLoopGroup group, int port, ServerCertificate certificate, Path file, BlockingIoExecutor ioExecutor)
+            throws InterruptedException {
+        QuicSslContext sslContext = QuicSslContextBuilder.forServer(
+                                                                 certificate.privateKey(),
+                                                                 null,
+                                                                 certificate.certificate())
+                                                         .applicationProtocols(Http3.supportedApplicationProtocols())
+                                                         .build();
+        StaticFileCache cache = StaticFileCache.fromSystemProperties(file, ioExecutor, null);
+        ChannelHandler codec = Http3.newQuicServerCodecBuilder()
+                                    .sslContext(sslContext)
+                                    .maxIdleTimeout(30, TimeUnit.SECONDS)
+                                    .initialMaxData(16 * 1024 * 1024)
+                                    .initialMaxStreamDataBidirectionalLocal(4 * 1024 * 1024)
+                                    .initialMaxStreamDataBidirectionalRemote(4 * 1024 * 1024)
+                                    .initialMaxStreamsBidirectional(256)
+                                    .tokenHandler(InsecureQuicTokenHandler.INSTANCE)
+                                    .handler(new ChannelInitializer<QuicChannel>() {
+                                        @Override
+                                        protected void initChannel(QuicChannel ch) {
+                                            ch.pipeline().addLast(new Http3ServerConnectionHandler(
+                                                    new ChannelInitializer<QuicStreamChannel>() {
+                                                        @Override
+                                                        protected void initChannel(QuicStreamChannel ch) {
+                                                            ch.pipeline().addLast(new Http3FileHandler(cache));
+                                                        }
+                                                    }));
+                                        }
+                                    })
+                                    .build();
+
+        return new Bootstrap().group(group)
+                              .channel(NioDatagramChannel.class)
+                              .handler(codec)
+                              .bind(port)
+                              .sync()
+                              .channel();
+    }
+
+    /**
+     * リクエストストリームの終わりを受信したらファイルを返すハンドラー。
+     *
+     * <p>
+     * HTTP/1.1 と HTTP/2 と同じく {@link StaticFileCache} のエントリから応答し、条件付きリクエストには 304 を返します。
+     * Range は扱わず、常にファイル全体を返します。
+     * </p>
+     */
+    private static final class Http3FileHandler extends Http3RequestStreamInboundHandler {
+        private final StaticFileCache            cache;
+        private       NetEvents.HttpRequestEvent event;
+        private       StaticFileCache.Conditions conditions = StaticFileCache.Conditions.NONE;
+
+        Http3FileHandler(StaticFileCache cache) {
+            this.cache = cache;
+        }
+
+        @Override
+        protected void channelRead(ChannelHandlerContext ctx, Http3HeadersFrame frame) {
+            Http3Headers headers = frame.headers();
+            logger.info("HTTP/3 request received: " + headers.path());
+            event = NetEvents.beginRequest("PseudHttp2Daemon", "HTTP/3", headers.method(), headers.path());
+            conditions = StaticFileCache.Conditions.of(
+                    headers.method(),
+                    headers.get(HttpHeaderNames.IF_NONE_MATCH),
+                    headers.get(HttpHeaderNames.IF_MODIFIED_SINCE),
+                    null,
+                    null);
+            ReferenceCountUtil.release(frame);
+        }
+
+        @Override
+        protected void channelRead(ChannelHandlerContext ctx, Http3DataFrame frame) {
+            ReferenceCountUtil.release(frame);
+        }
+
+        @Override
+        protected void channelInputClosed(ChannelHandlerContext ctx) {
+            StaticFileCache.Entry entry = cache.current(ctx.executor());
+            if (entry != null) {
+                sendFile(ctx, entry);
+                return;
+            }
+            // ファイルの確認と読み込みはイベントループを止めないよう別スレッドで行い、結果はイベントループで書き込む
+            cache.load(ctx.executor())
+                 .addListener((Future<StaticFileCache.Entry> f) -> {
+                     if (f.isSuccess()) {
+                         sendFile(ctx, f.getNow());
+                         return;
+                     }
+                     logger.log(Level.SEVERE, "File read error", f.cause());
+                     DefaultHttp3HeadersFrame headers = new DefaultHttp3HeadersFrame();
+                     headers.headers().status(HttpResponseStatus.INTERNAL_SERVER_ERROR.codeAsText());
+                     complete(ctx.writeAndFlush(headers), HttpResponseStatus.INTERNAL_SERVER_ERROR, 0);
+                 });
+        }
+
+        private void sendFile(ChannelHandlerContext ctx, StaticFileCache.Entry entry) {
+            if (entry.notModified(conditions.ifNoneMatch(), conditions.ifModifiedSince())) {
+                DefaultHttp3HeadersFrame headers = validators(entry, HttpResponseStatus.NOT_MODIFIED);
+                complete(ctx.writeAndFlush(headers), HttpResponseStatus.NOT_MODIFIED, 0);
+                return;
+            }
+            DefaultHttp3HeadersFrame headers = validators(entry, HttpResponseStatus.OK);
+            headers.headers()
+                   .set(HttpHeaderNames.CONTENT_TYPE, entry.contentType())
+                   .setInt(HttpHeaderNames.CONTENT_LENGTH, entry.contentLength());
+            if (conditions.head()) {
+                complete(ctx.writeAndFlush(headers), HttpResponseStatus.OK, 0);
+                return;
+            }
+            ctx.write(headers);
+            ChannelFuture written = ctx.writeAndFlush(new DefaultHttp3DataFrame(entry.retainedContent()));
+            complete(written, HttpResponseStatus.OK, entry.contentLength());
+        }
+
+        private static DefaultHttp3HeadersFrame validators(StaticFileCache.Entry entry, HttpResponseStatus status) {
+            DefaultHttp3HeadersFrame frame = new DefaultHttp3HeadersFrame();
+            frame.headers()
+                 .status(status.codeAsText())
+                 .set(HttpHeaderNames.ETAG, entry.etag())
+                 .set(HttpHeaderNames.LAST_MODIFIED, entry.lastModified());
+            return frame;
+        }
+
+        private void complete(ChannelFuture f, HttpResponseStatus status, long contentLength) {
+            NetEvents.endRequest(event, f, status.code(), contentLength);
+            f.addListener(QuicStreamChannel.SHUTDOWN_OUTPUT);
+            logger.info("HTTP/3 response sent");
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package networkProgramming;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * キープアライブで再利用できるHTTP/1.1クライアント接続。
+ *
+ * <p>
+ * 1つの接続では同時に1つのリクエストだけを扱います。レスポンスボディを最後まで読み切り、
+ * サーバーが接続を閉じる指示をしていなければ {@link #isReusable()} が true になり、
+ * {@link HttpConnectionPool} に返却して次のリクエストに使うことができます。
+ * </p>
+ */
+final class HttpClientConnection implements Closeable {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final String       scheme;
+    private final String       host;
+    private final int          port;
+    private final Socket       socket;
+    private final InputStream  in;
+    private final OutputStream out;
+    private       int          requestCount;
+    private       boolean      keepAlive;
+    private       ResponseBody currentBody;
+
+    /**
+     * 接続済みのソケットから接続を作成します。
+     *
+     * @param scheme 接続のスキーム ("http" または "https")
+     * @param host   接続先ホスト名
+     * @param port   接続先ポート番号
+     * @param socket 接続済みのソケット
+     * @throws IOException ストリームの取得に失敗した場合
+     */
+    HttpClientConnection(String scheme, String host, int port, Socket socket)
+            throws IOException {
+        this.scheme = scheme;
+        this.host = host;
+        this.port = port;
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+        this.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+    }
+
+    String scheme() {
+        return scheme;
+    }
+
+    String host() {
+        return host;
+    }
+
+    int port() {
+        return port;
+    }
+
+    /**
+     * この接続で既にリクエストを送信したことがあるかを返します。
+     * 再利用した接続はサーバー側で閉じられている可能性があるため、失敗時の再試行判断に使います。
+     *
+     * @return 2回目以降のリクエストであれば true
+     */
+    boolean isReused() {
+        return requestCount > 0;
+    }
+
+    /**
+     * 直前のレスポンスを読み切っており、次のリクエストに使えるかを返します。
+     *
+     * @return 再利用可能であれば true
+     */
+    boolean isReusable() {
+        return keepAlive && currentBody != null && currentBody.isComplete() && ! socket.isClosed();
+    }
+
+    /**
+     * リクエストを送信し、レスポンスヘッダーを読み取ります。
+     * ボディは {@link #body(HttpResponseHead)} で取得したストリームから読み取ります。
+     *
+     * @param method       HTTPメソッド
+     * @param path         リクエストパス
+     * @param extraHeaders 追加のリクエストヘッダー
+     * @return レスポンスヘッダー
+     * @throws IOException 送受信に失敗した場合
+     */
+    HttpResponseHead exchange(String method, String path, Map<String, String> extraHeaders)
+            throws IOException {
+        if (currentBody != null && ! currentBody.isComplete()) {
+            throw new IllegalStateException("前のレスポンスボディが読み切られていません");
+        }
+        StringBuilder request = new StringBuilder(128)
+                .append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(hostHeader()).append("\r\n");
+        extraHeaders.forEach((name, value) -> request.append(name)
+                                                     .append(": ")
+                                                     .append(value)
+                                                     .append("\r\n"));
+        request.append("\r\n");
+        out.write(request.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        requestCount++;
+
+        HttpResponseHead head;
+        do {
+            head = readHead();
+        } while (head.status() / 100 == 1); // 1xx の中間レスポンスは読み飛ばす
+
+        keepAlive = head.version().equals("HTTP/1.1")
+                && ! "close".equalsIgnoreCase(head.header("connection"));
+        currentBody = new ResponseBody(head, method.equals("HEAD"));
+        return head;
+    }
+
+    /**
+     * 直前のレスポンスのボディを読み取るストリームを返します。
+     * chunked 転送と Content-Length の両方に対応し、どちらもない場合は接続終了までを読み取ります。
+     *
+     * @param head {@link #exchange} が返したレスポンスヘッダー
+     * @return ボディのストリーム
+     */
+    InputStream body(HttpResponseHead head) {
+        if (currentBody == null || currentBody.head != head) {
+            throw new IllegalStateException("レスポンスが一致しません");
+        }
+        return currentBody;
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private String hostHeader() {
+        int defaultPort = scheme.equals("https") ? 443 : 80;
+        return port == defaultPort ? host : host + ":" + port;
+    }
+
+    private HttpResponseHead readHead() throws IOException {
+        String statusLine = readLine(in);
+        if (statusLine == null) {
+            throw new EOFException("レスポンスを受信する前に接続が閉じられました");
+        }
+        String[] parts = statusLine.split(" ", 3);
+        if (parts.length < 2 || ! parts[0].startsWith("HTTP/")) {
+            throw new IOException("不正なステータス行: " + statusLine);
+        }
+        int status;
+        try {
+            status = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IOException("不正なステータスコード: " + statusLine, e);
+        }
+
+        Map<String, String> headers = new LinkedHashMap<>();
+        String line;
+        while ((line = readLine(in)) != null && ! line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+            headers.merge(name, value, (a, b) -> a + ", " + b);
+        }
+        return new HttpResponseHead(parts[0], status, headers);
+    }
+
+    /**
+     * CRLFまたはLFで終わる1行をISO-8859-1として読み取ります。
+     *
+     * @param in 入力ストリーム
+     * @return 読み取った行。ストリームの終わりに達した場合は null
+     * @throws IOException 読み取りに失敗した場合
+     */
+    private static String readLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        int c;
+        while ((c = in.read()) != - 1) {
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.isEmpty() ? null : line.toString();
+    }
+
+    /**
+     * レスポンスヘッダー。ヘッダー名は小文字に正規化されています。
+     *
+     * @param version HTTPバージョン
+     * @param status  ステータスコード
+     * @param headers ヘッダー
+     */
+    record HttpResponseHead(String version, int status, Map<String, String> headers) {
+        String header(String name) {
+            return headers.get(name);
+        }
+
+        /**
+         * Content-Length ヘッダーの値を返します。
+         *
+         * @return ボディの長さ。不明な場合は -1
+         */
+        long contentLength() {
+            String value = headers.get("content-length");
+            if (value == null) {
+                return - 1;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return - 1;
+            }
+        }
+
+        boolean isChunked() {
+            String value = headers.get("transfer-encoding");
+            return value != null && value.toLowerCase(Locale.ROOT).contains("chunked");
+        }
+    }
+
+    /**
+     * 転送方式に応じてボディの終端を判定するストリーム。
+     * close() は接続を閉じず、再利用のために残りのボディを読み捨てます。
+     */
+    private final class ResponseBody extends InputStream {
+        private final HttpResponseHead head;
+        private final boolean          chunked;
+        private       long             remaining;
+        private       boolean          complete;
+        private       boolean          chunkStarted;
+
+        ResponseBody(HttpResponseHead head, boolean headRequest) {
+            this.head = head;
+            int status = head.status();
+            if (headRequest || status == 204 || status == 304) {
+                this.chunked = false;
+                this.remaining = 0;
+                this.complete = true;
+            } else if (head.isChunked()) {
+                this.chunked = true;
+                this.remaining = 0;
+            } else {
+                this.chunked = false;
+                this.remaining = head.contentLength();
+                if (remaining < 0) {
+                    // 長さが不明な場合は接続終了までがボディになるため再利用できない
+                    keepAlive = false;
+                    remaining = Long.MAX_VALUE;
+                }
+                this.complete = remaining == 0;
+            }
+        }
+
+        boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == - 1 ? - 1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (complete) {
+                return - 1;
+            }
+            if (chunked && remaining == 0 && ! nextChunk()) {
+                return - 1;
+            }
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n == - 1) {
+                if (remaining == Long.MAX_VALUE && ! chunked) {
+                    complete = true;
+                    return - 1;
+                }
+                throw new EOFException("ボディの途中で接続が閉じられました");
+            }
+            if (remaining != Long.MAX_VALUE || chunked) {
+                remaining -= n;
+            }
+            if (! chunked && remaining == 0) {
+                complete = true;
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (! keepAlive) {
+                return;
+            }
+            byte[] discard = new byte[BUFFER_SIZE];
+            while (read(discard, 0, discard.length) != - 1) {
+                // 次のリクエストのために読み捨てる
+            }
+        }
+
+        /**
+         * 次のチャンクのサイズ行を読み取ります。最後のチャンクであればトレーラーを読み捨てます。
+         *
+         * @return データを持つチャンクがあれば true
+         * @throws IOException 読み取りに失敗した場合
+         */
+        private boolean nextChunk() throws IOException {
+            if (chunkStarted) {
+                // 前のチャンクのデータ直後のCRLF
+                String crlf = readLine(in);
+                if (crlf == null || ! crlf.isEmpty()) {
+                    throw new IOException("チャンクの終端が不正です");
+                }
+            }
+            String sizeLine = readLine(in);
+            if (sizeLine == null) {
+                throw new EOFException("チャンクサイズを読み取る前に接続が閉じられました");
+            }
+            int extension = sizeLine.indexOf(';');
+            String hex = (extension >= 0 ? sizeLine.substring(0, extension) : sizeLine).trim();
+            try {
+                remaining = Long.parseLong(hex, 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("不正なチャンクサイズ: " + sizeLine, e);
+            }
+            chunkStarted = true;
+            if (remaining == 0) {
+                String trailer;
+                while ((trailer = readLine(in)) != null && ! trailer.isEmpty()) {
+                    // トレーラーは使用しない
+                }
+                complete = true;
+                return false;
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package networkProgramming;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * ホストごとにキープアライブ接続をプールするHTTPクライアント用の接続プール。
+ *
+ * <p>
+ * ホストごとの同時接続数を上限で制限し、アイドル接続を再利用します。
+ * 名前解決の結果は一定時間キャッシュし、TLS接続は共通の {@link SSLContext} から作成するため
+ * 同じホストへの再接続ではTLSセッションが再開されます。
+ * </p>
+ */
+final class HttpConnectionPool implements Closeable {
+    private static final Logger logger             = Logger.getLogger(HttpConnectionPool.class.getName());
+    private static final long   DNS_TTL_NANOS      = TimeUnit.SECONDS.toNanos(60);
+    private static final int    CONNECT_TIMEOUT_MS = 10_000;
+    private static final int    READ_TIMEOUT_MS    = 30_000;
+
+    private final int                                 maxPerHost;
+    private final SSLSocketFactory                    sslSocketFactory;
+    private final ConcurrentHashMap<String, HostPool> pools    = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, DnsEntry> dnsCache = new ConcurrentHashMap<>();
+    private final AtomicLong                          opened   = new AtomicLong();
+    private final AtomicLong                          reused   = new AtomicLong();
+
+    /**
+     * 接続プールを作成します。
+     *
+     * @param maxPerHost ホストごとの最大同時接続数
+     */
+    HttpConnectionPool(int maxPerHost) {
+        this.maxPerHost = maxPerHost;
+        try {
+            this.sslSocketFactory = SSLContext.getDefault().getSocketFactory();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("TLSを初期化できません", e);
+        }
+    }
+
+    /**
+     * 指定されたホストへの接続を取得します。アイドル接続があれば再利用し、
+     * なければ新しく接続します。ホストの同時接続数が上限に達している場合は空くまで待機します。
+     *
+     * @param scheme "http" または "https"
+     * @param host   接続先ホスト名
+     * @param port   接続先ポート番号
+     * @return 接続
+     * @throws IOException          接続に失敗した場合
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    HttpClientConnection acquire(String scheme, String host, int port)
+            throws IOException, InterruptedException {
+        HostPool pool = pools.computeIfAbsent(
+                key(scheme, host, port),
+                k -> new HostPool(maxPerHost));
+        pool.permits.acquire();
+        try {
+            HttpClientConnection idle;
+            while ((idle = pool.idle.pollFirst()) != null) {
+                if (idle.isReusable()) {
+                    reused.incrementAndGet();
+                    return idle;
+                }
+                closeQuietly(idle);
+            }
+            HttpClientConnection connection = connect(scheme, host, port);
+            opened.incrementAndGet();
+            return connection;
+        } catch (IOException | RuntimeException e) {
+            pool.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * 使用後の接続をプールへ返却します。再利用できない接続は閉じられます。
+     *
+     * @param connection 返却する接続
+     */
+    void release(HttpClientConnection connection) {
+        HostPool pool = pools.get(key(connection.scheme(), connection.host(), connection.port()));
+        if (connection.isReusable()) {
+            pool.idle.offerFirst(connection);
+        } else {
+            closeQuietly(connection);
+        }
+        pool.permits.release();
+    }
+
+    /**
+     * 使用中に失敗した接続を閉じ、プールの枠を解放します。
+     *
+     * @param connection 破棄する接続
+     */
+    void discard(HttpClientConnection connection) {
+        closeQuietly(connection);
+        pools.get(key(connection.scheme(), connection.host(), connection.port()))
+             .permits.release();
+    }
+
+    /**
+     * これまでに新規に開いた接続数を返します。
+     *
+     * @return 開いた接続数
+     */
+    long connectionsOpened() {
+        return opened.get();
+    }
+
+    /**
+     * アイドル接続を再利用した回数を返します。
+     *
+     * @return 再利用回数
+     */
+    long connectionsReused() {
+        return reused.get();
+    }
+
+    @Override
+    public void close() {
+        pools.values().forEach(pool -> {
+            HttpClientConnection connection;
+            while ((connection = pool.idle.pollFirst()) != null) {
+                closeQuietly(connection);
+            }
+        });
+    }
+
+    private HttpClientConnection connect(String scheme, String host, int port)
+            throws IOException {
+        InetAddress address = resolve(host);
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            socket.connect(new InetSocketAddress(address, port), CONNECT_TIMEOUT_MS);
+            if (scheme.equals("https")) {
+                // ホスト名とポートを渡すことでSNIとセッション再開のキーが設定される
+                SSLSocket sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, host, port, true);
+                SSLParameters parameters = sslSocket.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(parameters);
+                sslSocket.startHandshake();
+                socket = sslSocket;
+            }
+            return new HttpClientConnection(scheme, host, port, socket);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * ホスト名を名前解決します。結果は {@link #DNS_TTL_NANOS} の間キャッシュされます。
+     *
+     * @param host ホスト名
+     * @return 解決されたアドレス
+     * @throws UnknownHostException 名前解決に失敗した場合
+     */
+    private InetAddress resolve(String host) throws UnknownHostException {
+        long now = System.nanoTime();
+        DnsEntry entry = dnsCache.get(host);
+        if (entry == null || now - entry.resolvedAt > DNS_TTL_NANOS) {
+            entry = new DnsEntry(InetAddress.getByName(host), now);
+            dnsCache.put(host, entry);
+        }
+        return entry.address;
+    }
+
+    private static String key(String scheme, String host, int port) {
+        return scheme + "://" + host + ":" + port;
+    }
+
+    private static void closeQuietly(HttpClientConnection connection) {
+        try {
+            connection.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "接続のクローズに失敗しました", e);
+        }
+    }
+
+    private record DnsEntry(InetAddress address, long resolvedAt) {
+    }
+
+    private static final class HostPool {
+        final Semaphore                                   permits;
+        final ConcurrentLinkedDeque<HttpClientConnection> idle = new ConcurrentLinkedDeque<>();
+
+        HostPool(int maxPerHost) {
+            this.permits = new Semaphore(maxPerHost);
+        }
+    }
+}
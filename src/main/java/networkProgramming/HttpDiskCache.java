@@ -0,0 +1,269 @@
+package networkProgramming;
+
+import networkProgramming.HttpClientConnection.HttpResponseHead;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * URLをキーにしてレスポンスボディをディスクに保存する、条件付きGET用のクライアント側キャッシュ。
+ *
+ * <p>
+ * ボディはキャッシュディレクトリにファイルとして保存し、ETag・Last-Modified・サイズ・最終アクセス時刻は
+ * メモリ上のインデックスで管理します。インデックスはアクセス順の {@link LinkedHashMap} で、
+ * 合計サイズが上限を超えると最も長く使われていないエントリから削除します。
+ * インデックスは {@link #close()} でディスクに書き出され、次回の起動時に読み込まれます。
+ * </p>
+ */
+final class HttpDiskCache implements Closeable {
+    private static final Logger logger     = Logger.getLogger(HttpDiskCache.class.getName());
+    private static final String INDEX_FILE = "index.tsv";
+
+    private final Path                    directory;
+    private final long                    maxBytes;
+    private final Map<String, CacheEntry> index      = new LinkedHashMap<>(256, 0.75f, true);
+    private final AtomicLong              lookups    = new AtomicLong();
+    private final AtomicLong              hits       = new AtomicLong();
+    private final AtomicLong              bytesSaved = new AtomicLong();
+    private       long                    totalBytes;
+
+    /**
+     * キャッシュを開きます。ディレクトリにインデックスがあれば読み込みます。
+     *
+     * @param directory キャッシュディレクトリ
+     * @param maxBytes  ボディの合計サイズの上限
+     * @throws IOException ディレクトリの作成またはインデックスの読み込みに失敗した場合
+     */
+    HttpDiskCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+        loadIndex();
+    }
+
+    /**
+     * URLに対応するキャッシュエントリを返します。条件付きリクエストのヘッダー作成に使います。
+     *
+     * @param url URL
+     * @return キャッシュエントリ。存在しない場合は null
+     */
+    synchronized CacheEntry lookup(String url) {
+        lookups.incrementAndGet();
+        return index.get(url);
+    }
+
+    /**
+     * エントリから条件付きリクエストのヘッダーを追加します。
+     *
+     * @param entry   キャッシュエントリ
+     * @param headers ヘッダーの追加先
+     */
+    static void addValidators(CacheEntry entry, Map<String, String> headers) {
+        if (entry.etag() != null) {
+            headers.put("If-None-Match", entry.etag());
+        }
+        if (entry.lastModified() != null) {
+            headers.put("If-Modified-Since", entry.lastModified());
+        }
+    }
+
+    /**
+     * 304 レスポンスを受けたエントリのボディを出力先へコピーします。
+     *
+     * @param entry  キャッシュエントリ
+     * @param target 出力先
+     * @return コピーできた場合は true。エントリが既に追い出されていた場合は false
+     * @throws IOException コピーに失敗した場合
+     */
+    boolean serve(CacheEntry entry, Path target) throws IOException {
+        try {
+            Files.copy(bodyPath(entry.url()), target, StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        synchronized (this) {
+            CacheEntry current = index.get(entry.url());
+            if (current != null) {
+                index.put(entry.url(), current.touched());
+            }
+        }
+        hits.incrementAndGet();
+        bytesSaved.addAndGet(entry.size());
+        return true;
+    }
+
+    /**
+     * 取得したボディをキャッシュに保存します。ETag も Last-Modified もないレスポンスは保存しません。
+     *
+     * @param url  URL
+     * @param head レスポンスヘッダー
+     * @param body 保存済みのボディファイル
+     * @throws IOException コピーに失敗した場合
+     */
+    void store(String url, HttpResponseHead head, Path body) throws IOException {
+        String etag = head.header("etag");
+        String lastModified = head.header("last-modified");
+        if (head.status() != 200 || (etag == null && lastModified == null)) {
+            return;
+        }
+        long size = Files.size(body);
+        if (size > maxBytes) {
+            return;
+        }
+        Path tmp = Files.createTempFile(directory, "body", ".tmp");
+        Files.copy(body, tmp, StandardCopyOption.REPLACE_EXISTING);
+
+        List<CacheEntry> evicted;
+        synchronized (this) {
+            Files.move(tmp, bodyPath(url), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            CacheEntry previous = index.put(
+                    url,
+                    new CacheEntry(url, etag, lastModified, size, System.currentTimeMillis()));
+            if (previous != null) {
+                totalBytes -= previous.size();
+            }
+            totalBytes += size;
+            evicted = evict();
+        }
+        for (CacheEntry entry : evicted) {
+            Files.deleteIfExists(bodyPath(entry.url()));
+        }
+    }
+
+    /**
+     * ヒット率と削減できた転送量を標準エラー出力に表示します。
+     */
+    void printStats() {
+        long lookupCount = lookups.get();
+        System.err.printf(
+                "キャッシュ: ヒット %d / %d (%.1f%%)  削減: %,d バイト  使用量: %,d / %,d バイト%n",
+                hits.get(),
+                lookupCount,
+                lookupCount == 0 ? 0.0 : hits.get() * 100.0 / lookupCount,
+                bytesSaved.get(),
+                usedBytes(),
+                maxBytes);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        Path tmp = directory.resolve(INDEX_FILE + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (CacheEntry entry : index.values()) {
+                writer.write(String.join(
+                        "\t",
+                        entry.url(),
+                        nullToDash(entry.etag()),
+                        nullToDash(entry.lastModified()),
+                        Long.toString(entry.size()),
+                        Long.toString(entry.lastAccess())));
+                writer.newLine();
+            }
+        }
+        Files.move(tmp, directory.resolve(INDEX_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private synchronized long usedBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * 合計サイズが上限に収まるまで、最も長く使われていないエントリをインデックスから外します。
+     * ファイルの削除はロックの外で呼び出し側が行います。
+     *
+     * @return 追い出したエントリ
+     */
+    private List<CacheEntry> evict() {
+        if (totalBytes <= maxBytes) {
+            return List.of();
+        }
+        List<CacheEntry> evicted = new ArrayList<>();
+        Iterator<CacheEntry> it = index.values().iterator();
+        while (totalBytes > maxBytes && it.hasNext()) {
+            CacheEntry eldest = it.next();
+            it.remove();
+            totalBytes -= eldest.size();
+            evicted.add(eldest);
+        }
+        return evicted;
+    }
+
+    private void loadIndex() throws IOException {
+        Path indexFile = directory.resolve(INDEX_FILE);
+        if (! Files.exists(indexFile)) {
+            return;
+        }
+        // 最終アクセス時刻の古い順に追加し、アクセス順を復元する
+        Files.readAllLines(indexFile, StandardCharsets.UTF_8)
+             .stream()
+             .map(line -> line.split("\t", - 1))
+             .filter(fields -> fields.length == 5)
+             .map(fields -> new CacheEntry(
+                     fields[0],
+                     dashToNull(fields[1]),
+                     dashToNull(fields[2]),
+                     Long.parseLong(fields[3]),
+                     Long.parseLong(fields[4])))
+             .filter(entry -> Files.exists(bodyPath(entry.url())))
+             .sorted(Comparator.comparingLong(CacheEntry::lastAccess))
+             .forEach(entry -> {
+                 index.put(entry.url(), entry);
+                 totalBytes += entry.size();
+             });
+        for (CacheEntry entry : evict()) {
+            Files.deleteIfExists(bodyPath(entry.url()));
+        }
+        logger.log(Level.FINE, "Loaded {0} cache entries", index.size());
+    }
+
+    private Path bodyPath(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256")
+                                         .digest(url.getBytes(StandardCharsets.UTF_8));
+            return directory.resolve(HexFormat.of().formatHex(digest));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String nullToDash(String value) {
+        return value == null ? "-" : value;
+    }
+
+    private static String dashToNull(String value) {
+        return value.equals("-") ? null : value;
+    }
+
+    /**
+     * キャッシュエントリのメタデータ。
+     *
+     * @param url          URL
+     * @param etag         ETag ヘッダーの値
+     * @param lastModified Last-Modified ヘッダーの値
+     * @param size         ボディのサイズ
+     * @param lastAccess   最終アクセス時刻 (エポックミリ秒)
+     */
+    record CacheEntry(String url, String etag, String lastModified, long size, long lastAccess) {
+        CacheEntry touched() {
+            return new CacheEntry(url, etag, lastModified, size, System.currentTimeMillis());
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package networkProgramming;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PseudHttpDaemon} の2つのエンジン (Netty のパイプラインと {@link VirtualThreadHttpServer}) を、
+ * 同じ静的ファイルの負荷で比べるツール。
+ *
+ * <p>
+ * エンジンごとにデーモンを子プロセスとして起動し、次を測ります。子プロセスはこのツールと同じ java コマンドと
+ * クラスパスで、JFR の記録を有効にして起動します。
+ * </p>
+ * <ul>
+ *     <li>{@link LoadGenerator} でキープアライブの GET を一定のレートで送ったときのスループットと p50/p99/p999</li>
+ *     <li>1回ずつリクエストを送って開いたままにした接続を {@code bench.connections} 本増やしたときの、子プロセスの
+ *     RSS ({@code /proc/<pid>/status} の {@code VmRSS}) とスレッド数の増分。RSS は接続あたりに割って表示します</li>
+ *     <li>JFR の {@code jdk.VirtualThreadPinned} イベント (仮想スレッドがキャリアに固定された回数、しきい値 0)</li>
+ * </ul>
+ *
+ * <p>
+ * 設定はシステムプロパティから読み込みます。
+ * </p>
+ * <ul>
+ *     <li>{@code bench.file} 配信するファイル (既定値 index.html)</li>
+ *     <li>{@code bench.engines} 比べるエンジン (既定値 netty,virtual)</li>
+ *     <li>{@code bench.rate} 目標レート (リクエスト/秒、既定値 2000)</li>
+ *     <li>{@code bench.threads} 並行して送るスレッド (接続) 数 (既定値 8)</li>
+ *     <li>{@code bench.warmupSeconds} 計測に含めないウォームアップの時間 (既定値 10)</li>
+ *     <li>{@code bench.seconds} 計測する時間 (既定値 30)</li>
+ *     <li>{@code bench.connections} メモリーを測るために開く接続数 (既定値 1000)</li>
+ * </ul>
+ *
+ * <p>
+ * Linux でのみ動作します。いずれかの起動に失敗した場合は終了コード 1 で終了します。
+ * </p>
+ */
+public class HttpEngineBenchmark {
+    private static final int  PORT            = 8080;
+    private static final long START_TIMEOUT_S = 60;
+
+    public static void main(String[] args) throws Exception {
+        Path file = Paths.get(System.getProperty("bench.file", "index.html")).toAbsolutePath();
+        double rate = Double.parseDouble(System.getProperty("bench.rate", "2000"));
+        int threads = Integer.getInteger("bench.threads", 8);
+        long warmupNanos = TimeUnit.SECONDS.toNanos(Long.getLong("bench.warmupSeconds", 10));
+        long durationNanos = TimeUnit.SECONDS.toNanos(Long.getLong("bench.seconds", 30));
+        int connections = Integer.getInteger("bench.connections", 1000);
+        boolean ok = true;
+        for (String engine : System.getProperty("bench.engines", "netty,virtual").split(",")) {
+            ok &= measure(engine.trim(), file, rate, threads, warmupNanos, durationNanos, connections);
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean measure(
+            String engine,
+            Path file,
+            double rate,
+            int threads,
+            long warmupNanos,
+            long durationNanos,
+            int connections) throws Exception {
+        Path recording = Files.createTempFile("http-engine-" + engine, ".jfr");
+        Process process = new ProcessBuilder(
+                command(List.of(
+                                "-XX:StartFlightRecording=filename=" + recording
+                                + ",jdk.VirtualThreadPinned#threshold=0ms",
+                                // 1つのアドレスからの接続数の制限は Netty のエンジンにしかないため、測る接続数より上げて揃える
+                                "-Dadmission.maxConnectionsPerIp=" + (connections + threads + 100),
+                                "-Dhttp.engine=" + engine),
+                        PseudHttpDaemon.class,
+                        file.toString()))
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        try {
+            if (! awaitPort(System.nanoTime() + TimeUnit.SECONDS.toNanos(START_TIMEOUT_S), process)) {
+                System.out.printf("%-8s port %d did not open%n", engine, PORT);
+                return false;
+            }
+            LoadGenerator.Result r = new LoadGenerator(
+                    engine,
+                    () -> new HttpGetProbe("127.0.0.1", PORT, "/"),
+                    threads,
+                    rate).run(warmupNanos, durationNanos);
+            System.out.printf(
+                    "%-8s rate=%.0f/s  throughput=%.1f/s  requests=%d errors=%d  p50=%.3fms p99=%.3fms p999=%.3fms%n",
+                    engine,
+                    r.rate(),
+                    r.throughput(),
+                    r.requests(),
+                    r.errors(),
+                    r.p50Ms(),
+                    r.p99Ms(),
+                    r.p999Ms());
+            measureConnections(engine, process, connections);
+        } finally {
+            // SIGTERM で停止し、JFR の記録をファイルに書き出させる
+            process.destroy();
+            if (! process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+        try {
+            System.out.printf("%-8s pinned=%d%n", engine, countEvents(recording, "jdk.VirtualThreadPinned"));
+        } finally {
+            Files.deleteIfExists(recording);
+        }
+        return true;
+    }
+
+    /**
+     * 接続を開いて1回ずつリクエストを送り、開いたままにした状態で子プロセスの RSS とスレッド数の増分を測ります。
+     */
+    private static void measureConnections(String engine, Process process, int connections) throws Exception {
+        long rssBeforeKb = status(process, "VmRSS");
+        long threadsBefore = status(process, "Threads");
+        List<HttpGetProbe> probes = new ArrayList<>(connections);
+        try {
+            for (int i = 0; i < connections; i++) {
+                HttpGetProbe probe = new HttpGetProbe("127.0.0.1", PORT, "/");
+                probes.add(probe);
+                probe.call();
+            }
+            // 接続の処理が落ち着いてから測る
+            Thread.sleep(1000);
+            long rssKb = status(process, "VmRSS") - rssBeforeKb;
+            long threads = status(process, "Threads") - threadsBefore;
+            System.out.printf(
+                    "%-8s connections=%d  rss=%+.1f MiB (%.1f KiB/connection)  threads=%+d%n",
+                    engine,
+                    connections,
+                    rssKb / 1024.0,
+                    (double) rssKb / connections,
+                    threads);
+        } finally {
+            for (HttpGetProbe probe : probes) {
+                probe.close();
+            }
+        }
+    }
+
+    private static long countEvents(Path recording, String eventName) throws IOException {
+        long count = 0;
+        for (RecordedEvent event : RecordingFile.readAllEvents(recording)) {
+            if (event.getEventType().getName().equals(eventName)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static boolean awaitPort(long deadline, Process process) throws InterruptedException {
+        while (System.nanoTime() < deadline) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", PORT), 100);
+                return true;
+            } catch (IOException e) {
+                if (! process.isAlive()) {
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@code /proc/<pid>/status} から数値の項目を読み込みます。
+     */
+    private static long status(Process process, String key) throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(process.pid()), "status"))) {
+            if (line.startsWith(key + ":")) {
+                return Long.parseLong(line.substring(key.length() + 1).trim().split("\\s+")[0]);
+            }
+        }
+        return 0;
+    }
+
+    private static List<String> command(List<String> jvmOptions, Class<?> mainClass, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass.getName());
+        command.addAll(List.of(args));
+        return command;
+    }
+}
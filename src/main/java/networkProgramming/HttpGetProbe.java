@@ -0,0 +1,61 @@
+package networkProgramming;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Map;
+
+/**
+ * キープアライブの接続で GET を送り、ボディを読み切る {@link LoadGenerator.Probe}。
+ * サーバーが接続を閉じる指示をした場合は、次の呼び出しで接続し直します。
+ */
+final class HttpGetProbe implements LoadGenerator.Probe {
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+    private static final int READ_TIMEOUT_MILLIS    = 5000;
+
+    private final String         host;
+    private final int            port;
+    private final String         path;
+    private final byte[]         buf = new byte[16 * 1024];
+    private HttpClientConnection connection;
+
+    /**
+     * @param host 接続先ホスト
+     * @param port 接続先ポート番号
+     * @param path リクエストパス
+     */
+    HttpGetProbe(String host, int port, String path) {
+        this.host = host;
+        this.port = port;
+        this.path = path;
+    }
+
+    @Override
+    public void call() throws IOException {
+        if (connection == null || ! connection.isReusable()) {
+            close();
+            Socket socket = new Socket();
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            connection = new HttpClientConnection("http", host, port, socket);
+        }
+        HttpClientConnection.HttpResponseHead head = connection.exchange("GET", path, Map.of());
+        if (head.status() != 200) {
+            throw new IOException("Unexpected status: " + head.status());
+        }
+        InputStream body = connection.body(head);
+        while (body.read(buf) >= 0) {
+            // 読み捨てる
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (connection != null) {
+            connection.close();
+            connection = null;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package networkProgramming;
+
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.InetAddress;
+
+/**
+ * HTTPリクエストごとに {@link AdmissionController} のレート制限を適用するハンドラー。
+ *
+ * <p>
+ * HTTP/1.1 ではデコーダー ({@link StaticGetDecoder} を含む) の後ろに置き、超過したリクエストには 429 を返して接続を閉じます。
+ * HTTP/2 ではストリームの子チャネルに置き、超過したストリームにだけ 429 を返します。
+ * </p>
+ */
+@ChannelHandler.Sharable
+final class HttpRateLimitHandler extends ChannelInboundHandlerAdapter {
+    private static final String RETRY_AFTER = "1";
+
+    private final AdmissionController controller;
+
+    HttpRateLimitHandler(AdmissionController controller) {
+        this.controller = controller;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof HttpRequest || msg instanceof StaticGetDecoder.Request || msg instanceof Http2HeadersFrame) {
+            InetAddress address = AdmissionControlHandler.addressOf(ctx.channel().remoteAddress());
+            if (address != null && ! controller.tryAcquireRequest(address)) {
+                ReferenceCountUtil.release(msg);
+                reject(ctx, msg instanceof Http2HeadersFrame);
+                return;
+            }
+        }
+        super.channelRead(ctx, msg);
+    }
+
+    private static void reject(ChannelHandlerContext ctx, boolean http2) {
+        if (http2) {
+            ctx.writeAndFlush(new DefaultHttp2HeadersFrame(
+                    new DefaultHttp2Headers()
+                            .status(HttpResponseStatus.TOO_MANY_REQUESTS.codeAsText())
+                            .set(HttpHeaderNames.RETRY_AFTER, RETRY_AFTER),
+                    true));
+            return;
+        }
+        FullHttpResponse response = new DefaultFullHttpResponse(
+                HttpVersion.HTTP_1_1,
+                HttpResponseStatus.TOO_MANY_REQUESTS);
+        response.headers()
+                .set(HttpHeaderNames.CONTENT_LENGTH, HttpHeaderValues.ZERO)
+                .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE)
+                .set(HttpHeaderNames.RETRY_AFTER, RETRY_AFTER);
+        ctx.writeAndFlush(response)
+           .addListener(ChannelFutureListener.CLOSE);
+    }
+}
@@ -0,0 +1,145 @@
+package networkProgramming;
+
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP/1.1 の PUT と POST のボディを、{@link io.netty.handler.codec.http.HttpObjectAggregator} でまとめずに
+ * {@link UploadStore} へ流し込むハンドラー。
+ *
+ * <p>
+ * デコーダーとアグリゲーターの間 (レスポンスのエンコーダーより後ろ) に置きます。{@link UploadStore#accepts} に
+ * 当てはまるリクエストはボディのチャンクごとにファイルへ書き込み、書き込みとリネームが終わると 201 を返します。
+ * それ以外のリクエストはそのまま後続へ渡します。ファイル名が不正な場合は 400、上限を超える場合は 413 を返し、
+ * 残りのボディを読まずに接続を閉じます。
+ * </p>
+ */
+final class HttpUploadHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = Logger.getLogger(HttpUploadHandler.class.getName());
+
+    private final UploadStore                store;
+    private final String                     server;
+    private       UploadStore.Upload         upload;
+    private       boolean                    keepAlive;
+    private       String                     location;
+    private       NetEvents.HttpRequestEvent event;
+
+    /**
+     * ハンドラーを作成します。接続ごとに作成します。
+     *
+     * @param store  アップロード先
+     * @param server JFR のイベントに記録するサーバー名
+     */
+    HttpUploadHandler(UploadStore store, String server) {
+        this.store = store;
+        this.server = server;
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (msg instanceof HttpRequest request && store.accepts(request.method().name(), request.uri())) {
+            ReferenceCountUtil.release(msg);
+            begin(ctx, request);
+            return;
+        }
+        if (upload != null && msg instanceof HttpContent content) {
+            try {
+                if (! upload.write(content.content())) {
+                    upload.abort();
+                    upload = null;
+                    reject(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+                    return;
+                }
+            } finally {
+                content.release();
+            }
+            if (content instanceof LastHttpContent) {
+                end(ctx);
+            }
+            return;
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    private void begin(ChannelHandlerContext ctx, HttpRequest request) {
+        event = NetEvents.beginRequest(server, "HTTP/1.1", request.method().name(), request.uri());
+        Path target = store.target(request.uri());
+        if (target == null) {
+            reject(ctx, HttpResponseStatus.BAD_REQUEST);
+            return;
+        }
+        if (store.tooLarge(HttpUtil.getContentLength(request, -1L))) {
+            reject(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+            return;
+        }
+        if (HttpUtil.is100ContinueExpected(request)) {
+            ctx.writeAndFlush(new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CONTINUE));
+        }
+        keepAlive = HttpUtil.isKeepAlive(request);
+        location = request.uri();
+        upload = store.begin(target, ctx.channel());
+    }
+
+    private void end(ChannelHandlerContext ctx) {
+        UploadStore.Upload finished = upload;
+        upload = null;
+        // 完了を待つ間に届いた次のリクエストへ、アップロードより先に応答しないよう読み込みを止める
+        ctx.channel().config().setAutoRead(false);
+        finished.end().addListener((Future<Long> f) -> {
+            if (! f.isSuccess()) {
+                logger.log(Level.SEVERE, "Upload failed: " + location, f.cause());
+                reject(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                return;
+            }
+            FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.CREATED);
+            response.headers()
+                    .set(HttpHeaderNames.LOCATION, location)
+                    .set(HttpHeaderNames.CONTENT_LENGTH, HttpHeaderValues.ZERO);
+            HttpUtil.setKeepAlive(response, keepAlive);
+            ChannelFuture written = ctx.writeAndFlush(response);
+            NetEvents.endRequest(event, written, HttpResponseStatus.CREATED.code(), f.getNow());
+            if (keepAlive) {
+                ctx.channel().config().setAutoRead(true);
+            } else {
+                written.addListener(ChannelFutureListener.CLOSE);
+            }
+        });
+    }
+
+    private void reject(ChannelHandlerContext ctx, HttpResponseStatus status) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+        response.headers()
+                .set(HttpHeaderNames.CONTENT_LENGTH, HttpHeaderValues.ZERO)
+                .set(HttpHeaderNames.CONNECTION, HttpHeaderValues.CLOSE);
+        ChannelFuture written = ctx.writeAndFlush(response);
+        NetEvents.endRequest(event, written, status.code(), 0);
+        written.addListener(ChannelFutureListener.CLOSE);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (upload != null) {
+            upload.abort();
+            upload = null;
+        }
+        super.channelInactive(ctx);
+    }
+}
@@ -0,0 +1,124 @@
+package networkProgramming;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * {@link NetEvents} のイベントを記録した JFR ファイルを読み、エンドポイントごとのレイテンシの表を表示します。
+ *
+ * <p>
+ * 次の3つの表を表示します。
+ * </p>
+ * <ul>
+ *     <li>HTTP リクエスト: サーバー、プロトコル、メソッド、パスごとの件数、エラー (ステータス 400 以上) の件数、
+ *     レイテンシの中央値、99パーセンタイル、最大値、レスポンスの平均バイト数</li>
+ *     <li>接続: サーバーごとの件数と、接続時間の中央値、99パーセンタイル、最大値</li>
+ *     <li>Telnet のネゴシエーション: 側、方向、コマンド、オプションごとの件数</li>
+ * </ul>
+ *
+ * <p>
+ * 使用方法: {@code java JfrAnalyzer <記録ファイル>}
+ * </p>
+ */
+public class JfrAnalyzer {
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java JfrAnalyzer <recording.jfr>");
+            System.exit(1);
+        }
+        Path file = Paths.get(args[0]);
+
+        Map<String, Stats> requests = new TreeMap<>();
+        Map<String, Stats> connections = new TreeMap<>();
+        Map<String, Stats> negotiations = new TreeMap<>();
+        try (RecordingFile recording = new RecordingFile(file)) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                switch (event.getEventType().getName()) {
+                    case "networkProgramming.HttpRequest" -> {
+                        String key = String.join(" ",
+                                event.getString("server"),
+                                event.getString("protocol"),
+                                event.getString("method"),
+                                event.getString("path"));
+                        requests.computeIfAbsent(key, k -> new Stats())
+                                .add(event.getDuration(), event.getInt("status") >= 400, event.getLong("bytes"));
+                    }
+                    case "networkProgramming.Connection" ->
+                            connections.computeIfAbsent(event.getString("server"), k -> new Stats())
+                                       .add(event.getDuration(), false, 0);
+                    case "networkProgramming.TelnetNegotiation" -> {
+                        String key = String.join(" ",
+                                event.getString("endpoint"),
+                                event.getString("direction"),
+                                event.getString("command"),
+                                Integer.toString(event.getInt("option")));
+                        negotiations.computeIfAbsent(key, k -> new Stats())
+                                    .add(Duration.ZERO, false, 0);
+                    }
+                    default -> {
+                    }
+                }
+            }
+        }
+
+        System.out.println("HTTP requests");
+        System.out.printf("  %-48s %8s %6s %9s %9s %9s %10s%n",
+                          "server protocol method path", "count", "errors", "p50 ms", "p99 ms", "max ms", "avg bytes");
+        requests.forEach((key, s) -> System.out.printf(
+                "  %-48s %8d %6d %9.3f %9.3f %9.3f %10.0f%n",
+                key, s.count, s.errors, s.percentileMillis(0.50), s.percentileMillis(0.99), s.percentileMillis(1.0),
+                s.count > 0 ? (double) s.bytes / s.count : 0));
+
+        System.out.println();
+        System.out.println("Connections");
+        System.out.printf("  %-48s %8s %9s %9s %9s%n", "server", "count", "p50 ms", "p99 ms", "max ms");
+        connections.forEach((key, s) -> System.out.printf(
+                "  %-48s %8d %9.3f %9.3f %9.3f%n",
+                key, s.count, s.percentileMillis(0.50), s.percentileMillis(0.99), s.percentileMillis(1.0)));
+
+        System.out.println();
+        System.out.println("Telnet negotiations");
+        System.out.printf("  %-48s %8s%n", "endpoint direction command option", "count");
+        negotiations.forEach((key, s) -> System.out.printf("  %-48s %8d%n", key, s.count));
+    }
+
+    /**
+     * 1つのキーの件数とレイテンシ。
+     */
+    private static final class Stats {
+        private long[] nanos = new long[64];
+        private int    count;
+        private int    errors;
+        private long   bytes;
+
+        void add(Duration duration, boolean error, long responseBytes) {
+            if (count == nanos.length) {
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = duration.toNanos();
+            if (error) {
+                errors++;
+            }
+            bytes += responseBytes;
+        }
+
+        double percentileMillis(double p) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(p * count) - 1;
+            return sorted[Math.max(0, index)] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package networkProgramming;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufOutputStream;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FileRegion;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2ChannelDuplexHandler;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.util.InsecureTrustManagerFactory;
+import io.netty.handler.traffic.AbstractTrafficShapingHandler;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import javax.net.ssl.SSLException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * HTTP のデーモンが待ち受けを始める前に、実際のパイプラインへ合成したリクエストを流して JIT コンパイルを済ませます。
+ *
+ * <p>
+ * 起動直後の JVM はインタープリターと C1 のコードで動くため、デプロイ後の最初の数万リクエストは応答が遅れます。
+ * このクラスはデーモンの子チャネルの初期化ハンドラーをそのまま使い、同じ JVM 内の {@link LocalChannel} で
+ * サーバー側のパイプライン (TLS、ALPN、HTTP/1.1 と HTTP/2 のコーデック、配信のハンドラー) を組み立て、
+ * クライアント側のパイプラインから GET、HEAD、条件付き GET (304) と Range の GET (206) を繰り返し送ります。
+ * ソケットは開かないため、外からの接続は受け付けません。
+ * </p>
+ *
+ * <p>
+ * {@link io.netty.channel.embedded.EmbeddedChannel} はどのスレッドからもイベントループ上とみなされ、ファイルの
+ * 読み込みの完了を待つリクエスト (各ループの最初のリクエストと Range) の応答を読み込みのスレッドで書き込んで
+ * しまうため、本物のイベントループで動く {@link LocalChannel} を使います。サーバー側とクライアント側は別の
+ * ループで動かします。帯域の制限のハンドラーは、合成した転送で本番の上限を消費しないよう取り除きます。
+ * </p>
+ *
+ * <p>
+ * リクエストは {@code warmup.batchRequests} 件ずつ送り、直近の {@value #SETTLE_BATCHES} 回のスループットの
+ * 差が {@code warmup.tolerance} 以内に収まったら (落ち着いたら) 終えます。落ち着かなくても、プロトコルごとに
+ * {@code warmup.maxMillis} ミリ秒か {@code warmup.maxRequests} 件に達したら終えます。
+ * </p>
+ * <ul>
+ *     <li>{@code warmup.enabled} true の場合、デーモンが待ち受ける前にウォームアップする (既定値 false)</li>
+ *     <li>{@code warmup.maxMillis} プロトコルごとの時間の上限 (既定値 20000)</li>
+ *     <li>{@code warmup.maxRequests} プロトコルごとのリクエスト数の上限 (既定値 300000)</li>
+ *     <li>{@code warmup.batchRequests} スループットを測る単位のリクエスト数 (既定値 2000)</li>
+ *     <li>{@code warmup.tolerance} 落ち着いたとみなすスループットの差の割合 (既定値 0.1)</li>
+ * </ul>
+ */
+final class JitWarmup {
+    private static final Logger logger         = Logger.getLogger(JitWarmup.class.getName());
+    private static final int    SETTLE_BATCHES = 5;
+    // 1つの接続で応答を待たずに送るリクエスト数
+    private static final int    WINDOW         = 16;
+    private static final int    RANGE_BYTES    = 4096;
+
+    private final long   maxNanos;
+    private final long   maxRequests;
+    private final int    batchRequests;
+    private final double tolerance;
+
+    /**
+     * ウォームアップするプロトコル。
+     */
+    enum Protocol {
+        /**
+         * 平文の HTTP/1.1
+         */
+        HTTP_1_1,
+        /**
+         * TLS の上の HTTP/1.1 (ALPN で http/1.1 を選ぶ)
+         */
+        HTTP_1_1_TLS,
+        /**
+         * TLS の上の HTTP/2 (ALPN で h2 を選ぶ)
+         */
+        HTTP_2_TLS
+    }
+
+    /**
+     * 1つのプロトコルのウォームアップの結果。
+     *
+     * @param protocol       プロトコル
+     * @param requests       送ったリクエスト数
+     * @param durationNanos  かかった時間
+     * @param firstPerSecond 最初の回のスループット (リクエスト/秒)
+     * @param lastPerSecond  最後の回のスループット (リクエスト/秒)
+     * @param settled        スループットが落ち着いて終えた場合は true、上限で終えた場合は false
+     */
+    record Report(
+            Protocol protocol,
+            long requests,
+            long durationNanos,
+            double firstPerSecond,
+            double lastPerSecond,
+            boolean settled) {
+    }
+
+    /**
+     * @param maxMillis     プロトコルごとの時間の上限 (ミリ秒)
+     * @param maxRequests   プロトコルごとのリクエスト数の上限
+     * @param batchRequests スループットを測る単位のリクエスト数
+     * @param tolerance     落ち着いたとみなすスループットの差の割合
+     */
+    JitWarmup(long maxMillis, long maxRequests, int batchRequests, double tolerance) {
+        this.maxNanos = TimeUnit.MILLISECONDS.toNanos(maxMillis);
+        this.maxRequests = maxRequests;
+        this.batchRequests = batchRequests;
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * @return ウォームアップを有効にした場合はシステムプロパティの設定、無効の場合は null
+     */
+    static JitWarmup fromSystemProperties() {
+        if (! Boolean.getBoolean("warmup.enabled")) {
+            return null;
+        }
+        return new JitWarmup(
+                Long.getLong("warmup.maxMillis", 20_000),
+                Long.getLong("warmup.maxRequests", 300_000),
+                Integer.getInteger("warmup.batchRequests", 2000),
+                Double.parseDouble(System.getProperty("warmup.tolerance", "0.1")));
+    }
+
+    /**
+     * デーモンの子チャネルの初期化ハンドラーにリクエストを流して、ウォームアップします。
+     * 失敗しても待ち受けは始められるため、例外は投げずにログに出力します。
+     *
+     * @param name        サーバー名 (ログ用)
+     * @param initializer デーモンの子チャネルの初期化ハンドラー ({@code @Sharable} であること)
+     * @param protocols   ウォームアップするプロトコル
+     * @return プロトコルごとの結果。失敗したプロトコルは含みません
+     */
+    List<Report> run(String name, ChannelHandler initializer, Protocol... protocols) {
+        List<Report> reports = new ArrayList<>();
+        // 同じループで両端を動かすと、LocalChannel は応答の書き込み中に届いたリクエストを読み落とすため、ループを分ける
+        EventLoopGroup serverGroup = new DefaultEventLoopGroup(1, new DefaultThreadFactory("jit-warmup-server", true));
+        EventLoopGroup clientGroup = new DefaultEventLoopGroup(1, new DefaultThreadFactory("jit-warmup-client", true));
+        LocalAddress address = new LocalAddress("jit-warmup-" + name);
+        Channel server = null;
+        try {
+            server = new ServerBootstrap()
+                    .group(serverGroup)
+                    .channel(LocalServerChannel.class)
+                    .childHandler(new ChannelInitializer<Channel>() {
+                        @Override
+                        protected void initChannel(Channel ch) {
+                            // 登録済みのチャネルに追加した初期化ハンドラーは、その場でパイプラインを組み立てる
+                            ch.pipeline().addLast(initializer);
+                            for (Map.Entry<String, ChannelHandler> entry : ch.pipeline()) {
+                                if (entry.getValue() instanceof AbstractTrafficShapingHandler) {
+                                    ch.pipeline().remove(entry.getKey());
+                                }
+                            }
+                        }
+                    })
+                    .bind(address)
+                    .sync()
+                    .channel();
+            for (Protocol protocol : protocols) {
+                try {
+                    Report report = run(clientGroup, address, protocol);
+                    reports.add(report);
+                    logger.info(String.format(
+                            "%s warm-up %s: %,d requests in %.1f s, %,.0f -> %,.0f req/s (%s)",
+                            name,
+                            protocol,
+                            report.requests(),
+                            report.durationNanos() / 1e9,
+                            report.firstPerSecond(),
+                            report.lastPerSecond(),
+                            report.settled() ? "settled" : "limit reached"));
+                } catch (Exception e) {
+                    logger.log(Level.WARNING, name + " warm-up " + protocol + " failed", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (server != null) {
+                server.close().awaitUninterruptibly();
+            }
+            clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+            serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+        }
+        return reports;
+    }
+
+    private Report run(EventLoopGroup clientGroup, LocalAddress address, Protocol protocol) throws Exception {
+        Http2Driver http2Driver = protocol == Protocol.HTTP_2_TLS ? new Http2Driver() : null;
+        Driver driver = http2Driver != null ? http2Driver : new Http1Driver();
+        SslContext sslContext = switch (protocol) {
+            case HTTP_1_1 -> null;
+            case HTTP_1_1_TLS -> clientSslContext(ApplicationProtocolNames.HTTP_1_1);
+            case HTTP_2_TLS -> clientSslContext(ApplicationProtocolNames.HTTP_2);
+        };
+        Channel client = new Bootstrap()
+                .group(clientGroup)
+                .channel(LocalChannel.class)
+                .handler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        if (sslContext != null) {
+                            ch.pipeline().addLast(sslContext.newHandler(ch.alloc()));
+                        } else {
+                            // 平文のデーモンは範囲を sendfile の FileRegion で送るため、バイト列に読み出す
+                            ch.pipeline().addLast(new FileRegionReader());
+                        }
+                        if (http2Driver != null) {
+                            ch.pipeline().addLast(Http2FrameCodecBuilder.forClient().build());
+                            ch.pipeline().addLast(http2Driver.streams);
+                        } else {
+                            ch.pipeline().addLast(new HttpClientCodec());
+                        }
+                        ch.pipeline().addLast(driver);
+                    }
+                })
+                .connect(address)
+                .sync()
+                .channel();
+        try {
+            long start = System.nanoTime();
+            long deadline = start + maxNanos;
+            long requests = 0;
+            double first = 0;
+            double last = 0;
+            double[] recent = new double[SETTLE_BATCHES];
+            int batches = 0;
+            boolean settled = false;
+            while (requests < maxRequests && ! settled) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                int count = (int) Math.min(batchRequests, maxRequests - requests);
+                long batchStart = System.nanoTime();
+                Future<Void> batch = driver.runBatch(count);
+                if (! batch.await(remaining, TimeUnit.NANOSECONDS)) {
+                    break;
+                }
+                if (! batch.isSuccess()) {
+                    throw new IOException("warm-up request failed", batch.cause());
+                }
+                last = count * 1e9 / (System.nanoTime() - batchStart);
+                first = batches == 0 ? last : first;
+                recent[batches++ % SETTLE_BATCHES] = last;
+                requests += count;
+                settled = batches >= SETTLE_BATCHES && settled(recent);
+            }
+            return new Report(protocol, requests, System.nanoTime() - start, first, last, settled);
+        } finally {
+            client.close().awaitUninterruptibly();
+        }
+    }
+
+    private boolean settled(double[] recent) {
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        for (double value : recent) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        return max <= min * (1 + tolerance);
+    }
+
+    private static SslContext clientSslContext(String protocol) throws SSLException {
+        // 自己署名の証明書でも接続できるよう検証しない。接続先は同じ JVM の LocalChannel だけ
+        return SslContextBuilder.forClient()
+                                .trustManager(InsecureTrustManagerFactory.INSTANCE)
+                                .applicationProtocolConfig(new ApplicationProtocolConfig(
+                                        ApplicationProtocolConfig.Protocol.ALPN,
+                                        ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                                        ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                                        protocol))
+                                .build();
+    }
+
+    /**
+     * クライアント側で、応答を待たずに {@value #WINDOW} 件までのリクエストを送り続けます。
+     * 状態はクライアントのイベントループだけが読み書きします。
+     */
+    private abstract static class Driver extends ChannelInboundHandlerAdapter {
+        private ChannelHandlerContext ctx;
+        private Promise<Void>         batch;
+        private int                   toSend;
+        private int                   inFlight;
+        private long                  sent;
+        // 最初の GET の応答の ETag。条件付き GET に使う
+        CharSequence                  etag;
+
+        @Override
+        public void handlerAdded(ChannelHandlerContext ctx) {
+            this.ctx = ctx;
+        }
+
+        /**
+         * リクエストを送り、すべての応答を受け取ったら完了する Future を返します。どのスレッドからも呼び出せます。
+         */
+        Future<Void> runBatch(int requests) {
+            Promise<Void> promise = ctx.executor().newPromise();
+            ctx.executor().execute(() -> {
+                batch = promise;
+                toSend = requests;
+                fill();
+            });
+            return promise;
+        }
+
+        private void fill() {
+            while (toSend > 0 && inFlight < WINDOW) {
+                toSend--;
+                inFlight++;
+                send(ctx, (int) (sent++ % 4));
+            }
+            ctx.flush();
+        }
+
+        /**
+         * 1件の応答を受け取り終えたときに呼び出します。
+         */
+        void completed() {
+            inFlight--;
+            if (toSend > 0) {
+                fill();
+            } else if (inFlight == 0 && batch != null) {
+                batch.trySuccess(null);
+            }
+        }
+
+        /**
+         * 種類に応じたリクエストを書き込みます (フラッシュは不要)。
+         *
+         * @param kind 0: GET、1: HEAD、2: 条件付き GET、3: Range の GET
+         */
+        abstract void send(ChannelHandlerContext ctx, int kind);
+
+        void fail(Throwable cause) {
+            if (batch != null) {
+                batch.tryFailure(cause);
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            fail(new ClosedChannelException());
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            fail(cause);
+            ctx.close();
+        }
+    }
+
+    private static final class Http1Driver extends Driver {
+        @Override
+        void send(ChannelHandlerContext ctx, int kind) {
+            FullHttpRequest request = new DefaultFullHttpRequest(
+                    HttpVersion.HTTP_1_1,
+                    kind == 1 ? HttpMethod.HEAD : HttpMethod.GET,
+                    "/");
+            request.headers().set(HttpHeaderNames.HOST, "localhost");
+            if (kind == 2 && etag != null) {
+                request.headers().set(HttpHeaderNames.IF_NONE_MATCH, etag);
+            } else if (kind == 3) {
+                request.headers().set(HttpHeaderNames.RANGE, "bytes=0-" + (RANGE_BYTES - 1));
+            }
+            ctx.write(request, ctx.voidPromise());
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                if (msg instanceof HttpResponse response) {
+                    if (response.status().code() >= 400) {
+                        fail(new IOException("unexpected status " + response.status()));
+                    }
+                    if (etag == null) {
+                        etag = response.headers().get(HttpHeaderNames.ETAG);
+                    }
+                }
+                if (msg instanceof LastHttpContent) {
+                    completed();
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+    }
+
+    private static final class Http2Driver extends Driver {
+        // フレームのコーデックの後ろに置き、新しいストリームを作るために使う
+        final Http2ChannelDuplexHandler streams = new Http2ChannelDuplexHandler() {
+        };
+
+        @Override
+        void send(ChannelHandlerContext ctx, int kind) {
+            Http2Headers headers = new DefaultHttp2Headers()
+                    .method(kind == 1 ? "HEAD" : "GET")
+                    .path("/")
+                    .scheme("https")
+                    .authority("localhost");
+            if (kind == 2 && etag != null) {
+                headers.set(HttpHeaderNames.IF_NONE_MATCH, etag);
+            } else if (kind == 3) {
+                headers.set(HttpHeaderNames.RANGE, "bytes=0-" + (RANGE_BYTES - 1));
+            }
+            ctx.write(new DefaultHttp2HeadersFrame(headers, true).stream(streams.newStream()), ctx.voidPromise());
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            try {
+                if (msg instanceof Http2HeadersFrame frame) {
+                    CharSequence status = frame.headers().status();
+                    if (status != null && status.charAt(0) >= '4') {
+                        fail(new IOException("unexpected status " + status));
+                    }
+                    if (etag == null) {
+                        etag = frame.headers().get(HttpHeaderNames.ETAG);
+                    }
+                    if (frame.isEndStream()) {
+                        completed();
+                    }
+                } else if (msg instanceof Http2DataFrame frame) {
+                    // 受け取った分の受信ウィンドウを返す (閉じたストリームの分は接続のウィンドウに戻る)
+                    if (frame.initialFlowControlledBytes() > 0) {
+                        ctx.write(new DefaultHttp2WindowUpdateFrame(frame.initialFlowControlledBytes())
+                                          .stream(frame.stream()), ctx.voidPromise());
+                    }
+                    if (frame.isEndStream()) {
+                        completed();
+                    }
+                }
+            } finally {
+                ReferenceCountUtil.release(msg);
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            ctx.flush();
+        }
+    }
+
+    /**
+     * {@link LocalChannel} がそのまま渡す {@link FileRegion} を、デコーダーが読めるバイト列に読み出します。
+     */
+    private static final class FileRegionReader extends ChannelInboundHandlerAdapter {
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (! (msg instanceof FileRegion region)) {
+                ctx.fireChannelRead(msg);
+                return;
+            }
+            ByteBuf buf = ctx.alloc().buffer((int) region.count());
+            try (ByteBufOutputStream out = new ByteBufOutputStream(buf)) {
+                WritableByteChannel target = Channels.newChannel(out);
+                while (region.transferred() < region.count()) {
+                    region.transferTo(target, region.transferred());
+                }
+            } catch (IOException e) {
+                buf.release();
+                throw e;
+            } finally {
+                region.release();
+            }
+            ctx.fireChannelRead(buf);
+        }
+    }
+}
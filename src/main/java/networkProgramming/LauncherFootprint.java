@@ -0,0 +1,160 @@
+package networkProgramming;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ServiceLauncher} で複数のサービスを1つの JVM で起動した場合と、サービスごとに JVM を起動した場合の
+ * 起動時間とメモリー、スレッド数を比べるツール。
+ *
+ * <p>
+ * Discard (9009)、HTTP (8080)、HTTP/2 (8443)、NetClock (6000) の4つのサービスを、それぞれの方法で起動し、
+ * すべてのポートが接続を受け付けるまでの時間と、起動直後の各プロセスの RSS ({@code /proc/<pid>/status} の
+ * {@code VmRSS}) とスレッド数の合計を表示します。子プロセスはこのツールと同じ java コマンドとクラスパスで起動します。
+ * </p>
+ *
+ * <p>
+ * 設定はシステムプロパティから読み込みます。
+ * </p>
+ * <ul>
+ *     <li>{@code footprint.file} 配信するファイル (既定値 index.html)</li>
+ *     <li>{@code footprint.appCds} true の場合、1つの JVM での起動について、AppCDS のアーカイブを作ってから
+ *     アーカイブを使って起動した場合も測ります (既定値 false)</li>
+ * </ul>
+ *
+ * <p>
+ * Linux でのみ動作します。いずれかの起動に失敗した場合は終了コード 1 で終了します。
+ * </p>
+ */
+public class LauncherFootprint {
+    private static final int[] PORTS           = {9009, 8080, 8443, 6000};
+    private static final long  START_TIMEOUT_S = 60;
+
+    public static void main(String[] args) throws Exception {
+        Path file = Paths.get(System.getProperty("footprint.file", "index.html")).toAbsolutePath();
+        Path config = Files.createTempFile("launcher", ".properties");
+        Files.writeString(config, String.join("\n",
+                "services = discard, http, http2, netclock",
+                "discard.port = 9009",
+                "http.port = 8080",
+                "http.file = " + file,
+                "http2.port = 8443",
+                "http2.file = " + file,
+                "netclock.port = 6000",
+                ""), StandardCharsets.UTF_8);
+        Path archive = Files.createTempFile("launcher", ".jsa");
+        boolean ok = true;
+        try {
+            ok &= measure("single JVM", List.of(
+                    command(List.of(), ServiceLauncher.class, config.toString())));
+            ok &= measure("one JVM per service", List.of(
+                    command(List.of(), DiscardServer.class, "9009"),
+                    command(List.of(), PseudHttpDaemon.class, file.toString()),
+                    command(List.of(), PseudHttp2Daemon.class, file.toString()),
+                    command(List.of(), NetClock.class)));
+            if (Boolean.getBoolean("footprint.appCds")) {
+                Files.deleteIfExists(archive);
+                // 学習のための起動。停止時にロードしたクラスをアーカイブに書き出す
+                ok &= measure("single JVM (AppCDS dump)", List.of(
+                        command(List.of("-XX:ArchiveClassesAtExit=" + archive), ServiceLauncher.class, config.toString())));
+                ok &= measure("single JVM (AppCDS)", List.of(
+                        command(List.of("-XX:SharedArchiveFile=" + archive), ServiceLauncher.class, config.toString())));
+            }
+        } finally {
+            Files.deleteIfExists(config);
+            Files.deleteIfExists(archive);
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean measure(String name, List<List<String>> commands) throws IOException, InterruptedException {
+        List<Process> processes = new ArrayList<>();
+        long startNanos = System.nanoTime();
+        try {
+            for (List<String> command : commands) {
+                processes.add(new ProcessBuilder(command)
+                                      .redirectErrorStream(true)
+                                      .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                                      .start());
+            }
+            long deadline = startNanos + TimeUnit.SECONDS.toNanos(START_TIMEOUT_S);
+            for (int port : PORTS) {
+                if (! awaitPort(port, deadline, processes)) {
+                    System.out.printf("%-28s port %d did not open%n", name, port);
+                    return false;
+                }
+            }
+            double startupMillis = (System.nanoTime() - startNanos) / 1e6;
+            long rssKb = 0;
+            long threads = 0;
+            for (Process process : processes) {
+                rssKb += status(process, "VmRSS");
+                threads += status(process, "Threads");
+            }
+            System.out.printf(
+                    "%-28s jvms=%d  startup=%7.1f ms  rss=%7.1f MiB  threads=%d%n",
+                    name,
+                    processes.size(),
+                    startupMillis,
+                    rssKb / 1024.0,
+                    threads);
+            return true;
+        } finally {
+            for (Process process : processes) {
+                // SIGTERM で停止し、シャットダウンフック (AppCDS の書き出しを含む) を実行させる
+                process.destroy();
+            }
+            for (Process process : processes) {
+                if (! process.waitFor(30, TimeUnit.SECONDS)) {
+                    process.destroyForcibly().waitFor();
+                }
+            }
+        }
+    }
+
+    private static boolean awaitPort(int port, long deadline, List<Process> processes) throws InterruptedException {
+        while (System.nanoTime() < deadline) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 100);
+                return true;
+            } catch (IOException e) {
+                if (processes.stream().anyMatch(p -> ! p.isAlive())) {
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@code /proc/<pid>/status} から数値の項目を読み込みます。
+     */
+    private static long status(Process process, String key) throws IOException {
+        for (String line : Files.readAllLines(Paths.get("/proc", Long.toString(process.pid()), "status"))) {
+            if (line.startsWith(key + ":")) {
+                return Long.parseLong(line.substring(key.length() + 1).trim().split("\\s+")[0]);
+            }
+        }
+        return 0;
+    }
+
+    private static List<String> command(List<String> jvmOptions, Class<?> mainClass, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass.getName());
+        command.addAll(List.of(args));
+        return command;
+    }
+}
@@ -0,0 +1,212 @@
+package networkProgramming;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 一定のレートでリクエストを送り、スループットとレイテンシの分布を測る負荷生成器。
+ *
+ * <p>
+ * 前のリクエストの完了を待たずに、予定した時刻にリクエストを送る開ループ方式です。各スレッドは
+ * {@code スレッド数 / レート} 秒おきの予定時刻まで待ってから {@link Probe#call()} を呼び出し、
+ * レイテンシは実際に送った時刻ではなく予定時刻から数えます。サーバーが遅れて予定に追いつけない場合は、
+ * その待ち時間もレイテンシに含まれるため、遅延が過小に見積もられません。
+ * </p>
+ *
+ * <p>
+ * ウォームアップ期間のリクエストは計測に含めません。リクエストが失敗した場合はエラーとして数え、
+ * {@link Probe} を開き直して続けます。
+ * </p>
+ */
+final class LoadGenerator {
+    private static final Logger logger = Logger.getLogger(LoadGenerator.class.getName());
+
+    /**
+     * 1つのクライアント (接続など) を表し、1回の呼び出しで1つのリクエストを送って応答を確かめます。
+     * 1つの Probe は1つのスレッドからしか使いません。
+     */
+    interface Probe extends AutoCloseable {
+        /**
+         * リクエストを1つ送り、応答を受け取るまで待ちます。
+         *
+         * @throws Exception 失敗した場合、または応答が期待と異なる場合
+         */
+        void call() throws Exception;
+
+        @Override
+        default void close() throws IOException {
+        }
+    }
+
+    /**
+     * スレッドごとの {@link Probe} を作成します。
+     */
+    interface ProbeFactory {
+        Probe open() throws Exception;
+    }
+
+    /**
+     * 1つのシナリオの計測結果。
+     *
+     * @param name       シナリオ名
+     * @param rate       目標レート (リクエスト/秒)
+     * @param requests   計測期間に完了したリクエスト数
+     * @param errors     計測期間に失敗したリクエスト数
+     * @param throughput 完了したリクエストのスループット (リクエスト/秒)
+     * @param p50Ms      レイテンシの中央値 (ミリ秒)
+     * @param p99Ms      レイテンシの99パーセンタイル (ミリ秒)
+     * @param p999Ms     レイテンシの99.9パーセンタイル (ミリ秒)
+     */
+    record Result(
+            String name,
+            double rate,
+            long requests,
+            long errors,
+            double throughput,
+            double p50Ms,
+            double p99Ms,
+            double p999Ms) {
+    }
+
+    private final String       name;
+    private final ProbeFactory factory;
+    private final int          threads;
+    private final double       rate;
+
+    /**
+     * 負荷生成器を作成します。
+     *
+     * @param name    シナリオ名
+     * @param factory スレッドごとのクライアントを作成するファクトリー
+     * @param threads 並行して送るスレッド数
+     * @param rate    全スレッド合計の目標レート (リクエスト/秒)
+     */
+    LoadGenerator(String name, ProbeFactory factory, int threads, double rate) {
+        this.name = name;
+        this.factory = factory;
+        this.threads = threads;
+        this.rate = rate;
+    }
+
+    /**
+     * 負荷をかけて計測します。
+     *
+     * @param warmupNanos   計測に含めないウォームアップ期間
+     * @param durationNanos 計測期間
+     * @return 計測結果
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    Result run(long warmupNanos, long durationNanos) throws InterruptedException {
+        long periodNanos = (long) (TimeUnit.SECONDS.toNanos(1) * threads / rate);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+        long measureStart = start + warmupNanos;
+        long end = measureStart + durationNanos;
+        LongAdder errors = new LongAdder();
+        // 各スレッドは自分の要素だけに書き込み、join の後で読み取る
+        long[][] latencies = new long[threads][];
+        long[] lastCompletion = new long[threads];
+        List<Thread> workers = new ArrayList<>();
+
+        for (int i = 0; i < threads; i++) {
+            int index = i;
+            Thread worker = new Thread(() -> {
+                LatencyRecorder recorder = new LatencyRecorder();
+                long scheduled = start + periodNanos * index / threads;
+                Probe probe = null;
+                try {
+                    for (; scheduled < end; scheduled += periodNanos) {
+                        long wait;
+                        while ((wait = scheduled - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                        try {
+                            if (probe == null) {
+                                probe = factory.open();
+                            }
+                            probe.call();
+                            long now = System.nanoTime();
+                            if (scheduled >= measureStart) {
+                                recorder.record(now - scheduled);
+                                lastCompletion[index] = now;
+                            }
+                        } catch (Exception e) {
+                            logger.log(Level.FINE, name + ": request failed", e);
+                            if (scheduled >= measureStart) {
+                                errors.increment();
+                            }
+                            closeQuietly(probe);
+                            probe = null;
+                        }
+                    }
+                } finally {
+                    closeQuietly(probe);
+                    latencies[index] = recorder.toArray();
+                }
+            }, "load-" + name + "-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+        long finished = Math.max(end, Arrays.stream(lastCompletion).max().orElse(end));
+        double seconds = (finished - measureStart) / 1e9;
+        return new Result(
+                name,
+                rate,
+                all.length,
+                errors.sum(),
+                all.length / seconds,
+                percentileMillis(all, 0.50),
+                percentileMillis(all, 0.99),
+                percentileMillis(all, 0.999));
+    }
+
+    private static double percentileMillis(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static void closeQuietly(Probe probe) {
+        if (probe == null) {
+            return;
+        }
+        try {
+            probe.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, "Probe close failed", e);
+        }
+    }
+
+    /**
+     * 1つのスレッドのレイテンシを記録する、伸長する配列。
+     */
+    private static final class LatencyRecorder {
+        private long[] values = new long[1024];
+        private int    size;
+
+        void record(long nanos) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = nanos;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package networkProgramming;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.Date;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -18,23 +21,38 @@ import java.util.logging.Logger;
  * このサーバーはポート6000でリッスンし、クライアントが接続すると現在の日時を返します。
  * 各クライアント接続は並列に処理され、スレッドプールによって管理されます。
  * </p>
+ *
+ * <p>
+ * {@code --subscribe [間隔(ms)]} を指定すると、ポート6001で購読モードのサーバーも起動します。
+ * 購読モードでは接続を閉じずに、指定された間隔 (既定値 1000ms) で現在時刻を送り続けます。
+ * 詳しくは {@link ClockSubscriptionServer} を参照してください。
+ * </p>
+ *
+ * <p>
+ * システムプロパティ {@code uds.netclock} にパスを指定すると、同じホストのクライアント向けに Unix ドメインソケット
+ * ({@link java.net.UnixDomainSocketAddress}) でも待ち受けます。応答の内容と接続の処理は TCP と同じです。
+ * </p>
  */
 public class NetClock {
-    private static final Logger logger           = Logger.getLogger(NetClock.class.getName());
-    private static final int    PORT             = 6000;
-    private static final int    BACKLOG          = 300;
-    private static final int    THREAD_POOL_SIZE = 10;
+    private static final Logger           logger            = Logger.getLogger(NetClock.class.getName());
+    private static final int              PORT              = 6000;
+    private static final int              BACKLOG           = 300;
+    private static final int              THREAD_POOL_SIZE  = 10;
+    private static final int              SUBSCRIPTION_PORT = 6001;
+    private static final long             DEFAULT_PERIOD_MS = 1000;
+    // 応答を受け取らずに書き込みを止めるクライアントで、実行器のスレッドが塞がらないようにする
+    private static final ConnectionReaper reaper            = ConnectionReaper.fromSystemProperties("netclock");
 
-    @SuppressWarnings("InfiniteLoopStatement")
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("--subscribe")) {
+            long periodMillis = args.length > 1 ? Long.parseLong(args[1]) : DEFAULT_PERIOD_MS;
+            startSubscriptionServer(periodMillis);
+        }
+
         ExecutorService executorService = Executors.newFixedThreadPool(
                 THREAD_POOL_SIZE);
         try (ServerSocket serverSocket = new ServerSocket(PORT, BACKLOG)) {
-            // 無限ループでクライアント接続を待機
-            while (true) {
-                Socket clientSocket = serverSocket.accept();
-                executorService.submit(new ClientHandler(clientSocket));
-            }
+            serve(serverSocket, executorService);
         } catch (IOException e) {
             logger.log(
                     Level.SEVERE,
@@ -46,71 +64,114 @@ public class NetClock {
     }
 
     /**
-     * ExecutorServiceをシャットダウンします。
+     * サーバーソケットが閉じられるまで、クライアント接続を受け付けて実行器で処理します。
+     * {@code uds.netclock} を指定した場合は、ドメインソケットの接続も別スレッドで受け付け、
+     * サーバーソケットが閉じられると一緒に閉じます。
      *
-     * @param executorService シャットダウンするExecutorService
+     * @param serverSocket    待ち受けているサーバーソケット
+     * @param executorService 接続を処理する実行器
+     * @throws IOException 接続の受け付けに失敗した場合。サーバーソケットを閉じて終了した場合は投げません
      */
-    private static void shutdownExecutorService(ExecutorService executorService) {
-        executorService.shutdown();
+    static void serve(ServerSocket serverSocket, ExecutorService executorService) throws IOException {
+        reaper.logStatsPeriodically(60, TimeUnit.SECONDS);
+        Path domainSocket = DomainSockets.pathFromSystemProperties("netclock");
+        ServerSocketChannel domainChannel = domainSocket != null
+                                            ? startDomainSocketServer(domainSocket, executorService)
+                                            : null;
         try {
-            if (! executorService.awaitTermination(60, TimeUnit.SECONDS)) {
-                executorService.shutdownNow();
-                if (! executorService.awaitTermination(60, TimeUnit.SECONDS)) {
-                    logger.severe("ExecutorService did not terminate");
+            while (! serverSocket.isClosed()) {
+                Socket clientSocket;
+                try {
+                    clientSocket = serverSocket.accept();
+                } catch (IOException e) {
+                    if (serverSocket.isClosed()) {
+                        return;
+                    }
+                    throw e;
                 }
+                executorService.submit(new ClientHandler(clientSocket, reaper));
+            }
+        } finally {
+            if (domainChannel != null) {
+                closeQuietly(domainChannel);
+                DomainSockets.delete(domainSocket);
             }
-        } catch (InterruptedException ie) {
-            executorService.shutdownNow();
-            Thread.currentThread().interrupt();
         }
     }
-}
-
-/**
- * クライアント接続を処理するためのクラス。
- */
-class ClientHandler implements Runnable {
-    private static final Logger logger            = Logger.getLogger(
-            ClientHandler.class.getName());
-    private static final String RESPONSE_TEMPLATE = "\nHello, this is NetClock Server.\n%s\nThank you.\n";
-    private final        Socket clientSocket;
 
     /**
-     * クライアントハンドラを初期化します。
+     * ドメインソケットで待ち受け、受け付けスレッドを起動します。
      *
-     * @param clientSocket クライアントソケット
+     * @param path            ソケットファイルのパス
+     * @param executorService 接続を処理する実行器
+     * @return 待ち受けているサーバーチャネル
+     * @throws IOException 待ち受けに失敗した場合
      */
-    public ClientHandler(Socket clientSocket) {
-        this.clientSocket = clientSocket;
+    private static ServerSocketChannel startDomainSocketServer(Path path, ExecutorService executorService)
+            throws IOException {
+        ServerSocketChannel serverChannel = DomainSockets.open(path, BACKLOG);
+        Thread thread = new Thread(() -> {
+            while (serverChannel.isOpen()) {
+                SocketChannel clientChannel;
+                try {
+                    clientChannel = serverChannel.accept();
+                } catch (ClosedChannelException e) {
+                    return;
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, "ドメインソケットの接続の受け付けに失敗しました", e);
+                    closeQuietly(serverChannel);
+                    return;
+                }
+                executorService.submit(new ClientHandler(clientChannel, reaper));
+            }
+        }, "netclock-uds");
+        thread.setDaemon(true);
+        thread.start();
+        return serverChannel;
     }
 
-    @Override
-    public void run() {
-        try (OutputStream outputStream = clientSocket.getOutputStream()) {
-
-            String response = String.format(RESPONSE_TEMPLATE, new Date());
-            outputStream.write(response.getBytes());
-            outputStream.write('\n');
-            outputStream.flush();
-
-            // リクエストとレスポンスをログに記録
-            logger.info("Received a connection from " + clientSocket.getInetAddress() + ":" + clientSocket.getPort());
-            logger.info("Sent response: " + response);
-
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
         } catch (IOException e) {
-            logger.log(
-                    Level.SEVERE,
-                    "クライアント接続の処理中にエラーが発生しました",
-                    e);
-        } finally {
+            logger.log(Level.FINE, "クローズに失敗しました", e);
+        }
+    }
+
+    /**
+     * 購読モードのサーバーを別スレッドで起動します。
+     *
+     * @param periodMillis 時刻を送信する間隔 (ミリ秒)
+     */
+    private static void startSubscriptionServer(long periodMillis) {
+        Thread thread = new Thread(() -> {
             try {
-                clientSocket.close();
-            } catch (IOException e) {
-                logger.log(
-                        Level.SEVERE,
-                        "クライアントソケットのクローズ中にエラーが発生しました",
-                        e);
+                new ClockSubscriptionServer(SUBSCRIPTION_PORT, periodMillis).run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "netclock-subscription");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * ExecutorServiceをシャットダウンします。
+     *
+     * @param executorService シャットダウンするExecutorService
+     */
+    private static void shutdownExecutorService(ExecutorService executorService) {
+        executorService.shutdown();
+        try {
+            if (! executorService.awaitTermination(60, TimeUnit.SECONDS)) {
+                executorService.shutdownNow();
+                if (! executorService.awaitTermination(60, TimeUnit.SECONDS)) {
+                    logger.severe("ExecutorService did not terminate");
+                }
             }
+        } catch (InterruptedException ie) {
+            executorService.shutdownNow();
+            Thread.currentThread().interrupt();
         }
     }
 }
@@ -0,0 +1,234 @@
+package networkProgramming;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import java.net.SocketAddress;
+
+/**
+ * 各サーバーが JDK Flight Recorder (JFR) に記録する独自イベントと、その記録を補助するメソッド。
+ *
+ * <p>
+ * イベントは既定では無効で、同梱の設定 {@code src/main/resources/network.jfc} を指定した記録でだけ有効になります。
+ * 例えば次のように起動します。
+ * </p>
+ * <pre>
+ * java -XX:StartFlightRecording:settings=default,settings=src/main/resources/network.jfc,filename=net.jfr ...
+ * </pre>
+ *
+ * <p>
+ * 無効な場合、各メソッドはイベントの種類ごとに保持した {@link EventType#isEnabled()} の確認だけで戻り、
+ * イベントの作成もリスナーの登録も文字列の組み立ても行いません。記録した内容は {@link JfrAnalyzer} でエンドポイントごとのレイテンシの表にまとめられます。
+ * </p>
+ */
+final class NetEvents {
+    static final String CATEGORY = "Network Programming";
+
+    private static final EventType CONNECTION         = EventType.getEventType(ConnectionEvent.class);
+    private static final EventType HTTP_REQUEST       = EventType.getEventType(HttpRequestEvent.class);
+    private static final EventType TELNET_NEGOTIATION = EventType.getEventType(TelnetNegotiationEvent.class);
+
+    private NetEvents() {
+    }
+
+    /**
+     * 1つの接続の受け付けから切断まで。
+     */
+    @Name("networkProgramming.Connection")
+    @Label("Connection")
+    @Category(CATEGORY)
+    @Description("An accepted client connection, from accept to close")
+    @StackTrace(false)
+    static final class ConnectionEvent extends Event {
+        @Label("Server")
+        String server;
+
+        @Label("Remote Address")
+        String remoteAddress;
+    }
+
+    /**
+     * 1つの HTTP リクエストの受信から、レスポンスの書き込みの完了まで。
+     */
+    @Name("networkProgramming.HttpRequest")
+    @Label("HTTP Request")
+    @Category(CATEGORY)
+    @Description("An HTTP request, from the decoded request to the completed response write")
+    @StackTrace(false)
+    static final class HttpRequestEvent extends Event {
+        @Label("Server")
+        String server;
+
+        @Label("Protocol")
+        String protocol;
+
+        @Label("Method")
+        String method;
+
+        @Label("Path")
+        String path;
+
+        @Label("Status")
+        int status;
+
+        @Label("Response Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * Telnet のオプションネゴシエーションのコマンド1つ。
+     */
+    @Name("networkProgramming.TelnetNegotiation")
+    @Label("Telnet Negotiation")
+    @Category(CATEGORY)
+    @Description("A telnet option negotiation command sent or received")
+    @StackTrace(false)
+    static final class TelnetNegotiationEvent extends Event {
+        @Label("Endpoint")
+        String endpoint;
+
+        @Label("Direction")
+        String direction;
+
+        @Label("Command")
+        String command;
+
+        @Label("Option")
+        int option;
+    }
+
+    /**
+     * 接続イベントが有効であれば、チャネルが閉じられたときに記録するイベントを開始します。
+     * {@code initChannel} から呼び出します。
+     *
+     * @param ch     受け付けたチャネル
+     * @param server サーバー名
+     */
+    static void traceConnection(Channel ch, String server) {
+        if (! CONNECTION.isEnabled()) {
+            return;
+        }
+        ConnectionEvent event = new ConnectionEvent();
+        event.begin();
+        event.server = server;
+        event.remoteAddress = String.valueOf(ch.remoteAddress());
+        ch.closeFuture().addListener(f -> event.commit());
+    }
+
+    /**
+     * ブロッキング I/O のサーバーで、1つの接続のイベントを開始します。
+     *
+     * @param remote 受け付けた接続の相手のアドレス
+     * @param server サーバー名
+     * @return 開始したイベント。イベントが無効な場合は null
+     */
+    static ConnectionEvent beginConnection(SocketAddress remote, String server) {
+        if (! CONNECTION.isEnabled()) {
+            return null;
+        }
+        ConnectionEvent event = new ConnectionEvent();
+        event.begin();
+        event.server = server;
+        event.remoteAddress = String.valueOf(remote);
+        return event;
+    }
+
+    /**
+     * {@link #beginConnection} で開始したイベントを記録します。
+     *
+     * @param event 開始したイベント。null の場合は何もしません
+     */
+    static void endConnection(ConnectionEvent event) {
+        if (event != null) {
+            event.commit();
+        }
+    }
+
+    /**
+     * リクエストイベントが有効であれば、イベントを開始します。
+     *
+     * @param server   サーバー名
+     * @param protocol プロトコル (HTTP/1.1、HTTP/2 など)
+     * @param method   メソッド
+     * @param uri      リクエストの URI。クエリー文字列は記録しません
+     * @return 開始したイベント。イベントが無効な場合は null
+     */
+    static HttpRequestEvent beginRequest(String server, String protocol, CharSequence method, CharSequence uri) {
+        if (! HTTP_REQUEST.isEnabled()) {
+            return null;
+        }
+        HttpRequestEvent event = new HttpRequestEvent();
+        event.begin();
+        event.server = server;
+        event.protocol = protocol;
+        event.method = String.valueOf(method);
+        event.path = path(uri);
+        return event;
+    }
+
+    /**
+     * レスポンスの書き込みが完了したときに、リクエストイベントを記録します。
+     *
+     * @param event  {@link #beginRequest} で開始したイベント。null の場合は何もしません
+     * @param future レスポンスの最後の書き込み
+     * @param status ステータスコード
+     * @param bytes  ボディのバイト数
+     */
+    static void endRequest(HttpRequestEvent event, ChannelFuture future, int status, long bytes) {
+        if (event != null) {
+            event.status = status;
+            event.bytes = bytes;
+            future.addListener(f -> event.commit());
+        }
+    }
+
+    /**
+     * Telnet のネゴシエーションを記録します。
+     *
+     * @param endpoint      記録する側 (server または client)
+     * @param direction     sent または received
+     * @param optionCommand オプションコマンド (DO, DONT, WILL, WONT)
+     * @param optionCode    オプションコード
+     */
+    static void telnetNegotiation(String endpoint, String direction, byte optionCommand, byte optionCode) {
+        if (! TELNET_NEGOTIATION.isEnabled()) {
+            return;
+        }
+        TelnetNegotiationEvent event = new TelnetNegotiationEvent();
+        if (event.shouldCommit()) {
+            event.endpoint = endpoint;
+            event.direction = direction;
+            event.command = telnetCommandName(optionCommand);
+            event.option = optionCode & 0xff;
+            event.commit();
+        }
+    }
+
+    private static String telnetCommandName(byte optionCommand) {
+        return switch (optionCommand) {
+            case SimpleTelnetServer.DO -> "DO";
+            case SimpleTelnetServer.DONT -> "DONT";
+            case SimpleTelnetServer.WILL -> "WILL";
+            case SimpleTelnetServer.WONT -> "WONT";
+            default -> "UNKNOWN";
+        };
+    }
+
+    private static String path(CharSequence uri) {
+        if (uri == null) {
+            return null;
+        }
+        String s = uri.toString();
+        int query = s.indexOf('?');
+        return query >= 0 ? s.substring(0, query) : s;
+    }
+}
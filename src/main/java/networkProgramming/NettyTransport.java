@@ -0,0 +1,79 @@
+package networkProgramming;
+
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * Netty のトランスポート (イベントループとチャネルの実装) の選択。
+ *
+ * <p>
+ * システムプロパティ {@code netty.transport} に {@code epoll} または {@code nio} を指定します。
+ * 指定しない場合は、ネイティブライブラリを読み込める Linux では epoll、それ以外では NIO を使います。
+ * </p>
+ */
+enum NettyTransport {
+    NIO,
+    EPOLL;
+
+    /**
+     * システムプロパティの設定からトランスポートを選びます。
+     *
+     * @return トランスポート
+     * @throws IllegalStateException epoll を指定したがネイティブライブラリを読み込めない場合
+     */
+    static NettyTransport fromSystemProperties() {
+        String name = System.getProperty("netty.transport");
+        if (name == null) {
+            return Epoll.isAvailable() ? EPOLL : NIO;
+        }
+        NettyTransport transport = valueOf(name.toUpperCase());
+        if (transport == EPOLL && ! Epoll.isAvailable()) {
+            throw new IllegalStateException("epoll is not available", Epoll.unavailabilityCause());
+        }
+        return transport;
+    }
+
+    /**
+     * 既に作成されたイベントループグループのトランスポートを返します。
+     * グループを受け取って待ち受けるサーバーが、グループに合うチャネルを選ぶのに使います。
+     *
+     * @param group イベントループグループ
+     * @return epoll のグループであれば EPOLL、それ以外は NIO
+     */
+    static NettyTransport of(EventLoopGroup group) {
+        return group instanceof EpollEventLoopGroup ? EPOLL : NIO;
+    }
+
+    /**
+     * イベントループグループを作成します。
+     *
+     * @param threads スレッド数。0 の場合は Netty の既定値 (CPU数の2倍)
+     * @return イベントループグループ
+     */
+    EventLoopGroup newEventLoopGroup(int threads) {
+        return this == EPOLL ? new EpollEventLoopGroup(threads) : new NioEventLoopGroup(threads);
+    }
+
+    Class<? extends ServerChannel> serverChannelClass() {
+        return this == EPOLL ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    Class<? extends SocketChannel> socketChannelClass() {
+        return this == EPOLL ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
+    Class<? extends DatagramChannel> datagramChannelClass() {
+        return this == EPOLL ? EpollDatagramChannel.class : NioDatagramChannel.class;
+    }
+}
@@ -0,0 +1,165 @@
+package networkProgramming;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * {@link PerfSuite} の計測結果の JSON ファイルへの保存と読み込み、およびベースラインとの比較。
+ *
+ * <p>
+ * 結果は次の形式で、シナリオごとの結果を1行に1つずつ書き込みます。読み込みはこのクラスが書いた形式だけを
+ * 対象とし、汎用の JSON パーサーは使いません。
+ * </p>
+ * <pre>
+ * {
+ *   "timestamp": "2026-01-01T00:00:00Z",
+ *   "javaVersion": "21.0.1",
+ *   "availableProcessors": 4,
+ *   "results": [
+ *     {"name": "http1", "rate": 400.0, "requests": 2000, "errors": 0, "throughput": 399.9, "p50Ms": 0.512, "p99Ms": 2.104, "p999Ms": 6.870}
+ *   ]
+ * }
+ * </pre>
+ */
+final class PerfResults {
+    private static final Pattern RESULT = Pattern.compile("\\{\"name\": \"([^\"]+)\"([^}]*)}");
+    private static final Pattern FIELD  = Pattern.compile("\"(\\w+)\": ([-0-9.Ee]+)");
+
+    private PerfResults() {
+    }
+
+    /**
+     * 計測結果をファイルへ書き込みます。
+     *
+     * @param file    書き込み先
+     * @param results 計測結果
+     * @throws IOException 書き込みに失敗した場合
+     */
+    static void write(Path file, List<LoadGenerator.Result> results) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"timestamp\": \"").append(Instant.now()).append("\",\n");
+        sb.append("  \"javaVersion\": \"").append(System.getProperty("java.version")).append("\",\n");
+        sb.append("  \"availableProcessors\": ").append(Runtime.getRuntime().availableProcessors()).append(",\n");
+        sb.append("  \"results\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            LoadGenerator.Result r = results.get(i);
+            sb.append(String.format(
+                    Locale.ROOT,
+                    "    {\"name\": \"%s\", \"rate\": %.1f, \"requests\": %d, \"errors\": %d, \"throughput\": %.1f, "
+                    + "\"p50Ms\": %.3f, \"p99Ms\": %.3f, \"p999Ms\": %.3f}",
+                    r.name(),
+                    r.rate(),
+                    r.requests(),
+                    r.errors(),
+                    r.throughput(),
+                    r.p50Ms(),
+                    r.p99Ms(),
+                    r.p999Ms()));
+            sb.append(i < results.size() - 1 ? ",\n" : "\n");
+        }
+        sb.append("  ]\n");
+        sb.append("}\n");
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.writeString(file, sb, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * {@link #write} で書き込んだファイルから計測結果を読み込みます。
+     *
+     * @param file 読み込むファイル
+     * @return シナリオ名をキーとする計測結果
+     * @throws IOException 読み込みに失敗した場合
+     */
+    static Map<String, LoadGenerator.Result> read(Path file) throws IOException {
+        Map<String, LoadGenerator.Result> results = new LinkedHashMap<>();
+        Matcher m = RESULT.matcher(Files.readString(file, StandardCharsets.UTF_8));
+        while (m.find()) {
+            Map<String, Double> fields = new LinkedHashMap<>();
+            Matcher f = FIELD.matcher(m.group(2));
+            while (f.find()) {
+                fields.put(f.group(1), Double.parseDouble(f.group(2)));
+            }
+            results.put(m.group(1), new LoadGenerator.Result(
+                    m.group(1),
+                    fields.getOrDefault("rate", 0.0),
+                    fields.getOrDefault("requests", 0.0).longValue(),
+                    fields.getOrDefault("errors", 0.0).longValue(),
+                    fields.getOrDefault("throughput", 0.0),
+                    fields.getOrDefault("p50Ms", 0.0),
+                    fields.getOrDefault("p99Ms", 0.0),
+                    fields.getOrDefault("p999Ms", 0.0)));
+        }
+        return results;
+    }
+
+    /**
+     * 計測結果をベースラインと比べ、許容範囲を超えて悪化した項目を返します。
+     *
+     * <p>
+     * スループットはベースラインの {@code (1 - tolerance)} 倍を下回った場合、レイテンシはベースラインの
+     * {@code (1 + tolerance)} 倍に {@code latencySlackMs} を加えた値を上回った場合、エラーはベースラインより
+     * 増えた場合に悪化とみなします。ループバックでのレイテンシは小さくばらつきやすいため、絶対値の猶予を設けています。
+     * ベースラインにないシナリオは比較しません。
+     * </p>
+     *
+     * @param baseline       ベースライン
+     * @param results        今回の計測結果
+     * @param tolerance      許容する悪化の割合
+     * @param latencySlackMs レイテンシに加える猶予 (ミリ秒)
+     * @return 悪化した項目の説明。悪化がなければ空
+     */
+    static List<String> regressions(
+            Map<String, LoadGenerator.Result> baseline,
+            List<LoadGenerator.Result> results,
+            double tolerance,
+            double latencySlackMs) {
+        List<String> regressions = new ArrayList<>();
+        for (LoadGenerator.Result r : results) {
+            LoadGenerator.Result base = baseline.get(r.name());
+            if (base == null) {
+                continue;
+            }
+            if (r.throughput() < base.throughput() * (1 - tolerance)) {
+                regressions.add(describe(r.name(), "throughput", base.throughput(), r.throughput()));
+            }
+            checkLatency(regressions, r.name(), "p50Ms", base.p50Ms(), r.p50Ms(), tolerance, latencySlackMs);
+            checkLatency(regressions, r.name(), "p99Ms", base.p99Ms(), r.p99Ms(), tolerance, latencySlackMs);
+            checkLatency(regressions, r.name(), "p999Ms", base.p999Ms(), r.p999Ms(), tolerance, latencySlackMs);
+            if (r.errors() > base.errors()) {
+                regressions.add(describe(r.name(), "errors", base.errors(), r.errors()));
+            }
+        }
+        return regressions;
+    }
+
+    private static void checkLatency(
+            List<String> regressions,
+            String name,
+            String metric,
+            double base,
+            double current,
+            double tolerance,
+            double slackMs) {
+        if (current > base * (1 + tolerance) + slackMs) {
+            regressions.add(describe(name, metric, base, current));
+        }
+    }
+
+    private static String describe(String name, String metric, double base, double current) {
+        return String.format(Locale.ROOT, "%s %s: baseline=%.3f current=%.3f", name, metric, base, current);
+    }
+}
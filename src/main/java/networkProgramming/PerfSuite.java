@@ -0,0 +1,469 @@
+package networkProgramming;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509ExtendedTrustManager;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * すべてのサーバーをループバック上で動かし、エンドツーエンドの性能の悪化を検出する回帰テストスイート。
+ *
+ * <p>
+ * {@link PseudHttpDaemon}、{@link PseudHttp2Daemon}、{@link DiscardServer}、{@link NetClock}、
+ * {@link SimpleTelnetServer} を同じプロセス内で、ループバックの空いているポートに起動し、それぞれに組み込みの
+ * クライアントから {@link LoadGenerator} で一定のレートの負荷をかけます。スループットと
+ * p50/p99/p999 のレイテンシを JSON ファイルに書き込み、ベースラインと比較して、
+ * 許容範囲を超えて悪化した場合は終了コード 1 で、ベースラインがない場合は終了コード 2 で終了します。
+ * 外部のネットワークは使いません。
+ * </p>
+ *
+ * <ul>
+ *     <li>{@code http1} 静的ファイルへの GET。スレッドごとに1つのキープアライブの接続を使い、
+ *     Content-Length の分だけボディを読んで次のリクエストを送ります</li>
+ *     <li>{@code http2} TLS 上の HTTP/2 で静的ファイルへの GET。1つの接続を全スレッドで多重化します</li>
+ *     <li>{@code discard} 1 KiB のメッセージを送り、エコーされた応答を受け取るまでの往復</li>
+ *     <li>{@code netclock} 接続して時刻を受け取り、切断されるまで</li>
+ *     <li>{@code telnet} 1つの接続で 32 バイトの行を送り、エコーを受け取るまでの往復。サーバーは同時に1接続しか処理せず、
+ *     エコーを1バイトずつ書き込むため Nagle アルゴリズムの待ちが入り、既定のレートは低くしています</li>
+ * </ul>
+ *
+ * <p>
+ * 使用方法: {@code java PerfSuite [結果ファイル] [ベースラインファイル] [--update-baseline]}
+ * (既定値は {@code target/perf-results.json} と {@code perf-baseline.json})。
+ * {@code --update-baseline} を指定すると、比較せずに今回の結果をベースラインとして保存します。
+ * {@code mvn -Pperf verify} でテストの後に実行でき、悪化やベースラインの欠落はビルドの失敗になります。
+ * ベースラインは計測するマシンに依存するため、そのマシンで
+ * {@code mvn -Pperf verify -Dperf.suiteArgs=--update-baseline} を実行して記録します。
+ * JVM のシステムプロパティは {@code -Dperf.jvmArgs="-Dperf.durationSeconds=30"} のように渡します。
+ * </p>
+ *
+ * <p>
+ * 設定はシステムプロパティから読み込みます。
+ * </p>
+ * <ul>
+ *     <li>{@code perf.scenarios} 実行するシナリオ (カンマ区切り、既定値はすべて)</li>
+ *     <li>{@code perf.warmupSeconds} 計測に含めないウォームアップ期間 (秒、既定値 5)</li>
+ *     <li>{@code perf.durationSeconds} 計測期間 (秒、既定値 10)</li>
+ *     <li>{@code perf.<シナリオ名>.rate} シナリオの目標レート (リクエスト/秒)</li>
+ *     <li>{@code perf.tolerance} 許容する悪化の割合 (既定値 0.25)</li>
+ *     <li>{@code perf.latencySlackMs} レイテンシの比較に加える猶予 (ミリ秒、既定値 2.0)</li>
+ * </ul>
+ */
+public class PerfSuite {
+    private static final Logger logger          = Logger.getLogger(PerfSuite.class.getName());
+    private static final int    TIMEOUT_MILLIS  = 5000;
+    private static final int    FILE_SIZE       = 4096;
+    private static final int    ECHO_SIZE       = 1024;
+    private static final int    TELNET_LINE     = 32;
+    private static final String NETCLOCK_MARKER = "NetClock";
+
+    private final InetAddress                loopback = InetAddress.getLoopbackAddress();
+    private final long                       warmupNanos;
+    private final long                       durationNanos;
+    private final List<LoadGenerator.Result> results  = new ArrayList<>();
+
+    private PerfSuite(long warmupNanos, long durationNanos) {
+        this.warmupNanos = warmupNanos;
+        this.durationNanos = durationNanos;
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> positional = new ArrayList<>();
+        boolean updateBaseline = false;
+        for (String arg : args) {
+            if (arg.equals("--update-baseline")) {
+                updateBaseline = true;
+            } else {
+                positional.add(arg);
+            }
+        }
+        Path resultFile = Paths.get(positional.size() > 0 ? positional.get(0) : "target/perf-results.json");
+        Path baselineFile = Paths.get(positional.size() > 1 ? positional.get(1) : "perf-baseline.json");
+
+        // 各サーバーはリクエストごとに INFO でログを出すため、計測中は警告以上に絞る
+        Logger.getLogger("").setLevel(Level.WARNING);
+        Arrays.stream(Logger.getLogger("").getHandlers()).forEach(h -> h.setLevel(Level.WARNING));
+
+        Set<String> scenarios = new HashSet<>(Arrays.asList(
+                System.getProperty("perf.scenarios", "http1,http2,discard,netclock,telnet").split(",")));
+        PerfSuite suite = new PerfSuite(
+                TimeUnit.SECONDS.toNanos(Long.getLong("perf.warmupSeconds", 5)),
+                TimeUnit.SECONDS.toNanos(Long.getLong("perf.durationSeconds", 10)));
+        if (scenarios.contains("http1")) {
+            suite.runHttp1();
+        }
+        if (scenarios.contains("http2")) {
+            suite.runHttp2();
+        }
+        if (scenarios.contains("discard")) {
+            suite.runDiscard();
+        }
+        if (scenarios.contains("netclock")) {
+            suite.runNetClock();
+        }
+        if (scenarios.contains("telnet")) {
+            suite.runTelnet();
+        }
+
+        PerfResults.write(resultFile, suite.results);
+        System.out.println("Results written to " + resultFile);
+        if (updateBaseline) {
+            PerfResults.write(baselineFile, suite.results);
+            System.out.println("Baseline updated: " + baselineFile);
+            System.exit(0);
+        }
+        if (! Files.exists(baselineFile)) {
+            System.out.println("No baseline at " + baselineFile + "; run with --update-baseline to record one");
+            System.exit(2);
+        }
+        List<String> regressions = PerfResults.regressions(
+                PerfResults.read(baselineFile),
+                suite.results,
+                Double.parseDouble(System.getProperty("perf.tolerance", "0.25")),
+                Double.parseDouble(System.getProperty("perf.latencySlackMs", "2.0")));
+        if (regressions.isEmpty()) {
+            System.out.println("No regressions against " + baselineFile);
+            System.exit(0);
+        }
+        regressions.forEach(r -> System.out.println("REGRESSION " + r));
+        System.exit(1);
+    }
+
+    private void runHttp1() throws Exception {
+        Path file = createContentFile();
+        EventLoopGroup group = new NioEventLoopGroup();
+        BlockingIoExecutor ioExecutor = BlockingIoExecutor.fromSystemProperties("perf-http-file-io");
+        try {
+            Channel server = new PseudHttpDaemon().bind(group, group, 0, file, ioExecutor);
+            int port = ((InetSocketAddress) server.localAddress()).getPort();
+            byte[] request = ("GET /index.html HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+            measure("http1", 4, 200, () -> {
+                Socket socket = connect(port);
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                byte[] body = new byte[FILE_SIZE];
+                return new LoadGenerator.Probe() {
+                    @Override
+                    public void call() throws IOException {
+                        out.write(request);
+                        String head = readHead(in);
+                        if (! head.startsWith("HTTP/1.1 200") || contentLength(head) != FILE_SIZE) {
+                            throw new IOException("Unexpected response: " + head);
+                        }
+                        readFully(in, body, FILE_SIZE);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        socket.close();
+                    }
+                };
+            });
+            server.close().sync();
+        } finally {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+            ioExecutor.shutdown();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private void runHttp2() throws Exception {
+        Path file = createContentFile();
+        EventLoopGroup group = new NioEventLoopGroup();
+        try {
+            Channel server = new PseudHttp2Daemon(file).bind(
+                    group,
+                    group,
+                    0,
+                    ServerCertificate.fromSystemProperties());
+            int port = ((InetSocketAddress) server.localAddress()).getPort();
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(null, new TrustManager[]{new TrustAllManager()}, null);
+            HttpClient client = HttpClient.newBuilder()
+                                          .version(HttpClient.Version.HTTP_2)
+                                          .sslContext(sslContext)
+                                          .connectTimeout(Duration.ofMillis(TIMEOUT_MILLIS))
+                                          .build();
+            HttpRequest request = HttpRequest.newBuilder(URI.create("https://127.0.0.1:" + port + "/index.html"))
+                                             .timeout(Duration.ofMillis(TIMEOUT_MILLIS))
+                                             .GET()
+                                             .build();
+            measure("http2", 8, 100, () -> () -> {
+                HttpResponse<byte[]> response = client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+                if (response.statusCode() != 200
+                    || response.version() != HttpClient.Version.HTTP_2
+                    || response.body().length != FILE_SIZE) {
+                    throw new IOException("Unexpected response: " + response);
+                }
+            });
+            server.close().sync();
+        } finally {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private void runDiscard() throws Exception {
+        EventLoopGroup group = new NioEventLoopGroup();
+        try {
+            Channel server = new DiscardServer(0).bind(group, group);
+            int port = ((InetSocketAddress) server.localAddress()).getPort();
+            byte[] message = new byte[ECHO_SIZE];
+            Arrays.fill(message, (byte) 'x');
+            measure("discard", 4, 2000, () -> {
+                Socket socket = connect(port);
+                socket.setTcpNoDelay(true);
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                byte[] buf = new byte[ECHO_SIZE];
+                return new LoadGenerator.Probe() {
+                    @Override
+                    public void call() throws IOException {
+                        out.write(message);
+                        readFully(in, buf, ECHO_SIZE);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        socket.close();
+                    }
+                };
+            });
+            server.close().sync();
+        } finally {
+            group.shutdownGracefully(0, 1, TimeUnit.SECONDS).sync();
+        }
+    }
+
+    private void runNetClock() throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0, 300, loopback);
+        ExecutorService executor = Executors.newFixedThreadPool(10);
+        try {
+            Thread acceptor = startDaemon("perf-netclock", () -> NetClock.serve(serverSocket, executor));
+            int port = serverSocket.getLocalPort();
+            measure("netclock", 4, 200, () -> () -> {
+                try (Socket socket = connect(port)) {
+                    String response = new String(readToEnd(socket.getInputStream()), StandardCharsets.US_ASCII);
+                    if (! response.contains(NETCLOCK_MARKER)) {
+                        throw new IOException("Unexpected response: " + response);
+                    }
+                }
+            });
+            // 受け付けのスレッドを終わらせるため、待つ前に閉じる
+            serverSocket.close();
+            acceptor.join(TIMEOUT_MILLIS);
+        } finally {
+            serverSocket.close();
+            executor.shutdownNow();
+        }
+    }
+
+    private void runTelnet() throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0, 50, loopback);
+        try {
+            Thread acceptor = startDaemon("perf-telnet", () -> SimpleTelnetServer.serve(serverSocket));
+            int port = serverSocket.getLocalPort();
+            byte[] line = ("x".repeat(TELNET_LINE - 2) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            measure("telnet", 1, 10, () -> {
+                Socket socket = connect(port);
+                socket.setTcpNoDelay(true);
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                // オプションのネゴシエーション (3バイト × 2) とウェルカムメッセージを読み飛ばす
+                skipWelcome(in);
+                byte[] buf = new byte[TELNET_LINE];
+                return new LoadGenerator.Probe() {
+                    @Override
+                    public void call() throws IOException {
+                        out.write(line);
+                        readFully(in, buf, TELNET_LINE);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        socket.close();
+                    }
+                };
+            });
+            // 受け付けのスレッドを終わらせるため、待つ前に閉じる
+            serverSocket.close();
+            acceptor.join(TIMEOUT_MILLIS);
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    private void measure(String name, int threads, double defaultRate, LoadGenerator.ProbeFactory factory)
+            throws InterruptedException {
+        double rate = Double.parseDouble(System.getProperty("perf." + name + ".rate", String.valueOf(defaultRate)));
+        LoadGenerator.Result r = new LoadGenerator(name, factory, threads, rate).run(warmupNanos, durationNanos);
+        results.add(r);
+        System.out.printf(
+                "%-9s rate=%.0f/s  throughput=%.1f/s  requests=%d errors=%d  p50=%.3fms p99=%.3fms p999=%.3fms%n",
+                r.name(),
+                r.rate(),
+                r.throughput(),
+                r.requests(),
+                r.errors(),
+                r.p50Ms(),
+                r.p99Ms(),
+                r.p999Ms());
+    }
+
+    private Socket connect(int port) throws IOException {
+        Socket socket = new Socket();
+        socket.connect(new InetSocketAddress(loopback, port), TIMEOUT_MILLIS);
+        socket.setSoTimeout(TIMEOUT_MILLIS);
+        return socket;
+    }
+
+    private static Path createContentFile() throws IOException {
+        Path file = Files.createTempFile("perf-suite", ".html");
+        byte[] content = new byte[FILE_SIZE];
+        Arrays.fill(content, (byte) 'a');
+        Files.write(file, content);
+        return file;
+    }
+
+    private static Thread startDaemon(String name, ServerLoop loop) {
+        Thread thread = new Thread(() -> {
+            try {
+                loop.run();
+            } catch (IOException e) {
+                logger.log(Level.SEVERE, name + " failed", e);
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static void skipWelcome(InputStream in) throws IOException {
+        int lineFeeds = 0;
+        while (lineFeeds == 0) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed during negotiation");
+            }
+            if (b == '\n') {
+                lineFeeds++;
+            }
+        }
+    }
+
+    private static void readFully(InputStream in, byte[] buf, int length) throws IOException {
+        int off = 0;
+        while (off < length) {
+            int n = in.read(buf, off, length - off);
+            if (n < 0) {
+                throw new IOException("Connection closed after " + off + " bytes");
+            }
+            off += n;
+        }
+    }
+
+    /**
+     * 応答のヘッダーを空行まで読み込みます。
+     */
+    private static String readHead(InputStream in) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (head.length() < 4 || head.lastIndexOf("\r\n\r\n") != head.length() - 4) {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed in response head");
+            }
+            head.append((char) b);
+        }
+        return head.toString();
+    }
+
+    private static long contentLength(String head) {
+        for (String line : head.split("\r\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                return Long.parseLong(line.substring(colon + 1).trim());
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] readToEnd(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        in.transferTo(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * 例外を投げるサーバーのループ。
+     */
+    private interface ServerLoop {
+        void run() throws IOException;
+    }
+
+    /**
+     * 自己署名証明書のサーバーへ接続するため、証明書とホスト名を検証しない TrustManager。
+     * ループバック上の計測専用です。
+     */
+    private static final class TrustAllManager extends X509ExtendedTrustManager {
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) {
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
+        }
+    }
+}
@@ -0,0 +1,401 @@
+package networkProgramming;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpObject;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpStatusClass;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 受け付けた接続のHTTPリクエストを、パスに対応する上流へ転送するリバースプロキシのハンドラー。
+ *
+ * <p>
+ * リクエストとレスポンスのボディは、デコーダーが作った {@link HttpContent} をそのまま相手側へ書き込むため、
+ * 参照カウント付きのバッファはコピーされません。書き込み先が書き込めなくなったら読み取り元の自動読み取りを止め、
+ * 書き込めるようになったら再開することで、背圧を両方向に伝えます。
+ * </p>
+ *
+ * <p>
+ * ホップごとのヘッダー (Connection と、それが挙げるヘッダー、Keep-Alive、TE、Trailer、Upgrade、Proxy-*) は
+ * 両方向とも転送しません。Content-Length も chunked もない (切断でボディの終わりを示す) レスポンスは、
+ * クライアントがボディの終わりを知れるよう、転送後にクライアントとの接続を閉じます。
+ * </p>
+ *
+ * <p>
+ * 1つの接続で同時に処理するリクエストは1つです。リクエストを上流へ送り終えてからレスポンスが終わるまでは
+ * 読み取りを止め、その間にデコード済みだった後続のリクエストは、レスポンスの完了後に順に処理します。
+ * </p>
+ */
+final class ProxyFrontendHandler extends ChannelInboundHandlerAdapter {
+    private static final Logger logger = Logger.getLogger(ProxyFrontendHandler.class.getName());
+
+    private final ProxyRoutes            routes;
+    private final UpstreamPool           pool;
+    private final ProxyStats             stats;
+    private final ArrayDeque<HttpObject> pending = new ArrayDeque<>();
+    private       Channel                frontend;
+    private       Channel                upstream;
+    private       boolean                inFlight;
+    private       boolean                requestDone;
+    private       boolean                responseStarted;
+    private       boolean                keepAlive;
+    private       boolean                upstreamKeepAlive;
+    private       boolean                headRequest;
+    private       long                   requestNanos;
+
+    ProxyFrontendHandler(ProxyRoutes routes, UpstreamPool pool, ProxyStats stats) {
+        this.routes = routes;
+        this.pool = pool;
+        this.stats = stats;
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        frontend = ctx.channel();
+        super.channelActive(ctx);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (! (msg instanceof HttpObject obj)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        if (inFlight && (upstream == null || requestDone) || ! pending.isEmpty()) {
+            // 上流の接続待ち、またはレスポンス待ちの間に届いたものは順番にためておく
+            pending.add(obj);
+            updateFrontendRead();
+            return;
+        }
+        handle(obj);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (upstream != null) {
+            upstream.flush();
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        updateUpstreamRead();
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) {
+        HttpObject obj;
+        while ((obj = pending.poll()) != null) {
+            ReferenceCountUtil.release(obj);
+        }
+        if (upstream != null) {
+            // 交換の途中で切断されたため、上流の接続は再利用できない
+            Channel up = upstream;
+            upstream = null;
+            up.pipeline().get(UpstreamHandler.class).exchange = null;
+            up.close();
+        }
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        logger.log(Level.FINE, "Proxy frontend error", cause);
+        ctx.close();
+    }
+
+    private void handle(HttpObject obj) {
+        if (obj instanceof HttpRequest request) {
+            startRequest(request);
+        } else if (inFlight && ! requestDone) {
+            forwardRequestContent((HttpContent) obj);
+        } else {
+            ReferenceCountUtil.release(obj);
+        }
+    }
+
+    private void startRequest(HttpRequest request) {
+        inFlight = true;
+        requestDone = false;
+        responseStarted = false;
+        keepAlive = HttpUtil.isKeepAlive(request);
+        headRequest = request.method().equals(HttpMethod.HEAD);
+        if (! request.decoderResult().isSuccess()) {
+            keepAlive = false;
+            ReferenceCountUtil.release(request);
+            respondError(HttpResponseStatus.BAD_REQUEST);
+            return;
+        }
+        InetSocketAddress target = routes.match(request.uri());
+        if (target == null) {
+            ReferenceCountUtil.release(request);
+            respondError(HttpResponseStatus.NOT_FOUND);
+            return;
+        }
+
+        // 上流とはキープアライブで接続し、クライアント側の Connection ヘッダーは転送しない
+        removeHopByHopHeaders(request.headers());
+        HttpUtil.setKeepAlive(request, true);
+        if (frontend.remoteAddress() instanceof InetSocketAddress client) {
+            request.headers().add("X-Forwarded-For", client.getAddress().getHostAddress());
+        }
+        pending.addFirst(request);
+        updateFrontendRead();
+
+        pool.acquire(frontend.eventLoop(), target).addListener((Future<Channel> f) -> {
+            if (! frontend.isActive()) {
+                if (f.isSuccess()) {
+                    pool.release(f.getNow());
+                }
+                return;
+            }
+            if (! f.isSuccess()) {
+                logger.log(Level.FINE, "Upstream unavailable: " + target, f.cause());
+                stats.recordUpstreamError();
+                discardRequest();
+                respondError(f.cause() instanceof RejectedExecutionException
+                                     ? HttpResponseStatus.SERVICE_UNAVAILABLE
+                                     : HttpResponseStatus.BAD_GATEWAY);
+                return;
+            }
+            upstream = f.getNow();
+            upstream.pipeline().get(UpstreamHandler.class).exchange = this;
+            requestNanos = System.nanoTime();
+            upstream.write(pending.poll());
+            drainPending();
+            upstream.flush();
+            updateFrontendRead();
+        });
+    }
+
+    private void forwardRequestContent(HttpContent content) {
+        upstream.write(content);
+        if (content instanceof LastHttpContent) {
+            requestDone = true;
+            upstream.flush();
+        }
+        updateFrontendRead();
+    }
+
+    private void drainPending() {
+        HttpObject obj;
+        while (! requestDone && (obj = pending.peek()) instanceof HttpContent) {
+            pending.poll();
+            forwardRequestContent((HttpContent) obj);
+        }
+    }
+
+    /**
+     * 上流へ送れなかったリクエストと、受信済みのボディを捨てます。
+     * 最後のボディをまだ受信していない場合、残りは交換の終了後に {@link #handle} で捨てられます。
+     */
+    private void discardRequest() {
+        ReferenceCountUtil.release(pending.poll());
+        while (pending.peek() instanceof HttpContent content) {
+            pending.poll();
+            ReferenceCountUtil.release(content);
+            if (content instanceof LastHttpContent) {
+                requestDone = true;
+                return;
+            }
+        }
+    }
+
+    private void onUpstreamResponse(HttpObject msg) {
+        if (msg instanceof HttpResponse response) {
+            if (response.status().codeClass() == HttpStatusClass.INFORMATIONAL) {
+                // 100 Continue などの中間レスポンスはそのまま転送し、最終レスポンスを待つ
+                frontend.write(msg);
+                return;
+            }
+            responseStarted = true;
+            stats.recordResponse(System.nanoTime() - requestNanos);
+            upstreamKeepAlive = HttpUtil.isKeepAlive(response);
+            if (closeDelimited(response)) {
+                // ボディの終わりは切断で示すしかないため、上流は再利用せず、転送後にクライアントとの接続も閉じる
+                upstreamKeepAlive = false;
+                keepAlive = false;
+            }
+            removeHopByHopHeaders(response.headers());
+            HttpUtil.setKeepAlive(response, keepAlive);
+        } else if (! responseStarted) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        frontend.write(msg);
+        if (msg instanceof LastHttpContent) {
+            frontend.flush();
+            completeExchange();
+        } else {
+            updateUpstreamRead();
+        }
+    }
+
+    /**
+     * @return ボディの長さがなく、上流の切断でボディの終わりを示すレスポンスの場合は true
+     */
+    private boolean closeDelimited(HttpResponse response) {
+        int code = response.status().code();
+        if (headRequest || code == 204 || code == 304) {
+            return false;
+        }
+        return ! HttpUtil.isContentLengthSet(response) && ! HttpUtil.isTransferEncodingChunked(response);
+    }
+
+    /**
+     * ホップごとのヘッダーを取り除きます。Transfer-Encoding はボディの区切りを決めるため残し、エンコーダーに任せます。
+     */
+    private static void removeHopByHopHeaders(HttpHeaders headers) {
+        for (String connection : headers.getAll(HttpHeaderNames.CONNECTION)) {
+            for (String name : connection.split(",")) {
+                String trimmed = name.trim();
+                if (! trimmed.isEmpty() && ! HttpHeaderNames.TRANSFER_ENCODING.contentEqualsIgnoreCase(trimmed)) {
+                    headers.remove(trimmed);
+                }
+            }
+        }
+        headers.remove(HttpHeaderNames.CONNECTION)
+               .remove("keep-alive")
+               .remove(HttpHeaderNames.TE)
+               .remove(HttpHeaderNames.TRAILER)
+               .remove(HttpHeaderNames.UPGRADE);
+        // Proxy-Authorization、Proxy-Authenticate、Proxy-Connection などの Proxy-* もすべて取り除く
+        for (String name : headers.names()) {
+            if (name.regionMatches(true, 0, "proxy-", 0, 6)) {
+                headers.remove(name);
+            }
+        }
+    }
+
+    private void completeExchange() {
+        Channel up = upstream;
+        upstream = null;
+        up.pipeline().get(UpstreamHandler.class).exchange = null;
+        up.config().setAutoRead(true);
+        if (upstreamKeepAlive && requestDone) {
+            pool.release(up);
+        } else {
+            up.close();
+        }
+        finishExchange();
+    }
+
+    private void finishExchange() {
+        inFlight = false;
+        if (! keepAlive) {
+            frontend.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+            return;
+        }
+        HttpObject obj;
+        while (! inFlight && (obj = pending.poll()) != null) {
+            handle(obj);
+        }
+        updateFrontendRead();
+    }
+
+    private void onUpstreamClosed() {
+        upstream = null;
+        stats.recordUpstreamError();
+        if (responseStarted) {
+            // レスポンスの途中で切れた場合は、クライアントに不完全であることを伝えるために切断する
+            frontend.close();
+            return;
+        }
+        keepAlive = false;
+        respondError(HttpResponseStatus.BAD_GATEWAY);
+    }
+
+    private void respondError(HttpResponseStatus status) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status);
+        response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, 0);
+        HttpUtil.setKeepAlive(response, keepAlive);
+        frontend.writeAndFlush(response);
+        finishExchange();
+    }
+
+    /**
+     * 上流の接続待ちの間、レスポンス待ちの間、および上流が書き込めない間は、クライアントからの読み取りを止めます。
+     */
+    private void updateFrontendRead() {
+        boolean read = ! inFlight || (upstream != null && ! requestDone && upstream.isWritable());
+        frontend.config().setAutoRead(read && pending.isEmpty());
+    }
+
+    /**
+     * クライアントへ書き込めない間は、上流からの読み取りを止めます。
+     */
+    private void updateUpstreamRead() {
+        if (upstream != null) {
+            upstream.config().setAutoRead(frontend.isWritable());
+        }
+    }
+
+    /**
+     * 上流接続のパイプラインの末尾に置き、レスポンスを現在の交換を持つ {@link ProxyFrontendHandler} へ渡すハンドラー。
+     */
+    static final class UpstreamHandler extends ChannelInboundHandlerAdapter {
+        private ProxyFrontendHandler exchange;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (exchange != null && msg instanceof HttpObject obj) {
+                exchange.onUpstreamResponse(obj);
+            } else {
+                // プールで待機中の接続へのレスポンスは想定外のため、接続ごと捨てる
+                ReferenceCountUtil.release(msg);
+                ctx.close();
+            }
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            if (exchange != null) {
+                exchange.frontend.flush();
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (exchange != null) {
+                exchange.updateFrontendRead();
+            }
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (exchange != null) {
+                ProxyFrontendHandler e = exchange;
+                exchange = null;
+                e.onUpstreamClosed();
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            logger.log(Level.FINE, "Proxy upstream error", cause);
+            ctx.close();
+        }
+    }
+}
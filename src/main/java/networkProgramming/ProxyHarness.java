@@ -0,0 +1,183 @@
+package networkProgramming;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link PseudHttpDaemon} のリバースプロキシをループバック上で動かし、応答の正しさと性能を確かめるハーネス。
+ *
+ * <p>
+ * 2つのスタブの上流を起動し、{@code /a} を1つ目、それ以外を2つ目へ転送するプロキシを通して、
+ * 複数のクライアントから GET と、ボディ付きの POST を送ります。スタブは GET にはどの上流かとパスを、
+ * POST には受け取ったボディの長さとハッシュを返すため、転送先とボディの中継を検証できます。
+ * 最後にスループットとプロキシの計測値 (上流の応答時間、プールの飽和) を表示します。
+ * </p>
+ *
+ * <p>
+ * 使用方法: {@code java ProxyHarness [クライアント数] [クライアントあたりのリクエスト数] [POSTのボディサイズ(KB)]}
+ * </p>
+ */
+public class ProxyHarness {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        int requestsPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int bodyKb = args.length > 2 ? Integer.parseInt(args[2]) : 256;
+
+        EventLoopGroup group = new NioEventLoopGroup();
+        ExecutorService executor = Executors.newFixedThreadPool(clients);
+        try {
+            Channel backendA = startStub(group, "A");
+            Channel backendB = startStub(group, "B");
+            ProxyRoutes routes = ProxyRoutes.parse(
+                    "/a=127.0.0.1:" + port(backendA) + ",/=127.0.0.1:" + port(backendB));
+            ProxyStats stats = new ProxyStats();
+            Channel proxy = new PseudHttpDaemon().bindProxy(group, group, 0, routes, stats);
+            String base = "http://127.0.0.1:" + port(proxy);
+
+            byte[] body = new byte[bodyKb * 1024];
+            new Random(1).nextBytes(body);
+            String expectedEcho = "len=" + body.length + " hash=" + Arrays.hashCode(body);
+
+            // クライアント内部の非同期処理には、リクエストを送るスレッドとは別の既定の実行器を使う
+            HttpClient client = HttpClient.newBuilder()
+                                          .version(HttpClient.Version.HTTP_1_1)
+                                          .build();
+            AtomicLong failures = new AtomicLong();
+            List<Future<?>> futures = new ArrayList<>();
+            long start = System.nanoTime();
+            for (int c = 0; c < clients; c++) {
+                int id = c;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < requestsPerClient; i++) {
+                        try {
+                            if (i % 10 == 9) {
+                                HttpResponse<String> response = client.send(
+                                        HttpRequest.newBuilder(URI.create(base + "/upload"))
+                                                   .POST(HttpRequest.BodyPublishers.ofByteArray(body))
+                                                   .build(),
+                                        HttpResponse.BodyHandlers.ofString());
+                                check(response, "B " + expectedEcho, failures);
+                            } else {
+                                String path = (i % 2 == 0 ? "/a/" : "/b/") + id + "/" + i;
+                                HttpResponse<String> response = client.send(
+                                        HttpRequest.newBuilder(URI.create(base + path)).GET().build(),
+                                        HttpResponse.BodyHandlers.ofString());
+                                check(response, (i % 2 == 0 ? "A " : "B ") + path, failures);
+                            }
+                        } catch (Exception e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            long total = (long) clients * requestsPerClient;
+
+            System.out.printf(
+                    "clients=%d requests=%d failures=%d  %.0f req/s  %.2f s%n",
+                    clients,
+                    total,
+                    failures.get(),
+                    total / seconds,
+                    seconds);
+            System.out.println("proxy: " + stats.stats());
+
+            proxy.close().sync();
+            backendA.close().sync();
+            backendB.close().sync();
+        } finally {
+            executor.shutdownNow();
+            group.shutdownGracefully().awaitUninterruptibly(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void check(HttpResponse<String> response, String expected, AtomicLong failures) {
+        if (response.statusCode() != 200 || ! response.body().equals(expected)) {
+            failures.incrementAndGet();
+        }
+    }
+
+    private static int port(Channel channel) {
+        return ((InetSocketAddress) channel.localAddress()).getPort();
+    }
+
+    /**
+     * GET にはスタブ名とパスを、POST には受け取ったボディの長さとハッシュを返すスタブの上流を起動します。
+     */
+    private static Channel startStub(EventLoopGroup group, String name) throws InterruptedException {
+        return new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(new HttpServerCodec());
+                        ch.pipeline().addLast(new HttpObjectAggregator(16 * 1024 * 1024));
+                        ch.pipeline().addLast(new SimpleChannelInboundHandler<FullHttpRequest>() {
+                            @Override
+                            protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
+                                String text;
+                                if (request.content().isReadable()) {
+                                    byte[] received = new byte[request.content().readableBytes()];
+                                    request.content().readBytes(received);
+                                    text = name + " len=" + received.length + " hash=" + Arrays.hashCode(received);
+                                } else {
+                                    text = name + " " + request.uri();
+                                }
+                                ByteBuf content = Unpooled.copiedBuffer(text, StandardCharsets.UTF_8);
+                                FullHttpResponse response = new DefaultFullHttpResponse(
+                                        HttpVersion.HTTP_1_1,
+                                        HttpResponseStatus.OK,
+                                        content);
+                                response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
+                                response.headers().setInt(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+                                HttpUtil.setKeepAlive(response, HttpUtil.isKeepAlive(request));
+                                ctx.writeAndFlush(response);
+                            }
+                        });
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+    }
+}
@@ -0,0 +1,87 @@
+package networkProgramming;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * リバースプロキシのパス接頭辞から転送先への対応表。
+ *
+ * <p>
+ * {@code /api=127.0.0.1:9001,/=127.0.0.1:9002} のように {@code 接頭辞=ホスト:ポート} をカンマで区切って指定します。
+ * リクエストのパスに一致する接頭辞のうち、最も長いものの転送先を使います。接頭辞はパスの区切りで一致させるため、
+ * {@code /api} は {@code /api}、{@code /api/users}、{@code /api?q=1} に一致し、{@code /apix} には一致しません。
+ * </p>
+ */
+final class ProxyRoutes {
+    private final List<Route> routes;
+
+    private ProxyRoutes(List<Route> routes) {
+        this.routes = routes;
+    }
+
+    /**
+     * 対応表の文字列を解析します。
+     *
+     * @param spec {@code 接頭辞=ホスト:ポート} をカンマで区切った文字列
+     * @return 対応表
+     * @throws IllegalArgumentException 書式が正しくない場合
+     */
+    static ProxyRoutes parse(String spec) {
+        List<Route> routes = new ArrayList<>();
+        for (String entry : spec.split(",")) {
+            int eq = entry.indexOf('=');
+            int colon = entry.lastIndexOf(':');
+            if (eq <= 0 || colon < eq) {
+                throw new IllegalArgumentException("Invalid route: " + entry);
+            }
+            String prefix = entry.substring(0, eq).trim();
+            String host = entry.substring(eq + 1, colon).trim();
+            int port = Integer.parseInt(entry.substring(colon + 1).trim());
+            routes.add(new Route(prefix, new InetSocketAddress(host, port)));
+        }
+        routes.sort(Comparator.comparingInt((Route r) -> r.prefix().length()).reversed());
+        return new ProxyRoutes(List.copyOf(routes));
+    }
+
+    /**
+     * リクエストの URI に対応する転送先を返します。
+     *
+     * @param uri リクエストの URI
+     * @return 転送先。対応する接頭辞がなければ null
+     */
+    InetSocketAddress match(String uri) {
+        for (Route route : routes) {
+            if (matches(uri, route.prefix())) {
+                return route.upstream();
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(String uri, String prefix) {
+        if (! uri.startsWith(prefix)) {
+            return false;
+        }
+        if (uri.length() == prefix.length() || prefix.endsWith("/")) {
+            return true;
+        }
+        char next = uri.charAt(prefix.length());
+        return next == '/' || next == '?';
+    }
+
+    @Override
+    public String toString() {
+        return routes.toString();
+    }
+
+    /**
+     * 1つの対応。
+     *
+     * @param prefix   パスの接頭辞
+     * @param upstream 転送先
+     */
+    record Route(String prefix, InetSocketAddress upstream) {
+    }
+}
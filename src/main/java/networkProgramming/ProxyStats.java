@@ -0,0 +1,89 @@
+package networkProgramming;
+
+import io.netty.util.concurrent.EventExecutor;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * リバースプロキシの計測値。上流の応答時間と、上流接続プールの利用状況を記録します。
+ *
+ * <p>
+ * 応答時間はリクエストを上流へ書き込んでから、レスポンスヘッダーを受信するまでの時間です。
+ * プールの飽和は、接続数の上限に達して空き接続を待った回数と、待ち行列も一杯で拒否した回数で表します。
+ * </p>
+ */
+final class ProxyStats {
+    private static final Logger logger = Logger.getLogger(ProxyStats.class.getName());
+
+    private final LongAdder  requests          = new LongAdder();
+    private final LongAdder  upstreamErrors    = new LongAdder();
+    private final LongAdder  connectionsOpened = new LongAdder();
+    private final LongAdder  connectionsReused = new LongAdder();
+    private final LongAdder  poolWaits         = new LongAdder();
+    private final LongAdder  poolRejections    = new LongAdder();
+    private final LongAdder  totalLatencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos   = new AtomicLong();
+
+    void recordResponse(long latencyNanos) {
+        requests.increment();
+        totalLatencyNanos.add(latencyNanos);
+        maxLatencyNanos.accumulateAndGet(latencyNanos, Math::max);
+    }
+
+    void recordUpstreamError() {
+        upstreamErrors.increment();
+    }
+
+    void recordConnectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    void recordConnectionReused() {
+        connectionsReused.increment();
+    }
+
+    void recordPoolWait() {
+        poolWaits.increment();
+    }
+
+    void recordPoolRejection() {
+        poolRejections.increment();
+    }
+
+    long requests() {
+        return requests.sum();
+    }
+
+    /**
+     * 計測値をまとめた文字列を返します。
+     *
+     * @return 計測値
+     */
+    String stats() {
+        long count = requests.sum();
+        return String.format(
+                "requests=%d errors=%d avgLatency=%.3fms maxLatency=%.3fms opened=%d reused=%d poolWaits=%d poolRejections=%d",
+                count,
+                upstreamErrors.sum(),
+                count == 0 ? 0.0 : totalLatencyNanos.sum() / 1e6 / count,
+                maxLatencyNanos.get() / 1e6,
+                connectionsOpened.sum(),
+                connectionsReused.sum(),
+                poolWaits.sum(),
+                poolRejections.sum());
+    }
+
+    /**
+     * 計測値を定期的にログへ出力します。
+     *
+     * @param scheduler 出力タスクを実行するイベントループ
+     * @param period    出力間隔
+     * @param unit      出力間隔の単位
+     */
+    void logStatsPeriodically(EventExecutor scheduler, long period, TimeUnit unit) {
+        scheduler.scheduleAtFixedRate(() -> logger.fine(() -> "Proxy: " + stats()), period, period, unit);
+    }
+}
@@ -1,21 +1,25 @@
 package networkProgramming;
 
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http2.*;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.ssl.*;
-import io.netty.handler.ssl.util.SelfSignedCertificate;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
 
+import java.nio.channels.ClosedChannelException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -23,6 +27,19 @@ public class PseudHttp2Daemon {
 
     private static final Logger logger = Logger.getLogger(PseudHttp2Daemon.class.getName());
 
+    private final Path                    file;
+    private final AdmissionController     admission        = AdmissionController.fromSystemProperties();
+    private final AdmissionControlHandler admissionHandler = new AdmissionControlHandler(admission, null, false);
+    private final HttpRateLimitHandler    rateLimitHandler = new HttpRateLimitHandler(admission);
+    private final BlockingIoExecutor      ioExecutor       = BlockingIoExecutor.fromSystemProperties("http2-file-io");
+    private final Http2Tuning             tuning           = Http2Tuning.fromSystemProperties();
+    private final boolean                 http3Enabled     = Boolean.getBoolean("http3.enabled");
+    private       ChannelGroup            tracked;
+
+    PseudHttp2Daemon(Path file) {
+        this.file = file;
+    }
+
     public static void main(String[] args) {
         if (args.length != 1) {
             logger.severe("Usage: java PseudHttp2Daemon <filename>");
@@ -36,86 +53,191 @@ public class PseudHttp2Daemon {
             System.exit(1);
         }
 
-        new PseudHttp2Daemon().startServer(
-                8443,
-                file); // 8443 is the default HTTPS port
+        new PseudHttp2Daemon(file).startServer(8443); // 8443 is the default HTTPS port
     }
 
-    private void startServer(int port, Path file) {
+    private void startServer(int port) {
         EventLoopGroup bossGroup = new NioEventLoopGroup();
         EventLoopGroup workerGroup = new NioEventLoopGroup();
+        EventLoopWatchdog.shared().watch(bossGroup);
+        EventLoopWatchdog.shared().watch(workerGroup);
 
         try {
-            SelfSignedCertificate ssc = new SelfSignedCertificate();
-            SslContext sslCtx = SslContextBuilder.forServer(
-                                                         ssc.certificate(),
-                                                         ssc.privateKey())
-                                                 .applicationProtocolConfig(new ApplicationProtocolConfig(
-                                                         ApplicationProtocolConfig.Protocol.ALPN,
-                                                         ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
-                                                         ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
-                                                         ApplicationProtocolNames.HTTP_2,
-                                                         ApplicationProtocolNames.HTTP_1_1))
-                                                 .build();
-
-            ServerBootstrap b = new ServerBootstrap();
-            b.group(bossGroup, workerGroup)
-             .channel(NioServerSocketChannel.class)
-             .handler(new LoggingHandler(LogLevel.INFO))
-             .childHandler(new ChannelInitializer<SocketChannel>() {
-                 @Override
-                 public void initChannel(SocketChannel ch) {
-                     ch.pipeline().addLast(sslCtx.newHandler(ch.alloc()));
-                     ch.pipeline()
-                       .addLast(new ApplicationProtocolNegotiationHandler(
-                               ApplicationProtocolNames.HTTP_1_1) {
-                           @Override
-                           protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
-                               if (ApplicationProtocolNames.HTTP_2.equals(
-                                       protocol)) {
-                                   ctx.pipeline()
-                                      .addLast(Http2FrameCodecBuilder.forServer()
-                                                                     .build());
-                                   ctx.pipeline()
-                                      .addLast(new Http2MultiplexHandler(new ChannelInitializer<>() {
-                                          @Override
-                                          protected void initChannel(Channel ch) {
-                                              ch.pipeline()
-                                                .addLast(new Http2ServerHandler(
-                                                        file));
-                                          }
-                                      }));
-                               } else {
-                                   ctx.pipeline()
-                                      .addLast(new HttpServerCodec());
-                                   ctx.pipeline()
-                                      .addLast(new HttpObjectAggregator(65536));
-                                   ctx.pipeline()
-                                      .addLast(new Http1ServerHandler(file));
-                               }
-                           }
-                       });
-                 }
-             })
-             .option(ChannelOption.SO_BACKLOG, 128)
-             .childOption(ChannelOption.SO_KEEPALIVE, true);
-
-            ChannelFuture f = b.bind(port).sync();
+            ServerCertificate certificate = ServerCertificate.fromSystemProperties();
+            Channel channel = bind(bossGroup, workerGroup, port, certificate);
             logger.info("Server started on port: " + port);
-            f.channel().closeFuture().sync();
+            AdminServer.bindFromSystemProperties(bossGroup, workerGroup);
+            if (http3Enabled) {
+                Http3Listener.bind(workerGroup, port, certificate, file, ioExecutor);
+                logger.info("HTTP/3 listener started on UDP port: " + port);
+            }
+            channel.closeFuture().sync();
         } catch (Exception e) {
             logger.log(Level.SEVERE, "Server error", e);
         } finally {
             workerGroup.shutdownGracefully();
             bossGroup.shutdownGracefully();
+            ioExecutor.shutdown();
+        }
+    }
+
+    /**
+     * 受け付けた接続を追加するグループを設定します。TLS のハンドシェイクより前の TCP の接続を追加します。バインドより前に呼び出します。
+     *
+     * @param group 接続を追加するグループ。閉じた接続はグループから自動的に取り除かれます
+     * @return このサーバー
+     */
+    PseudHttp2Daemon trackConnections(ChannelGroup group) {
+        this.tracked = group;
+        return this;
+    }
+
+    /**
+     * TLS (HTTP/2 と HTTP/1.1) のリスナーを起動します。
+     * {@code upload.dir} を設定した場合は、どちらのプロトコルでも {@link UploadStore} へのアップロードを受け付けます。
+     * 接続は {@link ConnectionRegistry#shared()} に登録し、{@code shaping.http2.*} を設定した場合は
+     * {@link TrafficShaping} で暗号化したバイト列の帯域を制限します。
+     * {@code warmup.enabled} を true にした場合は、待ち受ける前に {@link JitWarmup} で HTTP/2 と HTTP/1.1 を
+     * ウォームアップします。
+     *
+     * @param bossGroup   接続を受け付けるイベントループグループ
+     * @param workerGroup 接続を処理するイベントループグループ
+     * @param port        待ち受けるポート番号 (0 の場合は空いているポート)
+     * @param certificate サーバー証明書
+     * @return 待ち受けているサーバーチャネル
+     * @throws Exception TLSの初期化またはバインドに失敗した場合
+     */
+    Channel bind(EventLoopGroup bossGroup, EventLoopGroup workerGroup, int port, ServerCertificate certificate)
+            throws Exception {
+        admission.startExpiry(workerGroup);
+        ioExecutor.logStatsPeriodically(workerGroup.next(), 60, TimeUnit.SECONDS);
+        SslContext sslCtx = SslContextBuilder.forServer(
+                                                     certificate.certificate(),
+                                                     certificate.privateKey())
+                                             .applicationProtocolConfig(new ApplicationProtocolConfig(
+                                                     ApplicationProtocolConfig.Protocol.ALPN,
+                                                     ApplicationProtocolConfig.SelectorFailureBehavior.NO_ADVERTISE,
+                                                     ApplicationProtocolConfig.SelectedListenerFailureBehavior.ACCEPT,
+                                                     ApplicationProtocolNames.HTTP_2,
+                                                     ApplicationProtocolNames.HTTP_1_1))
+                                             .build();
+        // HTTP/3 を有効にした場合は、同じポート番号の UDP で待ち受けていることを Alt-Svc で通知する
+        String altSvc = http3Enabled ? Http3Listener.altSvc(port) : null;
+        StaticFileCache cache = StaticFileCache.fromSystemProperties(file, ioExecutor, altSvc);
+        ConnectionReaper reaper = ConnectionReaper.fromSystemProperties("http2");
+        reaper.logStatsPeriodically(60, TimeUnit.SECONDS);
+        UploadStore uploads = UploadStore.fromSystemProperties(ioExecutor);
+        if (uploads != null) {
+            uploads.logStatsPeriodically(workerGroup.next(), 60, TimeUnit.SECONDS);
+        }
+        ChannelHandler registryHandler = ConnectionRegistry.shared().newHandler("http2", "tls");
+        TrafficShaping shaping = TrafficShaping.fromSystemProperties("http2", workerGroup);
+        shaping.logStatsPeriodically(workerGroup.next(), 60, TimeUnit.SECONDS);
+
+        ChannelInitializer<Channel> initializer = new ChannelInitializer<>() {
+            @Override
+            public void initChannel(Channel ch) {
+                if (tracked != null) {
+                    tracked.add(ch);
+                }
+                NetEvents.traceConnection(ch, "PseudHttp2Daemon");
+                // TLSハンドシェイクの前に受付判定を行う
+                ch.pipeline().addLast(admissionHandler);
+                ch.pipeline().addLast(registryHandler);
+                // TLS の手前で暗号化されたバイト列の送受信を観測する
+                ch.pipeline().addLast(reaper.newHandler());
+                shaping.addTo(ch.pipeline());
+                ch.pipeline().addLast(sslCtx.newHandler(ch.alloc()));
+                ch.pipeline()
+                  .addLast(new ApplicationProtocolNegotiationHandler(
+                          ApplicationProtocolNames.HTTP_1_1) {
+                      @Override
+                      protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+                          ConnectionRegistry.protocol(ctx.channel(), protocol);
+                          if (ApplicationProtocolNames.HTTP_2.equals(
+                                  protocol)) {
+                              ctx.pipeline()
+                                 .addLast(tuning.newServerCodec());
+                              if (uploads != null) {
+                                  // 広げるのはサーバーの受信ウィンドウなので、速くなるのはアップロードだけ。
+                                  // ダウンロードのウィンドウはクライアントが広げる
+                                  ctx.pipeline()
+                                     .addLast(new Http2WindowTuner(tuning));
+                              }
+                              ctx.pipeline()
+                                 .addLast(new Http2MultiplexHandler(new ChannelInitializer<>() {
+                                     @Override
+                                     protected void initChannel(Channel ch) {
+                                         ch.pipeline()
+                                           .addLast(rateLimitHandler);
+                                         ch.pipeline()
+                                           .addLast(new ChunkedWriteHandler());
+                                         ch.pipeline()
+                                           .addLast(new Http2ServerHandler(
+                                                   cache,
+                                                   altSvc,
+                                                   uploads));
+                                     }
+                                 }));
+                          } else {
+                              ctx.pipeline()
+                                 .addLast(new HttpServerCodec());
+                              ctx.pipeline()
+                                 .addLast(new ChunkedWriteHandler());
+                              ctx.pipeline()
+                                 .addLast(rateLimitHandler);
+                              if (uploads != null) {
+                                  ctx.pipeline()
+                                     .addLast(new HttpUploadHandler(uploads, "PseudHttp2Daemon"));
+                              }
+                              ctx.pipeline()
+                                 .addLast(new HttpObjectAggregator(65536));
+                              ctx.pipeline()
+                                 .addLast(new Http1ServerHandler(cache));
+                          }
+                      }
+                  });
+            }
+        };
+        JitWarmup warmup = JitWarmup.fromSystemProperties();
+        if (warmup != null) {
+            warmup.run("http2", initializer, JitWarmup.Protocol.HTTP_2_TLS, JitWarmup.Protocol.HTTP_1_1_TLS);
         }
+
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup)
+         .channel(NioServerSocketChannel.class)
+         .handler(new LoggingHandler(LogLevel.INFO))
+         .childHandler(initializer)
+         .option(ChannelOption.SO_BACKLOG, 128)
+         .childOption(ChannelOption.SO_KEEPALIVE, true);
+
+        Channel channel = b.bind(port).sync().channel();
+        shaping.releaseOnClose(channel);
+        return channel;
     }
 
-    private static class Http2ServerHandler extends SimpleChannelInboundHandler<Http2HeadersFrame> {
-        private final Path file;
+    /**
+     * HTTP/2 のストリームごとに静的ファイルを返すハンドラー。
+     *
+     * <p>
+     * レスポンスは HTTP/1.1 と同じ {@link StaticFileCache} のエントリから作り、条件付きリクエストには 304 を、
+     * Range には 206 を返します。206 のボディは DATA フレームに分けて送るため、{@link ByteRanges.Body#newChunkedInput()}
+     * でファイルの範囲からフレームのバッファへ直接読み込みます。
+     * </p>
+     */
+    static class Http2ServerHandler extends SimpleChannelInboundHandler<Http2HeadersFrame> {
+        private final StaticFileCache            cache;
+        private final String                     altSvc;
+        private final UploadStore                uploads;
+        // ストリームごとにハンドラーを作るため、1つのリクエストのイベントと条件だけを持つ
+        private       NetEvents.HttpRequestEvent event;
+        private       StaticFileCache.Conditions conditions;
 
-        public Http2ServerHandler(Path file) {
-            this.file = file;
+        public Http2ServerHandler(StaticFileCache cache, String altSvc, UploadStore uploads) {
+            this.cache = cache;
+            this.altSvc = altSvc;
+            this.uploads = uploads;
         }
 
         @Override
@@ -127,12 +249,24 @@ public class PseudHttp2Daemon {
         public void channelInactive(ChannelHandlerContext ctx) {
             logger.info("Client disconnected: " + ctx.channel()
                                                      .remoteAddress());
+            // 後ろに追加したアップロードのハンドラーにもストリームの終了を伝える
+            ctx.fireChannelInactive();
         }
 
         @Override
         protected void channelRead0(ChannelHandlerContext ctx, Http2HeadersFrame headersFrame) {
             logger.info("HTTP/2 request received: " + headersFrame.headers()
                                                                   .path());
+            event = NetEvents.beginRequest(
+                    "PseudHttp2Daemon",
+                    "HTTP/2",
+                    headersFrame.headers().method(),
+                    headersFrame.headers().path());
+            if (uploads != null && uploads.accepts(headersFrame.headers().method(), headersFrame.headers().path())) {
+                beginUpload(ctx, headersFrame);
+                return;
+            }
+            conditions = StaticFileCache.Conditions.of(headersFrame.headers());
             if (headersFrame.isEndStream()) {
                 sendResponse(ctx);
             } else {
@@ -154,30 +288,167 @@ public class PseudHttp2Daemon {
             }
         }
 
+        /**
+         * ボディの DATA フレームを {@link UploadStore} へ流し込みます。
+         *
+         * <p>
+         * 子チャネルは読み込んだ DATA フレームの分だけ WINDOW_UPDATE を送るため、ディスクへの書き込みが追いつかずに
+         * {@link UploadStore.Upload} が子チャネルの読み込みを止めている間は、クライアントのウィンドウが回復しません。
+         * </p>
+         */
+        private void beginUpload(ChannelHandlerContext ctx, Http2HeadersFrame headersFrame) {
+            CharSequence path = headersFrame.headers().path();
+            Path target = uploads.target(path);
+            if (target == null) {
+                sendStatus(ctx, HttpResponseStatus.BAD_REQUEST);
+                return;
+            }
+            CharSequence contentLength = headersFrame.headers().get(HttpHeaderNames.CONTENT_LENGTH);
+            if (contentLength != null && uploads.tooLarge(Long.parseLong(contentLength.toString()))) {
+                sendStatus(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+                return;
+            }
+            UploadStore.Upload upload = uploads.begin(target, ctx.channel());
+            if (headersFrame.isEndStream()) {
+                endUpload(ctx, upload, path);
+                return;
+            }
+            ctx.pipeline()
+               .addLast(new SimpleChannelInboundHandler<Http2DataFrame>() {
+                   @Override
+                   protected void channelRead0(ChannelHandlerContext ctx, Http2DataFrame dataFrame) {
+                       if (! upload.write(dataFrame.content())) {
+                           upload.abort();
+                           sendStatus(ctx, HttpResponseStatus.REQUEST_ENTITY_TOO_LARGE);
+                           return;
+                       }
+                       if (dataFrame.isEndStream()) {
+                           endUpload(ctx, upload, path);
+                       }
+                   }
+
+                   @Override
+                   public void channelInactive(ChannelHandlerContext ctx) {
+                       // ストリームがリセットされた場合は書きかけのファイルを削除する
+                       upload.abort();
+                       ctx.fireChannelInactive();
+                   }
+
+                   @Override
+                   public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+                       logger.log(Level.SEVERE, "Handler error", cause);
+                       ctx.close();
+                   }
+               });
+        }
+
+        private void endUpload(ChannelHandlerContext ctx, UploadStore.Upload upload, CharSequence path) {
+            upload.end().addListener((Future<Long> f) -> {
+                if (! f.isSuccess()) {
+                    logger.log(Level.SEVERE, "Upload failed: " + path, f.cause());
+                    sendStatus(ctx, HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                    return;
+                }
+                Http2Headers headers = new DefaultHttp2Headers()
+                        .status(HttpResponseStatus.CREATED.codeAsText())
+                        .set(HttpHeaderNames.LOCATION, path);
+                ChannelFuture created = ctx.writeAndFlush(new DefaultHttp2HeadersFrame(headers, true));
+                NetEvents.endRequest(event, created, HttpResponseStatus.CREATED.code(), f.getNow());
+                created.addListener(ChannelFutureListener.CLOSE);
+            });
+        }
+
+        private void sendStatus(ChannelHandlerContext ctx, HttpResponseStatus status) {
+            Http2Headers headers = new DefaultHttp2Headers().status(status.codeAsText());
+            ChannelFuture f = ctx.writeAndFlush(new DefaultHttp2HeadersFrame(headers, true));
+            NetEvents.endRequest(event, f, status.code(), 0);
+            // 受信途中のボディは読まずにストリームをリセットする
+            f.addListener(ChannelFutureListener.CLOSE);
+        }
+
         private void sendResponse(ChannelHandlerContext ctx) {
-            try {
-                byte[] content = Files.readAllBytes(file);
+            // 範囲はファイルから読むため、Range のリクエストは確認の間隔を待たずに版を確かめる
+            StaticFileCache.Entry entry = conditions.range() == null ? cache.current(ctx.executor()) : null;
+            if (entry != null) {
+                sendFile(ctx, entry);
+                return;
+            }
+            // ファイルの確認と読み込みはイベントループを止めないよう別スレッドで行い、結果はイベントループで書き込む
+            cache.load(ctx.executor())
+                 .addListener((Future<StaticFileCache.Entry> f) -> {
+                     if (f.isSuccess()) {
+                         sendFile(ctx, f.getNow());
+                     } else {
+                         logger.log(Level.SEVERE, "File read error", f.cause());
+                         Http2Headers headers = new DefaultHttp2Headers().status(
+                                 HttpResponseStatus.INTERNAL_SERVER_ERROR.codeAsText());
+                         ChannelFuture error = ctx.writeAndFlush(new DefaultHttp2HeadersFrame(headers, true));
+                         NetEvents.endRequest(
+                                 event,
+                                 error,
+                                 HttpResponseStatus.INTERNAL_SERVER_ERROR.code(),
+                                 0);
+                         error.addListener(ChannelFutureListener.CLOSE);
+                     }
+                 });
+        }
+
+        private void sendFile(ChannelHandlerContext ctx, StaticFileCache.Entry entry) {
+            if (entry.notModified(conditions.ifNoneMatch(), conditions.ifModifiedSince())) {
+                Http2Headers headers = validators(entry, HttpResponseStatus.NOT_MODIFIED);
+                complete(ctx.writeAndFlush(new DefaultHttp2HeadersFrame(headers, true)), HttpResponseStatus.NOT_MODIFIED, 0);
+                return;
+            }
+            List<ByteRanges.Range> ranges = entry.ranges(conditions.range(), conditions.ifRange());
+            if (ranges == null) {
+                Http2Headers headers = validators(entry, HttpResponseStatus.OK)
+                        .set(HttpHeaderNames.CONTENT_TYPE, entry.contentType())
+                        .setInt(HttpHeaderNames.CONTENT_LENGTH, entry.contentLength())
+                        .set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+                if (conditions.head()) {
+                    complete(ctx.writeAndFlush(new DefaultHttp2HeadersFrame(headers, true)), HttpResponseStatus.OK, 0);
+                    return;
+                }
+                ctx.write(new DefaultHttp2HeadersFrame(headers));
+                ChannelFuture f = ctx.writeAndFlush(new DefaultHttp2DataFrame(entry.retainedContent(), true));
+                complete(f, HttpResponseStatus.OK, entry.contentLength());
+            } else if (ranges.isEmpty()) {
                 Http2Headers headers = new DefaultHttp2Headers()
-                        .status(HttpResponseStatus.OK.codeAsText())
-                        .set(
-                                HttpHeaderNames.CONTENT_TYPE,
-                                Files.probeContentType(file))
-                        .setInt(HttpHeaderNames.CONTENT_LENGTH, content.length);
+                        .status(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE.codeAsText())
+                        .set(HttpHeaderNames.CONTENT_RANGE, ByteRanges.unsatisfiedRange(entry.contentLength()));
+                complete(ctx.writeAndFlush(new DefaultHttp2HeadersFrame(headers, true)),
+                         HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, 0);
+            } else {
+                ByteRanges.Body body = entry.newRangeBody(ranges);
+                Http2Headers headers = validators(entry, HttpResponseStatus.PARTIAL_CONTENT)
+                        .set(HttpHeaderNames.CONTENT_TYPE, body.contentType())
+                        .setLong(HttpHeaderNames.CONTENT_LENGTH, body.contentLength())
+                        .set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+                if (body.contentRange() != null) {
+                    headers.set(HttpHeaderNames.CONTENT_RANGE, body.contentRange());
+                }
                 ctx.write(new DefaultHttp2HeadersFrame(headers));
+                Http2FrameStream stream = ((Http2StreamChannel) ctx.channel()).stream();
+                ChannelFuture f = ctx.writeAndFlush(new Http2DataChunkedInput(body.newChunkedInput(), stream));
+                complete(f, HttpResponseStatus.PARTIAL_CONTENT, body.contentLength());
+            }
+        }
 
-                DefaultHttp2DataFrame dataFrame = new DefaultHttp2DataFrame(
-                        Unpooled.copiedBuffer(content),
-                        true);
-                ctx.writeAndFlush(dataFrame)
-                   .addListener(ChannelFutureListener.CLOSE);
-                logger.info("HTTP/2 response sent");
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "File read error", e);
-                Http2Headers headers = new DefaultHttp2Headers().status(
-                        HttpResponseStatus.INTERNAL_SERVER_ERROR.codeAsText());
-                ctx.writeAndFlush(new DefaultHttp2HeadersFrame(headers, true))
-                   .addListener(ChannelFutureListener.CLOSE);
+        private Http2Headers validators(StaticFileCache.Entry entry, HttpResponseStatus status) {
+            Http2Headers headers = new DefaultHttp2Headers()
+                    .status(status.codeAsText())
+                    .set(HttpHeaderNames.ETAG, entry.etag())
+                    .set(HttpHeaderNames.LAST_MODIFIED, entry.lastModified());
+            if (altSvc != null) {
+                headers.set(HttpHeaderNames.ALT_SVC, altSvc);
             }
+            return headers;
+        }
+
+        private void complete(ChannelFuture f, HttpResponseStatus status, long contentLength) {
+            NetEvents.endRequest(event, f, status.code(), contentLength);
+            f.addListener(ChannelFutureListener.CLOSE);
+            logger.info("HTTP/2 response sent");
         }
 
         @Override
@@ -187,11 +458,17 @@ public class PseudHttp2Daemon {
         }
     }
 
-    private static class Http1ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
-        private final Path file;
+    /**
+     * ALPN で HTTP/1.1 を選んだ接続に静的ファイルを返すハンドラー。
+     * レスポンスは {@link StaticFileCache} のエントリから作ります。
+     */
+    static final class Http1ServerHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        private final StaticFileCache cache;
+        // 書き込みを待っている最後の応答。パイプライン化されたリクエストに、リクエストの順で応答するために使う
+        private       Future<Void>    pending;
 
-        public Http1ServerHandler(Path file) {
-            this.file = file;
+        Http1ServerHandler(StaticFileCache cache) {
+            this.cache = cache;
         }
 
         @Override
@@ -207,42 +484,105 @@ public class PseudHttp2Daemon {
 
         @Override
         protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
-            logger.info("HTTP/1.1 request received: " + request.uri());
-            try {
-                byte[] content = Files.readAllBytes(file);
-                FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
-                                                                        HttpResponseStatus.OK,
-                                                                        Unpooled.copiedBuffer(
-                                                                                content));
-                response.headers()
-                        .set(
-                                HttpHeaderNames.CONTENT_TYPE,
-                                Files.probeContentType(file));
-                response.headers()
-                        .set(
-                                HttpHeaderNames.CONTENT_LENGTH,
-                                response.content().readableBytes());
-                response.headers()
-                        .set(
-                                HttpHeaderNames.CONNECTION,
-                                HttpHeaderValues.CLOSE);
-
-                ctx.writeAndFlush(response)
-                   .addListener(ChannelFutureListener.CLOSE);
-                logger.info("HTTP/1.1 response sent for request: " + request.uri());
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "File read error", e);
-                FullHttpResponse response = new DefaultFullHttpResponse(
-                        HttpVersion.HTTP_1_1,
-                        HttpResponseStatus.INTERNAL_SERVER_ERROR);
-                ctx.writeAndFlush(response)
-                   .addListener(ChannelFutureListener.CLOSE);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("HTTP/1.1 request received: " + request.uri());
+            }
+            NetEvents.HttpRequestEvent event = NetEvents.beginRequest(
+                    "PseudHttp2Daemon", "HTTP/1.1", request.method().name(), request.uri());
+            boolean keepAlive = HttpUtil.isKeepAlive(request);
+            StaticFileCache.Conditions conditions = StaticFileCache.Conditions.of(request);
+            // 範囲はファイルから読むため、Range のリクエストは確認の間隔を待たずに版を確かめる
+            StaticFileCache.Entry entry = conditions.range() == null ? cache.current(ctx.executor()) : null;
+            if (entry != null && pending == null) {
+                sendFile(ctx, entry, conditions, keepAlive, event);
+                return;
+            }
+            // ファイルの確認と読み込みはイベントループを止めないよう別スレッドで行い、結果はイベントループで書き込む
+            Future<StaticFileCache.Entry> loaded =
+                    entry != null ? ctx.executor().newSucceededFuture(entry) : cache.load(ctx.executor());
+            // 確認の完了はリクエストの順とは限らないため、前の応答を書き込んでから書き込む
+            Promise<Void> written = ctx.executor().newPromise();
+            Future<?> previous = pending != null ? pending : ctx.executor().newSucceededFuture(null);
+            pending = written;
+            previous.addListener(p -> loaded.addListener((Future<StaticFileCache.Entry> f) -> {
+                if (f.isSuccess()) {
+                    sendFile(ctx, f.getNow(), conditions, keepAlive, event);
+                } else {
+                    logger.log(Level.SEVERE, "File read error", f.cause());
+                    FullHttpResponse response = new DefaultFullHttpResponse(
+                            HttpVersion.HTTP_1_1,
+                            HttpResponseStatus.INTERNAL_SERVER_ERROR);
+                    ChannelFuture error = ctx.writeAndFlush(response);
+                    NetEvents.endRequest(event, error, HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), 0);
+                    error.addListener(ChannelFutureListener.CLOSE);
+                }
+                if (pending == written) {
+                    pending = null;
+                }
+                written.setSuccess(null);
+            }));
+        }
+
+        private void sendFile(
+                ChannelHandlerContext ctx,
+                StaticFileCache.Entry entry,
+                StaticFileCache.Conditions conditions,
+                boolean keepAlive,
+                NetEvents.HttpRequestEvent event) {
+            if (conditions == StaticFileCache.Conditions.NONE) {
+                if (keepAlive && event == null) {
+                    ctx.writeAndFlush(entry.newResponse(true), ctx.voidPromise());
+                    return;
+                }
+                complete(ctx.writeAndFlush(entry.newResponse(keepAlive)), HttpResponseStatus.OK, entry.contentLength(),
+                         keepAlive, event);
+                return;
+            }
+            if (entry.notModified(conditions.ifNoneMatch(), conditions.ifModifiedSince())) {
+                complete(ctx.writeAndFlush(entry.newNotModifiedResponse(keepAlive)), HttpResponseStatus.NOT_MODIFIED, 0,
+                         keepAlive, event);
+                return;
+            }
+            if (conditions.head()) {
+                complete(ctx.writeAndFlush(entry.newHeadResponse(keepAlive)), HttpResponseStatus.OK, 0, keepAlive, event);
+                return;
+            }
+            List<ByteRanges.Range> ranges = entry.ranges(conditions.range(), conditions.ifRange());
+            if (ranges == null) {
+                complete(ctx.writeAndFlush(entry.newResponse(keepAlive)), HttpResponseStatus.OK, entry.contentLength(),
+                         keepAlive, event);
+            } else if (ranges.isEmpty()) {
+                complete(ctx.writeAndFlush(entry.newRangeNotSatisfiableResponse(keepAlive)),
+                         HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, 0, keepAlive, event);
+            } else {
+                // TLS で暗号化するため sendfile は使えない。範囲はファイルから送信用のバッファへ直接読み込む
+                ByteRanges.Body body = entry.newRangeBody(ranges);
+                ctx.write(entry.newPartialResponse(body, keepAlive), ctx.voidPromise());
+                complete(ctx.writeAndFlush(new HttpChunkedInput(body.newChunkedInput())),
+                         HttpResponseStatus.PARTIAL_CONTENT, body.contentLength(), keepAlive, event);
+            }
+        }
+
+        private void complete(
+                ChannelFuture f,
+                HttpResponseStatus status,
+                long contentLength,
+                boolean keepAlive,
+                NetEvents.HttpRequestEvent event) {
+            NetEvents.endRequest(event, f, status.code(), contentLength);
+            if (! keepAlive) {
+                f.addListener(ChannelFutureListener.CLOSE);
             }
         }
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            logger.log(Level.SEVERE, "Handler error", cause);
+            if (cause instanceof ClosedChannelException) {
+                // 切断 (ConnectionReaper による切断を含む) で送信待ちの void promise の書き込みが失敗した
+                logger.log(Level.FINE, "Write on closed channel", cause);
+            } else {
+                logger.log(Level.SEVERE, "Handler error", cause);
+            }
             ctx.close();
         }
     }
@@ -1,19 +1,24 @@
 package networkProgramming;
 
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
+import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.http.*;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
 import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
 
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -21,9 +26,16 @@ public class PseudHttpDaemon {
 
     private static final Logger logger = Logger.getLogger(PseudHttpDaemon.class.getName());
 
+    private ChannelGroup tracked;
+
     public static void main(String[] args) {
+        if (args.length == 2 && args[0].equals("--proxy")) {
+            new PseudHttpDaemon().startProxy(8080, ProxyRoutes.parse(args[1]));
+            return;
+        }
         if (args.length != 1) {
             logger.severe("Usage: java PseudHttpDaemon <filename>");
+            logger.severe("       java PseudHttpDaemon --proxy <prefix=host:port>[,<prefix=host:port>...]");
             System.exit(1);
         }
 
@@ -38,44 +50,269 @@ public class PseudHttpDaemon {
     }
 
     private void startServer(int port, Path file) {
+        // http.engine=virtual の場合は、Netty の代わりに仮想スレッドのブロッキングのサーバーで配信する
+        if (System.getProperty("http.engine", "netty").equals("virtual")) {
+            startVirtualThreadServer(port, file);
+            return;
+        }
         EventLoopGroup bossGroup = new NioEventLoopGroup();
         EventLoopGroup workerGroup = new NioEventLoopGroup();
+        EventLoopWatchdog.shared().watch(bossGroup);
+        EventLoopWatchdog.shared().watch(workerGroup);
+        BlockingIoExecutor ioExecutor = BlockingIoExecutor.fromSystemProperties("http-file-io");
 
         try {
-            ServerBootstrap b = new ServerBootstrap();
-            b.group(bossGroup, workerGroup)
-             .channel(NioServerSocketChannel.class)
-             .handler(new LoggingHandler(LogLevel.INFO))
-             .childHandler(new ChannelInitializer<SocketChannel>() {
-                 @Override
-                 public void initChannel(SocketChannel ch) {
-                     ch.pipeline().addLast(new LoggingHandler(LogLevel.INFO));
-                     ch.pipeline().addLast(new HttpRequestDecoder());
-                     ch.pipeline().addLast(new HttpObjectAggregator(65536));
-                     ch.pipeline().addLast(new HttpResponseEncoder());
-                     ch.pipeline().addLast(new ChunkedWriteHandler());
-                     ch.pipeline().addLast(new HttpServerHandler(file));
-                 }
-             })
-             .option(ChannelOption.SO_BACKLOG, 128)
-             .childOption(ChannelOption.SO_KEEPALIVE, true);
-
-            ChannelFuture f = b.bind(port).sync();
+            Channel channel = bind(bossGroup, workerGroup, port, file, ioExecutor);
             logger.info("Server started on port: " + port);
-            f.channel().closeFuture().sync();
+            AdminServer.bindFromSystemProperties(bossGroup, workerGroup);
+            channel.closeFuture().sync();
         } catch (InterruptedException e) {
             logger.log(Level.SEVERE, "Server interrupted", e);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Server error", e);
         } finally {
             workerGroup.shutdownGracefully();
             bossGroup.shutdownGracefully();
+            ioExecutor.shutdown();
+        }
+    }
+
+    private void startVirtualThreadServer(int port, Path file) {
+        try (VirtualThreadHttpServer server = new VirtualThreadHttpServer(file)) {
+            server.bind(port);
+            logger.info("Server started on port: " + port + " (virtual threads)");
+            server.awaitClose();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Server interrupted", e);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Server error", e);
         }
     }
 
-    private static class HttpServerHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
-        private final Path file;
+    /**
+     * 受け付けた接続を追加するグループを設定します。静的ファイルの配信とリバースプロキシのどちらにも使い、バインドより前に呼び出します。
+     *
+     * @param group 接続を追加するグループ。閉じた接続はグループから自動的に取り除かれます
+     * @return このサーバー
+     */
+    PseudHttpDaemon trackConnections(ChannelGroup group) {
+        this.tracked = group;
+        return this;
+    }
+
+    /**
+     * 静的ファイルを配信するサーバーとして待ち受けます。
+     * {@code upload.dir} を設定した場合は、{@link UploadStore} へのアップロードも受け付けます。
+     * {@code uds.http} を設定した場合は、{@link DomainSockets} でドメインソケットでも待ち受けます。
+     * {@code http.fastGet} を true にした場合は、ボディのない GET と HEAD を {@link StaticGetDecoder} で解析し、
+     * それ以外のリクエストが来た接続だけを標準のデコーダーで処理します。
+     * 接続は {@link ConnectionRegistry#shared()} に登録し、{@code shaping.http.*} を設定した場合は
+     * {@link TrafficShaping} で帯域を制限します。
+     * {@code warmup.enabled} を true にした場合は、待ち受ける前に {@link JitWarmup} でウォームアップします。
+     *
+     * @param bossGroup   接続を受け付けるイベントループグループ
+     * @param workerGroup 接続を処理するイベントループグループ
+     * @param port        待ち受けるポート番号 (0 の場合は空いているポート)
+     * @param file        配信するファイル
+     * @param ioExecutor  ファイルを読み込む実行器
+     * @return 待ち受けているサーバーチャネル
+     * @throws InterruptedException バインド待ちの間に割り込まれた場合
+     * @throws IOException          アップロード先のディレクトリを作成できない場合、
+     *                              またはドメインソケットのパスにソケット以外のファイルがある場合
+     */
+    Channel bind(EventLoopGroup bossGroup, EventLoopGroup workerGroup, int port, Path file, BlockingIoExecutor ioExecutor)
+            throws InterruptedException, IOException {
+        AdmissionController admission = AdmissionController.fromSystemProperties();
+        AdmissionControlHandler admissionHandler = AdmissionControlHandler.forHttp(admission);
+        HttpRateLimitHandler rateLimitHandler = new HttpRateLimitHandler(admission);
+        StaticFileCache cache = StaticFileCache.fromSystemProperties(file, ioExecutor, null);
+        ConnectionReaper reaper = ConnectionReaper.fromSystemProperties("http");
+        UploadStore uploads = UploadStore.fromSystemProperties(ioExecutor);
+        boolean fastGet = Boolean.getBoolean("http.fastGet");
+        ChannelHandler registryHandler = ConnectionRegistry.shared().newHandler("http", "http/1.1");
+        TrafficShaping shaping = TrafficShaping.fromSystemProperties("http", workerGroup);
 
-        public HttpServerHandler(Path file) {
-            this.file = file;
+        admission.startExpiry(workerGroup);
+        ioExecutor.logStatsPeriodically(workerGroup.next(), 60, TimeUnit.SECONDS);
+        if (uploads != null) {
+            uploads.logStatsPeriodically(workerGroup.next(), 60, TimeUnit.SECONDS);
+        }
+        reaper.logStatsPeriodically(60, TimeUnit.SECONDS);
+        shaping.logStatsPeriodically(workerGroup.next(), 60, TimeUnit.SECONDS);
+        ChannelInitializer<Channel> initializer = new ChannelInitializer<>() {
+            @Override
+            public void initChannel(Channel ch) {
+                if (tracked != null) {
+                    tracked.add(ch);
+                }
+                NetEvents.traceConnection(ch, "PseudHttpDaemon");
+                ch.pipeline().addLast(admissionHandler);
+                ch.pipeline().addLast(registryHandler);
+                ch.pipeline().addLast(reaper.newHandler());
+                shaping.addTo(ch.pipeline());
+                ch.pipeline().addLast(new LoggingHandler(LogLevel.DEBUG));
+                if (fastGet) {
+                    ch.pipeline().addLast(new StaticGetDecoder());
+                }
+                ch.pipeline().addLast(new HttpRequestDecoder());
+                ch.pipeline().addLast(new HttpResponseEncoder());
+                ch.pipeline().addLast(new ChunkedWriteHandler());
+                ch.pipeline().addLast(rateLimitHandler);
+                if (uploads != null) {
+                    // アップロードのボディはまとめずにファイルへ流し込むため、アグリゲーターより前に置く
+                    ch.pipeline().addLast(new HttpUploadHandler(uploads, "PseudHttpDaemon"));
+                }
+                ch.pipeline().addLast(new HttpObjectAggregator(65536));
+                // FileRegion は帯域の制限で分けられないため、制限する場合は範囲をバッファで送る
+                ch.pipeline().addLast(new HttpServerHandler(cache, ! shaping.enabled()));
+            }
+        };
+        JitWarmup warmup = JitWarmup.fromSystemProperties();
+        if (warmup != null) {
+            warmup.run("http", initializer, JitWarmup.Protocol.HTTP_1_1);
+        }
+
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup)
+         .channel(NettyTransport.of(workerGroup).serverChannelClass())
+         .handler(new LoggingHandler(LogLevel.INFO))
+         .childHandler(initializer)
+         .option(ChannelOption.SO_BACKLOG, 128)
+         .childOption(ChannelOption.SO_KEEPALIVE, true);
+
+        Channel channel = bindAll(b, port, "http");
+        shaping.releaseOnClose(channel);
+        return channel;
+    }
+
+    private void startProxy(int port, ProxyRoutes routes) {
+        EventLoopGroup bossGroup = new NioEventLoopGroup();
+        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        EventLoopWatchdog.shared().watch(bossGroup);
+        EventLoopWatchdog.shared().watch(workerGroup);
+
+        try {
+            Channel channel = bindProxy(bossGroup, workerGroup, port, routes, new ProxyStats());
+            logger.info("Proxy started on port: " + port + ", routes: " + routes);
+            channel.closeFuture().sync();
+        } catch (InterruptedException e) {
+            logger.log(Level.SEVERE, "Proxy interrupted", e);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Proxy error", e);
+        } finally {
+            workerGroup.shutdownGracefully();
+            bossGroup.shutdownGracefully();
+        }
+    }
+
+    /**
+     * リバースプロキシとして待ち受けます。
+     *
+     * <p>
+     * 静的ファイルの配信と同じ受付制御とレート制限を適用したうえで、リクエストをパスに対応する上流へ転送します。
+     * 上流への接続はイベントループごとの {@link UpstreamPool} で再利用します。
+     * {@code uds.proxy} を設定した場合は、ドメインソケットでも待ち受けます。
+     * </p>
+     *
+     * @param bossGroup   接続を受け付けるイベントループグループ
+     * @param workerGroup 接続を処理するイベントループグループ
+     * @param port        待ち受けるポート番号 (0 の場合は空いているポート)
+     * @param routes      パスと上流の対応表
+     * @param stats       計測値の記録先
+     * @return 待ち受けているサーバーチャネル
+     * @throws InterruptedException バインド待ちの間に割り込まれた場合
+     * @throws IOException          ドメインソケットのパスにソケット以外のファイルがある場合
+     */
+    Channel bindProxy(EventLoopGroup bossGroup, EventLoopGroup workerGroup, int port, ProxyRoutes routes, ProxyStats stats)
+            throws InterruptedException, IOException {
+        AdmissionController admission = AdmissionController.fromSystemProperties();
+        AdmissionControlHandler admissionHandler = AdmissionControlHandler.forHttp(admission);
+        HttpRateLimitHandler rateLimitHandler = new HttpRateLimitHandler(admission);
+        UpstreamPool pool = new UpstreamPool(new ChannelInitializer<SocketChannel>() {
+            @Override
+            protected void initChannel(SocketChannel ch) {
+                ch.pipeline().addLast(new HttpClientCodec());
+                ch.pipeline().addLast(new ProxyFrontendHandler.UpstreamHandler());
+            }
+        }, stats);
+        ConnectionReaper reaper = ConnectionReaper.fromSystemProperties("proxy");
+
+        admission.startExpiry(workerGroup);
+        stats.logStatsPeriodically(workerGroup.next(), 60, TimeUnit.SECONDS);
+        reaper.logStatsPeriodically(60, TimeUnit.SECONDS);
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup)
+         .channel(NettyTransport.of(workerGroup).serverChannelClass())
+         .childHandler(new ChannelInitializer<Channel>() {
+             @Override
+             public void initChannel(Channel ch) {
+                 if (tracked != null) {
+                     tracked.add(ch);
+                 }
+                 NetEvents.traceConnection(ch, "PseudHttpDaemon");
+                 ch.pipeline().addLast(admissionHandler);
+                 ch.pipeline().addLast(reaper.newHandler());
+                 ch.pipeline().addLast(new HttpServerCodec());
+                 ch.pipeline().addLast(rateLimitHandler);
+                 ch.pipeline().addLast(new ProxyFrontendHandler(routes, pool, stats));
+             }
+         })
+         .option(ChannelOption.SO_BACKLOG, 1024)
+         .childOption(ChannelOption.SO_KEEPALIVE, true)
+         .childOption(ChannelOption.TCP_NODELAY, true);
+
+        return bindAll(b, port, "proxy");
+    }
+
+    /**
+     * TCP のポートで待ち受け、システムプロパティ {@code uds.<name>} を指定した場合はドメインソケットでも待ち受けます。
+     *
+     * @return TCP で待ち受けているサーバーチャネル。閉じるとドメインソケットの待ち受けも閉じます
+     */
+    private static Channel bindAll(ServerBootstrap b, int port, String name) throws InterruptedException, IOException {
+        Channel channel = b.bind(port).sync().channel();
+        Path domainSocket = DomainSockets.pathFromSystemProperties(name);
+        if (domainSocket != null) {
+            DomainSockets.bind(b, channel, domainSocket);
+        }
+        return channel;
+    }
+
+    /**
+     * 静的ファイルを返すハンドラー。
+     *
+     * <p>
+     * 定常状態では {@link StaticFileCache} のエントリからレスポンスを作り、ファイルの読み込み、ボディのコピー、
+     * ヘッダーの組み立てを行いません。リクエストごとのログは FINE で、無効な場合は文字列を組み立てません。
+     * </p>
+     *
+     * <p>
+     * If-None-Match と If-Modified-Since が今の版と一致すれば 304 を、Range があれば 206 を返します。
+     * 206 のボディは {@link ByteRanges.Body#writeRegions} でファイルの範囲から送ります。
+     * </p>
+     *
+     * <p>
+     * 標準のデコーダーが作る {@link FullHttpRequest} と、{@link StaticGetDecoder} が解析した
+     * {@link StaticGetDecoder.Request} のどちらも受け付けます。
+     * </p>
+     */
+    static final class HttpServerHandler extends SimpleChannelInboundHandler<FullHttpRequest> {
+        private final StaticFileCache cache;
+        private final boolean         sendfile;
+        // 書き込みを待っている最後の応答。パイプライン化されたリクエストに、リクエストの順で応答するために使う
+        private       Future<Void>    pending;
+
+        HttpServerHandler(StaticFileCache cache) {
+            this(cache, true);
+        }
+
+        /**
+         * @param cache    配信するファイルのキャッシュ
+         * @param sendfile 範囲を sendfile で送る場合は true、ファイルから読んだバッファで送る場合は false
+         */
+        HttpServerHandler(StaticFileCache cache, boolean sendfile) {
+            this.cache = cache;
+            this.sendfile = sendfile;
         }
 
         @Override
@@ -89,41 +326,136 @@ public class PseudHttpDaemon {
                                                      .remoteAddress());
         }
 
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+            if (msg instanceof StaticGetDecoder.Request request) {
+                serve(ctx, request.method().asciiName(), request.uri(), request.keepAlive(), request.conditions());
+                return;
+            }
+            super.channelRead(ctx, msg);
+        }
+
         @Override
         protected void channelRead0(ChannelHandlerContext ctx, FullHttpRequest request) {
-            logger.info("HTTP request received: " + request.uri());
-            try {
-                byte[] content = Files.readAllBytes(file);
-                FullHttpResponse response = new DefaultFullHttpResponse(
-                        HttpVersion.HTTP_1_1,
-                        HttpResponseStatus.OK,
-                        Unpooled.copiedBuffer(content));
-                response.headers().set(
-                        HttpHeaderNames.CONTENT_TYPE,
-                        Files.probeContentType(file));
-                response.headers().set(
-                        HttpHeaderNames.CONTENT_LENGTH,
-                        response.content().readableBytes());
-                response.headers().set(
-                        HttpHeaderNames.CONNECTION,
-                        HttpHeaderValues.KEEP_ALIVE);
-
-                ctx.writeAndFlush(response)
-                   .addListener(ChannelFutureListener.CLOSE);
-                logger.info("HTTP response sent for request: " + request.uri());
-            } catch (Exception e) {
-                logger.log(Level.SEVERE, "File read error", e);
-                FullHttpResponse response = new DefaultFullHttpResponse(
-                        HttpVersion.HTTP_1_1,
-                        HttpResponseStatus.INTERNAL_SERVER_ERROR);
-                ctx.writeAndFlush(response)
-                   .addListener(ChannelFutureListener.CLOSE);
+            serve(ctx,
+                  request.method().asciiName(),
+                  request.uri(),
+                  HttpUtil.isKeepAlive(request),
+                  StaticFileCache.Conditions.of(request));
+        }
+
+        private void serve(
+                ChannelHandlerContext ctx,
+                CharSequence method,
+                CharSequence uri,
+                boolean keepAlive,
+                StaticFileCache.Conditions conditions) {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("HTTP request received: " + uri);
             }
+            NetEvents.HttpRequestEvent event = NetEvents.beginRequest("PseudHttpDaemon", "HTTP/1.1", method, uri);
+            // 範囲はファイルから読むため、Range のリクエストは確認の間隔を待たずに版を確かめる
+            StaticFileCache.Entry entry = conditions.range() == null ? cache.current(ctx.executor()) : null;
+            if (entry != null && pending == null) {
+                sendFile(ctx, entry, conditions, keepAlive, event);
+                return;
+            }
+            // ファイルの確認と読み込みはイベントループを止めないよう別スレッドで行い、結果はイベントループで書き込む
+            Future<StaticFileCache.Entry> loaded =
+                    entry != null ? ctx.executor().newSucceededFuture(entry) : cache.load(ctx.executor());
+            // 確認の完了はリクエストの順とは限らないため、前の応答を書き込んでから書き込む
+            Promise<Void> written = ctx.executor().newPromise();
+            Future<?> previous = pending != null ? pending : ctx.executor().newSucceededFuture(null);
+            pending = written;
+            previous.addListener(p -> loaded.addListener((Future<StaticFileCache.Entry> f) -> {
+                if (f.isSuccess()) {
+                    sendFile(ctx, f.getNow(), conditions, keepAlive, event);
+                } else {
+                    logger.log(Level.SEVERE, "File read error", f.cause());
+                    sendError(ctx, event);
+                }
+                if (pending == written) {
+                    pending = null;
+                }
+                written.setSuccess(null);
+            }));
+        }
+
+        private void sendFile(
+                ChannelHandlerContext ctx,
+                StaticFileCache.Entry entry,
+                StaticFileCache.Conditions conditions,
+                boolean keepAlive,
+                NetEvents.HttpRequestEvent event) {
+            if (conditions == StaticFileCache.Conditions.NONE) {
+                if (keepAlive && event == null) {
+                    ctx.writeAndFlush(entry.newResponse(true), ctx.voidPromise());
+                    return;
+                }
+                complete(ctx.writeAndFlush(entry.newResponse(keepAlive)), HttpResponseStatus.OK, entry.contentLength(),
+                         keepAlive, event);
+                return;
+            }
+            if (entry.notModified(conditions.ifNoneMatch(), conditions.ifModifiedSince())) {
+                complete(ctx.writeAndFlush(entry.newNotModifiedResponse(keepAlive)), HttpResponseStatus.NOT_MODIFIED, 0,
+                         keepAlive, event);
+                return;
+            }
+            if (conditions.head()) {
+                complete(ctx.writeAndFlush(entry.newHeadResponse(keepAlive)), HttpResponseStatus.OK, 0, keepAlive, event);
+                return;
+            }
+            List<ByteRanges.Range> ranges = entry.ranges(conditions.range(), conditions.ifRange());
+            if (ranges == null) {
+                complete(ctx.writeAndFlush(entry.newResponse(keepAlive)), HttpResponseStatus.OK, entry.contentLength(),
+                         keepAlive, event);
+            } else if (ranges.isEmpty()) {
+                complete(ctx.writeAndFlush(entry.newRangeNotSatisfiableResponse(keepAlive)),
+                         HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, 0, keepAlive, event);
+            } else if (sendfile) {
+                // TLS を通らないため、範囲は sendfile でページキャッシュから送る
+                ByteRanges.Body body = entry.newRangeBody(ranges);
+                ctx.write(entry.newPartialResponse(body, keepAlive), ctx.voidPromise());
+                body.writeRegions(ctx);
+                complete(ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT), HttpResponseStatus.PARTIAL_CONTENT,
+                         body.contentLength(), keepAlive, event);
+            } else {
+                ByteRanges.Body body = entry.newRangeBody(ranges);
+                ctx.write(entry.newPartialResponse(body, keepAlive), ctx.voidPromise());
+                complete(ctx.writeAndFlush(new HttpChunkedInput(body.newChunkedInput())),
+                         HttpResponseStatus.PARTIAL_CONTENT, body.contentLength(), keepAlive, event);
+            }
+        }
+
+        private void complete(
+                ChannelFuture f,
+                HttpResponseStatus status,
+                long contentLength,
+                boolean keepAlive,
+                NetEvents.HttpRequestEvent event) {
+            NetEvents.endRequest(event, f, status.code(), contentLength);
+            if (! keepAlive) {
+                f.addListener(ChannelFutureListener.CLOSE);
+            }
+        }
+
+        private void sendError(ChannelHandlerContext ctx, NetEvents.HttpRequestEvent event) {
+            FullHttpResponse response = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.INTERNAL_SERVER_ERROR);
+            ChannelFuture f = ctx.writeAndFlush(response);
+            NetEvents.endRequest(event, f, HttpResponseStatus.INTERNAL_SERVER_ERROR.code(), 0);
+            f.addListener(ChannelFutureListener.CLOSE);
         }
 
         @Override
         public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
-            logger.log(Level.SEVERE, "Handler error", cause);
+            if (cause instanceof ClosedChannelException) {
+                // 切断 (ConnectionReaper による切断を含む) で送信待ちの void promise の書き込みが失敗した
+                logger.log(Level.FINE, "Write on closed channel", cause);
+            } else {
+                logger.log(Level.SEVERE, "Handler error", cause);
+            }
             ctx.close();
         }
     }
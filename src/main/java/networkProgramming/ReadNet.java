@@ -2,53 +2,304 @@ package networkProgramming;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
 
 /**
  * ReadNetクラスは指定されたホストとポートに接続し、ソケットからデータを読み取り、標準出力に書き込みます。
+ *
+ * <p>
+ * {@code -o <ファイル>} を指定すると受信モードになり、受信したデータを標準出力を経由せず
+ * 直接ファイルへ書き込みます。大きな受信バッファと進捗表示を備え、数GB規模の転送に使用できます。
+ * </p>
+ *
+ * <p>
+ * ホスト名とポートの代わりに {@code --unix <パス>} を指定すると、同じホストのサーバーへ Unix ドメインソケットで
+ * 接続します (サーバー側は {@link DomainSockets} を参照)。
+ * </p>
  */
 public class ReadNet {
+    private static final String USAGE_MESSAGE        = "使用方法: java ReadNet {<ホスト名> <ポート> | --unix <ソケットのパス>} [-o <出力ファイル> [--prealloc <バイト数>]]";
+    private static final int    RECEIVE_BUFFER_SIZE  = 8 * 1024 * 1024;
+    private static final int    TRANSFER_CHUNK_SIZE  = 1024 * 1024;
+    private static final long   PROGRESS_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
 
     /**
      * ネットワーク読み取り操作を実行するメインメソッド。
      *
      * @param args コマンドライン引数。args[0]はホスト名、args[1]はポート番号です。
+     *             ホスト名の代わりに {@code --unix} を指定すると、args[1]はドメインソケットのパスです。
+     *             続けて {@code -o <ファイル>} と {@code --prealloc <バイト数>} を指定できます。
      */
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.err.println("使用方法: java ReadNet <ホスト名> <ポート>");
+            System.err.println(USAGE_MESSAGE);
             System.exit(1);
         }
 
         String hostname = args[0];
-        int port;
+        SocketAddress address;
+
+        if (hostname.equals("--unix")) {
+            address = UnixDomainSocketAddress.of(args[1]);
+        } else {
+            try {
+                address = new InetSocketAddress(hostname, Integer.parseInt(args[1]));
+            } catch (NumberFormatException e) {
+                System.err.println("無効なポート番号: " + args[1]);
+                System.exit(1);
+                return; // このreturnは一部のIDEでの到達可能性の警告を回避するための冗長なものです
+            }
+        }
+
+        Path output = null;
+        long preallocate = 0;
+        for (int i = 2; i < args.length; i++) {
+            if (args[i].equals("-o") && i + 1 < args.length) {
+                output = Paths.get(args[++ i]);
+            } else if (args[i].equals("--prealloc") && i + 1 < args.length) {
+                try {
+                    preallocate = Long.parseLong(args[++ i]);
+                } catch (NumberFormatException e) {
+                    System.err.println("無効なサイズ: " + args[i]);
+                    System.exit(1);
+                }
+            } else {
+                System.err.println(USAGE_MESSAGE);
+                System.exit(1);
+            }
+        }
 
         try {
-            port = Integer.parseInt(args[1]);
-        } catch (NumberFormatException e) {
-            System.err.println("無効なポート番号: " + args[1]);
+            if (output != null) {
+                receiveToFile(address, output, preallocate);
+            } else {
+                copyToStdout(address);
+            }
+        } catch (UnresolvedAddressException e) {
+            System.err.println("未知のホスト: " + hostname);
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println("ネットワークエラー: " + e.getMessage());
             System.exit(1);
-            return; // このreturnは一部のIDEでの到達可能性の警告を回避するための冗長なものです
         }
+    }
 
+    /**
+     * 接続先に接続したブロッキングモードのソケットチャネルを開きます。
+     *
+     * @param address       接続先 (TCP のアドレスまたはドメインソケットのパス)
+     * @param receiveBuffer 接続前に設定する受信バッファのサイズ (0の場合は設定しない)
+     * @return 接続したチャネル
+     * @throws IOException 接続に失敗した場合
+     */
+    private static SocketChannel connect(SocketAddress address, int receiveBuffer) throws IOException {
+        SocketChannel socket = address instanceof UnixDomainSocketAddress
+                               ? SocketChannel.open(StandardProtocolFamily.UNIX)
+                               : SocketChannel.open();
+        try {
+            if (receiveBuffer > 0) {
+                socket.setOption(StandardSocketOptions.SO_RCVBUF, receiveBuffer);
+            }
+            socket.connect(address);
+            return socket;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * ソケットから読み取ったデータを標準出力へ書き込みます。
+     *
+     * @param address 接続先
+     * @throws IOException 入出力エラーが発生した場合
+     */
+    private static void copyToStdout(SocketAddress address)
+            throws IOException {
         byte[] buffer = new byte[1024];
 
-        try (Socket socket = new Socket(hostname, port);
-                InputStream inputStream = socket.getInputStream()
+        try (SocketChannel socket = connect(address, 0);
+                InputStream inputStream = Channels.newInputStream(socket)
         ) {
 
             int bytesRead;
             while ((bytesRead = inputStream.read(buffer)) != - 1) {
                 System.out.write(buffer, 0, bytesRead);
             }
+        }
+    }
 
-        } catch (UnknownHostException e) {
-            System.err.println("未知のホスト: " + hostname);
-            System.exit(1);
-        } catch (IOException e) {
-            System.err.println("ネットワークエラー: " + e.getMessage());
-            System.exit(1);
+    /**
+     * ソケットから受信したデータを指定されたファイルへ直接書き込みます。
+     *
+     * <p>
+     * {@link FileChannel#transferFrom} はソケットのようなファイル以外のチャネルに対しては
+     * 呼び出しごとに8KBのヒープバッファを確保してコピーするため、ここでは1MBのダイレクトバッファを
+     * 使い回し、位置指定書き込みでファイルへ書き出します。
+     * </p>
+     *
+     * @param address     接続先
+     * @param target      出力ファイル
+     * @param preallocate 事前に0を書き込んで確保するファイルサイズ (0の場合は確保しない)
+     * @throws IOException 入出力エラーが発生した場合
+     */
+    private static void receiveToFile(SocketAddress address, Path target, long preallocate)
+            throws IOException {
+        try (FileChannel file = FileChannel.open(
+                target,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)
+        ) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(TRANSFER_CHUNK_SIZE);
+            if (preallocate > 0) {
+                // 接続前に確保する。接続後に確保すると、その間に相手の送信が受信バッファを埋めて止まり、
+                // 表示するスループットが下がる。受信前のバッファは0で埋まっているため、そのまま書き込みに使う
+                preallocate(file, buffer, preallocate);
+            }
+            // ウィンドウスケーリングを有効にするため、接続前に受信バッファを設定する
+            try (SocketChannel socket = connect(address, RECEIVE_BUFFER_SIZE)) {
+                receive(socket, file, buffer);
+            }
+        }
+    }
+
+    /**
+     * ソケットから終わりまで受信し、ファイルの先頭から書き込みます。確保した領域が余った場合は切り詰めます。
+     *
+     * @param socket 接続したソケット
+     * @param file   出力先ファイル
+     * @param buffer 受信に使うバッファ
+     * @throws IOException 入出力エラーが発生した場合
+     */
+    private static void receive(SocketChannel socket, FileChannel file, ByteBuffer buffer) throws IOException {
+        ProgressReporter progress = new ProgressReporter(System.err);
+        long position = 0;
+        while (socket.read(buffer) != - 1) {
+            if (buffer.position() < buffer.capacity() / 2) {
+                // 半分以上溜まるまで読み続け、書き込みのシステムコール回数を減らす
+                continue;
+            }
+            position += drain(buffer, file, position);
+            progress.update(position);
+        }
+        position += drain(buffer, file, position);
+
+        if (file.size() > position) {
+            file.truncate(position);
+        }
+        progress.finish(position);
+    }
+
+    /**
+     * ファイルの先頭から指定されたサイズまで0を書き込み、ディスクの領域を確保します。
+     *
+     * <p>
+     * 末尾の1バイトだけを書き込むと、ほとんどのファイルシステムでは穴の空いた (スパースな) ファイルになり、
+     * 領域は確保されません。0を書き込むとディスクへの書き込みが1回分増えますが、容量が足りない場合は
+     * 受信を始める前に失敗し、受信中のブロックの割り当ても減ります。{@link SegmentedDownloader} も使います。
+     * </p>
+     *
+     * @param file  出力先ファイル
+     * @param zeros 0で埋まったバッファ。呼び出し後はクリアした状態で返す
+     * @param size  確保するバイト数
+     * @throws IOException 入出力エラーが発生した場合 (容量が足りない場合を含む)
+     */
+    static void preallocate(FileChannel file, ByteBuffer zeros, long size) throws IOException {
+        long position = 0;
+        while (position < size) {
+            zeros.clear().limit((int) Math.min(zeros.capacity(), size - position));
+            while (zeros.hasRemaining()) {
+                position += file.write(zeros, position);
+            }
+        }
+        zeros.clear();
+    }
+
+    /**
+     * バッファに溜まったデータを指定された位置からファイルへ書き込みます。
+     *
+     * @param buffer   書き込むデータを保持するバッファ
+     * @param file     出力先ファイル
+     * @param position 書き込み開始位置
+     * @return 書き込んだバイト数
+     * @throws IOException 入出力エラーが発生した場合
+     */
+    private static long drain(ByteBuffer buffer, FileChannel file, long position)
+            throws IOException {
+        buffer.flip();
+        long written = 0;
+        while (buffer.hasRemaining()) {
+            written += file.write(buffer, position + written);
+        }
+        buffer.clear();
+        return written;
+    }
+
+    /**
+     * 受信の進捗とスループットを定期的に出力するクラス。
+     */
+    private static final class ProgressReporter {
+        private final PrintStream out;
+        private final long        startNanos;
+        private       long        lastNanos;
+        private       long        lastBytes;
+
+        ProgressReporter(PrintStream out) {
+            this.out = out;
+            this.startNanos = System.nanoTime();
+            this.lastNanos = startNanos;
+        }
+
+        /**
+         * 前回の出力から一定時間が経過していれば進捗を出力します。
+         *
+         * @param totalBytes これまでに受信した総バイト数
+         */
+        void update(long totalBytes) {
+            long now = System.nanoTime();
+            if (now - lastNanos < PROGRESS_INTERVAL_NS) {
+                return;
+            }
+            out.printf(
+                    "受信済み: %,d バイト  現在: %.1f MB/s  平均: %.1f MB/s%n",
+                    totalBytes,
+                    megabytesPerSecond(totalBytes - lastBytes, now - lastNanos),
+                    megabytesPerSecond(totalBytes, now - startNanos));
+            lastNanos = now;
+            lastBytes = totalBytes;
+        }
+
+        /**
+         * 受信完了時の集計を出力します。
+         *
+         * @param totalBytes 受信した総バイト数
+         */
+        void finish(long totalBytes) {
+            long elapsed = System.nanoTime() - startNanos;
+            out.printf(
+                    "完了: %,d バイト  %.2f 秒  平均: %.1f MB/s%n",
+                    totalBytes,
+                    elapsed / 1e9,
+                    megabytesPerSecond(totalBytes, elapsed));
+        }
+
+        private static double megabytesPerSecond(long bytes, long nanos) {
+            return nanos == 0 ? 0 : bytes / 1e6 / (nanos / 1e9);
         }
     }
 }
@@ -0,0 +1,516 @@
+package networkProgramming;
+
+import networkProgramming.HttpClientConnection.HttpResponseHead;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 1つの大きなファイルを、Range リクエストで分割して複数の接続から並列にダウンロードするクラス。
+ *
+ * <p>
+ * 最初に HEAD でサイズと {@code Accept-Ranges: bytes} を確認し、ボディを最大 {@code segments} 個の範囲に分けます。
+ * 各範囲は {@link HttpConnectionPool} の別々の接続から {@code Range} と {@code If-Range} 付きの GET で取得し、
+ * あらかじめ0で埋めて領域を確保した一時ファイル ({@code <出力ファイル>.part}) の対応する位置へ、位置指定の
+ * {@link FileChannel#write(ByteBuffer, long)} で直接書き込みます。RTT の長い経路でも、接続ごとの
+ * 輻輳ウィンドウの上限に縛られずに帯域を使えます。
+ * </p>
+ *
+ * <p>
+ * サーバーが範囲に対応していない場合 (Accept-Ranges がない、サイズが不明、206 以外を返した) は、1つの接続で
+ * 全体を取得します。受信したバイト数が Content-Length と一致することを確かめてから、一時ファイルを出力ファイルへ
+ * 名前を変えて置き換えます。
+ * </p>
+ *
+ * <p>
+ * 範囲ごとの進捗は、約1秒ごとに一時ファイルを {@link FileChannel#force} してから状態ファイル
+ * ({@code <出力ファイル>.download}) に記録します。中断した後に同じ URL と出力ファイルで再実行すると、サイズと
+ * バリデーター (強い ETag または Last-Modified) が変わっていなければ、各範囲の続きから取得します。
+ * バリデーターがないリソースは再開しません。範囲の取得に失敗した場合は、同じ範囲の続きから
+ * {@value #MAX_ATTEMPTS} 回まで試します。
+ * </p>
+ */
+final class SegmentedDownloader {
+    private static final Map<String, String> REQUEST_HEADERS     = Map.of(
+            "User-Agent", "WrnNet",
+            "Accept-Encoding", "identity");
+    private static final int                 BUFFER_SIZE         = 256 * 1024;
+    private static final int                 MAX_ATTEMPTS        = 3;
+    private static final long                SAVE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final HttpConnectionPool pool;
+    private final int                segments;
+    private final long               minSegmentBytes;
+    private final AtomicLong         received = new AtomicLong();
+
+    /**
+     * ダウンローダーを作成します。
+     *
+     * @param pool            使用する接続プール。ホストごとの接続数は {@code segments} 以上にしてください
+     * @param segments        並列に取得する範囲の最大数
+     * @param minSegmentBytes 1つの範囲の最小サイズ。小さいファイルは範囲の数を減らします
+     */
+    SegmentedDownloader(HttpConnectionPool pool, int segments, long minSegmentBytes) {
+        this.pool = pool;
+        this.segments = Math.max(segments, 1);
+        this.minSegmentBytes = Math.max(minSegmentBytes, 1);
+    }
+
+    /**
+     * URL の内容を出力ファイルへダウンロードし、完了後に集計を標準エラー出力に表示します。
+     *
+     * @param uri    取得する URL
+     * @param target 出力ファイル
+     * @throws IOException          通信、書き込み、長さの検証に失敗した場合。範囲の取得に失敗した場合は
+     *                              状態ファイルを残すため、再実行すると続きから再開します
+     * @throws InterruptedException 接続の取得待ちの間に割り込まれた場合
+     */
+    void download(URI uri, Path target) throws IOException, InterruptedException {
+        Target t = Target.of(uri);
+        Path part = target.resolveSibling(target.getFileName() + ".part");
+        Path statePath = target.resolveSibling(target.getFileName() + ".download");
+        long start = System.nanoTime();
+
+        Probe probe = probe(t);
+        String mode;
+        long length;
+        long resumed = 0;
+        if (probe.acceptsRanges() && probe.length() > 0) {
+            DownloadState state = DownloadState.load(statePath, uri.toString(), probe, part);
+            if (state != null) {
+                resumed = state.completedBytes();
+                System.err.printf("再開: %,d / %,d バイト取得済み%n", resumed, probe.length());
+            } else {
+                state = DownloadState.create(statePath, uri.toString(), probe, split(probe.length()));
+            }
+            try {
+                fetchSegments(t, part, state, resumed > 0);
+                mode = "範囲 " + state.segmentCount() + " 個";
+            } catch (RangeNotHonoredException e) {
+                System.err.println("範囲リクエストに対応していないため、1つの接続で取得します: " + e.getMessage());
+                Files.deleteIfExists(statePath);
+                received.set(0);
+                resumed = 0;
+                fetchSingle(t, part, probe.length());
+                mode = "単一接続";
+            }
+            length = probe.length();
+        } else {
+            length = fetchSingle(t, part, probe.length());
+            mode = "単一接続";
+        }
+
+        try (FileChannel file = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            if (file.size() != length) {
+                throw new IOException("長さが一致しません: " + file.size() + " != " + length);
+            }
+            file.force(true);
+        }
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(statePath);
+
+        long elapsed = System.nanoTime() - start;
+        System.err.printf(
+                "完了: %,d バイト  %.2f 秒  %.1f MB/s  (%s、再開 %,d バイト、接続 %d)%n",
+                length,
+                elapsed / 1e9,
+                received.get() / 1e6 / (elapsed / 1e9),
+                mode,
+                resumed,
+                pool.connectionsOpened());
+    }
+
+    /**
+     * HEAD でサイズ、範囲リクエストへの対応、バリデーターを確認します。HEAD が失敗した場合は範囲を使いません。
+     */
+    private Probe probe(Target t) throws IOException, InterruptedException {
+        HttpClientConnection connection = pool.acquire(t.scheme(), t.host(), t.port());
+        HttpResponseHead head;
+        try {
+            head = connection.exchange("HEAD", t.path(), REQUEST_HEADERS);
+            connection.body(head).close();
+        } catch (IOException e) {
+            pool.discard(connection);
+            throw e;
+        }
+        pool.release(connection);
+        if (head.status() / 100 != 2) {
+            return new Probe(- 1, false, null);
+        }
+        String etag = head.header("etag");
+        String validator = etag != null && ! etag.startsWith("W/") ? etag : head.header("last-modified");
+        return new Probe(head.contentLength(), "bytes".equalsIgnoreCase(head.header("accept-ranges")), validator);
+    }
+
+    /**
+     * ボディを、{@code minSegmentBytes} 以上の大きさで最大 {@code segments} 個の範囲に分けます。
+     *
+     * @return 各範囲の開始位置。最後の要素はボディの長さ
+     */
+    private long[] split(long length) {
+        int n = (int) Math.max(1, Math.min(segments, length / minSegmentBytes));
+        long[] bounds = new long[n + 1];
+        for (int i = 0; i <= n; i++) {
+            bounds[i] = length * i / n;
+        }
+        return bounds;
+    }
+
+    private void fetchSegments(Target t, Path part, DownloadState state, boolean resume)
+            throws IOException, InterruptedException {
+        try (FileChannel file = resume
+                                ? FileChannel.open(part, StandardOpenOption.WRITE)
+                                : FileChannel.open(
+                                        part,
+                                        StandardOpenOption.CREATE,
+                                        StandardOpenOption.WRITE,
+                                        StandardOpenOption.TRUNCATE_EXISTING)
+        ) {
+            if (! resume) {
+                // 各範囲の書き込みでファイルが伸びないよう、また容量が足りなければ取得を始める前に失敗するよう、
+                // 0で埋めて領域を確保しておく
+                ReadNet.preallocate(file, ByteBuffer.allocateDirect(BUFFER_SIZE), state.length());
+                state.save(file);
+            }
+            ExecutorService executor = Executors.newFixedThreadPool(state.segmentCount());
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < state.segmentCount(); i++) {
+                    int index = i;
+                    futures.add(executor.submit(() -> {
+                        fetchSegment(t, file, state, index);
+                        return null;
+                    }));
+                }
+                IOException failure = null;
+                for (Future<?> future : futures) {
+                    try {
+                        future.get();
+                    } catch (ExecutionException e) {
+                        if (e.getCause() instanceof RangeNotHonoredException rangeNotHonored) {
+                            executor.shutdownNow();
+                            throw rangeNotHonored;
+                        }
+                        if (failure == null) {
+                            failure = e.getCause() instanceof IOException io
+                                      ? io
+                                      : new IOException(e.getCause());
+                        }
+                    }
+                }
+                state.save(file);
+                if (failure != null) {
+                    throw new IOException(
+                            "範囲の取得に失敗しました (再実行すると続きから再開します): " + failure.getMessage(), failure);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * 1つの範囲の残りを取得して書き込みます。通信に失敗した場合は、書き込んだ位置の続きから再試行します。
+     */
+    private void fetchSegment(Target t, FileChannel file, DownloadState state, int index)
+            throws IOException, InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            long from = state.position(index);
+            long to = state.end(index) - 1;
+            if (from > to) {
+                return;
+            }
+            Map<String, String> headers = new LinkedHashMap<>(REQUEST_HEADERS);
+            headers.put("Range", "bytes=" + from + "-" + to);
+            if (state.validator() != null) {
+                // 途中でリソースが変わった場合は 200 で全体が返り、古い範囲と混ざらない
+                headers.put("If-Range", state.validator());
+            }
+            HttpClientConnection connection = pool.acquire(t.scheme(), t.host(), t.port());
+            try {
+                HttpResponseHead head = connection.exchange("GET", t.path(), headers);
+                if (head.status() != 206 || ! matchesRange(head, from, to, state.length())) {
+                    // 全体が返ってきた場合に読み捨てないよう、ボディを閉じずに接続ごと捨てる
+                    pool.discard(connection);
+                    throw new RangeNotHonoredException(
+                            head.status() + " " + head.header("content-range") + " for bytes " + from + "-" + to);
+                }
+                // 完全に読んだボディは閉じる必要がない。途中で失敗した場合に残りを読み捨てないよう閉じない
+                copy(connection.body(head), file, from, n -> {
+                    received.addAndGet(n);
+                    state.advance(index, n, file);
+                });
+            } catch (RangeNotHonoredException e) {
+                throw e;
+            } catch (IOException e) {
+                pool.discard(connection);
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                System.err.printf("範囲 %d を再試行します (%d/%d): %s%n", index, attempt, MAX_ATTEMPTS, e.getMessage());
+                continue;
+            }
+            pool.release(connection);
+            return;
+        }
+    }
+
+    private static boolean matchesRange(HttpResponseHead head, long from, long to, long length) {
+        String contentRange = head.header("content-range");
+        return contentRange != null
+                && contentRange.trim().equals("bytes " + from + "-" + to + "/" + length)
+                && head.contentLength() == to - from + 1;
+    }
+
+    /**
+     * 範囲を使わずに全体を取得します。
+     *
+     * @param expectedLength HEAD で確認した長さ。不明な場合は -1
+     * @return 受信したバイト数
+     */
+    private long fetchSingle(Target t, Path part, long expectedLength) throws IOException, InterruptedException {
+        HttpClientConnection connection = pool.acquire(t.scheme(), t.host(), t.port());
+        long written;
+        try (FileChannel file = FileChannel.open(
+                part,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)
+        ) {
+            HttpResponseHead head = connection.exchange("GET", t.path(), REQUEST_HEADERS);
+            if (head.status() != 200) {
+                throw new IOException("HTTP " + head.status());
+            }
+            long length = head.contentLength() >= 0 ? head.contentLength() : expectedLength;
+            if (length > 0) {
+                ReadNet.preallocate(file, ByteBuffer.allocateDirect(BUFFER_SIZE), length);
+            }
+            written = copy(connection.body(head), file, 0, received::addAndGet);
+            if (length >= 0 && written != length) {
+                throw new IOException("長さが一致しません: " + written + " != " + length);
+            }
+            // 長さが分からなかった場合に、確保した分が残らないようにする
+            file.truncate(written);
+        } catch (IOException e) {
+            pool.discard(connection);
+            throw e;
+        }
+        pool.release(connection);
+        return written;
+    }
+
+    /**
+     * ボディを指定された位置から書き込みます。
+     *
+     * @param progress 書き込むごとにバイト数を受け取る
+     * @return 書き込んだバイト数
+     */
+    private static long copy(InputStream body, FileChannel file, long position, Progress progress)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+        long written = 0;
+        int n;
+        while ((n = body.read(buffer)) != - 1) {
+            wrapped.clear().limit(n);
+            while (wrapped.hasRemaining()) {
+                written += file.write(wrapped, position + written);
+            }
+            progress.advance(n);
+        }
+        return written;
+    }
+
+    @FunctionalInterface
+    private interface Progress {
+        void advance(long bytes) throws IOException;
+    }
+
+    /**
+     * 取得先の URL を接続先とリクエストパスに分けたもの。
+     */
+    private record Target(String scheme, String host, int port, String path) {
+        static Target of(URI uri) {
+            String scheme = uri.getScheme() == null ? "http" : uri.getScheme().toLowerCase();
+            String host = uri.getHost();
+            if (host == null || ! (scheme.equals("http") || scheme.equals("https"))) {
+                throw new IllegalArgumentException(uri.toString());
+            }
+            int port = uri.getPort() != - 1 ? uri.getPort() : scheme.equals("https") ? 443 : 80;
+            String path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            if (uri.getRawQuery() != null) {
+                path += "?" + uri.getRawQuery();
+            }
+            return new Target(scheme, host, port, path);
+        }
+    }
+
+    /**
+     * HEAD で確認したリソースの情報。
+     *
+     * @param length        ボディの長さ。不明な場合は -1
+     * @param acceptsRanges {@code Accept-Ranges: bytes} が返った場合は true
+     * @param validator     強い ETag または Last-Modified。どちらもない場合は null
+     */
+    private record Probe(long length, boolean acceptsRanges, String validator) {
+    }
+
+    /**
+     * サーバーが範囲リクエストに 206 と要求した Content-Range で応答しなかったことを示す例外。
+     */
+    private static final class RangeNotHonoredException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RangeNotHonoredException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * 範囲ごとの進捗と、それを記録する状態ファイル。
+     *
+     * <p>
+     * 状態ファイルは {@link Properties} の形式で、URL、長さ、バリデーターと、範囲ごとの開始位置、終了位置、
+     * 書き込み済みのバイト数を持ちます。一時ファイルに書いてから名前を変えて置き換えるため、途中で
+     * 中断しても壊れた状態ファイルは残りません。
+     * </p>
+     */
+    private static final class DownloadState {
+        private final Path            path;
+        private final String          url;
+        private final long            length;
+        private final String          validator;
+        private final long[]          bounds;
+        private final AtomicLongArray done;
+        private final AtomicLong      nextSaveNanos = new AtomicLong();
+
+        private DownloadState(Path path, String url, long length, String validator, long[] bounds, long[] done) {
+            this.path = path;
+            this.url = url;
+            this.length = length;
+            this.validator = validator;
+            this.bounds = bounds;
+            this.done = new AtomicLongArray(done);
+        }
+
+        static DownloadState create(Path path, String url, Probe probe, long[] bounds) {
+            return new DownloadState(path, url, probe.length(), probe.validator(), bounds, new long[bounds.length - 1]);
+        }
+
+        /**
+         * 状態ファイルを読み込みます。URL、長さ、バリデーターが一致しない場合、バリデーターがない場合、
+         * 一時ファイルの長さが合わない場合は再開できないため null を返します。
+         */
+        static DownloadState load(Path path, String url, Probe probe, Path part) throws IOException {
+            if (probe.validator() == null || ! Files.exists(path) || ! Files.exists(part)
+                    || Files.size(part) != probe.length()) {
+                return null;
+            }
+            Properties properties = new Properties();
+            try (InputStream in = Files.newInputStream(path)) {
+                properties.load(in);
+            }
+            try {
+                if (! url.equals(properties.getProperty("url"))
+                        || probe.length() != Long.parseLong(properties.getProperty("length"))
+                        || ! probe.validator().equals(properties.getProperty("validator"))) {
+                    return null;
+                }
+                int n = Integer.parseInt(properties.getProperty("segments"));
+                long[] bounds = new long[n + 1];
+                long[] done = new long[n];
+                for (int i = 0; i < n; i++) {
+                    String[] fields = properties.getProperty("segment." + i).split(",");
+                    bounds[i] = Long.parseLong(fields[0]);
+                    bounds[i + 1] = Long.parseLong(fields[1]);
+                    done[i] = Long.parseLong(fields[2]);
+                }
+                return new DownloadState(path, url, probe.length(), probe.validator(), bounds, done);
+            } catch (RuntimeException e) {
+                // 壊れた状態ファイルは無視して最初から取得する
+                return null;
+            }
+        }
+
+        int segmentCount() {
+            return done.length();
+        }
+
+        long length() {
+            return length;
+        }
+
+        String validator() {
+            return validator;
+        }
+
+        long position(int index) {
+            return bounds[index] + done.get(index);
+        }
+
+        long end(int index) {
+            return bounds[index + 1];
+        }
+
+        long completedBytes() {
+            long sum = 0;
+            for (int i = 0; i < done.length(); i++) {
+                sum += done.get(i);
+            }
+            return sum;
+        }
+
+        /**
+         * 範囲の書き込みを記録し、前回の記録から一定時間が経っていれば状態ファイルを書き出します。
+         */
+        void advance(int index, long bytes, FileChannel file) throws IOException {
+            done.addAndGet(index, bytes);
+            long now = System.nanoTime();
+            long next = nextSaveNanos.get();
+            if (now - next >= 0 && nextSaveNanos.compareAndSet(next, now + SAVE_INTERVAL_NANOS)) {
+                save(file);
+            }
+        }
+
+        /**
+         * 書き込み済みのデータをディスクへ書き出してから、状態ファイルを置き換えます。
+         * 進捗はデータを書き出す前に読むため、記録した範囲は必ずディスク上にあります。
+         */
+        synchronized void save(FileChannel file) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("url", url);
+            properties.setProperty("length", Long.toString(length));
+            properties.setProperty("validator", validator == null ? "" : validator);
+            properties.setProperty("segments", Integer.toString(segmentCount()));
+            for (int i = 0; i < segmentCount(); i++) {
+                properties.setProperty("segment." + i, bounds[i] + "," + bounds[i + 1] + "," + done.get(i));
+            }
+            file.force(false);
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                properties.store(out, "WrnNet segmented download");
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package networkProgramming;
+
+import io.netty.handler.ssl.util.SelfSignedCertificate;
+
+import java.io.File;
+import java.security.cert.CertificateException;
+
+/**
+ * TLSおよびQUICのリスナーで共有するサーバー証明書と秘密鍵 (PEM形式のファイル)。
+ *
+ * <p>
+ * システムプロパティ {@code tls.certificate} と {@code tls.privateKey} が指定されていればそのファイルを使い、
+ * 指定されていなければ起動時に自己署名証明書を生成します。
+ * </p>
+ *
+ * @param certificate 証明書チェーンのファイル
+ * @param privateKey  PKCS#8 形式の秘密鍵のファイル
+ */
+record ServerCertificate(File certificate, File privateKey) {
+
+    /**
+     * システムプロパティの設定から証明書を読み込みます。
+     *
+     * @return 証明書
+     * @throws CertificateException 自己署名証明書の生成に失敗した場合
+     */
+    static ServerCertificate fromSystemProperties() throws CertificateException {
+        String certificate = System.getProperty("tls.certificate");
+        String privateKey = System.getProperty("tls.privateKey");
+        if (certificate != null && privateKey != null) {
+            return new ServerCertificate(new File(certificate), new File(privateKey));
+        }
+        SelfSignedCertificate ssc = new SelfSignedCertificate();
+        return new ServerCertificate(ssc.certificate(), ssc.privateKey());
+    }
+}
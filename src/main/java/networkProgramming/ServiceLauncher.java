@@ -0,0 +1,512 @@
+package networkProgramming;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.GlobalEventExecutor;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 設定ファイルに書いた複数のサービスを、1つの JVM の中で起動するランチャー。
+ *
+ * <p>
+ * Netty のサービスはすべて1つのボスグループと1つのワーカーグループを共有し、バッファはすべて共有の
+ * プールアロケーター ({@link io.netty.buffer.ByteBufAllocator#DEFAULT}) から割り当てます。ブロッキング I/O の
+ * サービス (NetClock、Telnet) の接続処理も1つのスレッドプールで行います。サービスごとに JVM を起動する
+ * 場合と比べ、スレッド数、メモリー、起動時間を節約できます。比較は {@link LauncherFootprint} で測れます。
+ * </p>
+ *
+ * <p>
+ * 設定ファイルは {@link Properties} の形式で、例は {@code src/main/resources/launcher.properties} にあります。
+ * </p>
+ * <ul>
+ *     <li>{@code services} 起動するサービス名のカンマ区切りのリスト。サービスの種類はサービス名と同じで、
+ *     {@code <名前>.type} で指定すれば同じ種類のサービスを複数起動できます</li>
+ *     <li>{@code <名前>.port} 待ち受けるポート番号 (各サービスに必須)</li>
+ *     <li>{@code <名前>.file} 配信するファイル (http と http2)</li>
+ *     <li>{@code <名前>.routes} パスと上流の対応表 (proxy)</li>
+ *     <li>{@code <名前>.target} 転送先の {@code ホスト:ポート} (relay)</li>
+ *     <li>{@code <名前>.periodMillis} 時刻を送る間隔 (netclock-subscription、既定値 1000)</li>
+ *     <li>{@code <名前>.host} 待ち受けるアドレス (admin、既定値 127.0.0.1)</li>
+ *     <li>{@code launcher.bossThreads} ボスグループのスレッド数 (既定値 1)</li>
+ *     <li>{@code launcher.workerThreads} ワーカーグループのスレッド数 (既定値 0 = Netty の既定値)</li>
+ *     <li>{@code launcher.blockingThreads} ブロッキング I/O の接続を処理するスレッド数 (既定値 16)</li>
+ *     <li>{@code launcher.drainSeconds} 停止時に処理中の接続の終了を待つ秒数 (既定値 10)</li>
+ *     <li>{@code system.<名前>} サービスを起動する前に、システムプロパティ {@code <名前>} に設定します
+ *     ({@code system.timeout.http.readSeconds} など、各サービスの設定に使います)</li>
+ * </ul>
+ *
+ * <p>
+ * サービスの種類は {@code discard}、{@code http}、{@code proxy}、{@code http2}、{@code relay}、{@code netclock}、
+ * {@code netclock-subscription}、{@code telnet}、{@code admin} です。共有のワーカーグループは NIO のため、relay も NIO で
+ * 中継します (splice は使いません)。
+ * </p>
+ *
+ * <p>
+ * JVM の停止時 (SIGTERM など) には、まずすべてのサービスの受け付けを止め、処理中の接続が終わるのを
+ * {@code launcher.drainSeconds} 秒まで待ってから、残った接続を閉じてイベントループを止めます。
+ * </p>
+ *
+ * <p>
+ * 使用方法: {@code java ServiceLauncher <設定ファイル>}
+ * </p>
+ */
+public class ServiceLauncher {
+    private static final Logger logger = Logger.getLogger(ServiceLauncher.class.getName());
+
+    private final Properties         config;
+    private final EventLoopGroup     bossGroup;
+    private final EventLoopGroup     workerGroup;
+    private final ExecutorService    blockingExecutor;
+    private final BlockingIoExecutor ioExecutor;
+    private final long               drainNanos;
+    private final List<Service>      services = new ArrayList<>();
+
+    ServiceLauncher(Properties config) {
+        this.config = config;
+        this.bossGroup = new NioEventLoopGroup(
+                Integer.parseInt(config.getProperty("launcher.bossThreads", "1")),
+                new DefaultThreadFactory("launcher-boss"));
+        this.workerGroup = new NioEventLoopGroup(
+                Integer.parseInt(config.getProperty("launcher.workerThreads", "0")),
+                new DefaultThreadFactory("launcher-worker"));
+        EventLoopWatchdog.shared().watch(bossGroup);
+        EventLoopWatchdog.shared().watch(workerGroup);
+        this.blockingExecutor = Executors.newFixedThreadPool(
+                Integer.parseInt(config.getProperty("launcher.blockingThreads", "16")),
+                new DefaultThreadFactory("launcher-blocking", true));
+        this.ioExecutor = BlockingIoExecutor.fromSystemProperties("launcher-file-io");
+        this.drainNanos = TimeUnit.SECONDS.toNanos(Long.parseLong(config.getProperty("launcher.drainSeconds", "10")));
+    }
+
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            logger.severe("Usage: java ServiceLauncher <config.properties>");
+            System.exit(1);
+        }
+        Properties config;
+        try {
+            config = load(Paths.get(args[0]));
+        } catch (IOException e) {
+            logger.log(Level.SEVERE, "Cannot read config: " + args[0], e);
+            System.exit(1);
+            return;
+        }
+
+        ServiceLauncher launcher = new ServiceLauncher(config);
+        Runtime.getRuntime().addShutdownHook(new Thread(launcher::shutdown, "launcher-shutdown"));
+        try {
+            launcher.start();
+        } catch (Exception e) {
+            logger.log(Level.SEVERE, "Failed to start services", e);
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 設定ファイルを読み込み、{@code system.} で始まる項目をシステムプロパティに設定します。
+     *
+     * @param file 設定ファイル
+     * @return 読み込んだ設定
+     * @throws IOException 読み込みに失敗した場合
+     */
+    static Properties load(Path file) throws IOException {
+        Properties config = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            config.load(reader);
+        }
+        for (String key : config.stringPropertyNames()) {
+            if (key.startsWith("system.")) {
+                System.setProperty(key.substring("system.".length()), config.getProperty(key));
+            }
+        }
+        return config;
+    }
+
+    /**
+     * 設定したすべてのサービスを起動します。
+     *
+     * @throws Exception サービスの起動に失敗した場合
+     */
+    void start() throws Exception {
+        long startNanos = System.nanoTime();
+        for (String name : config.getProperty("services", "").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            Service service = newService(name);
+            service.start();
+            services.add(service);
+            logger.info("Started " + name + " on port " + service.port());
+        }
+        logger.info(String.format(
+                "%d services started in %.1f ms, threads=%d",
+                services.size(),
+                (System.nanoTime() - startNanos) / 1e6,
+                Thread.activeCount()));
+    }
+
+    private Service newService(String name) throws Exception {
+        String type = config.getProperty(name + ".type", name);
+        int port = Integer.parseInt(required(name, "port"));
+        return switch (type) {
+            case "discard" -> new NettyService(
+                    name,
+                    connections -> new DiscardServer(port).trackConnections(connections).bind(bossGroup, workerGroup));
+            case "http" -> {
+                Path file = Paths.get(required(name, "file"));
+                yield new NettyService(
+                        name,
+                        connections -> new PseudHttpDaemon().trackConnections(connections)
+                                                            .bind(bossGroup, workerGroup, port, file, ioExecutor));
+            }
+            case "proxy" -> {
+                ProxyRoutes routes = ProxyRoutes.parse(required(name, "routes"));
+                yield new NettyService(
+                        name,
+                        connections -> new PseudHttpDaemon().trackConnections(connections)
+                                                            .bindProxy(bossGroup, workerGroup, port, routes, new ProxyStats()));
+            }
+            case "http2" -> {
+                Path file = Paths.get(required(name, "file"));
+                yield new NettyService(
+                        name,
+                        connections -> new PseudHttp2Daemon(file).trackConnections(connections).bind(
+                                bossGroup,
+                                workerGroup,
+                                port,
+                                ServerCertificate.fromSystemProperties()));
+            }
+            case "relay" -> {
+                String target = required(name, "target");
+                int colon = target.lastIndexOf(':');
+                InetSocketAddress address = new InetSocketAddress(
+                        target.substring(0, colon),
+                        Integer.parseInt(target.substring(colon + 1)));
+                yield new NettyService(
+                        name,
+                        connections -> new TcpRelay(port, address, NettyTransport.NIO, false)
+                                .trackConnections(connections)
+                                .bind(bossGroup, workerGroup));
+            }
+            case "netclock-subscription" -> {
+                long periodMillis = Long.parseLong(config.getProperty(name + ".periodMillis", "1000"));
+                yield new NettyService(
+                        name,
+                        connections -> new ClockSubscriptionServer(port, periodMillis)
+                                .trackConnections(connections)
+                                .bind(bossGroup, workerGroup));
+            }
+            case "admin" -> {
+                String host = config.getProperty(name + ".host", "127.0.0.1");
+                yield new NettyService(
+                        name,
+                        connections -> new AdminServer(ConnectionRegistry.shared(), EventLoopWatchdog.shared())
+                                .trackConnections(connections)
+                                .bind(bossGroup, workerGroup, host, port));
+            }
+            case "netclock" -> new BlockingService(
+                    name,
+                    new TrackingServerSocket(port, 300),
+                    serverSocket -> NetClock.serve(serverSocket, blockingExecutor));
+            case "telnet" -> new BlockingService(
+                    name,
+                    new TrackingServerSocket(port, 50),
+                    SimpleTelnetServer::serve);
+            default -> throw new IllegalArgumentException("Unknown service type for " + name + ": " + type);
+        };
+    }
+
+    private String required(String name, String key) {
+        String value = config.getProperty(name + "." + key);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + name + "." + key);
+        }
+        return value.trim();
+    }
+
+    /**
+     * 受け付けを止め、処理中の接続の終了を待ってから、残った接続を閉じて停止します。
+     */
+    void shutdown() {
+        // JVM の停止中は java.util.logging のハンドラーが別のシャットダウンフックで閉じられるため、標準エラーに出す
+        System.err.println("Draining " + services.size() + " services");
+        for (Service service : services) {
+            service.stopAccepting();
+        }
+        blockingExecutor.shutdown();
+        long deadline = System.nanoTime() + drainNanos;
+        for (Service service : services) {
+            if (! service.awaitDrained(deadline)) {
+                System.err.println(service.name() + ": closing " + service.activeConnections() + " connections after drain timeout");
+                service.closeAll();
+            }
+        }
+        try {
+            if (! blockingExecutor.awaitTermination(Math.max(deadline - System.nanoTime(), 0), TimeUnit.NANOSECONDS)) {
+                blockingExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workerGroup.shutdownGracefully(0, 2, TimeUnit.SECONDS).awaitUninterruptibly();
+        bossGroup.shutdownGracefully(0, 2, TimeUnit.SECONDS).awaitUninterruptibly();
+        ioExecutor.shutdown();
+        System.err.println("All services stopped");
+    }
+
+    /**
+     * ランチャーが起動する1つのサービス。
+     */
+    private interface Service {
+        String name();
+
+        int port();
+
+        void start() throws Exception;
+
+        /**
+         * 新しい接続の受け付けを止めます。処理中の接続はそのままです。
+         */
+        void stopAccepting();
+
+        /**
+         * 処理中の接続が終わるのを待ちます。
+         *
+         * @param deadline 待つ期限 ({@link System#nanoTime()} の値)
+         * @return 期限までにすべて終わった場合は true
+         */
+        boolean awaitDrained(long deadline);
+
+        int activeConnections();
+
+        void closeAll();
+    }
+
+    /**
+     * 共有のイベントループグループで待ち受ける Netty のサービス。
+     * 受け付けた接続は、各サーバーの子チャネルの初期化でグループに追加するため、バインドした直後の接続も数えます。
+     */
+    private static final class NettyService implements Service {
+        private final String       name;
+        private final Binder       binder;
+        private final ChannelGroup connections;
+        private       Channel      serverChannel;
+
+        @FunctionalInterface
+        interface Binder {
+            /**
+             * @param connections 受け付けた接続を追加するグループ。バインドより前にサーバーへ設定します
+             */
+            Channel bind(ChannelGroup connections) throws Exception;
+        }
+
+        NettyService(String name, Binder binder) {
+            this.name = name;
+            this.binder = binder;
+            this.connections = new DefaultChannelGroup(name, GlobalEventExecutor.INSTANCE);
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public int port() {
+            return ((InetSocketAddress) serverChannel.localAddress()).getPort();
+        }
+
+        @Override
+        public void start() throws Exception {
+            serverChannel = binder.bind(connections);
+        }
+
+        @Override
+        public void stopAccepting() {
+            serverChannel.close().awaitUninterruptibly();
+        }
+
+        @Override
+        public boolean awaitDrained(long deadline) {
+            while (! connections.isEmpty()) {
+                if (System.nanoTime() >= deadline) {
+                    return false;
+                }
+                sleep();
+            }
+            return true;
+        }
+
+        @Override
+        public int activeConnections() {
+            return connections.size();
+        }
+
+        @Override
+        public void closeAll() {
+            connections.close().awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * {@link ServerSocket} で待ち受けるブロッキング I/O のサービス。受け付けのスレッドを1つ使います。
+     * 読み込みで止まっているスレッドは割り込みでは起きないため、停止時は受け付けた接続を
+     * {@link TrackingServerSocket} から閉じて止めます。
+     */
+    private static final class BlockingService implements Service {
+        private final String               name;
+        private final TrackingServerSocket serverSocket;
+        private final Server               server;
+        private       Thread               acceptor;
+
+        @FunctionalInterface
+        interface Server {
+            void serve(ServerSocket serverSocket) throws IOException;
+        }
+
+        BlockingService(String name, TrackingServerSocket serverSocket, Server server) {
+            this.name = name;
+            this.serverSocket = serverSocket;
+            this.server = server;
+        }
+
+        @Override
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void start() {
+            acceptor = new Thread(() -> {
+                try {
+                    server.serve(serverSocket);
+                } catch (IOException e) {
+                    logger.log(Level.SEVERE, name + ": server error", e);
+                }
+            }, "launcher-" + name);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        @Override
+        public void stopAccepting() {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, name + ": close failed", e);
+            }
+        }
+
+        @Override
+        public boolean awaitDrained(long deadline) {
+            // 接続を受け付けたスレッドで処理するサービス (Telnet) は、処理中の接続が終わるとスレッドも終わる。
+            // 実行器で処理するサービス (NetClock) の接続は、受け付けた接続がすべて閉じられるのを待つ
+            try {
+                acceptor.join(Math.max(TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()), 1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            while (serverSocket.activeConnections() > 0) {
+                if (System.nanoTime() >= deadline) {
+                    return false;
+                }
+                sleep();
+            }
+            return ! acceptor.isAlive();
+        }
+
+        @Override
+        public int activeConnections() {
+            return serverSocket.activeConnections();
+        }
+
+        @Override
+        public void closeAll() {
+            serverSocket.closeClients();
+            acceptor.interrupt();
+        }
+    }
+
+    /**
+     * 受け付けた接続を閉じられるまで保持する {@link ServerSocket}。{@link #closeClients()} で、
+     * 読み込みで止まっているスレッドの接続も閉じられます。
+     */
+    private static final class TrackingServerSocket extends ServerSocket {
+        private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+        private volatile boolean  closing;
+
+        TrackingServerSocket(int port, int backlog) throws IOException {
+            super(port, backlog);
+        }
+
+        @Override
+        public Socket accept() throws IOException {
+            Socket socket = new Socket() {
+                @Override
+                public synchronized void close() throws IOException {
+                    clients.remove(this);
+                    super.close();
+                }
+            };
+            implAccept(socket);
+            clients.add(socket);
+            if (closing) {
+                // closeClients と行き違いになった接続も閉じる
+                socket.close();
+            }
+            return socket;
+        }
+
+        int activeConnections() {
+            return clients.size();
+        }
+
+        void closeClients() {
+            closing = true;
+            for (Socket socket : clients) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    logger.log(Level.FINE, "Client close failed", e);
+                }
+            }
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(50);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -5,12 +5,18 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * SimpleTelnetServer クラスはシンプルなTelnetサーバーを実装します。
  * クライアントからの接続を受け入れ、ネゴシエーションを行い、データの送受信を処理します。
+ *
+ * <p>
+ * 接続は1つずつ処理するため、黙ったままのクライアントが他のクライアントを待たせないよう、
+ * {@link ConnectionReaper} (設定名 {@code telnet}) で無通信や極端に遅い接続を切断します。
+ * </p>
  */
 public class SimpleTelnetServer {
     static final byte IAC  = (byte) 255;
@@ -19,7 +25,8 @@ public class SimpleTelnetServer {
     static final byte WONT = (byte) 252;
     static final byte WILL = (byte) 251;
 
-    private static final Logger logger = Logger.getLogger(SimpleTelnetServer.class.getName());
+    private static final Logger           logger = Logger.getLogger(SimpleTelnetServer.class.getName());
+    private static final ConnectionReaper reaper = ConnectionReaper.fromSystemProperties("telnet");
 
     /**
      * メインメソッド。サーバーソケットを作成し、クライアント接続を待ち受けます。
@@ -29,31 +36,49 @@ public class SimpleTelnetServer {
     public static void main(String[] args) {
         try (ServerSocket serverSocket = new ServerSocket(23)) {
             logger.info("Telnet server started on port 23");
-            //noinspection InfiniteLoopStatement
-            while (true) {
-                handleClientConnection(serverSocket);
-            }
+            serve(serverSocket);
         } catch (IOException e) {
             logger.log(Level.SEVERE, "Server error: ", e);
         }
     }
 
+    /**
+     * サーバーソケットが閉じられるまで、クライアント接続を1つずつ受け付けて処理します。
+     *
+     * @param serverSocket 待ち受けているサーバーソケット
+     */
+    static void serve(ServerSocket serverSocket) {
+        reaper.logStatsPeriodically(60, TimeUnit.SECONDS);
+        while (! serverSocket.isClosed()) {
+            handleClientConnection(serverSocket);
+        }
+    }
+
     /**
      * クライアント接続を処理します。
      *
      * @param serverSocket サーバーソケット
      */
     private static void handleClientConnection(ServerSocket serverSocket) {
-        try (Socket clientSocket = serverSocket.accept();
-                InputStream in = clientSocket.getInputStream();
-                OutputStream out = clientSocket.getOutputStream()
-        ) {
+        ConnectionReaper.Tracker tracker = null;
+        try (Socket clientSocket = serverSocket.accept()) {
+            tracker = reaper.track(clientSocket);
+            InputStream in = tracker.input();
+            OutputStream out = tracker.output();
 
             negotiateOptions(out);
             sendWelcomeMessage(out);
             transferData(in, out);
         } catch (IOException e) {
-            logger.log(Level.SEVERE, "Client connection error: ", e);
+            if (tracker != null && tracker.isReaped()) {
+                logger.log(Level.FINE, "Client connection reaped", e);
+            } else if (! serverSocket.isClosed()) {
+                logger.log(Level.SEVERE, "Client connection error: ", e);
+            }
+        } finally {
+            if (tracker != null) {
+                tracker.close();
+            }
         }
     }
 
@@ -79,6 +104,7 @@ public class SimpleTelnetServer {
     private static void negotiateOption(OutputStream out, byte optionCommand, byte optionCode)
             throws IOException {
         out.write(new byte[]{IAC, optionCommand, optionCode});
+        NetEvents.telnetNegotiation("server", "sent", optionCommand, optionCode);
         logNegotiation(optionCommand, optionCode);
         out.flush();
     }
@@ -148,11 +174,14 @@ public class SimpleTelnetServer {
         if (i + 2 < bytesRead) {
             byte optionCommand = buffer[i + 1];
             byte optionCode = buffer[i + 2];
+            NetEvents.telnetNegotiation("server", "received", optionCommand, optionCode);
             logNegotiation(optionCommand, optionCode);
             if (optionCommand == DO) {
                 out.write(new byte[]{IAC, WONT, optionCode});
+                NetEvents.telnetNegotiation("server", "sent", WONT, optionCode);
             } else if (optionCommand == WILL) {
                 out.write(new byte[]{IAC, DONT, optionCode});
+                NetEvents.telnetNegotiation("server", "sent", DONT, optionCode);
             }
             i += 3;
         }
@@ -0,0 +1,56 @@
+package networkProgramming;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * 配信するファイルの内容とContent-Type、検証子。
+ *
+ * <p>
+ * 読み込みはブロッキングI/Oのため、イベントループからは {@link BlockingIoExecutor} 経由で呼び出します。
+ * ETag は内容の SHA-256 から作る強い検証子で、読み込むときに1度だけ計算します。
+ * </p>
+ *
+ * @param content            ファイルの内容
+ * @param contentType        Content-Type。判定できない場合は {@code application/octet-stream}
+ * @param etag               強い ETag (引用符を含む)
+ * @param lastModifiedMillis 読み込む前に確かめた更新日時 (エポックからのミリ秒)
+ */
+record StaticFile(byte[] content, String contentType, String etag, long lastModifiedMillis) {
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    // SHA-256 の先頭 128 ビットを使う。同じパスの版を区別するには十分な長さ
+    private static final int    ETAG_BYTES           = 16;
+
+    /**
+     * ファイルを読み込みます。
+     *
+     * @param file 読み込むファイル
+     * @return ファイルの内容とContent-Type、検証子
+     * @throws IOException 読み込みに失敗した場合
+     */
+    static StaticFile read(Path file) throws IOException {
+        String contentType = Files.probeContentType(file);
+        long lastModifiedMillis = Files.getLastModifiedTime(file).toMillis();
+        byte[] content = Files.readAllBytes(file);
+        return new StaticFile(
+                content,
+                contentType != null ? contentType : DEFAULT_CONTENT_TYPE,
+                etag(content),
+                lastModifiedMillis);
+    }
+
+    private static String etag(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            return '"' + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOf(digest, ETAG_BYTES)) + '"';
+        } catch (NoSuchAlgorithmException e) {
+            // SHA-256 はすべての Java SE 実装が備えている
+            throw new IllegalStateException(e);
+        }
+    }
+}
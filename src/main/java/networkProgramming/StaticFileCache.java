@@ -0,0 +1,519 @@
+package networkProgramming;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DateFormatter;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.DefaultHttpResponse;
+import io.netty.handler.codec.http.EmptyHttpHeaders;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpHeaders;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.ReadOnlyHttpHeaders;
+import io.netty.handler.codec.http2.Http2Headers;
+import io.netty.util.AsciiString;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP/1.1 と HTTP/2 で配信する静的ファイルのレスポンスを、イベントループごとにキャッシュします。
+ *
+ * <p>
+ * ファイルの版ごとに、内容を持つプールされたダイレクトバッファと、エンコード済みの {@link AsciiString} からなる
+ * 読み取り専用のヘッダーを1組だけ作り、すべてのイベントループで共有します。各イベントループのエントリは
+ * バッファの {@code retainedDuplicate()} で参照を1つ保持し、レスポンスはさらにその
+ * {@code retainedDuplicate()} (Netty がリサイクルするため割り当てが発生しない) と共有のヘッダーから作るため、
+ * 定常状態ではファイルの読み込みもヘッダーの組み立ても行いません。メモリーはイベントループの数によらず
+ * ファイル1つ分で、古い版のバッファは、すべてのエントリが新しい版に移り、送信中のレスポンスが解放されたときに
+ * 解放されます。読み込んだヒープの配列はバッファへコピーした後に保持しません。
+ * </p>
+ *
+ * <p>
+ * エントリは各イベントループ ({@code ctx.executor()}) をキーに保持し、一定間隔ごとに {@link BlockingIoExecutor} 上でファイルの更新日時とサイズを確かめ、
+ * 変わっていれば読み直します。確認の間隔はシステムプロパティ {@code http.cacheRevalidateMillis}
+ * (既定値 1000) で設定します。
+ * </p>
+ *
+ * <p>
+ * エントリは版ごとの強い ETag と Last-Modified を持ち、条件付きリクエストの評価と、Range のリクエストに
+ * ファイルの範囲から返す 206 レスポンスの組み立ても行います。範囲はファイルから読むため、Range のリクエストでは
+ * 確認の間隔を待たずに {@link #load} で版を確かめてから返してください。
+ * </p>
+ */
+final class StaticFileCache {
+    private final Path                                    file;
+    private final BlockingIoExecutor                      ioExecutor;
+    private final AsciiString                             altSvc;
+    private final long                                    revalidateNanos;
+    // 各エントリは、キーのイベントループからしか読み書きしない
+    private final ConcurrentHashMap<EventExecutor, Entry> entries = new ConcurrentHashMap<>();
+    // 以下は ioExecutor のスレッドから、このオブジェクトのロックを取って更新する
+    private       Version                                 current;
+    private       long                                    size;
+    private       long                                    modifiedMillis;
+
+    /**
+     * キャッシュを作成します。
+     *
+     * @param file             配信するファイル
+     * @param ioExecutor       ファイルを読み込む実行器
+     * @param altSvc           レスポンスに付ける Alt-Svc ヘッダーの値。付けない場合は null
+     * @param revalidateMillis ファイルの更新を確認する間隔 (ミリ秒)
+     */
+    StaticFileCache(Path file, BlockingIoExecutor ioExecutor, String altSvc, long revalidateMillis) {
+        this.file = file;
+        this.ioExecutor = ioExecutor;
+        this.altSvc = altSvc != null ? AsciiString.cached(altSvc) : null;
+        this.revalidateNanos = TimeUnit.MILLISECONDS.toNanos(revalidateMillis);
+    }
+
+    /**
+     * システムプロパティの設定からキャッシュを作成します。
+     *
+     * @param file       配信するファイル
+     * @param ioExecutor ファイルを読み込む実行器
+     * @param altSvc     レスポンスに付ける Alt-Svc ヘッダーの値。付けない場合は null
+     * @return キャッシュ
+     */
+    static StaticFileCache fromSystemProperties(Path file, BlockingIoExecutor ioExecutor, String altSvc) {
+        return new StaticFileCache(file, ioExecutor, altSvc, Long.getLong("http.cacheRevalidateMillis", 1000));
+    }
+
+    /**
+     * 呼び出し元のイベントループのエントリが有効であれば返します。イベントループ上から呼び出してください。
+     *
+     * @param executor 呼び出し元のイベントループ (通常は {@code ctx.executor()})
+     * @return 有効なエントリ。まだ読み込んでいないか、確認の間隔を過ぎている場合は null
+     */
+    Entry current(EventExecutor executor) {
+        Entry entry = entries.get(executor);
+        if (entry != null && System.nanoTime() - entry.validatedNanos < revalidateNanos) {
+            return entry;
+        }
+        return null;
+    }
+
+    /**
+     * ファイルの更新を確認し、呼び出し元のイベントループのエントリを更新します。イベントループ上から呼び出してください。
+     *
+     * @param executor 呼び出し元のイベントループ
+     * @return 更新したエントリの Future。リスナーは同じイベントループで実行されます
+     */
+    Future<Entry> load(EventExecutor executor) {
+        Promise<Entry> promise = executor.newPromise();
+        ioExecutor.submit(this::revalidate, executor).addListener((Future<Version> f) -> {
+            if (f.isSuccess()) {
+                promise.setSuccess(update(executor, f.getNow()));
+            } else {
+                promise.setFailure(f.cause());
+            }
+        });
+        return promise;
+    }
+
+    /**
+     * ファイルの更新日時とサイズが前回と同じであれば前回の版を、変わっていれば読み直した版を返します。
+     * 返す版のバッファは、呼び出し元のために参照を1つ増やしてあります。
+     */
+    private synchronized Version revalidate() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        long newSize = attributes.size();
+        long newModifiedMillis = attributes.lastModifiedTime().toMillis();
+        if (current == null || newSize != size || newModifiedMillis != modifiedMillis) {
+            Version fresh = new Version(file, StaticFile.read(file), altSvc);
+            if (current != null) {
+                // 古い版を使うエントリと送信中のレスポンスは、それぞれ参照を保持している
+                current.content.release();
+            }
+            current = fresh;
+            size = newSize;
+            modifiedMillis = newModifiedMillis;
+        }
+        // イベントループがエントリを作るまでに次の版に替わっても、バッファを解放させない
+        current.content.retain();
+        return current;
+    }
+
+    /**
+     * @param version {@link #revalidate} が返した版。増やしてある参照はここで解放する
+     */
+    private Entry update(EventExecutor executor, Version version) {
+        Entry entry = entries.get(executor);
+        if (entry == null || entry.version != version) {
+            Entry fresh = new Entry(version);
+            entries.put(executor, fresh);
+            if (entry == null) {
+                // 終了したイベントループ (ウォームアップのループなど) のバッファを残さない
+                for (Map.Entry<EventExecutor, Entry> e : entries.entrySet()) {
+                    if (e.getKey().isShuttingDown() && entries.remove(e.getKey(), e.getValue())) {
+                        e.getValue().content.release();
+                    }
+                }
+            }
+            if (entry != null) {
+                // 送信中のレスポンスは複製で参照を保持しているため、このイベントループの参照だけを手放す
+                entry.content.release();
+            }
+            entry = fresh;
+        }
+        version.content.release();
+        entry.validatedNanos = System.nanoTime();
+        return entry;
+    }
+
+    /**
+     * リクエストの条件付きヘッダーと Range。条件を評価するのは GET と HEAD だけで、Range は GET だけで使います。
+     *
+     * @param ifNoneMatch     If-None-Match の値
+     * @param ifModifiedSince If-Modified-Since の値
+     * @param range           Range の値
+     * @param ifRange         If-Range の値
+     * @param head            HEAD のリクエストで、ボディを送らない場合は true
+     */
+    record Conditions(
+            CharSequence ifNoneMatch,
+            CharSequence ifModifiedSince,
+            CharSequence range,
+            CharSequence ifRange,
+            boolean head) {
+        /**
+         * 条件のないリクエスト。定常状態のリクエストで割り当てが起きないよう、共有のインスタンスを使います。
+         */
+        static final Conditions NONE = new Conditions(null, null, null, null, false);
+        private static final Conditions HEAD = new Conditions(null, null, null, null, true);
+
+        /**
+         * @param request HTTP/1.1 のリクエスト
+         * @return リクエストの条件。条件がない場合は {@link #NONE}
+         */
+        static Conditions of(HttpRequest request) {
+            HttpHeaders headers = request.headers();
+            return of(
+                    request.method().asciiName(),
+                    headers.get(HttpHeaderNames.IF_NONE_MATCH),
+                    headers.get(HttpHeaderNames.IF_MODIFIED_SINCE),
+                    headers.get(HttpHeaderNames.RANGE),
+                    headers.get(HttpHeaderNames.IF_RANGE));
+        }
+
+        /**
+         * @param headers HTTP/2 のリクエストのヘッダー
+         * @return リクエストの条件。条件がない場合は {@link #NONE}
+         */
+        static Conditions of(Http2Headers headers) {
+            return of(
+                    headers.method(),
+                    headers.get(HttpHeaderNames.IF_NONE_MATCH),
+                    headers.get(HttpHeaderNames.IF_MODIFIED_SINCE),
+                    headers.get(HttpHeaderNames.RANGE),
+                    headers.get(HttpHeaderNames.IF_RANGE));
+        }
+
+        /**
+         * @param method          メソッド
+         * @param ifNoneMatch     If-None-Match の値。ない場合は null
+         * @param ifModifiedSince If-Modified-Since の値。ない場合は null
+         * @param range           Range の値。ない場合は null
+         * @param ifRange         If-Range の値。ない場合は null
+         * @return リクエストの条件。条件がない場合は共有のインスタンス
+         */
+        static Conditions of(
+                CharSequence method,
+                CharSequence ifNoneMatch,
+                CharSequence ifModifiedSince,
+                CharSequence range,
+                CharSequence ifRange) {
+            if (method == null) {
+                return NONE;
+            }
+            boolean get = HttpMethod.GET.asciiName().contentEquals(method);
+            if (! get && ! HttpMethod.HEAD.asciiName().contentEquals(method)) {
+                return NONE;
+            }
+            if (! get) {
+                range = null;
+            }
+            if (ifNoneMatch == null && ifModifiedSince == null && range == null) {
+                return get ? NONE : HEAD;
+            }
+            return new Conditions(ifNoneMatch, ifModifiedSince, range, range != null ? ifRange : null, ! get);
+        }
+    }
+
+    /**
+     * ファイルの1つの版。内容のバッファとエンコード済みのヘッダーを、すべてのイベントループで共有します。
+     *
+     * <p>
+     * 200 と 304 のヘッダーは、ETag と Last-Modified を含めて版ごとに1度だけ組み立てます。
+     * バッファはキャッシュが最新の版にだけ参照を1つ持ち、残りの参照はエントリと送信中のレスポンスが持ちます。
+     * </p>
+     */
+    private static final class Version {
+        private final Path        file;
+        private final ByteBuf     content;
+        private final String      contentType;
+        private final long        lastModifiedMillis;
+        private final AsciiString etag;
+        private final AsciiString lastModified;
+        private final AsciiString altSvc;
+        private final HttpHeaders keepAliveHeaders;
+        private final HttpHeaders closeHeaders;
+        private final HttpHeaders notModifiedKeepAliveHeaders;
+        private final HttpHeaders notModifiedCloseHeaders;
+
+        Version(Path file, StaticFile source, AsciiString altSvc) {
+            this.file = file;
+            this.content = ByteBufAllocator.DEFAULT.directBuffer(source.content().length)
+                                                   .writeBytes(source.content());
+            this.contentType = source.contentType();
+            this.lastModifiedMillis = source.lastModifiedMillis();
+            this.etag = AsciiString.of(source.etag());
+            this.lastModified = AsciiString.of(DateFormatter.format(new Date(lastModifiedMillis)));
+            this.altSvc = altSvc;
+            this.keepAliveHeaders = headers(true, HttpHeaderValues.KEEP_ALIVE);
+            this.closeHeaders = headers(true, HttpHeaderValues.CLOSE);
+            this.notModifiedKeepAliveHeaders = headers(false, HttpHeaderValues.KEEP_ALIVE);
+            this.notModifiedCloseHeaders = headers(false, HttpHeaderValues.CLOSE);
+        }
+
+        private HttpHeaders headers(boolean withContent, AsciiString connection) {
+            List<CharSequence> nameValuePairs = new ArrayList<>();
+            if (withContent) {
+                nameValuePairs.addAll(List.of(
+                        HttpHeaderNames.CONTENT_TYPE,
+                        AsciiString.of(contentType),
+                        HttpHeaderNames.CONTENT_LENGTH,
+                        AsciiString.of(Integer.toString(content.readableBytes())),
+                        HttpHeaderNames.ACCEPT_RANGES,
+                        HttpHeaderValues.BYTES));
+            }
+            nameValuePairs.addAll(List.of(
+                    HttpHeaderNames.ETAG,
+                    etag,
+                    HttpHeaderNames.LAST_MODIFIED,
+                    lastModified,
+                    HttpHeaderNames.CONNECTION,
+                    connection));
+            if (altSvc != null) {
+                nameValuePairs.add(HttpHeaderNames.ALT_SVC);
+                nameValuePairs.add(altSvc);
+            }
+            return new ReadOnlyHttpHeaders(false, nameValuePairs.toArray(new CharSequence[0]));
+        }
+    }
+
+    /**
+     * 1つのイベントループが持つ、ファイルの版への参照。
+     *
+     * <p>
+     * 版のバッファの {@code retainedDuplicate()} を1つ持ち、レスポンスのボディはそこから作ります。
+     * 条件付きリクエストは RFC 9110 13.2.2 の順に評価し、If-None-Match があれば If-Modified-Since は見ません。
+     * </p>
+     */
+    static final class Entry {
+        private final Version version;
+        private final ByteBuf content;
+        private       long    validatedNanos;
+
+        private Entry(Version version) {
+            this.version = version;
+            // プールされたバッファの複製は、さらに retainedDuplicate() してもリサイクルされる
+            this.content = version.content.retainedDuplicate();
+        }
+
+        /**
+         * @return ボディのバイト数
+         */
+        int contentLength() {
+            return content.readableBytes();
+        }
+
+        String contentType() {
+            return version.contentType;
+        }
+
+        /**
+         * @return 強い ETag (引用符を含む)
+         */
+        AsciiString etag() {
+            return version.etag;
+        }
+
+        /**
+         * @return Last-Modified の値 (HTTP-date)
+         */
+        AsciiString lastModified() {
+            return version.lastModified;
+        }
+
+        /**
+         * @return キャッシュのバッファを共有するボディ。送信後に解放されます
+         */
+        ByteBuf retainedContent() {
+            return content.retainedDuplicate();
+        }
+
+        /**
+         * GET と HEAD の条件付きリクエストを評価します。
+         *
+         * @param ifNoneMatch     If-None-Match の値。ない場合は null
+         * @param ifModifiedSince If-Modified-Since の値。ない場合は null
+         * @return 304 Not Modified を返す場合は true
+         */
+        boolean notModified(CharSequence ifNoneMatch, CharSequence ifModifiedSince) {
+            if (ifNoneMatch != null) {
+                // If-None-Match は弱い比較 (W/ を無視して比べる)
+                for (String tag : ifNoneMatch.toString().split(",")) {
+                    tag = tag.trim();
+                    if (tag.equals("*") || version.etag.contentEquals(tag.startsWith("W/") ? tag.substring(2) : tag)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            if (ifModifiedSince != null) {
+                Date since = DateFormatter.parseHttpDate(ifModifiedSince);
+                // HTTP-date は秒の精度しかないため、秒に切り捨てて比べる
+                return since != null && version.lastModifiedMillis / 1000 <= since.getTime() / 1000;
+            }
+            return false;
+        }
+
+        /**
+         * Range ヘッダーから返す範囲を決めます。If-Range が今の版と一致しない場合は Range を無視します。
+         *
+         * @param range   Range の値。ない場合は null
+         * @param ifRange If-Range の値。ない場合は null
+         * @return 返す範囲。満たせる範囲がない場合は空のリスト。全体を返す場合は null
+         */
+        List<ByteRanges.Range> ranges(CharSequence range, CharSequence ifRange) {
+            if (range == null || (ifRange != null && ! ifRangeMatches(ifRange.toString().trim()))) {
+                return null;
+            }
+            return ByteRanges.parse(range, contentLength());
+        }
+
+        private boolean ifRangeMatches(String ifRange) {
+            if (ifRange.startsWith("\"")) {
+                // If-Range は強い比較 (弱い ETag は一致しない)
+                return version.etag.contentEquals(ifRange);
+            }
+            Date date = DateFormatter.parseHttpDate(ifRange);
+            return date != null && date.getTime() / 1000 == version.lastModifiedMillis / 1000;
+        }
+
+        /**
+         * @param ranges 返す範囲。1つ以上
+         * @return 範囲をファイルから送るボディ
+         */
+        ByteRanges.Body newRangeBody(List<ByteRanges.Range> ranges) {
+            return new ByteRanges.Body(version.file, version.contentType, contentLength(), ranges);
+        }
+
+        /**
+         * 200 OK のレスポンスを作成します。ボディはキャッシュのバッファを共有し、ヘッダーは共有の読み取り専用ヘッダーです。
+         *
+         * @param keepAlive 接続を維持する場合は true
+         * @return レスポンス
+         */
+        FullHttpResponse newResponse(boolean keepAlive) {
+            return new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.OK,
+                    content.retainedDuplicate(),
+                    keepAlive ? version.keepAliveHeaders : version.closeHeaders,
+                    EmptyHttpHeaders.INSTANCE);
+        }
+
+        /**
+         * HEAD に返す 200 OK のレスポンスを作成します。ヘッダーは GET と同じで、ボディはありません。
+         *
+         * @param keepAlive 接続を維持する場合は true
+         * @return レスポンス
+         */
+        FullHttpResponse newHeadResponse(boolean keepAlive) {
+            return new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.OK,
+                    Unpooled.EMPTY_BUFFER,
+                    keepAlive ? version.keepAliveHeaders : version.closeHeaders,
+                    EmptyHttpHeaders.INSTANCE);
+        }
+
+        /**
+         * 304 Not Modified のレスポンスを作成します。ヘッダーは共有の読み取り専用ヘッダーです。
+         *
+         * @param keepAlive 接続を維持する場合は true
+         * @return レスポンス
+         */
+        FullHttpResponse newNotModifiedResponse(boolean keepAlive) {
+            return new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.NOT_MODIFIED,
+                    Unpooled.EMPTY_BUFFER,
+                    keepAlive ? version.notModifiedKeepAliveHeaders : version.notModifiedCloseHeaders,
+                    EmptyHttpHeaders.INSTANCE);
+        }
+
+        /**
+         * 206 Partial Content のヘッダーを作成します。ボディは {@link ByteRanges.Body} から続けて書き込みます。
+         *
+         * @param body      返す範囲
+         * @param keepAlive 接続を維持する場合は true
+         * @return レスポンスのヘッダー
+         */
+        HttpResponse newPartialResponse(ByteRanges.Body body, boolean keepAlive) {
+            HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.PARTIAL_CONTENT);
+            response.headers()
+                    .set(HttpHeaderNames.CONTENT_TYPE, body.contentType())
+                    .set(HttpHeaderNames.CONTENT_LENGTH, body.contentLength())
+                    .set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES)
+                    .set(HttpHeaderNames.ETAG, version.etag)
+                    .set(HttpHeaderNames.LAST_MODIFIED, version.lastModified)
+                    .set(HttpHeaderNames.CONNECTION, keepAlive ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE);
+            if (body.contentRange() != null) {
+                response.headers().set(HttpHeaderNames.CONTENT_RANGE, body.contentRange());
+            }
+            if (version.altSvc != null) {
+                response.headers().set(HttpHeaderNames.ALT_SVC, version.altSvc);
+            }
+            return response;
+        }
+
+        /**
+         * 416 Range Not Satisfiable のレスポンスを作成します。
+         *
+         * @param keepAlive 接続を維持する場合は true
+         * @return レスポンス
+         */
+        FullHttpResponse newRangeNotSatisfiableResponse(boolean keepAlive) {
+            FullHttpResponse response = new DefaultFullHttpResponse(
+                    HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.headers()
+                    .set(HttpHeaderNames.CONTENT_RANGE, ByteRanges.unsatisfiedRange(contentLength()))
+                    .set(HttpHeaderNames.CONTENT_LENGTH, 0)
+                    .set(HttpHeaderNames.CONNECTION, keepAlive ? HttpHeaderValues.KEEP_ALIVE : HttpHeaderValues.CLOSE);
+            return response;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package networkProgramming;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpHeaderValues;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.util.AsciiString;
+import io.netty.util.ByteProcessor;
+
+import java.util.List;
+
+/**
+ * 静的ファイルの配信向けに、ボディのない GET と HEAD のリクエストだけを受信バッファから直接解析するデコーダー。
+ *
+ * <p>
+ * {@link HttpRequestDecoder} と {@code HttpObjectAggregator} はリクエストごとにヘッダーのマップと
+ * {@code FullHttpRequest} を作りますが、静的ファイルの応答に要るのはメソッド、パス、接続の維持と条件付きの
+ * ヘッダーだけです。このデコーダーはリクエスト行と次のヘッダーだけを {@link ByteBuf} の上で走査し、
+ * {@link Request} を渡します。その他のヘッダー (User-Agent、Accept など) は読み飛ばします。
+ * </p>
+ * <ul>
+ *     <li>Host (HTTP/1.1 では必須)、Connection (close または keep-alive)</li>
+ *     <li>If-None-Match、If-Modified-Since、Range、If-Range</li>
+ *     <li>Accept-Encoding (このサーバーは圧縮しないため、他のヘッダーと同じく読み飛ばす)</li>
+ * </ul>
+ *
+ * <p>
+ * 定常状態では割り当てが起きないよう、メソッドとパスが前のリクエストと同じで条件がなければ、前の {@link Request}
+ * を使い回します。
+ * </p>
+ *
+ * <p>
+ * GET と HEAD 以外のメソッド、HTTP/1.0 と HTTP/1.1 以外のバージョン、ボディを示すヘッダー (Transfer-Encoding、
+ * 0 以外の Content-Length、Expect)、ヘッダーの折り返し、LF だけの改行、{@value #MAX_HEAD_BYTES} バイトを超える
+ * ヘッダーなど、このデコーダーが扱わないリクエストを見つけると、パイプラインから自身を取り除き、未処理のバイト列を
+ * 後ろの {@link HttpRequestDecoder} へ渡します。接続の残りはすべて標準のデコーダーが処理するため、
+ * パイプライン化されたリクエストの順序は変わりません。
+ * </p>
+ */
+final class StaticGetDecoder extends ByteToMessageDecoder {
+    static final         int         MAX_HEAD_BYTES = 8192;
+    private static final AsciiString HTTP_1_0       = AsciiString.cached("HTTP/1.0");
+    private static final AsciiString HTTP_1_1       = AsciiString.cached("HTTP/1.1");
+    private static final AsciiString GET_PREFIX     = AsciiString.cached("GET ");
+    private static final AsciiString HEAD_PREFIX    = AsciiString.cached("HEAD ");
+
+    // 直前に渡したリクエスト。条件のないリクエストで使い回す
+    private Request last;
+
+    // 以下は1つのリクエストの解析中だけ使う
+    private boolean      keepAlive;
+    private boolean      host;
+    private CharSequence ifNoneMatch;
+    private CharSequence ifModifiedSince;
+    private CharSequence range;
+    private CharSequence ifRange;
+
+    /**
+     * デコーダーが解析したリクエスト。参照カウントを持たないため、解放は不要です。
+     *
+     * @param method     GET または HEAD
+     * @param uri        リクエストのパス
+     * @param keepAlive  接続を維持する場合は true
+     * @param conditions 条件付きのヘッダーと Range
+     */
+    record Request(HttpMethod method, AsciiString uri, boolean keepAlive, StaticFileCache.Conditions conditions) {
+    }
+
+    @Override
+    protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+        int start = in.readerIndex();
+        int end = in.writerIndex();
+        int lineEnd = in.indexOf(start, Math.min(end, start + MAX_HEAD_BYTES), (byte) '\n');
+        if (lineEnd < 0) {
+            if (end - start >= MAX_HEAD_BYTES) {
+                fallBack(ctx);
+            }
+            return;
+        }
+
+        // リクエスト行: <メソッド> SP <パス> SP <バージョン> CR LF
+        HttpMethod method;
+        int uriStart;
+        if (startsWith(in, start, lineEnd, GET_PREFIX)) {
+            method = HttpMethod.GET;
+            uriStart = start + GET_PREFIX.length();
+        } else if (startsWith(in, start, lineEnd, HEAD_PREFIX)) {
+            method = HttpMethod.HEAD;
+            uriStart = start + HEAD_PREFIX.length();
+        } else {
+            fallBack(ctx);
+            return;
+        }
+        int uriEnd = in.indexOf(uriStart, lineEnd, (byte) ' ');
+        if (uriEnd <= uriStart || in.getByte(uriStart) != '/' || in.getByte(lineEnd - 1) != '\r') {
+            fallBack(ctx);
+            return;
+        }
+        boolean http11;
+        if (equals(in, uriEnd + 1, lineEnd - 1, HTTP_1_1)) {
+            http11 = true;
+        } else if (equals(in, uriEnd + 1, lineEnd - 1, HTTP_1_0)) {
+            http11 = false;
+        } else {
+            fallBack(ctx);
+            return;
+        }
+
+        keepAlive = http11;
+        host = false;
+        ifNoneMatch = null;
+        ifModifiedSince = null;
+        range = null;
+        ifRange = null;
+        int lineStart = lineEnd + 1;
+        while (true) {
+            lineEnd = in.indexOf(lineStart, Math.min(end, start + MAX_HEAD_BYTES), (byte) '\n');
+            if (lineEnd < 0) {
+                // ヘッダーの途中までしか届いていない。次の読み込みで最初から解析し直す
+                if (end - start >= MAX_HEAD_BYTES) {
+                    fallBack(ctx);
+                }
+                return;
+            }
+            if (lineEnd == lineStart || in.getByte(lineEnd - 1) != '\r') {
+                fallBack(ctx);
+                return;
+            }
+            if (lineEnd - 1 == lineStart) {
+                // 空行でヘッダーの終わり
+                break;
+            }
+            if (! header(in, lineStart, lineEnd - 1)) {
+                fallBack(ctx);
+                return;
+            }
+            lineStart = lineEnd + 1;
+        }
+        if (http11 && ! host) {
+            fallBack(ctx);
+            return;
+        }
+
+        StaticFileCache.Conditions conditions =
+                StaticFileCache.Conditions.of(method.asciiName(), ifNoneMatch, ifModifiedSince, range, ifRange);
+        Request request = last;
+        if (request == null
+                || request.method() != method
+                || request.keepAlive() != keepAlive
+                || request.conditions() != conditions
+                || ! equals(in, uriStart, uriEnd, request.uri())) {
+            request = new Request(method, value(in, uriStart, uriEnd), keepAlive, conditions);
+            if (ifNoneMatch == null && ifModifiedSince == null && range == null) {
+                last = request;
+            }
+        }
+        in.readerIndex(lineEnd + 1);
+        out.add(request);
+    }
+
+    /**
+     * 1行のヘッダーを解析します。
+     *
+     * @return このデコーダーで扱える場合は true
+     */
+    private boolean header(ByteBuf in, int start, int end) {
+        byte first = in.getByte(start);
+        if (first == ' ' || first == '\t') {
+            // 折り返し (obs-fold)
+            return false;
+        }
+        int colon = in.indexOf(start, end, (byte) ':');
+        if (colon <= start || in.getByte(colon - 1) == ' ') {
+            return false;
+        }
+        int valueStart = in.forEachByte(colon + 1, end - colon - 1, ByteProcessor.FIND_NON_LINEAR_WHITESPACE);
+        if (valueStart < 0) {
+            valueStart = end;
+        }
+        int valueEnd = end;
+        while (valueEnd > valueStart && isWhitespace(in.getByte(valueEnd - 1))) {
+            valueEnd--;
+        }
+
+        if (equalsIgnoreCase(in, start, colon, HttpHeaderNames.HOST)) {
+            host = true;
+        } else if (equalsIgnoreCase(in, start, colon, HttpHeaderNames.CONNECTION)) {
+            if (equalsIgnoreCase(in, valueStart, valueEnd, HttpHeaderValues.CLOSE)) {
+                keepAlive = false;
+            } else if (equalsIgnoreCase(in, valueStart, valueEnd, HttpHeaderValues.KEEP_ALIVE)) {
+                keepAlive = true;
+            } else {
+                // Upgrade などを含む場合は標準のデコーダーに任せる
+                return false;
+            }
+        } else if (equalsIgnoreCase(in, start, colon, HttpHeaderNames.IF_NONE_MATCH)) {
+            ifNoneMatch = ifNoneMatch != null ? ifNoneMatch : value(in, valueStart, valueEnd);
+        } else if (equalsIgnoreCase(in, start, colon, HttpHeaderNames.IF_MODIFIED_SINCE)) {
+            ifModifiedSince = ifModifiedSince != null ? ifModifiedSince : value(in, valueStart, valueEnd);
+        } else if (equalsIgnoreCase(in, start, colon, HttpHeaderNames.RANGE)) {
+            range = range != null ? range : value(in, valueStart, valueEnd);
+        } else if (equalsIgnoreCase(in, start, colon, HttpHeaderNames.IF_RANGE)) {
+            ifRange = ifRange != null ? ifRange : value(in, valueStart, valueEnd);
+        } else if (equalsIgnoreCase(in, start, colon, HttpHeaderNames.CONTENT_LENGTH)) {
+            return valueEnd - valueStart == 1 && in.getByte(valueStart) == '0';
+        } else if (equalsIgnoreCase(in, start, colon, HttpHeaderNames.TRANSFER_ENCODING)
+                || equalsIgnoreCase(in, start, colon, HttpHeaderNames.EXPECT)) {
+            return false;
+        }
+        // Accept-Encoding を含むその他のヘッダーは、このサーバーの応答を変えないため読み飛ばす
+        return true;
+    }
+
+    /**
+     * 扱えないリクエストを見つけたので、接続の残りを標準のデコーダーに任せます。
+     * 取り除くと、読み込んでいないバイト列は {@link ByteToMessageDecoder} が後ろのハンドラーへ渡します。
+     */
+    private void fallBack(ChannelHandlerContext ctx) {
+        ctx.pipeline().remove(this);
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\t';
+    }
+
+    private static boolean startsWith(ByteBuf in, int start, int end, AsciiString prefix) {
+        return end - start >= prefix.length() && equals(in, start, start + prefix.length(), prefix);
+    }
+
+    private static boolean equals(ByteBuf in, int start, int end, AsciiString expected) {
+        if (end - start != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (in.getByte(start + i) != expected.byteAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean equalsIgnoreCase(ByteBuf in, int start, int end, AsciiString expected) {
+        if (end - start != expected.length()) {
+            return false;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (toLowerCase(in.getByte(start + i)) != toLowerCase(expected.byteAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + ('a' - 'A')) : b;
+    }
+
+    private static AsciiString value(ByteBuf in, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        in.getBytes(start, bytes);
+        return new AsciiString(bytes, false);
+    }
+}
@@ -0,0 +1,218 @@
+package networkProgramming;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.group.ChannelGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * 受け付けたTCP接続を、指定した転送先へそのまま中継するポートフォワーダー。
+ *
+ * <p>
+ * {@link DiscardServer} と同じ構成のサーバーで、受け付けた接続ごとに、同じイベントループ上で転送先へ接続し、
+ * 両方向のバイト列を {@link TcpRelayHandler} で中継します。telnet など、TCPの上でそのまま動くサービスの
+ * 前段に置くことを想定しています。
+ * </p>
+ *
+ * <p>
+ * epoll トランスポートでは、既定で {@code splice(2)} によるゼロコピー転送を使います。
+ * splice はパイプラインを通らないため、転送中のバイト数は1回の splice の単位 (1 MiB) で数え、
+ * 入力が閉じたときと切断の前に、カーネルが数えたソケットの受信バイト数 ({@code TCP_INFO}) で端数を補います。
+ * パイプラインを通ったデータは常に正確に数えます。
+ * </p>
+ *
+ * <p>
+ * 使用方法: {@code java TcpRelay <待ち受けポート> <転送先ホスト> <転送先ポート>}
+ * </p>
+ *
+ * <p>
+ * 設定はシステムプロパティから読み込みます。
+ * </p>
+ * <ul>
+ *     <li>{@code netty.transport} {@code epoll} または {@code nio} (既定値は epoll が使えれば epoll)</li>
+ *     <li>{@code relay.splice} epoll で splice を使うかどうか (既定値 true)</li>
+ *     <li>{@code relay.statsSeconds} 計測値をログへ出力する間隔 (秒、既定値 60)</li>
+ * </ul>
+ */
+public class TcpRelay {
+    private static final Logger logger = Logger.getLogger(TcpRelay.class.getName());
+
+    private final int               port;
+    private final InetSocketAddress target;
+    private final NettyTransport    transport;
+    private final boolean           splice;
+    private final LongAdder         bytesUp     = new LongAdder();
+    private final LongAdder         bytesDown   = new LongAdder();
+    private final LongAdder         connections = new LongAdder();
+    private final LongAdder         active      = new LongAdder();
+    private       ChannelGroup      tracked;
+
+    /**
+     * 中継サーバーを作成します。
+     *
+     * @param port      待ち受けポート。0 の場合は空いているポート
+     * @param target    転送先
+     * @param transport トランスポート
+     * @param splice    epoll トランスポートで splice を使うかどうか
+     */
+    TcpRelay(int port, InetSocketAddress target, NettyTransport transport, boolean splice) {
+        this.port = port;
+        this.target = target;
+        this.transport = transport;
+        this.splice = splice && transport == NettyTransport.EPOLL;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 3) {
+            System.err.println("Usage: java TcpRelay <listenPort> <targetHost> <targetPort>");
+            System.exit(1);
+        }
+        int port = Integer.parseInt(args[0]);
+        InetSocketAddress target = new InetSocketAddress(args[1], Integer.parseInt(args[2]));
+        boolean splice = Boolean.parseBoolean(System.getProperty("relay.splice", "true"));
+        new TcpRelay(port, target, NettyTransport.fromSystemProperties(), splice).run();
+    }
+
+    public void run() throws InterruptedException {
+        EventLoopGroup bossGroup = transport.newEventLoopGroup(1);
+        EventLoopGroup workerGroup = transport.newEventLoopGroup(0);
+        EventLoopWatchdog.shared().watch(bossGroup);
+        EventLoopWatchdog.shared().watch(workerGroup);
+
+        try {
+            Channel ch = bind(bossGroup, workerGroup);
+            logger.info("Relaying " + ch.localAddress() + " -> " + target
+                        + " (" + transport + (splice ? ", splice" : "") + ")");
+            logStatsPeriodically(workerGroup.next(), Long.getLong("relay.statsSeconds", 60), TimeUnit.SECONDS);
+            ch.closeFuture().sync();
+        } finally {
+            workerGroup.shutdownGracefully();
+            bossGroup.shutdownGracefully();
+        }
+    }
+
+    /**
+     * 受け付けた接続を追加するグループを設定します。追加するのはクライアント側の接続で、転送先への接続は含みません。バインドより前に呼び出します。
+     *
+     * @param group 接続を追加するグループ。閉じた接続はグループから自動的に取り除かれます
+     * @return このサーバー
+     */
+    TcpRelay trackConnections(ChannelGroup group) {
+        this.tracked = group;
+        return this;
+    }
+
+    /**
+     * 中継サーバーを起動します。
+     *
+     * @param bossGroup   接続を受け付けるイベントループグループ
+     * @param workerGroup 中継を行うイベントループグループ。トランスポートに合ったものを指定してください
+     * @return 待ち受けているチャネル
+     * @throws InterruptedException 起動を待つ間に割り込まれた場合
+     */
+    Channel bind(EventLoopGroup bossGroup, EventLoopGroup workerGroup) throws InterruptedException {
+        AdmissionController admission = AdmissionController.fromSystemProperties();
+        // 中継するバイト列の読み取り単位には意味がないため、読み取りごとのレート制限は行わない
+        AdmissionControlHandler admissionHandler = new AdmissionControlHandler(admission, null, false);
+        ConnectionReaper configured = ConnectionReaper.fromSystemProperties("relay");
+        // splice で転送するバイト列はパイプラインを通らず観測できないため、セッションタイムアウトだけを適用する
+        ConnectionReaper reaper = splice ? configured.sessionOnly() : configured;
+        admission.startExpiry(workerGroup);
+        reaper.logStatsPeriodically(Long.getLong("relay.statsSeconds", 60), TimeUnit.SECONDS);
+
+        ServerBootstrap b = new ServerBootstrap();
+        b.group(bossGroup, workerGroup)
+         .channel(transport.serverChannelClass())
+         .childHandler(
+                 new ChannelInitializer<SocketChannel>() {
+                     @Override
+                     public void initChannel(SocketChannel ch) {
+                         if (tracked != null) {
+                             tracked.add(ch);
+                         }
+                         NetEvents.traceConnection(ch, "TcpRelay");
+                         ch.pipeline().addLast(admissionHandler);
+                         ch.pipeline().addLast(reaper.newHandler());
+                         ch.pipeline().addLast(TcpRelayHandler.forClient(TcpRelay.this));
+                     }
+                 })
+         .option(ChannelOption.SO_BACKLOG, 128)
+         .childOption(ChannelOption.SO_KEEPALIVE, true)
+         .childOption(ChannelOption.TCP_NODELAY, true)
+         // 転送先に接続するまでは読み取らない
+         .childOption(ChannelOption.AUTO_READ, false)
+         .childOption(ChannelOption.ALLOW_HALF_CLOSURE, true);
+        if (splice) {
+            // splice は水平トリガーでしか使えない
+            b.childOption(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
+        return b.bind(port).sync().channel();
+    }
+
+    InetSocketAddress target() {
+        return target;
+    }
+
+    NettyTransport transport() {
+        return transport;
+    }
+
+    boolean splice() {
+        return splice;
+    }
+
+    void connectionOpened() {
+        connections.increment();
+        active.increment();
+    }
+
+    void connectionClosed() {
+        active.decrement();
+    }
+
+    /**
+     * 中継したバイト数を加算します。
+     *
+     * @param upstream クライアントから転送先への方向なら true
+     * @param n        バイト数
+     */
+    void addBytes(boolean upstream, long n) {
+        (upstream ? bytesUp : bytesDown).add(n);
+    }
+
+    /**
+     * 計測値をまとめた文字列を返します。
+     *
+     * @return 計測値
+     */
+    String stats() {
+        return String.format(
+                "connections=%d active=%d bytesUp=%d bytesDown=%d",
+                connections.sum(),
+                active.sum(),
+                bytesUp.sum(),
+                bytesDown.sum());
+    }
+
+    /**
+     * 計測値を定期的にログへ出力します。
+     *
+     * @param scheduler 出力タスクを実行するイベントループ
+     * @param period    出力間隔
+     * @param unit      出力間隔の単位
+     */
+    void logStatsPeriodically(EventExecutor scheduler, long period, TimeUnit unit) {
+        scheduler.scheduleAtFixedRate(() -> logger.fine(() -> "Relay: " + stats()), period, period, unit);
+    }
+}
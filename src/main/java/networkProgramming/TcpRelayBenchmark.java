@@ -0,0 +1,158 @@
+package networkProgramming;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link TcpRelay} のスループットを、転送先への直接接続と比べるベンチマーク。
+ *
+ * <p>
+ * 転送先には、受け取ったバイト数を数え、クライアントが送信を終えたら (FIN を受け取ったら) その数を
+ * 8バイトで返して切断するシンクを起動します。クライアントは指定したサイズを送ってから送信側だけを閉じ、
+ * 返ってきたバイト数を確かめるため、中継の片側クローズの扱いも同時に検証できます。
+ * </p>
+ *
+ * <p>
+ * 直接接続、NIO での中継、epoll での中継 (バッファの受け渡し)、epoll での中継 (splice) の順に測り、
+ * それぞれの MB/s を表示します。epoll が使えない環境では epoll の測定を省略します。
+ * </p>
+ *
+ * <p>
+ * 使用方法: {@code java TcpRelayBenchmark [接続数] [接続あたりの送信サイズ(MB)]}
+ * </p>
+ */
+public class TcpRelayBenchmark {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 4;
+        int megabytes = args.length > 1 ? Integer.parseInt(args[1]) : 256;
+        long size = megabytes * 1024L * 1024L;
+
+        ExecutorService executor = Executors.newCachedThreadPool();
+        try (ServerSocket sink = new ServerSocket(0)) {
+            executor.submit(() -> acceptSink(sink, executor));
+            InetSocketAddress target = new InetSocketAddress("127.0.0.1", sink.getLocalPort());
+
+            run("direct", target, connections, size, executor);
+            runRelay("nio", target, NettyTransport.NIO, false, connections, size, executor);
+            if (Epoll.isAvailable()) {
+                runRelay("epoll", target, NettyTransport.EPOLL, false, connections, size, executor);
+                runRelay("epoll+splice", target, NettyTransport.EPOLL, true, connections, size, executor);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void runRelay(
+            String name,
+            InetSocketAddress target,
+            NettyTransport transport,
+            boolean splice,
+            int connections,
+            long size,
+            ExecutorService executor) throws Exception {
+        EventLoopGroup boss = transport.newEventLoopGroup(1);
+        EventLoopGroup worker = transport.newEventLoopGroup(0);
+        try {
+            TcpRelay relay = new TcpRelay(0, target, transport, splice);
+            Channel ch = relay.bind(boss, worker);
+            InetSocketAddress address = new InetSocketAddress(
+                    "127.0.0.1",
+                    ((InetSocketAddress) ch.localAddress()).getPort());
+            run(name, address, connections, size, executor);
+            ch.close().sync();
+            System.out.println("  relay: " + relay.stats());
+        } finally {
+            worker.shutdownGracefully(0, 5, TimeUnit.SECONDS).awaitUninterruptibly();
+            boss.shutdownGracefully(0, 5, TimeUnit.SECONDS).awaitUninterruptibly();
+        }
+    }
+
+    private static void run(
+            String name,
+            InetSocketAddress address,
+            int connections,
+            long size,
+            ExecutorService executor) throws Exception {
+        List<Future<Long>> futures = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int i = 0; i < connections; i++) {
+            futures.add(executor.submit(() -> send(address, size)));
+        }
+        int mismatches = 0;
+        for (Future<Long> f : futures) {
+            if (f.get() != size) {
+                mismatches++;
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf(
+                "%-13s connections=%d total=%dMB  %.1f MB/s  %.2f s  mismatches=%d%n",
+                name,
+                connections,
+                size * connections / (1024 * 1024),
+                size * connections / (1024.0 * 1024.0) / seconds,
+                seconds,
+                mismatches);
+    }
+
+    /**
+     * 指定したサイズを送ってから送信側を閉じ、シンクが受け取ったと返したバイト数を返します。
+     */
+    private static long send(InetSocketAddress address, long size) throws IOException {
+        try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+            OutputStream out = socket.getOutputStream();
+            byte[] buf = new byte[BUFFER_SIZE];
+            for (long sent = 0; sent < size; sent += buf.length) {
+                out.write(buf, 0, (int) Math.min(buf.length, size - sent));
+            }
+            socket.shutdownOutput();
+            return new DataInputStream(socket.getInputStream()).readLong();
+        }
+    }
+
+    private static void acceptSink(ServerSocket server, ExecutorService executor) {
+        while (! server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                executor.submit(() -> sink(socket));
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private static Void sink(Socket socket) throws IOException {
+        try (socket) {
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[BUFFER_SIZE];
+            long received = 0;
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                received += n;
+            }
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeLong(received);
+            out.flush();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,324 @@
+package networkProgramming;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelException;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPromise;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollMode;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.socket.ChannelInputShutdownEvent;
+import io.netty.channel.socket.DuplexChannel;
+import io.netty.channel.unix.FileDescriptor;
+import io.netty.channel.unix.RawUnixChannelOption;
+import io.netty.util.ReferenceCountUtil;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link TcpRelay} の片方向の転送を受け持つハンドラー。
+ *
+ * <p>
+ * 受け付けた接続 (下流) に置いたハンドラーが、同じイベントループ上に転送先 (上流) への接続を作り、
+ * 上流側にも逆方向のハンドラーを置きます。どちらのチャネルも同じイベントループに属するため、
+ * 転送のためにスレッドをまたぐことはありません。
+ * </p>
+ *
+ * <p>
+ * epoll トランスポートで splice が有効な場合は、カーネルの {@code splice(2)} でソケットからパイプを経由して
+ * 相手のソケットへ直接転送し、ユーザー空間にデータをコピーしません。それ以外の場合は、読み取った
+ * {@link ByteBuf} をそのまま相手へ書き込みます。相手が書き込めない間は自動読み取りを止めて背圧を伝えます。
+ * </p>
+ *
+ * <p>
+ * 片方が送信を終えた (FIN を受信した) 場合は、書き込み済みのデータを送り終えてから相手の送信側だけを閉じ、
+ * 逆方向の転送は続けます。両方向とも閉じたチャネルは切断します。
+ * </p>
+ *
+ * <p>
+ * splice で転送したバイト数は完了した splice の単位でしか数えられないため、入力が閉じたときと、チャネルを
+ * 閉じる前に、カーネルがソケットごとに数えた受信バイト数 ({@code TCP_INFO} の {@code tcpi_bytes_received}、
+ * Linux 4.1 以降) との差を足して、途中で終わった splice の分を数えます。
+ * </p>
+ */
+final class TcpRelayHandler extends ChannelDuplexHandler {
+    private static final Logger logger            = Logger.getLogger(TcpRelayHandler.class.getName());
+    /**
+     * 1回の splice で転送するバイト数。完了ごとにバイト数を数え、次の splice を登録します。
+     */
+    private static final int    SPLICE_CHUNK      = 1024 * 1024;
+    private static final int    DRAIN_BUFFER_SIZE = 64 * 1024;
+    /**
+     * {@code getsockopt(IPPROTO_TCP (6), TCP_INFO (11))}。{@code struct tcp_info} の {@code tcpi_bytes_received}
+     * までを読みます。
+     */
+    private static final RawUnixChannelOption TCP_INFO                   = new RawUnixChannelOption(
+            "TCP_INFO", 6, 11, 136);
+    private static final int                  TCPI_BYTES_RECEIVED_OFFSET = 128;
+    // tcpi_state の値 (linux/tcp_states.h)
+    private static final int                  TCP_CLOSE                  = 7;
+    private static final int                  TCP_CLOSE_WAIT             = 8;
+    private static final int                  TCP_LAST_ACK               = 9;
+    private static final int                  TCP_CLOSING                = 11;
+
+    private final TcpRelay        relay;
+    private final boolean         clientSide;
+    private       Channel         source;
+    private       Channel         peer;
+    private       TcpRelayHandler peerHandler;
+    private       long            bytes;
+    private       boolean         settled;
+    private       long            startNanos;
+
+    private TcpRelayHandler(TcpRelay relay, boolean clientSide) {
+        this.relay = relay;
+        this.clientSide = clientSide;
+    }
+
+    /**
+     * 受け付けた接続に置くハンドラーを作成します。
+     *
+     * @param relay 中継の設定と計測値
+     * @return ハンドラー
+     */
+    static TcpRelayHandler forClient(TcpRelay relay) {
+        return new TcpRelayHandler(relay, true);
+    }
+
+    @Override
+    public void channelActive(ChannelHandlerContext ctx) throws Exception {
+        source = ctx.channel();
+        super.channelActive(ctx);
+        if (! clientSide) {
+            return;
+        }
+        startNanos = System.nanoTime();
+        relay.connectionOpened();
+        TcpRelayHandler upstreamHandler = new TcpRelayHandler(relay, false);
+        Bootstrap b = new Bootstrap().group(source.eventLoop())
+                                     .channel(relay.transport().socketChannelClass())
+                                     .option(ChannelOption.AUTO_READ, false)
+                                     .option(ChannelOption.ALLOW_HALF_CLOSURE, true)
+                                     .option(ChannelOption.TCP_NODELAY, true)
+                                     .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, 10_000)
+                                     .handler(upstreamHandler);
+        if (relay.splice()) {
+            b.option(EpollChannelOption.EPOLL_MODE, EpollMode.LEVEL_TRIGGERED);
+        }
+        b.connect(relay.target()).addListener((ChannelFutureListener) f -> {
+            if (! f.isSuccess()) {
+                logger.log(Level.WARNING, "Relay target unreachable: " + relay.target(), f.cause());
+                source.close();
+                return;
+            }
+            pair(upstreamHandler, f.channel());
+            start();
+            upstreamHandler.start();
+        });
+    }
+
+    private void pair(TcpRelayHandler upstreamHandler, Channel upstream) {
+        // 接続の完了は channelActive より先に通知されるため、上流側のチャネルもここで設定する
+        upstreamHandler.source = upstream;
+        peerHandler = upstreamHandler;
+        peer = upstream;
+        upstreamHandler.peerHandler = this;
+        upstreamHandler.peer = source;
+    }
+
+    private void start() {
+        if (! source.isActive() || ! peer.isActive()) {
+            source.close();
+            peer.close();
+            return;
+        }
+        if (relay.splice()) {
+            // 1つ目の splice の完了を待つ間も転送が止まらないよう、2つ登録しておく
+            splice();
+            splice();
+        }
+        source.config().setAutoRead(true);
+    }
+
+    private void splice() {
+        ((EpollSocketChannel) source).spliceTo((EpollSocketChannel) peer, SPLICE_CHUNK)
+                                     .addListener((ChannelFutureListener) f -> {
+                                         if (f.isSuccess() && ! settled) {
+                                             count(SPLICE_CHUNK);
+                                             if (source.isActive() && ! ((DuplexChannel) source).isInputShutdown()) {
+                                                 splice();
+                                             }
+                                         }
+                                     });
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) {
+        if (peer == null || ! (msg instanceof ByteBuf buf)) {
+            ReferenceCountUtil.release(msg);
+            return;
+        }
+        // splice の登録の合間に読み取ったデータもここを通るため、splice 利用時も順序は保たれる
+        count(buf.readableBytes());
+        peer.write(buf, peer.voidPromise());
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        if (peer != null) {
+            peer.flush();
+            if (! peer.isWritable()) {
+                source.config().setAutoRead(false);
+            }
+        }
+    }
+
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        // このチャネルへの書き込みが捌けたら、相手からの読み取りを再開する
+        if (peer != null && ctx.channel().isWritable()) {
+            peer.config().setAutoRead(true);
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
+    @Override
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt instanceof ChannelInputShutdownEvent) {
+            if (relay.splice() && peer != null) {
+                drainAfterSplice();
+                settleSplicedBytes();
+            }
+            if (peer != null) {
+                // 書き込み済みのデータを送り終えてから、相手の送信側を閉じる
+                Channel target = peer;
+                target.writeAndFlush(Unpooled.EMPTY_BUFFER)
+                      .addListener((ChannelFutureListener) f -> ((DuplexChannel) target)
+                              .shutdownOutput()
+                              .addListener(s -> closeIfShutdown(target)));
+            }
+            closeIfShutdown(source);
+            return;
+        }
+        super.userEventTriggered(ctx, evt);
+    }
+
+    /**
+     * splice の途中で FIN を受信すると、Netty は受信キューに残ったデータを読まずに入力を閉じます。
+     * Linux では入力を閉じた後も受信済みのデータは読めるため、ここで読み切って相手へ書き込みます。
+     * 相手への書き込みは送信待ちの splice の後ろに並ぶため、順序は保たれます。
+     */
+    private void drainAfterSplice() throws IOException {
+        FileDescriptor fd = ((EpollSocketChannel) source).fd();
+        for (;;) {
+            ByteBuf buf = source.alloc().directBuffer(DRAIN_BUFFER_SIZE);
+            ByteBuffer nio = buf.internalNioBuffer(0, buf.capacity());
+            int n = fd.read(nio, nio.position(), nio.limit());
+            if (n <= 0) {
+                buf.release();
+                return;
+            }
+            buf.writerIndex(n);
+            count(n);
+            peer.write(buf, peer.voidPromise());
+        }
+    }
+
+    /**
+     * カーネルが数えた受信バイト数と、これまでに数えたバイト数の差を数えます。ソケットが閉じる前に呼び出します。
+     * 以降に完了した splice は数えません。
+     */
+    private void settleSplicedBytes() {
+        if (! relay.splice() || settled || ! source.isOpen()) {
+            return;
+        }
+        ByteBuffer info;
+        try {
+            info = source.config().getOption(TCP_INFO);
+        } catch (ChannelException e) {
+            logger.log(Level.FINE, "TCP_INFO unavailable", e);
+            return;
+        }
+        if (info.remaining() < TCPI_BYTES_RECEIVED_OFFSET + Long.BYTES) {
+            // tcpi_bytes_received のない古いカーネルでは、完了した splice の単位のまま数える
+            return;
+        }
+        settled = true;
+        long received = info.order(ByteOrder.nativeOrder()).getLong(TCPI_BYTES_RECEIVED_OFFSET);
+        if (finReceived(info.get(0))) {
+            // FIN もシーケンス番号を1つ消費するため、受信バイト数に含まれている
+            received--;
+        }
+        if (received > bytes) {
+            count(received - bytes);
+        }
+    }
+
+    private boolean finReceived(int state) {
+        if (state == TCP_CLOSE_WAIT || state == TCP_LAST_ACK || state == TCP_CLOSING) {
+            return true;
+        }
+        // 送信側を閉じた後に FIN を受信したソケットは TIME_WAIT に移り、元のソケットは CLOSE になる。
+        // RST を受信した場合も CLOSE のため、先に送信側を閉じていたかどうかで区別する
+        return state == TCP_CLOSE && ((DuplexChannel) source).isOutputShutdown();
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        settleSplicedBytes();
+        super.close(ctx, promise);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        if (peerHandler != null) {
+            // 相手のソケットはまだ閉じていないため、ログに出す前に数えておく
+            peerHandler.settleSplicedBytes();
+        }
+        if (peer != null && peer.isActive()) {
+            peer.writeAndFlush(Unpooled.EMPTY_BUFFER).addListener(ChannelFutureListener.CLOSE);
+        }
+        if (clientSide) {
+            relay.connectionClosed();
+            long down = peerHandler != null ? peerHandler.bytes : 0;
+            logger.info(String.format(
+                    "Relay closed: %s -> %s, sent=%d received=%d, %dms",
+                    source.remoteAddress(),
+                    relay.target(),
+                    bytes,
+                    down,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)));
+        }
+        super.channelInactive(ctx);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        logger.log(Level.FINE, "Relay error", cause);
+        // 読み取りのエラーでは Netty がこの後ソケットを直接閉じ、close を通らないため、ここで数える
+        settleSplicedBytes();
+        ctx.close();
+    }
+
+    private void count(long n) {
+        bytes += n;
+        relay.addBytes(clientSide, n);
+    }
+
+    private static void closeIfShutdown(Channel ch) {
+        if (((DuplexChannel) ch).isShutdown()) {
+            ch.close();
+        }
+    }
+}
@@ -45,11 +45,14 @@ public class Telnet2 {
                 } else {
                     byte optionCommand = buff[1];
                     byte optionCode = buff[2];
+                    NetEvents.telnetNegotiation("client", "received", optionCommand, optionCode);
                     logNegotiation(optionCommand, optionCode);
                     if (optionCommand == DO) {
                         out.write(new byte[]{IAC, WONT, optionCode});
+                        NetEvents.telnetNegotiation("client", "sent", WONT, optionCode);
                     } else if (optionCommand == WILL) {
                         out.write(new byte[]{IAC, DONT, optionCode});
+                        NetEvents.telnetNegotiation("client", "sent", DONT, optionCode);
                     }
                     out.flush(); // 応答をフラッシュして送信
                 }
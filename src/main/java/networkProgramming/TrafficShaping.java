@@ -0,0 +1,177 @@
+package networkProgramming;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.traffic.GlobalChannelTrafficShapingHandler;
+import io.netty.handler.traffic.TrafficCounter;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * サーバーの送受信の帯域を、サーバー全体と接続ごとに制限します。
+ *
+ * <p>
+ * Netty の {@link GlobalChannelTrafficShapingHandler} を全接続で共有し、スレッドを眠らせずに制限します。
+ * 送信は上限を超えた分をイベントループのタイマーで遅らせ、待ちが長くなるとチャネルを書き込み不可にするため、
+ * {@code ChunkedWriteHandler} や HTTP/2 のフロー制御は書き込み可能になるまで次のデータを作りません。受信は
+ * 上限を超えると自動読み込みを止め、タイマーで再開します。
+ * </p>
+ *
+ * <p>
+ * 遅延はメッセージ単位で決まるため、大きなバッファは {@value #SLICE_BYTES} バイトごとのスライス (コピーなし) に
+ * 分けてから渡します。{@link io.netty.channel.FileRegion} は分けられないため、制限を有効にしたサーバーは
+ * sendfile を使わずにファイルをバッファへ読み込んで送ってください。
+ * </p>
+ *
+ * <p>
+ * 設定はシステムプロパティ {@code shaping.<サーバー名>.<項目>} から読み込み、なければ {@code shaping.<項目>}、
+ * それもなければ既定値を使います。上限の既定値は 0 (制限なし) で、4つとも 0 の場合は何も追加しません。
+ * </p>
+ * <ul>
+ *     <li>{@code globalWriteBytesPerSecond} サーバー全体の送信の上限 (バイト/秒)</li>
+ *     <li>{@code globalReadBytesPerSecond} サーバー全体の受信の上限 (バイト/秒)</li>
+ *     <li>{@code channelWriteBytesPerSecond} 接続ごとの送信の上限 (バイト/秒)</li>
+ *     <li>{@code channelReadBytesPerSecond} 接続ごとの受信の上限 (バイト/秒)</li>
+ *     <li>{@code checkMillis} 転送量を集計する間隔 (既定値 1000)</li>
+ * </ul>
+ */
+final class TrafficShaping {
+    static final         int    SLICE_BYTES = 64 * 1024;
+    private static final Logger logger      = Logger.getLogger(TrafficShaping.class.getName());
+
+    private final String                             name;
+    private final GlobalChannelTrafficShapingHandler handler;
+    private final ChannelHandler                     slicer = new Slicer();
+
+    private TrafficShaping(String name, GlobalChannelTrafficShapingHandler handler) {
+        this.name = name;
+        this.handler = handler;
+    }
+
+    /**
+     * システムプロパティの設定から作成します。
+     *
+     * @param name     サーバー名
+     * @param executor 遅らせた送信と受信の再開をスケジュールする実行器 (通常はワーカーのイベントループグループ)
+     * @return 帯域の制限。上限を1つも設定していない場合は無効な制限
+     */
+    static TrafficShaping fromSystemProperties(String name, ScheduledExecutorService executor) {
+        long globalWrite = property(name, "globalWriteBytesPerSecond", 0);
+        long globalRead = property(name, "globalReadBytesPerSecond", 0);
+        long channelWrite = property(name, "channelWriteBytesPerSecond", 0);
+        long channelRead = property(name, "channelReadBytesPerSecond", 0);
+        if (globalWrite <= 0 && globalRead <= 0 && channelWrite <= 0 && channelRead <= 0) {
+            return new TrafficShaping(name, null);
+        }
+        GlobalChannelTrafficShapingHandler handler = new GlobalChannelTrafficShapingHandler(
+                executor,
+                Math.max(globalWrite, 0),
+                Math.max(globalRead, 0),
+                Math.max(channelWrite, 0),
+                Math.max(channelRead, 0),
+                property(name, "checkMillis", 1000));
+        logger.info(String.format(
+                "%s traffic shaping: global write=%d read=%d, per connection write=%d read=%d bytes/s",
+                name, globalWrite, globalRead, channelWrite, channelRead));
+        return new TrafficShaping(name, handler);
+    }
+
+    private static long property(String name, String item, long defaultValue) {
+        Long value = Long.getLong("shaping." + name + "." + item);
+        return value != null ? value : Long.getLong("shaping." + item, defaultValue);
+    }
+
+    /**
+     * @return 上限を設定している場合は true
+     */
+    boolean enabled() {
+        return handler != null;
+    }
+
+    /**
+     * パイプラインの末尾に、帯域を制限するハンドラーを追加します。無効な場合は何もしません。
+     * 平文の接続ではデコーダーより前に、TLS の接続では TLS のハンドラーより前に呼び出してください。
+     *
+     * @param pipeline 接続のパイプライン
+     */
+    void addTo(ChannelPipeline pipeline) {
+        if (handler != null) {
+            pipeline.addLast(handler);
+            pipeline.addLast(slicer);
+        }
+    }
+
+    /**
+     * 共有のハンドラーが使うタイマーを止めます。サーバーチャネルが閉じたときに呼び出してください。
+     *
+     * @param serverChannel サーバーチャネル
+     */
+    void releaseOnClose(Channel serverChannel) {
+        if (handler != null) {
+            serverChannel.closeFuture().addListener(f -> handler.release());
+        }
+    }
+
+    /**
+     * @return 統計の文字列
+     */
+    String stats() {
+        if (handler == null) {
+            return name + " traffic shaping: disabled";
+        }
+        TrafficCounter counter = handler.trafficCounter();
+        return String.format(
+                "%s traffic shaping: write=%,d B/s read=%,d B/s written=%,d read=%,d queued=%,d",
+                name,
+                counter.lastWriteThroughput(),
+                counter.lastReadThroughput(),
+                counter.cumulativeWrittenBytes(),
+                counter.cumulativeReadBytes(),
+                handler.queuesSize());
+    }
+
+    /**
+     * 統計を一定間隔でログに出力します (FINE レベル)。無効な場合は何もしません。
+     *
+     * @param executor 出力をスケジュールする実行器
+     * @param period   間隔
+     * @param unit     間隔の単位
+     */
+    void logStatsPeriodically(EventExecutor executor, long period, TimeUnit unit) {
+        if (handler == null) {
+            return;
+        }
+        executor.scheduleAtFixedRate(() -> {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine(stats());
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * 大きなバッファを、コピーせずに {@value #SLICE_BYTES} バイトごとのスライスに分けます。
+     */
+    @ChannelHandler.Sharable
+    private static final class Slicer extends MessageToMessageEncoder<ByteBuf> {
+        @Override
+        protected void encode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) {
+            int length = msg.readableBytes();
+            if (length <= SLICE_BYTES) {
+                out.add(msg.retain());
+                return;
+            }
+            for (int offset = 0; offset < length; offset += SLICE_BYTES) {
+                out.add(msg.retainedSlice(msg.readerIndex() + offset, Math.min(SLICE_BYTES, length - offset)));
+            }
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package networkProgramming;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.util.ReferenceCountUtil;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link UdpServer} が1台で受信できるパケット数/秒を、ループバックで測るベンチマーク。
+ *
+ * <p>
+ * 同じプロセス内でサーバーを起動し、{@code udp.senders} 個の送信側チャネル (サーバーに connect した UDP ソケット) から、
+ * 指定した長さのデータグラムを指定した秒数だけ送り続けます。送信側は1回に {@code udp.burst} 個を書き込んでから
+ * フラッシュするため、epoll では sendmmsg でまとめて送ります。送信したパケット数、サーバーが受信したパケット数、
+ * 損失率 (受信バッファの溢れを含む)、echo の場合はサーバーが返信したパケット数と送信側に返ってきたパケット数を、
+ * 次の構成ごとに表示します。送信側は送信を優先するため、返ってきた数は送信側の受信バッファの溢れで少なくなることがあります。
+ * </p>
+ * <ul>
+ *     <li>nio: NIO、1回の読み込みで最大 {@code udp.batch} 個</li>
+ *     <li>epoll-single: epoll、recvmmsg を使わず、送信側も1個ずつフラッシュする</li>
+ *     <li>epoll-batched: epoll、recvmmsg と sendmmsg で {@code udp.batch} 個ずつ</li>
+ *     <li>epoll-gro-gso: epoll-batched に加えて UDP GRO と GSO を有効にする (カーネルが対応している場合)</li>
+ * </ul>
+ *
+ * <p>
+ * 送信側とサーバーが同じマシンの CPU を取り合うため、結果は受信側の上限の下限の目安です。
+ * サーバーだけの上限は、別のマシンから送って {@link UdpServer} の出力で確かめてください。
+ * epoll が使えない環境では epoll の構成を省略します。
+ * </p>
+ *
+ * <p>
+ * 使用方法: {@code java UdpBenchmark [discard|echo] [秒数] [データグラムの長さ]} (既定値 discard 5 64)
+ * </p>
+ */
+public class UdpBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        UdpServer.Mode mode = args.length > 0 ? UdpServer.Mode.valueOf(args[0].toUpperCase()) : UdpServer.Mode.DISCARD;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        int length = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+        int senders = Integer.getInteger("udp.senders", 2);
+        int burst = Integer.getInteger("udp.burst", 64);
+        UdpServer.Options base = UdpServer.Options.fromSystemProperties();
+
+        System.out.printf("mode=%s payload=%d bytes senders=%d seconds=%d%n",
+                          mode.name().toLowerCase(), length, senders, seconds);
+        run("nio", mode, NettyTransport.NIO, base, senders, burst, seconds, length);
+        if (Epoll.isAvailable()) {
+            UdpServer.Options single = new UdpServer.Options(
+                    base.sockets(), 0, base.maxPayload(), false, false, base.receiveBuffer(), base.sendBuffer());
+            UdpServer.Options gro = new UdpServer.Options(
+                    base.sockets(), base.batch(), 65535, true, true, base.receiveBuffer(), base.sendBuffer());
+            run("epoll-single", mode, NettyTransport.EPOLL, single, senders, 1, seconds, length);
+            run("epoll-batched", mode, NettyTransport.EPOLL, base, senders, burst, seconds, length);
+            run("epoll-gro-gso", mode, NettyTransport.EPOLL, gro, senders, burst, seconds, length);
+        }
+    }
+
+    private static void run(
+            String name,
+            UdpServer.Mode mode,
+            NettyTransport transport,
+            UdpServer.Options options,
+            int senders,
+            int burst,
+            int seconds,
+            int length) throws Exception {
+        EventLoopGroup serverGroup = transport.newEventLoopGroup(options.sockets());
+        EventLoopGroup clientGroup = transport.newEventLoopGroup(senders);
+        try {
+            UdpServer server = new UdpServer(0, mode, transport, options);
+            List<Channel> serverChannels = server.bind(serverGroup);
+            InetSocketAddress address = new InetSocketAddress("127.0.0.1", server.port());
+
+            LongAdder sent = new LongAdder();
+            LongAdder echoed = new LongAdder();
+            List<Sender> running = new ArrayList<>();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            for (int i = 0; i < senders; i++) {
+                Sender sender = new Sender(burst, length, deadline, sent, echoed);
+                Bootstrap b = new Bootstrap()
+                        .group(clientGroup)
+                        .channel(transport.datagramChannelClass())
+                        .option(ChannelOption.SO_SNDBUF, options.sendBuffer())
+                        .option(ChannelOption.SO_RCVBUF, options.receiveBuffer())
+                        .handler(sender);
+                if (transport == NettyTransport.EPOLL) {
+                    b.option(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE, 2048)
+                     .option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(2048 * 64));
+                }
+                Channel ch = b.connect(address).sync().channel();
+                ch.eventLoop().execute(() -> sender.pump(ch));
+                running.add(sender);
+            }
+            long startReceived = server.receivedPackets();
+            long startSent = server.sentPackets();
+            long startDrops = UdpServer.kernelDrops(server.port());
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+            // 送信を止めてから、受信バッファに残っている分を処理し終えるのを待つ
+            Thread.sleep(500);
+
+            long tx = sent.sum();
+            long rx = server.receivedPackets() - startReceived;
+            long kernelDrops = UdpServer.kernelDrops(server.port()) - startDrops;
+            System.out.printf(
+                    "%-14s tx %6.3f Mpps  rx %6.3f Mpps  loss %5.1f%%  kernelDrops=%d%s%n",
+                    name,
+                    tx / (double) seconds / 1e6,
+                    rx / (double) seconds / 1e6,
+                    tx == 0 ? 0.0 : 100.0 * (tx - rx) / tx,
+                    kernelDrops,
+                    mode == UdpServer.Mode.ECHO
+                    ? String.format(
+                            "  echo sent %6.3f Mpps returned %6.3f Mpps  sendDrops=%d",
+                            (server.sentPackets() - startSent) / (double) seconds / 1e6,
+                            echoed.sum() / (double) seconds / 1e6,
+                            server.sendDrops())
+                    : "");
+            for (Channel ch : serverChannels) {
+                ch.close().sync();
+            }
+        } finally {
+            clientGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+            serverGroup.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+        }
+    }
+
+    /**
+     * connect した UDP ソケットから、締め切りまでデータグラムを送り続ける送信側。
+     * 1つの送信用バッファの複製を送るため、データグラムごとにバッファを確保しません。
+     */
+    private static final class Sender extends ChannelInboundHandlerAdapter {
+        private final int       burst;
+        private final long      deadline;
+        private final LongAdder sent;
+        private final LongAdder echoed;
+        private final int       length;
+        private       ByteBuf   payload;
+
+        Sender(int burst, int length, long deadline, LongAdder sent, LongAdder echoed) {
+            this.burst = burst;
+            this.length = length;
+            this.deadline = deadline;
+            this.sent = sent;
+            this.echoed = echoed;
+        }
+
+        void pump(Channel ch) {
+            if (payload == null) {
+                payload = ch.alloc().directBuffer(length).writeZero(length);
+            }
+            if (System.nanoTime() >= deadline || ! ch.isActive()) {
+                return;
+            }
+            int n = 0;
+            while (n < burst && ch.isWritable()) {
+                ch.write(payload.retainedDuplicate(), ch.voidPromise());
+                n++;
+                if (burst == 1) {
+                    ch.flush();
+                }
+            }
+            ch.flush();
+            sent.add(n);
+            if (ch.isWritable()) {
+                // 他のタスクと受信を処理させるため、1回の送信ごとにイベントループへ戻る
+                ch.eventLoop().execute(() -> pump(ch));
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (ctx.channel().isWritable()) {
+                pump(ctx.channel());
+            }
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            echoed.increment();
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            // 送信先が閉じた後の ICMP port unreachable などは無視する
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            if (payload != null) {
+                payload.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,424 @@
+package networkProgramming;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.FixedRecvByteBufAllocator;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.socket.DatagramChannel;
+import io.netty.channel.socket.DatagramPacket;
+import io.netty.channel.unix.SegmentedDatagramPacket;
+import io.netty.util.concurrent.EventExecutor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link DiscardServer} の UDP 版。受け取ったデータグラムを捨てる (discard) か、送信元へそのまま返します (echo)。
+ *
+ * <p>
+ * epoll トランスポートでは、1回の {@code recvmmsg(2)} で複数のデータグラムを受信し、1回の読み込みで受け取った
+ * 返信を {@code sendmmsg(2)} でまとめて送ります。受信したデータグラムは、1回の受信ごとに確保したプールのバッファの
+ * スライスで、返信はそのスライスをそのまま送るため、データグラムごとにバッファを確保もコピーもしません。
+ * UDP GRO を有効にすると、カーネルがまとめた同じ送信元のデータグラムを1回で受け取り、UDP GSO を有効にすると、
+ * 同じ宛先への同じ長さの返信を1つのセグメント化データグラムとして送ります。
+ * {@code udp.sockets} に2以上を指定すると、SO_REUSEPORT で同じポートに複数のソケットを作り、
+ * カーネルがイベントループ間で受信を振り分けます。
+ * </p>
+ *
+ * <p>
+ * 一定間隔で、受信と送信のパケット数/秒、ビットレート、ドロップ数をログへ出力します。ドロップは、
+ * 送信バッファが一杯で返信を捨てた数 (アプリケーション) と、受信バッファが溢れてカーネルが捨てた数
+ * ({@code /proc/net/udp} のこのポートの drops) を分けて数えます。
+ * </p>
+ *
+ * <p>
+ * 使用方法: {@code java UdpServer [discard|echo] [ポート]} (既定値 discard 9009)
+ * </p>
+ *
+ * <p>
+ * 設定はシステムプロパティから読み込みます。
+ * </p>
+ * <ul>
+ *     <li>{@code netty.transport} {@code epoll} または {@code nio} (既定値は epoll が使えれば epoll)</li>
+ *     <li>{@code udp.sockets} 同じポートで受信するソケットの数 (既定値 1、2以上は epoll のみ)</li>
+ *     <li>{@code udp.batch} 1回の recvmmsg で受信するデータグラムの最大数 (既定値 64、0 の場合は1つずつ受信)。
+ *     受信バッファが 1MB を超えないよう、{@code udp.maxPayload} が大きい場合は減らします</li>
+ *     <li>{@code udp.maxPayload} 受信するデータグラムの最大サイズ (バイト、既定値 2048、GRO を有効にした場合は 65535)</li>
+ *     <li>{@code udp.gro} UDP GRO を有効にするか (既定値 false)</li>
+ *     <li>{@code udp.gso} echo の返信に UDP GSO を使うか (既定値 false)</li>
+ *     <li>{@code udp.receiveBuffer} SO_RCVBUF (バイト、既定値 4MB)</li>
+ *     <li>{@code udp.sendBuffer} SO_SNDBUF (バイト、既定値 4MB)</li>
+ *     <li>{@code udp.reportSeconds} 計測値をログへ出力する間隔 (秒、既定値 1)</li>
+ * </ul>
+ */
+public class UdpServer {
+    private static final Logger logger          = Logger.getLogger(UdpServer.class.getName());
+    private static final int    MAX_GSO_SEGMENTS = 64;
+    private static final int    MAX_GSO_BYTES    = 65000;
+    // 1回の受信で確保するバッファの上限。プールのチャンク (4MB) を超えるとプールを使わずに確保してしまう
+    private static final int    MAX_READ_BUFFER  = 1024 * 1024;
+
+    /**
+     * 受け取ったデータグラムの扱い。
+     */
+    enum Mode {
+        DISCARD,
+        ECHO
+    }
+
+    /**
+     * ソケットと受信のバッチの設定。
+     *
+     * @param sockets       同じポートで受信するソケットの数
+     * @param batch         1回の recvmmsg で受信するデータグラムの最大数 (0 は recvmmsg を使わない)
+     * @param maxPayload    受信するデータグラムの最大サイズ
+     * @param gro           UDP GRO を有効にするか
+     * @param gso           echo の返信に UDP GSO を使うか
+     * @param receiveBuffer SO_RCVBUF
+     * @param sendBuffer    SO_SNDBUF
+     */
+    record Options(int sockets, int batch, int maxPayload, boolean gro, boolean gso, int receiveBuffer, int sendBuffer) {
+
+        /**
+         * システムプロパティの設定を読み込みます。
+         *
+         * @return 設定
+         */
+        static Options fromSystemProperties() {
+            boolean gro = Boolean.getBoolean("udp.gro");
+            return new Options(
+                    Integer.getInteger("udp.sockets", 1),
+                    Integer.getInteger("udp.batch", 64),
+                    Integer.getInteger("udp.maxPayload", gro ? 65535 : 2048),
+                    gro,
+                    Boolean.getBoolean("udp.gso"),
+                    Integer.getInteger("udp.receiveBuffer", 4 * 1024 * 1024),
+                    Integer.getInteger("udp.sendBuffer", 4 * 1024 * 1024));
+        }
+    }
+
+    private final int            port;
+    private final Mode           mode;
+    private final NettyTransport transport;
+    private final Options        options;
+    private final LongAdder      received      = new LongAdder();
+    private final LongAdder      receivedBytes = new LongAdder();
+    private final LongAdder      sent          = new LongAdder();
+    private final LongAdder      sendDrops     = new LongAdder();
+    private final LongAdder      gsoSends      = new LongAdder();
+    private       int            boundPort;
+
+    /**
+     * サーバーを作成します。
+     *
+     * @param port      待ち受けポート。0 の場合は空いているポート
+     * @param mode      受け取ったデータグラムの扱い
+     * @param transport トランスポート
+     * @param options   ソケットと受信のバッチの設定
+     */
+    UdpServer(int port, Mode mode, NettyTransport transport, Options options) {
+        if (options.sockets() > 1 && transport != NettyTransport.EPOLL) {
+            throw new IllegalArgumentException("udp.sockets > 1 requires the epoll transport");
+        }
+        this.port = port;
+        this.mode = mode;
+        this.transport = transport;
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Mode mode = args.length > 0 ? Mode.valueOf(args[0].toUpperCase()) : Mode.DISCARD;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 9009;
+        Options options = Options.fromSystemProperties();
+        NettyTransport transport = NettyTransport.fromSystemProperties();
+        new UdpServer(port, mode, transport, options).run();
+    }
+
+    public void run() throws InterruptedException {
+        EventLoopGroup group = transport.newEventLoopGroup(options.sockets());
+        EventLoopWatchdog.shared().watch(group);
+        try {
+            List<Channel> channels = bind(group);
+            logger.info(String.format(
+                    "UDP %s on port %d (%s, sockets=%d, batch=%d, gro=%b, gso=%b)",
+                    mode.name().toLowerCase(),
+                    boundPort,
+                    transport,
+                    options.sockets(),
+                    options.batch(),
+                    options.gro(),
+                    gsoEnabled()));
+            reportPeriodically(group.next(), Long.getLong("udp.reportSeconds", 1), TimeUnit.SECONDS);
+            channels.get(0).closeFuture().sync();
+        } finally {
+            group.shutdownGracefully();
+        }
+    }
+
+    /**
+     * ソケットを作成して待ち受けます。{@code udp.sockets} の数だけ、グループの異なるイベントループに登録します。
+     *
+     * @param group データグラムを処理するイベントループグループ。トランスポートに合ったものを指定してください
+     * @return 待ち受けているチャネル
+     * @throws InterruptedException 起動を待つ間に割り込まれた場合
+     */
+    List<Channel> bind(EventLoopGroup group) throws InterruptedException {
+        Bootstrap b = new Bootstrap();
+        b.group(group)
+         .channel(transport.datagramChannelClass())
+         .option(ChannelOption.SO_RCVBUF, options.receiveBuffer())
+         .option(ChannelOption.SO_SNDBUF, options.sendBuffer())
+         // 返信は1回の読み込みの終わりまでフラッシュしないため、送信待ちの上限を送信バッファに合わせる
+         .option(ChannelOption.WRITE_BUFFER_WATER_MARK,
+                 new WriteBufferWaterMark(options.sendBuffer() / 2, options.sendBuffer()))
+         .handler(new ChannelInitializer<DatagramChannel>() {
+             @Override
+             protected void initChannel(DatagramChannel ch) {
+                 ch.pipeline().addLast(new UdpServerHandler());
+             }
+         });
+        if (transport == NettyTransport.EPOLL) {
+            if (options.batch() > 0) {
+                // 受信バッファをデータグラムの最大サイズで区切り、区切りの数だけ recvmmsg で受信する
+                int batch = Math.max(1, Math.min(options.batch(), MAX_READ_BUFFER / options.maxPayload()));
+                b.option(EpollChannelOption.MAX_DATAGRAM_PAYLOAD_SIZE, options.maxPayload())
+                 .option(ChannelOption.RCVBUF_ALLOCATOR,
+                         new FixedRecvByteBufAllocator(options.maxPayload() * batch));
+            } else {
+                b.option(ChannelOption.RCVBUF_ALLOCATOR, new FixedRecvByteBufAllocator(options.maxPayload()));
+            }
+            b.option(EpollChannelOption.UDP_GRO, options.gro());
+            if (options.sockets() > 1) {
+                b.option(EpollChannelOption.SO_REUSEPORT, true);
+            }
+        } else {
+            FixedRecvByteBufAllocator allocator = new FixedRecvByteBufAllocator(options.maxPayload());
+            if (options.batch() > 0) {
+                allocator.maxMessagesPerRead(options.batch());
+            }
+            b.option(ChannelOption.RCVBUF_ALLOCATOR, allocator);
+        }
+
+        List<Channel> channels = new ArrayList<>();
+        Channel first = b.bind(port).sync().channel();
+        channels.add(first);
+        boundPort = ((InetSocketAddress) first.localAddress()).getPort();
+        for (int i = 1; i < options.sockets(); i++) {
+            channels.add(b.bind(boundPort).sync().channel());
+        }
+        for (Channel ch : channels) {
+            first.closeFuture().addListener(f -> ch.close());
+        }
+        return channels;
+    }
+
+    /**
+     * 待ち受けているポート番号を返します。
+     *
+     * @return ポート番号
+     */
+    int port() {
+        return boundPort;
+    }
+
+    private boolean gsoEnabled() {
+        return options.gso() && mode == Mode.ECHO && transport == NettyTransport.EPOLL
+               && EpollDatagramChannel.isSegmentedDatagramPacketSupported();
+    }
+
+    /**
+     * 計測値をまとめた文字列を返します。
+     *
+     * @return 計測値
+     */
+    String stats() {
+        return String.format(
+                "received=%d receivedBytes=%d sent=%d gsoSends=%d sendDrops=%d kernelDrops=%d",
+                received.sum(),
+                receivedBytes.sum(),
+                sent.sum(),
+                gsoSends.sum(),
+                sendDrops.sum(),
+                kernelDrops(boundPort));
+    }
+
+    long receivedPackets() {
+        return received.sum();
+    }
+
+    long sentPackets() {
+        return sent.sum();
+    }
+
+    long sendDrops() {
+        return sendDrops.sum();
+    }
+
+    /**
+     * 前回からの差分の毎秒の値を定期的にログへ出力します。
+     *
+     * @param scheduler 出力タスクを実行するイベントループ
+     * @param period    出力間隔
+     * @param unit      出力間隔の単位
+     */
+    void reportPeriodically(EventExecutor scheduler, long period, TimeUnit unit) {
+        long[] last = new long[5];
+        long[] lastNanos = {System.nanoTime()};
+        scheduler.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            long[] current = {received.sum(), receivedBytes.sum(), sent.sum(), sendDrops.sum(), kernelDrops(boundPort)};
+            double seconds = (now - lastNanos[0]) / 1e9;
+            logger.info(String.format(
+                    "rx %.3f Mpps %.1f Mbit/s  tx %.3f Mpps  drops: send=%d kernel=%d",
+                    (current[0] - last[0]) / seconds / 1e6,
+                    (current[1] - last[1]) * 8 / seconds / 1e6,
+                    (current[2] - last[2]) / seconds / 1e6,
+                    current[3] - last[3],
+                    current[4] - last[4]));
+            System.arraycopy(current, 0, last, 0, current.length);
+            lastNanos[0] = now;
+        }, period, period, unit);
+    }
+
+    /**
+     * 受信バッファが溢れてカーネルが捨てたデータグラムの数を、{@code /proc/net/udp} と {@code /proc/net/udp6} の
+     * drops の列から、指定したポートのソケットについて合計します。Linux 以外では 0 を返します。
+     *
+     * @param port ポート番号
+     * @return ドロップ数の合計
+     */
+    static long kernelDrops(int port) {
+        String local = String.format(":%04X", port);
+        long drops = 0;
+        for (String name : new String[] {"/proc/net/udp", "/proc/net/udp6"}) {
+            Path path = Paths.get(name);
+            if (! Files.isReadable(path)) {
+                continue;
+            }
+            try {
+                for (String line : Files.readAllLines(path)) {
+                    String[] fields = line.trim().split("\\s+");
+                    // sl local_address rem_address st tx_queue:rx_queue tr:tm->when retrnsmt uid timeout inode ref pointer drops
+                    if (fields.length >= 13 && fields[1].endsWith(local)) {
+                        drops += Long.parseLong(fields[12]);
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                logger.log(Level.FINE, "Cannot read " + name, e);
+            }
+        }
+        return drops;
+    }
+
+    /**
+     * 1つのソケットのデータグラムを処理するハンドラー。
+     *
+     * <p>
+     * echo では返信を書き込むだけでフラッシュせず、1回の読み込みが終わった時点でまとめてフラッシュします。
+     * epoll では、このとき送信待ちのデータグラムを sendmmsg でまとめて送ります。フラッシュしても
+     * チャネルが書き込み不可のままの場合は、返信を捨ててドロップとして数えます。
+     * </p>
+     */
+    private final class UdpServerHandler extends ChannelInboundHandlerAdapter {
+        private final boolean           gso   = gsoEnabled();
+        // GSO でまとめる、同じ宛先への同じ長さの返信
+        private final List<ByteBuf>     run   = new ArrayList<>();
+        private       InetSocketAddress runRecipient;
+        private       int               runSegmentSize;
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            DatagramPacket packet = (DatagramPacket) msg;
+            ByteBuf content = packet.content();
+            received.increment();
+            receivedBytes.add(content.readableBytes());
+            if (mode == Mode.DISCARD) {
+                packet.release();
+                return;
+            }
+            if (! ctx.channel().isWritable()) {
+                // 送信待ちを送ってみて、それでも書き込めなければ捨てる
+                ctx.flush();
+                if (! ctx.channel().isWritable()) {
+                    sendDrops.increment();
+                    packet.release();
+                    return;
+                }
+            }
+            if (! gso) {
+                // 受信したバッファのスライスをそのまま返す
+                ctx.write(new DatagramPacket(content, packet.sender()), ctx.voidPromise());
+                sent.increment();
+                return;
+            }
+            InetSocketAddress sender = packet.sender();
+            int length = content.readableBytes();
+            if (! run.isEmpty() && (! sender.equals(runRecipient) || length != runSegmentSize
+                                    || run.size() == MAX_GSO_SEGMENTS
+                                    || (run.size() + 1) * runSegmentSize > MAX_GSO_BYTES)) {
+                writeRun(ctx);
+            }
+            if (run.isEmpty()) {
+                runRecipient = sender;
+                runSegmentSize = length;
+            }
+            run.add(content);
+        }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) {
+            if (mode == Mode.ECHO) {
+                if (! run.isEmpty()) {
+                    writeRun(ctx);
+                }
+                ctx.flush();
+            }
+        }
+
+        private void writeRun(ChannelHandlerContext ctx) {
+            if (run.size() == 1) {
+                ctx.write(new DatagramPacket(run.get(0), runRecipient), ctx.voidPromise());
+            } else {
+                CompositeByteBuf segments = ctx.alloc().compositeDirectBuffer(run.size());
+                segments.addComponents(true, run);
+                ctx.write(new SegmentedDatagramPacket(segments, runSegmentSize, runRecipient), ctx.voidPromise());
+                gsoSends.increment();
+            }
+            sent.add(run.size());
+            run.clear();
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+            for (ByteBuf buf : run) {
+                buf.release();
+            }
+            run.clear();
+            super.channelInactive(ctx);
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+            // 宛先に届かない (ICMP port unreachable など) 送信の失敗ではソケットを閉じない
+            logger.log(Level.FINE, "UDP error", cause);
+        }
+    }
+}
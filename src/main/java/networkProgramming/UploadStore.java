@@ -0,0 +1,391 @@
+package networkProgramming;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * PUT と POST で受け取ったリクエストボディを、メモリーに溜めずにファイルへ書き込むアップロード先のディレクトリ。
+ *
+ * <p>
+ * アップロードごとに同じディレクトリに一時ファイルを作り、受信したチャンクを {@link BlockingIoExecutor} 上で
+ * {@link FileChannel#write(ByteBuffer, long)} により書き込みます。ボディを最後まで受け取ると、一時ファイルを
+ * 目的のファイル名へ置き換えます (同じファイルシステム内のアトミックなリネーム)。途中で切断された場合は
+ * 一時ファイルを削除するため、目的のファイルが書きかけの内容になることはありません。
+ * </p>
+ *
+ * <p>
+ * ディスクへの書き込みが追いつかない場合は、書き込み待ちのバイト数が上限を超えた時点で受信元のチャネルの
+ * {@link io.netty.channel.ChannelConfig#setAutoRead(boolean) autoRead} を止め、半分まで減ったら再開します。
+ * HTTP/1.1 では TCP の受信ウィンドウ、HTTP/2 ではストリームの子チャネルが読み込んだ分だけ送る WINDOW_UPDATE が
+ * 止まるため、クライアントの送信が抑えられます。アップロード1件あたりのメモリーは、この上限と1回の受信分に収まります。
+ * </p>
+ *
+ * <p>
+ * 設定はシステムプロパティから読み込みます。{@code upload.dir} を設定しない場合、アップロードは受け付けません。
+ * </p>
+ * <ul>
+ *     <li>{@code upload.dir} アップロードしたファイルを置くディレクトリ</li>
+ *     <li>{@code upload.prefix} アップロードを受け付けるパスの接頭辞 (既定値 /upload/)。
+ *     接頭辞の後ろがファイル名になります</li>
+ *     <li>{@code upload.maxBytes} 1ファイルの最大バイト数 (既定値 0 = 無制限)</li>
+ *     <li>{@code upload.maxPendingBytes} ディスクへの書き込み待ちの上限 (バイト、既定値 1MB)</li>
+ *     <li>{@code upload.sync} リネームの前に {@link FileChannel#force(boolean)} で書き込みを確定するか (既定値 false)</li>
+ * </ul>
+ */
+final class UploadStore {
+    private static final Logger  logger    = Logger.getLogger(UploadStore.class.getName());
+    private static final Pattern FILE_NAME = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]*");
+
+    private final Path               directory;
+    private final String             prefix;
+    private final long               maxBytes;
+    private final long               maxPendingBytes;
+    private final boolean            sync;
+    private final BlockingIoExecutor ioExecutor;
+    private final LongAdder          completed    = new LongAdder();
+    private final LongAdder          failed       = new LongAdder();
+    private final LongAdder          bytes        = new LongAdder();
+    private final LongAdder          pauses       = new LongAdder();
+    private final LongAdder          writeBatches = new LongAdder();
+
+    /**
+     * アップロード先を作成します。
+     *
+     * @param directory       ファイルを置くディレクトリ
+     * @param prefix          アップロードを受け付けるパスの接頭辞
+     * @param maxBytes        1ファイルの最大バイト数 (0 は無制限)
+     * @param maxPendingBytes ディスクへの書き込み待ちの上限
+     * @param sync            リネームの前に書き込みを確定するか
+     * @param ioExecutor      ファイルへ書き込む実行器
+     */
+    UploadStore(Path directory, String prefix, long maxBytes, long maxPendingBytes, boolean sync, BlockingIoExecutor ioExecutor) {
+        this.directory = directory;
+        this.prefix = prefix;
+        this.maxBytes = maxBytes;
+        this.maxPendingBytes = maxPendingBytes;
+        this.sync = sync;
+        this.ioExecutor = ioExecutor;
+    }
+
+    /**
+     * システムプロパティの設定からアップロード先を作成します。
+     *
+     * @param ioExecutor ファイルへ書き込む実行器
+     * @return アップロード先。{@code upload.dir} が設定されていない場合は null
+     * @throws IOException ディレクトリを作成できない場合
+     */
+    static UploadStore fromSystemProperties(BlockingIoExecutor ioExecutor) throws IOException {
+        String dir = System.getProperty("upload.dir");
+        if (dir == null) {
+            return null;
+        }
+        Path directory = Files.createDirectories(Paths.get(dir));
+        return new UploadStore(
+                directory,
+                System.getProperty("upload.prefix", "/upload/"),
+                Long.getLong("upload.maxBytes", 0),
+                Long.getLong("upload.maxPendingBytes", 1024 * 1024),
+                Boolean.getBoolean("upload.sync"),
+                ioExecutor);
+    }
+
+    /**
+     * アップロードとして扱うリクエストかを判定します。
+     *
+     * @param method リクエストメソッド
+     * @param uri    リクエストの URI
+     * @return PUT または POST で、パスが接頭辞で始まる場合は true
+     */
+    boolean accepts(CharSequence method, CharSequence uri) {
+        if (uri == null || ! ("PUT".contentEquals(method) || "POST".contentEquals(method))) {
+            return false;
+        }
+        return uri.toString().startsWith(prefix);
+    }
+
+    /**
+     * URI からアップロード先のファイルを求めます。
+     *
+     * @param uri リクエストの URI
+     * @return ファイルのパス。ファイル名として使えない場合は null
+     */
+    Path target(CharSequence uri) {
+        String path = uri.toString();
+        int query = path.indexOf('?');
+        String name = path.substring(prefix.length(), query < 0 ? path.length() : query);
+        return FILE_NAME.matcher(name).matches() ? directory.resolve(name) : null;
+    }
+
+    /**
+     * 宣言されたボディの長さが上限を超えているかを判定します。
+     *
+     * @param contentLength Content-Length の値 (不明な場合は負の値)
+     * @return 上限を超えている場合は true
+     */
+    boolean tooLarge(long contentLength) {
+        return maxBytes > 0 && contentLength > maxBytes;
+    }
+
+    /**
+     * アップロードを開始します。
+     *
+     * @param target  アップロード先のファイル ({@link #target(CharSequence)} の結果)
+     * @param channel ボディを受信するチャネル。書き込みが追いつかない場合は読み込みを止めます
+     * @return アップロード
+     */
+    Upload begin(Path target, Channel channel) {
+        return new Upload(target, channel);
+    }
+
+    /**
+     * 計測値をまとめた文字列を返します。
+     *
+     * @return 計測値
+     */
+    String stats() {
+        return String.format(
+                "completed=%d failed=%d bytes=%d writeBatches=%d pauses=%d",
+                completed.sum(),
+                failed.sum(),
+                bytes.sum(),
+                writeBatches.sum(),
+                pauses.sum());
+    }
+
+    /**
+     * 計測値を定期的にログへ出力します。
+     *
+     * @param scheduler 出力タスクを実行するイベントループ
+     * @param period    出力間隔
+     * @param unit      出力間隔の単位
+     */
+    void logStatsPeriodically(EventExecutor scheduler, long period, TimeUnit unit) {
+        scheduler.scheduleAtFixedRate(() -> logger.fine(() -> "Uploads: " + stats()), period, period, unit);
+    }
+
+    /**
+     * 1件のアップロード。メソッドはすべて受信元チャネルのイベントループから呼び出します。
+     *
+     * <p>
+     * ディスクへの書き込みは1件につき同時に1つのタスクだけで行い、その間に届いたチャンクは次のタスクでまとめて書き込みます。
+     * タスクの結果はイベントループで受け取るため、状態はイベントループだけが更新します。
+     * </p>
+     */
+    final class Upload {
+        private final Path                 target;
+        private final Channel              channel;
+        private final EventExecutor        executor;
+        private final Promise<Long>        completion;
+        private final ArrayDeque<ByteBuf>  queue = new ArrayDeque<>();
+        private       Path                 temp;
+        private       FileChannel          file;
+        private       long                 received;
+        private       long                 written;
+        private       long                 pendingBytes;
+        private       boolean              writing;
+        private       boolean              paused;
+        private       boolean              ended;
+        private       boolean              aborted;
+
+        private Upload(Path target, Channel channel) {
+            this.target = target;
+            this.channel = channel;
+            this.executor = channel.eventLoop();
+            this.completion = executor.newPromise();
+        }
+
+        /**
+         * 受信したボディの一部を書き込みます。成功した場合、バッファの参照を保持します。
+         *
+         * @param content ボディの一部
+         * @return 1ファイルの上限を超えた場合は false (バッファは保持しません)
+         */
+        boolean write(ByteBuf content) {
+            int length = content.readableBytes();
+            if (maxBytes > 0 && received + length > maxBytes) {
+                return false;
+            }
+            if (length == 0 || aborted) {
+                return true;
+            }
+            received += length;
+            pendingBytes += length;
+            queue.add(content.retain());
+            if (! paused && pendingBytes > maxPendingBytes) {
+                paused = true;
+                pauses.increment();
+                channel.config().setAutoRead(false);
+            }
+            writeNext();
+            return true;
+        }
+
+        /**
+         * ボディを最後まで受け取ったことを通知します。書き込みが終わるとファイルをリネームし、
+         * {@link #completion()} を書き込んだバイト数で完了します。以降は受信元チャネルの読み込みを再開しないため、
+         * 呼び出し元はレスポンスを書き込んだ後に autoRead を戻します。
+         *
+         * @return アップロードの完了
+         */
+        Future<Long> end() {
+            ended = true;
+            writeNext();
+            return completion;
+        }
+
+        /**
+         * アップロードを中止し、一時ファイルを削除します。
+         */
+        void abort() {
+            if (aborted || completion.isDone()) {
+                return;
+            }
+            aborted = true;
+            while (! queue.isEmpty()) {
+                queue.poll().release();
+            }
+            pendingBytes = 0;
+            completion.tryFailure(new IOException("Upload aborted"));
+            if (! writing) {
+                cleanUp();
+            }
+        }
+
+        /**
+         * アップロードの完了を返します。
+         *
+         * @return 書き込んだバイト数で完了する Future
+         */
+        Future<Long> completion() {
+            return completion;
+        }
+
+        private void writeNext() {
+            if (writing || aborted || completion.isDone()) {
+                return;
+            }
+            if (queue.isEmpty()) {
+                if (ended) {
+                    commit();
+                }
+                return;
+            }
+            ByteBuf[] batch = queue.toArray(new ByteBuf[0]);
+            queue.clear();
+            long position = written;
+            writing = true;
+            writeBatches.increment();
+            ioExecutor.submit(() -> writeBatch(batch, position), executor)
+                      .addListener((Future<Long> f) -> {
+                          writing = false;
+                          for (ByteBuf buf : batch) {
+                              buf.release();
+                          }
+                          if (aborted) {
+                              cleanUp();
+                              return;
+                          }
+                          if (! f.isSuccess()) {
+                              fail(f.cause());
+                              return;
+                          }
+                          written += f.getNow();
+                          pendingBytes -= f.getNow();
+                          if (paused && ! ended && pendingBytes <= maxPendingBytes / 2) {
+                              paused = false;
+                              channel.config().setAutoRead(true);
+                          }
+                          writeNext();
+                      });
+        }
+
+        private long writeBatch(ByteBuf[] batch, long position) throws IOException {
+            if (file == null) {
+                temp = directory.resolve("." + target.getFileName() + "."
+                                         + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".part");
+                file = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            }
+            long offset = position;
+            for (ByteBuf buf : batch) {
+                for (ByteBuffer nio : buf.nioBuffers()) {
+                    while (nio.hasRemaining()) {
+                        offset += file.write(nio, offset);
+                    }
+                }
+            }
+            return offset - position;
+        }
+
+        private void commit() {
+            writing = true;
+            ioExecutor.submit(() -> {
+                          if (file == null) {
+                              // ボディが空の場合も空のファイルとして置き換える
+                              writeBatch(new ByteBuf[0], 0);
+                          }
+                          if (sync) {
+                              file.force(true);
+                          }
+                          file.close();
+                          Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+                          return null;
+                      }, executor)
+                      .addListener(f -> {
+                          writing = false;
+                          if (f.isSuccess()) {
+                              completed.increment();
+                              bytes.add(written);
+                              completion.trySuccess(written);
+                          } else {
+                              fail(f.cause());
+                          }
+                      });
+        }
+
+        private void fail(Throwable cause) {
+            if (completion.tryFailure(cause)) {
+                aborted = true;
+                while (! queue.isEmpty()) {
+                    queue.poll().release();
+                }
+                cleanUp();
+            }
+        }
+
+        private void cleanUp() {
+            failed.increment();
+            FileChannel f = file;
+            Path t = temp;
+            if (f == null && t == null) {
+                return;
+            }
+            ioExecutor.submit(() -> {
+                if (f != null) {
+                    f.close();
+                }
+                if (t != null) {
+                    Files.deleteIfExists(t);
+                }
+                return null;
+            }, executor);
+        }
+    }
+}
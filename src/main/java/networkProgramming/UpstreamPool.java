@@ -0,0 +1,166 @@
+package networkProgramming;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.EventLoop;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.Future;
+import io.netty.util.concurrent.Promise;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * リバースプロキシの上流へのキープアライブ接続を、イベントループごとに保持するプール。
+ *
+ * <p>
+ * 上流接続は受け付けた接続と同じイベントループに作成し、そのイベントループのプールに戻します。
+ * プールはそのイベントループからしか触らないため、ロックを取らずに済み、上流と下流の間の転送も
+ * スレッドをまたぎません。
+ * </p>
+ *
+ * <p>
+ * 上流ごと、イベントループごとの接続数が上限に達した場合は、空き接続が戻るのを待ち行列で待ちます。
+ * 待ち行列も一杯の場合は {@link RejectedExecutionException} で失敗します。
+ * </p>
+ *
+ * <p>
+ * 設定はシステムプロパティから読み込みます。
+ * </p>
+ * <ul>
+ *     <li>{@code proxy.maxConnectionsPerLoop} 上流ごと、イベントループごとの最大接続数 (既定値 64)</li>
+ *     <li>{@code proxy.maxWaiters} 上流ごと、イベントループごとの待ち行列の長さ (既定値 1024)</li>
+ *     <li>{@code proxy.connectTimeoutMillis} 上流への接続タイムアウト (既定値 5000)</li>
+ * </ul>
+ */
+final class UpstreamPool {
+    private static final AttributeKey<HostPool> POOL = AttributeKey.valueOf("proxy.pool");
+
+    private final ChannelHandler                                                 initializer;
+    private final ProxyStats                                                     stats;
+    private final int                                                            maxConnectionsPerLoop;
+    private final int                                                            maxWaiters;
+    private final int                                                            connectTimeoutMillis;
+    private final ConcurrentHashMap<EventLoop, Map<InetSocketAddress, HostPool>> pools = new ConcurrentHashMap<>();
+
+    /**
+     * プールを作成します。
+     *
+     * @param initializer 上流接続のパイプラインを初期化するハンドラー
+     * @param stats       計測値
+     */
+    UpstreamPool(ChannelHandler initializer, ProxyStats stats) {
+        this.initializer = initializer;
+        this.stats = stats;
+        this.maxConnectionsPerLoop = Integer.getInteger("proxy.maxConnectionsPerLoop", 64);
+        this.maxWaiters = Integer.getInteger("proxy.maxWaiters", 1024);
+        this.connectTimeoutMillis = Integer.getInteger("proxy.connectTimeoutMillis", 5000);
+    }
+
+    /**
+     * 上流への接続を取得します。イベントループ上から呼び出してください。
+     *
+     * @param loop     呼び出し元のイベントループ
+     * @param upstream 上流のアドレス
+     * @return 接続の Future。リスナーは同じイベントループで実行されます
+     */
+    Future<Channel> acquire(EventLoop loop, InetSocketAddress upstream) {
+        HostPool pool = pools.computeIfAbsent(loop, l -> new HashMap<>())
+                             .computeIfAbsent(upstream, a -> new HostPool(loop, a));
+        Channel ch;
+        while ((ch = pool.idle.pollLast()) != null) {
+            if (ch.isActive()) {
+                stats.recordConnectionReused();
+                return loop.newSucceededFuture(ch);
+            }
+        }
+        if (pool.open < maxConnectionsPerLoop) {
+            Promise<Channel> promise = loop.newPromise();
+            connect(pool, promise);
+            return promise;
+        }
+        if (pool.waiters.size() >= maxWaiters) {
+            stats.recordPoolRejection();
+            return loop.newFailedFuture(new RejectedExecutionException("Upstream pool exhausted: " + upstream));
+        }
+        stats.recordPoolWait();
+        Promise<Channel> promise = loop.newPromise();
+        pool.waiters.add(promise);
+        return promise;
+    }
+
+    /**
+     * 再利用できる接続をプールに戻します。待っている取得要求があれば、そのまま引き渡します。
+     *
+     * @param ch 接続
+     */
+    void release(Channel ch) {
+        HostPool pool = ch.attr(POOL).get();
+        Promise<Channel> waiter;
+        while ((waiter = pool.waiters.poll()) != null) {
+            if (waiter.trySuccess(ch)) {
+                stats.recordConnectionReused();
+                return;
+            }
+        }
+        pool.idle.addLast(ch);
+    }
+
+    private void connect(HostPool pool, Promise<Channel> promise) {
+        pool.open++;
+        stats.recordConnectionOpened();
+        new Bootstrap().group(pool.loop)
+                       // ドメインソケットで受け付けた接続は epoll のイベントループで動くため、ループに合わせる
+                       .channel(NettyTransport.of(pool.loop.parent()).socketChannelClass())
+                       .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, connectTimeoutMillis)
+                       .option(ChannelOption.TCP_NODELAY, true)
+                       .attr(POOL, pool)
+                       .handler(initializer)
+                       .connect(pool.upstream)
+                       .addListener((ChannelFutureListener) f -> {
+                           // 接続に失敗した場合も closeFuture は完了するため、接続数はそちらで戻る
+                           f.channel().closeFuture().addListener(c -> closed(pool, f.channel()));
+                           if (f.isSuccess()) {
+                               if (! promise.trySuccess(f.channel())) {
+                                   release(f.channel());
+                               }
+                           } else {
+                               stats.recordUpstreamError();
+                               promise.tryFailure(f.cause());
+                           }
+                       });
+    }
+
+    private void closed(HostPool pool, Channel ch) {
+        pool.open--;
+        pool.idle.remove(ch);
+        // 閉じた分の枠で、待っている取得要求のために新しく接続する
+        Promise<Channel> waiter = pool.waiters.poll();
+        if (waiter != null) {
+            connect(pool, waiter);
+        }
+    }
+
+    /**
+     * イベントループごと、上流ごとのプール。
+     */
+    private static final class HostPool {
+        final EventLoop                    loop;
+        final InetSocketAddress            upstream;
+        final ArrayDeque<Channel>          idle    = new ArrayDeque<>();
+        final ArrayDeque<Promise<Channel>> waiters = new ArrayDeque<>();
+        int                                open;
+
+        HostPool(EventLoop loop, InetSocketAddress upstream) {
+            this.loop = loop;
+            this.upstream = upstream;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+package networkProgramming;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 接続ごとに仮想スレッドを割り当て、ブロッキングの読み書きで静的ファイルを配信する HTTP/1.1 サーバー。
+ * {@link PseudHttpDaemon} の Netty のパイプラインの代わりに、システムプロパティ {@code http.engine=virtual} で選びます。
+ *
+ * <p>
+ * {@link ServerSocketChannel} で接続を受け付け、接続の仮想スレッドはソケットの読み込みで止まりながら
+ * リクエストを読み、ボディは {@link FileChannel#transferTo} でファイルからソケットへ直接送ります。
+ * 仮想スレッドはブロッキングの呼び出しの間キャリアスレッドを手放すため、接続数だけスレッドがあってもOSのスレッドは
+ * CPU数程度です。ロックは使わないため、仮想スレッドがキャリアに固定 (pinning) されることはありません。
+ * </p>
+ *
+ * <p>
+ * 仮想スレッドのソケットは内部では非ブロッキングのため、送信バッファが一杯だと transferTo は待たずに 0 を返します。
+ * そのときはファイルの1チャンク ({@value #STALLED_CHUNK_BYTES} バイトまで) をヒープのバッファに読んでストリームで書き込み、
+ * 送信できるようになるまで仮想スレッドを止めてから transferTo に戻ります。このバッファは接続ごとに、
+ * 最初に詰まったときに1度だけ割り当てます。
+ * </p>
+ *
+ * <p>
+ * 解析するのはリクエスト行と Connection、Content-Length、Transfer-Encoding のヘッダーだけです。パスにかかわらず
+ * 同じファイルを返し、キープアライブとパイプライン化したリクエストに対応します。GET と HEAD 以外のメソッドと、
+ * ボディのあるリクエストにはエラーを返して接続を閉じます。条件付き GET と Range、アップロード、受付制御と
+ * 帯域の制限は Netty のエンジンだけが扱います。
+ * </p>
+ *
+ * <p>
+ * 接続は {@link ConnectionReaper} ({@code timeout.http.*} の設定は Netty のエンジンと同じ) に登録し、読み書きは
+ * その {@link ConnectionReaper.Tracker} を通します。無通信の接続や遅い接続はソケットを閉じて切断し、ブロックしている
+ * 読み書きを終わらせます。切断した接続の数は統計の {@code reaped} に出ます。
+ * </p>
+ */
+final class VirtualThreadHttpServer implements Closeable {
+    private static final int    MAX_HEADER_BYTES    = 8192;
+    private static final int    STALLED_CHUNK_BYTES = 64 * 1024;
+    private static final Logger logger              = Logger.getLogger(VirtualThreadHttpServer.class.getName());
+    private static final byte[] CRLF_CRLF           = {'\r', '\n', '\r', '\n'};
+
+    private final FileChannel         file;
+    private final String              contentType;
+    private final ServerSocketChannel server;
+    private final ConnectionReaper    reaper   = ConnectionReaper.fromSystemProperties("http");
+    private final AtomicLong          sequence = new AtomicLong();
+    private final LongAdder           accepted = new LongAdder();
+    private final LongAdder           active   = new LongAdder();
+    private final LongAdder           requests = new LongAdder();
+    private final LongAdder           errors   = new LongAdder();
+    private       Thread              acceptor;
+
+    /**
+     * @param file 配信するファイル
+     * @throws IOException ファイルを開けない場合、またはサーバーソケットを作成できない場合
+     */
+    VirtualThreadHttpServer(Path file) throws IOException {
+        String type = Files.probeContentType(file);
+        this.contentType = type != null ? type : "application/octet-stream";
+        this.file = FileChannel.open(file, StandardOpenOption.READ);
+        this.server = ServerSocketChannel.open();
+    }
+
+    /**
+     * 待ち受けを始め、受け付けを仮想スレッドで始めます。
+     *
+     * @param port 待ち受けるポート番号 (0 の場合は空いているポート)
+     * @return 待ち受けているアドレス
+     * @throws IOException バインドに失敗した場合
+     */
+    InetSocketAddress bind(int port) throws IOException {
+        server.bind(new InetSocketAddress(port), 1024);
+        reaper.logStatsPeriodically(60, TimeUnit.SECONDS);
+        acceptor = Thread.ofVirtual().name("http-vt-accept").start(this::acceptLoop);
+        return (InetSocketAddress) server.getLocalAddress();
+    }
+
+    /**
+     * サーバーソケットが閉じて受け付けが終わるまで待ちます。
+     *
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    void awaitClose() throws InterruptedException {
+        acceptor.join();
+    }
+
+    /**
+     * 待ち受けを止めてファイルを閉じます。処理中の接続は、次の送信で失敗して閉じます。
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            server.close();
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * @return 統計の文字列
+     */
+    String stats() {
+        return String.format(
+                "virtual thread http: accepted=%d active=%d requests=%d errors=%d reaped=%d",
+                accepted.sum(),
+                active.sum(),
+                requests.sum(),
+                errors.sum(),
+                reaper.reaped());
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // 記述子の不足などは一時的なことがあるため、受け付けを続ける
+                logger.log(Level.WARNING, "Accept failed", e);
+                continue;
+            }
+            accepted.increment();
+            Thread.ofVirtual()
+                  .name("http-vt-" + sequence.incrementAndGet())
+                  .start(() -> serve(channel));
+        }
+    }
+
+    private void serve(SocketChannel channel) {
+        active.increment();
+        ConnectionReaper.Tracker tracker = null;
+        try (channel) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Client connected: " + channel.getRemoteAddress());
+            }
+            tracker = reaper.track(channel);
+            ByteBuffer in = ByteBuffer.allocate(MAX_HEADER_BYTES);
+            StalledWriter stalled = new StalledWriter(tracker.output());
+            while (true) {
+                int end = readHead(tracker, in);
+                if (end < 0) {
+                    return;
+                }
+                requests.increment();
+                if (! respond(tracker, stalled, new String(in.array(), 0, end, StandardCharsets.ISO_8859_1))) {
+                    return;
+                }
+                // パイプライン化された次のリクエストを先頭に寄せる
+                in.flip().position(end + CRLF_CRLF.length);
+                in.compact();
+            }
+        } catch (IOException e) {
+            if (tracker != null && tracker.isReaped()) {
+                logger.log(Level.FINE, "Connection reaped", e);
+            } else if (e instanceof AsynchronousCloseException) {
+                logger.log(Level.FINE, "Connection closed", e);
+            } else {
+                errors.increment();
+                logger.log(Level.FINE, "Connection error", e);
+            }
+        } finally {
+            if (tracker != null) {
+                tracker.close();
+            }
+            active.decrement();
+        }
+    }
+
+    /**
+     * ヘッダーの終わりまで読みます。バッファにはヘッダーの後ろに次のリクエストの先頭が入ることがあります。
+     *
+     * @return ヘッダーの終わり (空行の CRLF の直前) の位置。リクエストの前にクライアントが閉じた場合は -1
+     */
+    private int readHead(ConnectionReaper.Tracker tracker, ByteBuffer in) throws IOException {
+        int searched = 0;
+        while (true) {
+            int end = indexOfCrlfCrlf(in.array(), searched, in.position());
+            if (end >= 0) {
+                return end;
+            }
+            searched = Math.max(0, in.position() - (CRLF_CRLF.length - 1));
+            if (! in.hasRemaining()) {
+                writeError(tracker.output(), "431 Request Header Fields Too Large");
+                return -1;
+            }
+            int n = tracker.input().read(in.array(), in.position(), in.remaining());
+            if (n < 0) {
+                return -1;
+            }
+            in.position(in.position() + n);
+        }
+    }
+
+    private static int indexOfCrlfCrlf(byte[] b, int from, int to) {
+        for (int i = from; i <= to - CRLF_CRLF.length; i++) {
+            if (b[i] == '\r' && b[i + 1] == '\n' && b[i + 2] == '\r' && b[i + 3] == '\n') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 1つのリクエストに応答します。
+     *
+     * @param stalled transferTo が送れなかったときに使う、この接続の書き込み器
+     * @param request リクエスト行とヘッダー (空行を除く)
+     * @return 接続を続ける場合は true
+     */
+    private boolean respond(ConnectionReaper.Tracker tracker, StalledWriter stalled, String request)
+            throws IOException {
+        OutputStream out = tracker.output();
+        String[] lines = request.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || ! requestLine[2].startsWith("HTTP/1.")) {
+            writeError(out, "400 Bad Request");
+            return false;
+        }
+        String method = requestLine[0];
+        boolean http11 = requestLine[2].equals("HTTP/1.1");
+        String connection = null;
+        boolean hasBody = false;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                writeError(out, "400 Bad Request");
+                return false;
+            }
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = lines[i].substring(colon + 1).trim();
+            switch (name) {
+                case "connection" -> connection = value.toLowerCase(Locale.ROOT);
+                case "content-length" -> hasBody |= ! value.equals("0");
+                case "transfer-encoding" -> hasBody = true;
+                default -> {
+                }
+            }
+        }
+        boolean head = method.equals("HEAD");
+        if (! head && ! method.equals("GET")) {
+            writeError(out, "405 Method Not Allowed");
+            return false;
+        }
+        if (hasBody) {
+            // ボディを読み飛ばさないため、次のリクエストの境界がわからない
+            writeError(out, "400 Bad Request");
+            return false;
+        }
+        boolean keepAlive = http11 ? ! "close".equals(connection) : "keep-alive".equals(connection);
+        long size = file.size();
+        StringBuilder response = new StringBuilder(128)
+                .append("HTTP/1.1 200 OK\r\n")
+                .append("Content-Type: ").append(contentType).append("\r\n")
+                .append("Content-Length: ").append(size).append("\r\n");
+        if (! keepAlive) {
+            response.append("Connection: close\r\n");
+        } else if (! http11) {
+            response.append("Connection: keep-alive\r\n");
+        }
+        response.append("\r\n");
+        out.write(response.toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (! head) {
+            for (long position = 0; position < size; ) {
+                long n = tracker.transferFrom(file, position, size - position);
+                if (n == 0) {
+                    // 送信バッファが一杯。1チャンクをストリームで書き込み、送信できるようになるまで待つ
+                    n = stalled.write(position, size - position);
+                }
+                if (n <= 0) {
+                    // 送信中にファイルが短くなった。Content-Length を満たせないため接続を閉じる
+                    return false;
+                }
+                position += n;
+            }
+        }
+        return keepAlive;
+    }
+
+    /**
+     * transferTo が送れなかったときに、ファイルの1チャンクをストリームで書き込む接続ごとの書き込み器。
+     */
+    private final class StalledWriter {
+        private final OutputStream out;
+        private       ByteBuffer   chunk;
+
+        StalledWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        /**
+         * @return 書き込んだバイト数。ファイルの終わりに達していた場合は -1
+         */
+        long write(long position, long remaining) throws IOException {
+            if (chunk == null) {
+                // 詰まらない接続では割り当てない
+                chunk = ByteBuffer.allocate(STALLED_CHUNK_BYTES);
+            }
+            chunk.clear().limit((int) Math.min(remaining, STALLED_CHUNK_BYTES));
+            int n = file.read(chunk, position);
+            if (n > 0) {
+                out.write(chunk.array(), 0, n);
+            }
+            return n;
+        }
+    }
+
+    private static void writeError(OutputStream out, String status) throws IOException {
+        String response = "HTTP/1.1 " + status + "\r\n"
+                          + (status.startsWith("405") ? "Allow: GET, HEAD\r\n" : "")
+                          + "Content-Length: 0\r\nConnection: close\r\n\r\n";
+        out.write(response.getBytes(StandardCharsets.ISO_8859_1));
+    }
+}
@@ -0,0 +1,122 @@
+package networkProgramming;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link JitWarmup} の効果を測るツール。{@link PseudHttpDaemon} をウォームアップなしとありで子プロセスとして
+ * 起動し、ポートが接続を受け付けるまでの時間と、起動直後の負荷のレイテンシを比べます。
+ *
+ * <p>
+ * 負荷は {@link LoadGenerator} でキープアライブの GET を一定のレートで送り、起動直後から {@code bench.seconds} 秒の間を
+ * {@code bench.windowSeconds} 秒ごとの区間に分けて、区間ごとの p50/p99/p999 を表示します。ウォームアップなしでは
+ * 最初の区間ほど遅く、ウォームアップありでは最初から揃うはずです。ポートが開くまでの時間には、ウォームアップの時間が
+ * 含まれます。子プロセスはこのツールと同じ java コマンドとクラスパスで起動します。
+ * </p>
+ *
+ * <p>
+ * 設定はシステムプロパティから読み込みます。
+ * </p>
+ * <ul>
+ *     <li>{@code bench.file} 配信するファイル (既定値 index.html)</li>
+ *     <li>{@code bench.seconds} 計測する時間 (既定値 60)</li>
+ *     <li>{@code bench.windowSeconds} 区間の長さ (既定値 10)</li>
+ *     <li>{@code bench.rate} 目標レート (リクエスト/秒、既定値 1000)</li>
+ *     <li>{@code bench.threads} 並行して送るスレッド (接続) 数 (既定値 4)</li>
+ * </ul>
+ *
+ * <p>
+ * いずれかの起動に失敗した場合は終了コード 1 で終了します。
+ * </p>
+ */
+public class WarmupBenchmark {
+    private static final int  PORT            = 8080;
+    private static final long START_TIMEOUT_S = 120;
+
+    public static void main(String[] args) throws Exception {
+        Path file = Paths.get(System.getProperty("bench.file", "index.html")).toAbsolutePath();
+        long seconds = Long.getLong("bench.seconds", 60);
+        long windowSeconds = Long.getLong("bench.windowSeconds", 10);
+        double rate = Double.parseDouble(System.getProperty("bench.rate", "1000"));
+        int threads = Integer.getInteger("bench.threads", 4);
+        boolean ok = measure("cold", List.of(), file, seconds, windowSeconds, rate, threads);
+        ok &= measure("warm", List.of("-Dwarmup.enabled=true"), file, seconds, windowSeconds, rate, threads);
+        System.exit(ok ? 0 : 1);
+    }
+
+    private static boolean measure(
+            String name,
+            List<String> jvmOptions,
+            Path file,
+            long seconds,
+            long windowSeconds,
+            double rate,
+            int threads) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        Process process = new ProcessBuilder(command(jvmOptions, PseudHttpDaemon.class, file.toString()))
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        try {
+            if (! awaitPort(startNanos + TimeUnit.SECONDS.toNanos(START_TIMEOUT_S), process)) {
+                System.out.printf("%-5s port %d did not open%n", name, PORT);
+                return false;
+            }
+            System.out.printf("%-5s port open after %.1f ms%n", name, (System.nanoTime() - startNanos) / 1e6);
+            LoadGenerator generator = new LoadGenerator(name, () -> new HttpGetProbe("127.0.0.1", PORT, "/"), threads, rate);
+            for (long offset = 0; offset < seconds; offset += windowSeconds) {
+                long length = Math.min(windowSeconds, seconds - offset);
+                LoadGenerator.Result r = generator.run(0, TimeUnit.SECONDS.toNanos(length));
+                System.out.printf(
+                        "%-5s %3d-%3d s  throughput=%.1f/s  requests=%d errors=%d  p50=%.3fms p99=%.3fms p999=%.3fms%n",
+                        name,
+                        offset,
+                        offset + length,
+                        r.throughput(),
+                        r.requests(),
+                        r.errors(),
+                        r.p50Ms(),
+                        r.p99Ms(),
+                        r.p999Ms());
+            }
+            return true;
+        } finally {
+            process.destroy();
+            if (! process.waitFor(30, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+    }
+
+    private static boolean awaitPort(long deadline, Process process) throws InterruptedException {
+        while (System.nanoTime() < deadline) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", PORT), 100);
+                return true;
+            } catch (IOException e) {
+                if (! process.isAlive()) {
+                    return false;
+                }
+                Thread.sleep(10);
+            }
+        }
+        return false;
+    }
+
+    private static List<String> command(List<String> jvmOptions, Class<?> mainClass, String... args) {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(mainClass.getName());
+        command.addAll(List.of(args));
+        return command;
+    }
+}
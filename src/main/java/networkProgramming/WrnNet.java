@@ -5,16 +5,50 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
 import java.util.Optional;
 
 /**
  * WrnNetは、指定されたホストとポートに接続し、
  * HTTP GETリクエストを送信し、サーバーのレスポンスを表示するシンプルなネットワーククライアントです。
+ *
+ * <p>
+ * {@code --batch} を指定すると、ファイルに列挙したURLを {@link BatchFetcher} で並列に取得し、
+ * ボディを出力ディレクトリへ保存します。{@code --cache} を指定すると {@link HttpDiskCache} で
+ * 条件付きGETを行い、変更のないリソースはキャッシュから出力します。
+ * </p>
+ *
+ * <p>
+ * {@code --download} を指定すると、1つの大きなファイルを {@link SegmentedDownloader} で範囲に分けて
+ * 複数の接続から並列に取得します。中断した場合は、同じ引数で再実行すると続きから再開します。
+ * </p>
+ *
+ * <p>
+ * {@code --unix <パス>} を指定すると、同じホストのサーバーへ TCP の代わりに Unix ドメインソケットで接続して
+ * GET を送ります。Host ヘッダーには続けて指定したホスト名 (既定値 localhost) を使います。
+ * </p>
  */
 public class WrnNet {
     private static final int    BUFFER_SIZE           = 1024;
+    private static final int    DEFAULT_CONCURRENCY   = 32;
+    private static final int    DEFAULT_PER_HOST      = 4;
+    private static final long   DEFAULT_CACHE_BUDGET  = 256L * 1024 * 1024;
+    private static final int    DEFAULT_SEGMENTS      = 4;
+    private static final long   DEFAULT_MIN_SEGMENT   = 1024L * 1024;
     private static final String USAGE_MESSAGE         = """
             使用方法: java WrnNet <ホスト> <ポート>
+                      java WrnNet --unix <ソケットのパス> [<Hostヘッダーのホスト名>]
+                      java WrnNet --batch <URL一覧ファイル> <出力ディレクトリ> [--concurrency N] [--per-host N]
+                          [--cache <キャッシュディレクトリ> [--cache-budget <バイト数>]]
+                      java WrnNet --download <URL> <出力ファイル> [--segments N] [--min-segment <バイト数>]
             --help または -h でこのメッセージを表示
             """;
     private static final String NETWORK_ERROR_MESSAGE = "ネットワークエラー: ";
@@ -25,6 +59,18 @@ public class WrnNet {
      * @param args コマンドライン引数。args[0]がホスト、args[1]がポートを示します。
      */
     public static void main(String[] args) {
+        if (args.length >= 3 && args[0].equals("--batch")) {
+            runBatch(args);
+            return;
+        }
+        if (args.length >= 3 && args[0].equals("--download")) {
+            runDownload(args);
+            return;
+        }
+        if ((args.length == 2 || args.length == 3) && args[0].equals("--unix")) {
+            runUnix(Paths.get(args[1]), args.length == 3 ? args[2] : "localhost");
+            return;
+        }
         if (args.length != 2) {
             if (args.length == 1 && (args[0].equals("--help") || args[0].equals(
                     "-h"))) {
@@ -55,6 +101,123 @@ public class WrnNet {
         }, () -> System.exit(1));
     }
 
+    /**
+     * Unix ドメインソケットで接続し、GET を送ってレスポンスを表示します。
+     *
+     * @param path ソケットファイルのパス
+     * @param host Host ヘッダーに指定するホスト名
+     */
+    private static void runUnix(Path path, String host) {
+        try (var channel = SocketChannel.open(UnixDomainSocketAddress.of(path));
+                var inputStr = Channels.newInputStream(channel);
+                var outputStr = Channels.newOutputStream(channel)
+        ) {
+
+            sendHttpRequest(outputStr, host);
+            handleServerResponse(inputStr);
+
+        } catch (IOException e) {
+            System.err.println(NETWORK_ERROR_MESSAGE + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * バッチ取得モードを実行します。
+     *
+     * @param args コマンドライン引数。args[1]がURL一覧ファイル、args[2]が出力ディレクトリです。
+     */
+    private static void runBatch(String[] args) {
+        Path urlList = Paths.get(args[1]);
+        Path outputDir = Paths.get(args[2]);
+        int concurrency = DEFAULT_CONCURRENCY;
+        int perHost = DEFAULT_PER_HOST;
+        Path cacheDir = null;
+        long cacheBudget = DEFAULT_CACHE_BUDGET;
+        for (int i = 3; i < args.length; i++) {
+            try {
+                if (args[i].equals("--concurrency") && i + 1 < args.length) {
+                    concurrency = Integer.parseInt(args[++ i]);
+                } else if (args[i].equals("--per-host") && i + 1 < args.length) {
+                    perHost = Integer.parseInt(args[++ i]);
+                } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                    cacheDir = Paths.get(args[++ i]);
+                } else if (args[i].equals("--cache-budget") && i + 1 < args.length) {
+                    cacheBudget = Long.parseLong(args[++ i]);
+                } else {
+                    System.err.println(USAGE_MESSAGE);
+                    System.exit(1);
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("無効な数値: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        try (var pool = new HttpConnectionPool(perHost);
+                var cache = cacheDir != null ? new HttpDiskCache(cacheDir, cacheBudget) : null
+        ) {
+            List<String> urls = Files.readAllLines(urlList)
+                                     .stream()
+                                     .filter(line -> ! line.isBlank() && ! line.startsWith("#"))
+                                     .toList();
+            new BatchFetcher(pool, outputDir, concurrency, cache).fetchAll(urls);
+        } catch (IOException e) {
+            System.err.println(NETWORK_ERROR_MESSAGE + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.exit(1);
+        }
+    }
+
+    /**
+     * 分割ダウンロードモードを実行します。
+     *
+     * @param args コマンドライン引数。args[1]がURL、args[2]が出力ファイルです。
+     */
+    private static void runDownload(String[] args) {
+        URI uri;
+        try {
+            uri = new URI(args[1].trim());
+        } catch (URISyntaxException e) {
+            System.err.println("無効なURL: " + args[1]);
+            System.exit(1);
+            return;
+        }
+        Path target = Paths.get(args[2]);
+        int segments = DEFAULT_SEGMENTS;
+        long minSegment = DEFAULT_MIN_SEGMENT;
+        for (int i = 3; i < args.length; i++) {
+            try {
+                if (args[i].equals("--segments") && i + 1 < args.length) {
+                    segments = Integer.parseInt(args[++ i]);
+                } else if (args[i].equals("--min-segment") && i + 1 < args.length) {
+                    minSegment = Long.parseLong(args[++ i]);
+                } else {
+                    System.err.println(USAGE_MESSAGE);
+                    System.exit(1);
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("無効な数値: " + args[i]);
+                System.exit(1);
+            }
+        }
+
+        try (var pool = new HttpConnectionPool(segments)) {
+            new SegmentedDownloader(pool, segments, minSegment).download(uri, target);
+        } catch (IllegalArgumentException e) {
+            System.err.println("無効なURL: " + uri);
+            System.exit(1);
+        } catch (IOException e) {
+            System.err.println(NETWORK_ERROR_MESSAGE + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.exit(1);
+        }
+    }
+
     /**
      * 文字列からポート番号を解析します。
      *
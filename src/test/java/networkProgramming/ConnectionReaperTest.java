@@ -0,0 +1,284 @@
+package networkProgramming;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * {@link ConnectionReaper} が無通信や極端に遅いクライアントを切断し、通常のクライアントは切断しないことを確かめます。
+ *
+ * <p>
+ * タイムアウトを短く (受信 2 秒、送信 2 秒、転送速度の猶予 2 秒、確認 200 ミリ秒) 設定したうえで、
+ * {@link PseudHttpDaemon} と {@link SimpleTelnetServer} をループバックで起動し、次を確かめます。
+ * </p>
+ * <ul>
+ *     <li>接続して何も送らない HTTP クライアントが切断される</li>
+ *     <li>ヘッダーを1バイトずつ送り続ける HTTP クライアント (slowloris) が切断される</li>
+ *     <li>大きなファイルを要求して受信しない HTTP クライアントが切断される</li>
+ *     <li>受信タイムアウトより長く、キープアライブでリクエストを送り続ける HTTP クライアントは切断されない</li>
+ *     <li>黙ったままの Telnet クライアントが切断され、次のクライアントが処理される</li>
+ * </ul>
+ *
+ * <p>
+ * タイムアウトは {@code timeout.*} のシステムプロパティで設定し、テストの後に元へ戻します。
+ * {@link SimpleTelnetServer} は最初に使われたときに設定を読むため、このテストより前に同じ JVM で
+ * Telnet サーバーを使うテストがあると、そちらの設定が使われます。
+ * </p>
+ */
+class ConnectionReaperTest {
+    private static final int                 FILE_SIZE = 16 * 1024 * 1024;
+    private static final Map<String, String> TIMEOUTS  = Map.of(
+            "timeout.readSeconds", "2",
+            "timeout.writeSeconds", "2",
+            "timeout.rateGraceSeconds", "2",
+            "timeout.checkMillis", "200");
+    private static final Map<String, String> previous  = new HashMap<>();
+
+    @TempDir
+    static Path dir;
+
+    private static EventLoopGroup     group;
+    private static BlockingIoExecutor ioExecutor;
+    private static Channel            http;
+    private static InetSocketAddress  httpAddress;
+    private static ServerSocket       telnet;
+
+    @BeforeAll
+    static void setUp() throws Exception {
+        TIMEOUTS.forEach((key, value) -> {
+            previous.put(key, System.getProperty(key));
+            System.setProperty(key, value);
+        });
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        Path file = dir.resolve("index.html");
+        Files.write(file, new byte[FILE_SIZE]);
+        group = new NioEventLoopGroup(1);
+        ioExecutor = new BlockingIoExecutor("slow-client-io", 1, 16);
+        http = new PseudHttpDaemon().bind(group, group, 0, file, ioExecutor);
+        httpAddress = new InetSocketAddress(loopback, ((InetSocketAddress) http.localAddress()).getPort());
+        telnet = new ServerSocket(0, 50, loopback);
+        Thread acceptor = new Thread(() -> SimpleTelnetServer.serve(telnet), "slow-client-telnet");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @AfterAll
+    static void tearDown() throws Exception {
+        try {
+            if (telnet != null) {
+                telnet.close();
+            }
+            if (http != null) {
+                http.close().sync();
+            }
+        } finally {
+            if (group != null) {
+                group.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+            }
+            if (ioExecutor != null) {
+                ioExecutor.shutdown();
+            }
+            previous.forEach((key, value) -> {
+                if (value == null) {
+                    System.clearProperty(key);
+                } else {
+                    System.setProperty(key, value);
+                }
+            });
+        }
+    }
+
+    @Test
+    void idleHttpClientIsReaped() throws IOException {
+        try (Socket socket = connect(httpAddress)) {
+            assertTrue(closedWithin(socket, 6), "idle client was not disconnected");
+        }
+    }
+
+    @Test
+    void slowlorisHttpClientIsReaped() throws IOException, InterruptedException {
+        assertTrue(slowlorisReaped(httpAddress), "slowloris client was not disconnected");
+    }
+
+    @Test
+    void nonReadingHttpClientIsReaped() throws IOException, InterruptedException {
+        assertTrue(nonReadingClientReaped(httpAddress), "non-reading client received the whole file");
+    }
+
+    @Test
+    void keepAliveHttpClientIsKept() throws IOException, InterruptedException {
+        assertTrue(keepAliveClientKept(httpAddress), "keep-alive client was disconnected");
+    }
+
+    @Test
+    void silentTelnetClientIsReaped() throws IOException {
+        assertTrue(silentTelnetClientReaped(telnet.getLocalSocketAddress()), "silent telnet client was not disconnected");
+    }
+
+    private static boolean slowlorisReaped(InetSocketAddress address) throws IOException, InterruptedException {
+        try (Socket socket = connect(address)) {
+            OutputStream out = socket.getOutputStream();
+            byte[] header = "GET / HTTP/1.1\r\nHost: localhost\r\nX-Padding: aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa"
+                    .getBytes(StandardCharsets.US_ASCII);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(8);
+            // 受信タイムアウトより短い間隔で送り続けるため、切断されるのは転送速度の下限による
+            for (int i = 0; System.nanoTime() < deadline; i = (i + 1) % header.length) {
+                try {
+                    out.write(header[i]);
+                    out.flush();
+                } catch (IOException e) {
+                    return true;
+                }
+                Thread.sleep(300);
+                if (closedWithin(socket, 0)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static boolean nonReadingClientReaped(InetSocketAddress address) throws IOException, InterruptedException {
+        try (Socket socket = new Socket()) {
+            socket.setReceiveBufferSize(4096);
+            socket.connect(address);
+            socket.getOutputStream()
+                  .write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            socket.getOutputStream().flush();
+            // 送信タイムアウトより長く受信せずに待ってから、届いているものを読む
+            Thread.sleep(TimeUnit.SECONDS.toMillis(5));
+            long received = 0;
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[64 * 1024];
+            socket.setSoTimeout(5000);
+            try {
+                int n;
+                while ((n = in.read(buf)) >= 0) {
+                    received += n;
+                }
+            } catch (SocketException e) {
+                // 送信途中の切断はリセットとして届くことがある
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+            return received < FILE_SIZE;
+        }
+    }
+
+    private static boolean keepAliveClientKept(InetSocketAddress address) throws IOException, InterruptedException {
+        try (Socket socket = connect(address)) {
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            byte[] request = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (System.nanoTime() < deadline) {
+                out.write(request);
+                out.flush();
+                if (! readResponse(in)) {
+                    return false;
+                }
+                Thread.sleep(1000);
+            }
+            return true;
+        }
+    }
+
+    private static boolean silentTelnetClientReaped(SocketAddress address) throws IOException {
+        try (Socket silent = new Socket(); Socket next = new Socket()) {
+            silent.connect(address);
+            next.connect(address);
+            next.setSoTimeout(8000);
+            // 1つずつ処理するサーバーなので、次のクライアントが歓迎の文字列を受け取れば、前の接続は切断されている
+            InputStream in = next.getInputStream();
+            StringBuilder sb = new StringBuilder();
+            int b;
+            try {
+                while ((b = in.read()) >= 0) {
+                    sb.append((char) b);
+                    if (sb.indexOf("Welcome") >= 0) {
+                        return closedWithin(silent, 0);
+                    }
+                }
+            } catch (SocketTimeoutException e) {
+                return false;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * ヘッダーの Content-Length を読み、ボディを最後まで読み飛ばします。
+     */
+    private static boolean readResponse(InputStream in) throws IOException {
+        StringBuilder header = new StringBuilder();
+        int b;
+        while (header.indexOf("\r\n\r\n") < 0) {
+            if ((b = in.read()) < 0) {
+                return false;
+            }
+            header.append((char) b);
+        }
+        String lower = header.toString().toLowerCase();
+        int i = lower.indexOf("content-length:");
+        if (i < 0) {
+            return false;
+        }
+        long remaining = Long.parseLong(lower.substring(i + 15, lower.indexOf("\r\n", i)).trim());
+        byte[] buf = new byte[64 * 1024];
+        while (remaining > 0) {
+            int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+            if (n < 0) {
+                return false;
+            }
+            remaining -= n;
+        }
+        return true;
+    }
+
+    /**
+     * 指定した秒数以内にサーバーが接続を閉じたかを確かめます。0 の場合は待たずに確かめます。
+     */
+    private static boolean closedWithin(Socket socket, int seconds) throws IOException {
+        socket.setSoTimeout(Math.max(seconds * 1000, 1));
+        try {
+            InputStream in = socket.getInputStream();
+            byte[] buf = new byte[1024];
+            while (in.read(buf) >= 0) {
+                // 閉じられるまで読み捨てる
+            }
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (SocketException e) {
+            return true;
+        }
+    }
+
+    private static Socket connect(InetSocketAddress address) throws IOException {
+        return new Socket(address.getAddress(), address.getPort());
+    }
+}
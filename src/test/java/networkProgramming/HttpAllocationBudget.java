@@ -0,0 +1,104 @@
+package networkProgramming;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+
+/**
+ * HTTP/1.1 の静的ファイルのレスポンス経路が、リクエストごとに割り当てるヒープのバイト数を測ります。
+ * 上限の確認は {@link HttpAllocationBudgetTest} で行います。
+ *
+ * <p>
+ * ハンドラーを {@link HttpResponseEncoder} と一緒に {@link EmbeddedChannel} に置き、呼び出し元のスレッドで
+ * キープアライブのリクエストを繰り返し処理します。ウォームアップの後、
+ * {@link com.sun.management.ThreadMXBean#getThreadAllocatedBytes(long)} でこのスレッドが割り当てたバイト数を測り、
+ * リクエスト数で割った値を返します。
+ * </p>
+ */
+final class HttpAllocationBudget {
+    private static final int WARMUP_REQUESTS = 50_000;
+
+    private HttpAllocationBudget() {
+    }
+
+    /**
+     * リクエストあたりの割り当てバイト数を測ります。
+     *
+     * @param cache       ハンドラーが使うキャッシュ。計測中にファイルの確認が入らないよう、確認の間隔を十分に長くしておく
+     * @param handler     計測するハンドラー
+     * @param requests    計測するリクエスト数
+     * @param minBodySize 応答として期待する最小のバイト数
+     * @return リクエストあたりの割り当てバイト数
+     * @throws IOException          ファイルの読み込みに失敗した場合、または応答がない場合
+     * @throws InterruptedException 読み込みの待機中に割り込まれた場合
+     */
+    static double measure(StaticFileCache cache, ChannelHandler handler, int requests, int minBodySize)
+            throws IOException, InterruptedException {
+        EmbeddedChannel channel = new EmbeddedChannel(new HttpResponseEncoder(), handler);
+        FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/index.html");
+        request.headers().set(HttpHeaderNames.HOST, "localhost");
+        try {
+            // EmbeddedChannel はどのスレッドからもイベントループ上とみなされ、読み込みの完了を待つリクエストは
+            // 読み込んだスレッドで応答を書き込んでしまう。先にエントリを読み込んでおき、すべてこのスレッドで処理する
+            // (await は同じ理由でデッドロックの検査に掛かるため、完了を待つ)
+            Future<StaticFileCache.Entry> loaded = cache.load(channel.eventLoop());
+            while (! loaded.isDone()) {
+                Thread.sleep(1);
+            }
+            if (! loaded.isSuccess()) {
+                throw new IOException("File read failed", loaded.cause());
+            }
+            request.retain();
+            channel.pipeline().fireChannelRead(request);
+            if (drain(channel) < minBodySize) {
+                throw new IOException("No response");
+            }
+
+            for (int i = 0; i < WARMUP_REQUESTS; i++) {
+                handle(channel, request);
+            }
+            com.sun.management.ThreadMXBean threads =
+                    (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+            long threadId = Thread.currentThread().threadId();
+            long before = threads.getThreadAllocatedBytes(threadId);
+            for (int i = 0; i < requests; i++) {
+                handle(channel, request);
+            }
+            long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+            return (double) allocated / requests;
+        } finally {
+            request.release();
+            channel.finishAndReleaseAll();
+        }
+    }
+
+    private static void handle(EmbeddedChannel channel, FullHttpRequest request) {
+        // ハンドラーが処理後に解放するため、同じリクエストを使い回せるよう参照を増やしておく
+        request.retain();
+        channel.pipeline().fireChannelRead(request);
+        drain(channel);
+    }
+
+    private static long drain(EmbeddedChannel channel) {
+        long bytes = 0;
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            if (msg instanceof ByteBuf buf) {
+                bytes += buf.readableBytes();
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,78 @@
+package networkProgramming;
+
+import io.netty.channel.ChannelHandler;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * HTTP/1.1 の静的ファイルのレスポンス経路が、リクエストごとに割り当てるヒープのバイト数が上限以下であることを確かめます。
+ * 計測は {@link HttpAllocationBudget} で行います。
+ *
+ * <p>
+ * 設定はシステムプロパティから読み込みます。
+ * </p>
+ * <ul>
+ *     <li>{@code alloc.budgetBytes} リクエストあたりの上限 (バイト、既定値 256)</li>
+ *     <li>{@code alloc.requests} 計測するリクエスト数 (既定値 200000)</li>
+ * </ul>
+ */
+class HttpAllocationBudgetTest {
+    private static final int  FILE_SIZE = 4096;
+    private static final long BUDGET    = Long.getLong("alloc.budgetBytes", 256);
+    private static final int  REQUESTS  = Integer.getInteger("alloc.requests", 200_000);
+
+    @TempDir
+    static Path dir;
+
+    private static Path               file;
+    private static BlockingIoExecutor ioExecutor;
+
+    @BeforeAll
+    static void setUp() throws IOException {
+        file = dir.resolve("index.html");
+        byte[] content = new byte[FILE_SIZE];
+        Arrays.fill(content, (byte) 'a');
+        Files.write(file, content);
+        ioExecutor = new BlockingIoExecutor("alloc-budget-io", 1, 16);
+    }
+
+    @AfterAll
+    static void tearDown() {
+        ioExecutor.shutdown();
+    }
+
+    @Test
+    void pseudHttpDaemonStaysWithinBudget() throws Exception {
+        StaticFileCache cache = newCache(null);
+        assertWithinBudget("PseudHttpDaemon", cache, new PseudHttpDaemon.HttpServerHandler(cache));
+    }
+
+    @Test
+    void pseudHttp2DaemonHttp1StaysWithinBudget() throws Exception {
+        StaticFileCache cache = newCache(Http3Listener.altSvc(8443));
+        assertWithinBudget("PseudHttp2Daemon(h1)", cache, new PseudHttp2Daemon.Http1ServerHandler(cache));
+    }
+
+    private static StaticFileCache newCache(String altSvc) {
+        // 計測中にファイルの確認が入らないよう、確認の間隔を十分に長くする
+        return new StaticFileCache(file, ioExecutor, altSvc, TimeUnit.HOURS.toMillis(1));
+    }
+
+    private static void assertWithinBudget(String name, StaticFileCache cache, ChannelHandler handler)
+            throws Exception {
+        double perRequest = HttpAllocationBudget.measure(cache, handler, REQUESTS, FILE_SIZE);
+        assertTrue(
+                perRequest <= BUDGET,
+                () -> String.format("%s allocated %.1f bytes/request, budget %d", name, perRequest, BUDGET));
+    }
+}
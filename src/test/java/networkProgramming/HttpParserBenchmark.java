@@ -0,0 +1,153 @@
+package networkProgramming;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpObjectAggregator;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Future;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link PseudHttpDaemon} の静的ファイルの経路で、標準のデコーダー ({@link HttpRequestDecoder} と
+ * {@link HttpObjectAggregator}) と {@link StaticGetDecoder} の、1スレッドあたりのリクエスト処理数を比べる
+ * JMH のベンチマーク。
+ *
+ * <p>
+ * デーモンと同じ順序でデコーダー、{@link HttpResponseEncoder}、{@link PseudHttpDaemon.HttpServerHandler} を
+ * {@link EmbeddedChannel} に置き、ブラウザーが送るようなヘッダーを持つキープアライブの GET のバイト列を
+ * ベンチマークのスレッドで処理します。ネットワークを通さないため、リクエストの解析、応答の組み立てと
+ * エンコードにかかる CPU 時間だけを測ります。リクエストあたりの割り当ては {@code -prof gc} の
+ * {@code gc.alloc.rate.norm} で確かめます。
+ * </p>
+ *
+ * <p>
+ * 使用方法:
+ * {@code mvn test-compile exec:exec -Dexec.executable=java -Dexec.classpathScope=test
+ * -Dexec.args="-cp %classpath org.openjdk.jmh.Main HttpParserBenchmark -prof gc"}
+ * (配信するファイルの大きさは {@code -p fileBytes=4096} のように変えられます)
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpParserBenchmark {
+    private static final String REQUEST = """
+            GET /index.html HTTP/1.1\r
+            Host: localhost:8080\r
+            User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r
+            Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r
+            Accept-Language: ja,en-US;q=0.7,en;q=0.3\r
+            Accept-Encoding: gzip, deflate, br\r
+            Connection: keep-alive\r
+            Upgrade-Insecure-Requests: 1\r
+            Sec-Fetch-Dest: document\r
+            Sec-Fetch-Mode: navigate\r
+            \r
+            """;
+
+    @Param({"HttpRequestDecoder", "StaticGetDecoder"})
+    public String decoder;
+
+    @Param("1024")
+    public int fileBytes;
+
+    private Path               file;
+    private BlockingIoExecutor ioExecutor;
+    private EmbeddedChannel    channel;
+    private ByteBuf            request;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException, InterruptedException {
+        file = Files.createTempFile("parser-bench", ".html");
+        byte[] content = new byte[fileBytes];
+        Arrays.fill(content, (byte) 'a');
+        Files.write(file, content);
+        ioExecutor = new BlockingIoExecutor("parser-bench-io", 1, 16);
+        // 計測中にファイルの確認が入らないよう、確認の間隔を十分に長くする
+        StaticFileCache cache = new StaticFileCache(file, ioExecutor, null, TimeUnit.HOURS.toMillis(1));
+        channel = new EmbeddedChannel(pipeline(cache));
+        request = Unpooled.unreleasableBuffer(
+                Unpooled.directBuffer().writeBytes(REQUEST.getBytes(StandardCharsets.US_ASCII)));
+
+        // EmbeddedChannel はどのスレッドからもイベントループ上とみなされるため、先にエントリを読み込んでおく
+        Future<StaticFileCache.Entry> loaded = cache.load(channel.eventLoop());
+        while (! loaded.isDone()) {
+            Thread.sleep(1);
+        }
+        if (! loaded.isSuccess()) {
+            throw new IOException("File read failed", loaded.cause());
+        }
+        if (handle() < fileBytes) {
+            throw new IllegalStateException(decoder + ": missing response");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        channel.finishAndReleaseAll();
+        ioExecutor.shutdown();
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * 1つのリクエストを処理し、応答のバイト数を返します。
+     */
+    @Benchmark
+    public long handle() {
+        channel.writeInbound(request.duplicate());
+        long bytes = 0;
+        Object msg;
+        while ((msg = channel.readOutbound()) != null) {
+            if (msg instanceof ByteBuf buf) {
+                bytes += buf.readableBytes();
+            }
+            ReferenceCountUtil.release(msg);
+        }
+        return bytes;
+    }
+
+    private ChannelHandler[] pipeline(StaticFileCache cache) {
+        return switch (decoder) {
+            case "HttpRequestDecoder" -> new ChannelHandler[] {
+                    new HttpRequestDecoder(),
+                    new HttpResponseEncoder(),
+                    new HttpObjectAggregator(65536),
+                    new PseudHttpDaemon.HttpServerHandler(cache),
+            };
+            case "StaticGetDecoder" -> new ChannelHandler[] {
+                    new StaticGetDecoder(),
+                    new HttpRequestDecoder(),
+                    new HttpResponseEncoder(),
+                    new HttpObjectAggregator(65536),
+                    new PseudHttpDaemon.HttpServerHandler(cache),
+            };
+            default -> throw new IllegalArgumentException("Unknown decoder: " + decoder);
+        };
+    }
+}
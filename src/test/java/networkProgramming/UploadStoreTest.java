@@ -0,0 +1,430 @@
+package networkProgramming;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http2.DefaultHttp2DataFrame;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.codec.http2.Http2StreamChannelBootstrap;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Promise;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+/**
+ * {@link UploadStore} へのアップロードが、ボディをメモリーに溜めずにファイルへ書き込まれることを確かめます。
+ *
+ * <p>
+ * アップロード先を一時ディレクトリにして {@link PseudHttpDaemon} (HTTP/1.1) と、
+ * {@link PseudHttp2Daemon.Http2ServerHandler} を置いた平文の HTTP/2 サーバーをループバックで起動し、次を確かめます。
+ * 各テストの間のダイレクトメモリーの使用量の最大値が上限以下であることも、テストごとに確かめます。
+ * </p>
+ * <ul>
+ *     <li>HTTP/1.1 の Content-Length 付きの大きなアップロードが 201 で完了し、ファイルの内容が送った内容と一致する</li>
+ *     <li>HTTP/1.1 の chunked のアップロードが 201 で完了し、内容が一致する</li>
+ *     <li>HTTP/1.1 で途中で切断したアップロードは、目的のファイルも一時ファイルも残さない</li>
+ *     <li>HTTP/2 の大きなアップロードが 201 で完了し、内容が一致する</li>
+ *     <li>HTTP/2 で途中でリセットしたストリームは、目的のファイルも一時ファイルも残さない</li>
+ * </ul>
+ *
+ * <p>
+ * 設定はシステムプロパティから読み込みます。ヒープに溜めていないことは {@code -Xmx64m} などで実行しても確かめられます。
+ * </p>
+ * <ul>
+ *     <li>{@code upload.checkMb} 大きなアップロードのサイズ (MB、既定値 128)</li>
+ *     <li>{@code upload.checkMaxDirectMb} ダイレクトメモリーの使用量の上限 (MB、既定値 64)</li>
+ * </ul>
+ */
+class UploadStoreTest {
+    private static final long       SIZE       = Long.getLong("upload.checkMb", 128) * 1024 * 1024;
+    private static final long       MAX_DIRECT = Long.getLong("upload.checkMaxDirectMb", 64) * 1024 * 1024;
+    private static final AtomicLong peakDirect = new AtomicLong();
+
+    @TempDir
+    static Path dir;
+
+    private static Path               uploadDir;
+    private static String             previousDir;
+    private static Thread             sampler;
+    private static EventLoopGroup     group;
+    private static BlockingIoExecutor ioExecutor;
+    private static Channel            http;
+    private static Channel            h2;
+    private static int                httpPort;
+    private static int                h2Port;
+
+    @BeforeAll
+    static void setUp() throws Exception {
+        uploadDir = Files.createDirectory(dir.resolve("uploads"));
+        previousDir = System.setProperty("upload.dir", uploadDir.toString());
+        Path file = dir.resolve("index.html");
+        Files.writeString(file, "<html></html>");
+
+        sampler = new Thread(() -> {
+            while (true) {
+                peakDirect.accumulateAndGet(PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory(), Math::max);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "upload-check-sampler");
+        sampler.setDaemon(true);
+        sampler.start();
+
+        group = new NioEventLoopGroup(2);
+        ioExecutor = new BlockingIoExecutor("upload-check-io", 2, 64);
+        UploadStore uploads = UploadStore.fromSystemProperties(ioExecutor);
+        http = new PseudHttpDaemon().bind(group, group, 0, file, ioExecutor);
+        h2 = startHttp2Server(group, file, ioExecutor, uploads);
+        httpPort = ((InetSocketAddress) http.localAddress()).getPort();
+        h2Port = ((InetSocketAddress) h2.localAddress()).getPort();
+    }
+
+    @AfterAll
+    static void tearDown() throws Exception {
+        try {
+            if (http != null) {
+                http.close().sync();
+            }
+            if (h2 != null) {
+                h2.close().sync();
+            }
+        } finally {
+            if (sampler != null) {
+                sampler.interrupt();
+            }
+            if (group != null) {
+                group.shutdownGracefully(0, 1, TimeUnit.SECONDS).awaitUninterruptibly();
+            }
+            if (ioExecutor != null) {
+                ioExecutor.shutdown();
+            }
+            if (previousDir == null) {
+                System.clearProperty("upload.dir");
+            } else {
+                System.setProperty("upload.dir", previousDir);
+            }
+        }
+    }
+
+    @BeforeEach
+    void resetPeak() {
+        peakDirect.set(PooledByteBufAllocator.DEFAULT.metric().usedDirectMemory());
+    }
+
+    @AfterEach
+    void assertDirectMemoryWithinLimit() {
+        assertTrue(
+                peakDirect.get() <= MAX_DIRECT,
+                () -> String.format("peak direct memory %.1f MB", peakDirect.get() / 1048576.0));
+    }
+
+    @Test
+    void http1ContentLengthUploadIsWritten() throws Exception {
+        http1Upload("big1.bin", SIZE, false);
+    }
+
+    @Test
+    void http1ChunkedUploadIsWritten() throws Exception {
+        http1Upload("chunked.bin", 8 * 1024 * 1024, true);
+    }
+
+    @Test
+    void http1AbortedUploadIsRemoved() throws Exception {
+        try (Socket socket = new Socket("127.0.0.1", httpPort)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("PUT /upload/aborted.bin HTTP/1.1\r\nHost: localhost\r\nContent-Length: 100000000\r\n\r\n")
+                              .getBytes(StandardCharsets.US_ASCII));
+            out.write(new byte[4 * 1024 * 1024]);
+            out.flush();
+        }
+        assertRemoved("aborted.bin");
+    }
+
+    @Test
+    void http2UploadIsWritten() throws Exception {
+        http2Upload("big2.bin", SIZE, false);
+    }
+
+    @Test
+    void http2ResetUploadIsRemoved() throws Exception {
+        http2Upload("reset2.bin", SIZE, true);
+    }
+
+    private static Channel startHttp2Server(
+            EventLoopGroup group,
+            Path file,
+            BlockingIoExecutor ioExecutor,
+            UploadStore uploads) throws InterruptedException {
+        Http2Tuning tuning = Http2Tuning.fromSystemProperties();
+        StaticFileCache cache = StaticFileCache.fromSystemProperties(file, ioExecutor, null);
+        return new ServerBootstrap()
+                .group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(tuning.newServerCodec());
+                        ch.pipeline().addLast(new Http2WindowTuner(tuning));
+                        ch.pipeline().addLast(new Http2MultiplexHandler(new ChannelInitializer<>() {
+                            @Override
+                            protected void initChannel(Channel stream) {
+                                stream.pipeline().addLast(new PseudHttp2Daemon.Http2ServerHandler(
+                                        cache,
+                                        null,
+                                        uploads));
+                            }
+                        }));
+                    }
+                })
+                .bind("127.0.0.1", 0)
+                .sync()
+                .channel();
+    }
+
+    private static void http1Upload(String name, long size, boolean chunked) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (Socket socket = new Socket("127.0.0.1", httpPort)) {
+            OutputStream out = socket.getOutputStream();
+            String header = "PUT /upload/" + name + " HTTP/1.1\r\nHost: localhost\r\n"
+                            + (chunked ? "Transfer-Encoding: chunked\r\n" : "Content-Length: " + size + "\r\n")
+                            + "\r\n";
+            out.write(header.getBytes(StandardCharsets.US_ASCII));
+            Xorshift pattern = new Xorshift();
+            byte[] buf = new byte[64 * 1024];
+            for (long sent = 0; sent < size; ) {
+                int n = (int) Math.min(buf.length, size - sent);
+                pattern.fill(buf, n);
+                digest.update(buf, 0, n);
+                if (chunked) {
+                    out.write((Integer.toHexString(n) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                }
+                out.write(buf, 0, n);
+                if (chunked) {
+                    out.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+                }
+                sent += n;
+            }
+            if (chunked) {
+                out.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            out.flush();
+            socket.setSoTimeout(60_000);
+            String status = readStatusLine(socket.getInputStream());
+            assertTrue(status.startsWith("HTTP/1.1 201"), () -> name + ": " + status);
+        }
+        assertContent(uploadDir.resolve(name), digest.digest());
+    }
+
+    private static void http2Upload(String name, long size, boolean reset) throws Exception {
+        Http2Tuning tuning = Http2Tuning.fromSystemProperties();
+        Channel channel = new Bootstrap()
+                .group(group)
+                .channel(NioSocketChannel.class)
+                .handler(new ChannelInitializer<SocketChannel>() {
+                    @Override
+                    protected void initChannel(SocketChannel ch) {
+                        ch.pipeline().addLast(tuning.newClientCodec());
+                        ch.pipeline().addLast(new Http2MultiplexHandler(new ChannelInboundHandlerAdapter()));
+                    }
+                })
+                .connect("127.0.0.1", h2Port)
+                .sync()
+                .channel();
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            Promise<CharSequence> status = channel.eventLoop().newPromise();
+            // リセットする場合は半分送ったところで止める
+            Http2Sender sender = new Http2Sender(reset ? size / 2 : size, ! reset, digest, status);
+            Http2StreamChannel stream = new Http2StreamChannelBootstrap(channel)
+                    .handler(sender)
+                    .open()
+                    .sync()
+                    .getNow();
+            stream.eventLoop().execute(() -> {
+                stream.write(new DefaultHttp2HeadersFrame(
+                        new DefaultHttp2Headers().method("PUT")
+                                                 .path("/upload/" + name)
+                                                 .scheme("http")
+                                                 .authority("localhost")));
+                sender.pump(stream);
+            });
+            if (reset) {
+                sender.sent.get(60, TimeUnit.SECONDS);
+                stream.close().sync();
+                assertRemoved(name);
+                return;
+            }
+            CharSequence code = status.get(5, TimeUnit.MINUTES);
+            assertEquals("201", code.toString(), name + ": status");
+            assertContent(uploadDir.resolve(name), digest.digest());
+        } finally {
+            channel.close().sync();
+        }
+    }
+
+    /**
+     * ストリームが書き込み可能な間だけ DATA フレームを送り、サーバーのウィンドウが回復するのを待って続きを送る送信側。
+     */
+    private static final class Http2Sender extends ChannelInboundHandlerAdapter {
+        private final long                  size;
+        private final boolean               endStream;
+        private final MessageDigest         digest;
+        private final Promise<CharSequence> status;
+        private final Xorshift              pattern = new Xorshift();
+        private final byte[]                buf     = new byte[16 * 1024];
+        private final CompletableFuture<Void>   sent    = new CompletableFuture<>();
+        private       long                  offset;
+
+        Http2Sender(long size, boolean endStream, MessageDigest digest, Promise<CharSequence> status) {
+            this.size = size;
+            this.endStream = endStream;
+            this.digest = digest;
+            this.status = status;
+        }
+
+        void pump(Channel stream) {
+            while (offset < size && stream.isWritable()) {
+                int n = (int) Math.min(buf.length, size - offset);
+                pattern.fill(buf, n);
+                digest.update(buf, 0, n);
+                ByteBuf data = stream.alloc().buffer(n).writeBytes(buf, 0, n);
+                offset += n;
+                stream.write(new DefaultHttp2DataFrame(data, offset == size && endStream));
+            }
+            stream.flush();
+            if (offset == size) {
+                sent.complete(null);
+            }
+        }
+
+        @Override
+        public void channelWritabilityChanged(ChannelHandlerContext ctx) {
+            if (ctx.channel().isWritable()) {
+                pump(ctx.channel());
+            }
+        }
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg) {
+            if (msg instanceof Http2HeadersFrame headers) {
+                status.trySuccess(headers.headers().status());
+            }
+            ReferenceCountUtil.release(msg);
+        }
+
+        @Override
+        public void channelInactive(ChannelHandlerContext ctx) {
+            status.tryFailure(new IOException("Stream closed"));
+        }
+    }
+
+    /**
+     * 圧縮できない内容を手早く作るための xorshift の乱数列。
+     */
+    private static final class Xorshift {
+        private long state = 0x9E3779B97F4A7C15L;
+
+        void fill(byte[] buf, int length) {
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, length);
+            while (bb.remaining() >= 8) {
+                state ^= state << 13;
+                state ^= state >>> 7;
+                state ^= state << 17;
+                bb.putLong(state);
+            }
+            while (bb.hasRemaining()) {
+                bb.put((byte) state);
+            }
+        }
+    }
+
+    private static void assertContent(Path path, byte[] expected) throws Exception {
+        MessageDigest digest = MessageDigest.getInstance("SHA-256");
+        try (FileChannel in = FileChannel.open(path)) {
+            ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
+            while (in.read(buf) >= 0) {
+                buf.flip();
+                digest.update(buf);
+                buf.clear();
+            }
+        }
+        byte[] actual = digest.digest();
+        assertArrayEquals(
+                expected,
+                actual,
+                () -> path.getFileName() + ": digest mismatch " + HexFormat.of().formatHex(actual));
+        assertEquals(List.of(), tempFiles(), "temporary files left");
+    }
+
+    private static void assertRemoved(String name) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (System.nanoTime() < deadline) {
+            if (! Files.exists(uploadDir.resolve(name)) && tempFiles().isEmpty()) {
+                return;
+            }
+            Thread.sleep(50);
+        }
+        try (Stream<Path> files = Files.list(uploadDir)) {
+            fail(name + ": left " + files.map(p -> p.getFileName().toString()).toList());
+        }
+    }
+
+    private static List<Path> tempFiles() throws IOException {
+        try (Stream<Path> files = Files.list(uploadDir)) {
+            return files.filter(p -> p.getFileName().toString().endsWith(".part")).toList();
+        }
+    }
+
+    private static String readStatusLine(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) >= 0 && b != '\n') {
+            line.append((char) b);
+        }
+        return line.toString().trim();
+    }
+}